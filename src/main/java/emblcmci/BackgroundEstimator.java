@@ -0,0 +1,162 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package emblcmci;
+
+import histogram2.MaskedHistogram;
+
+import java.util.Arrays;
+
+/**
+ * Background intensity subtracted by the simple ratio method before the
+ * ratios are computed.
+ *
+ * <ul>
+ * <li>FIXED: a value given by the user (the original behaviour).</li>
+ * <li>MODE: the most frequent pixel value of the background region.</li>
+ * <li>LOW_PERCENTILE: a low percentile of the pixel values of the
+ * background region, e.g. 5%.</li>
+ * </ul>
+ *
+ * The background region is the part of the frame outside the ROI, or the
+ * whole frame if the ROI covers it (see getRegion), as the signal inside
+ * the ROI would bias the estimate. Callers measure it in the same
+ * statistics pass as the ROI, see append, so no pixels are read again for
+ * it. The automatic estimates are taken from its histograms, per
+ * time point (the mean over its z-slices), or, if not per frame, as the
+ * median of the per time point estimates, which is one baseline for the
+ * whole series.
+ */
+public class BackgroundEstimator {
+
+	public static final int FIXED = 0, MODE = 1, LOW_PERCENTILE = 2;
+
+	public static final String[] METHOD_NAMES = { "Fixed value", "Histogram mode", "Low percentile" };
+
+	int method = FIXED;
+	double value = 0;
+	double percent = 5;
+	boolean perFrame = false;
+
+	/**
+	 * @param value fixed background intensity
+	 */
+	public BackgroundEstimator(double value) {
+		super();
+		this.value = value;
+	}
+
+	/**
+	 * @param method MODE or LOW_PERCENTILE
+	 * @param percent percentile for LOW_PERCENTILE
+	 * @param perFrame true for a baseline per time point, false for one baseline
+	 */
+	public BackgroundEstimator(int method, double percent, boolean perFrame) {
+		super();
+		this.method = method;
+		this.percent = Math.max(0, Math.min(100, percent));
+		this.perFrame = perFrame;
+	}
+
+	public int getMethod() {
+		return method;
+	}
+
+	public double getValue() {
+		return value;
+	}
+
+	public double getPercent() {
+		return percent;
+	}
+
+	public boolean isPerFrame() {
+		return perFrame;
+	}
+
+	/**
+	 * @return true if the estimate needs the histograms of the planes
+	 */
+	public boolean needsHistogram() {
+		return method != FIXED;
+	}
+
+	/**
+	 * @param roi region of the signal
+	 * @return region the background is measured in: the pixels outside
+	 * roi, or roi if it covers the whole frame; null for FIXED
+	 */
+	public MaskedHistogram getRegion(MaskedHistogram roi) {
+		if (method == FIXED)
+			return null;
+		MaskedHistogram rest = roi.getComplement();
+		return (rest.getPixelCount() > 0) ? rest : roi;
+	}
+
+	/**
+	 * @param masks regions measured for the correction
+	 * @param roi region of the signal
+	 * @param background estimator of the correction, may be null
+	 * @return masks followed by the background region of roi, so that it
+	 * is measured in the same pass; masks if no region is needed
+	 */
+	static MaskedHistogram[] append(MaskedHistogram[] masks, MaskedHistogram roi, BackgroundEstimator background) {
+		MaskedHistogram region = (background == null) ? null : background.getRegion(roi);
+		if (region == null)
+			return masks;
+		MaskedHistogram[] all = Arrays.copyOf(masks, masks.length + 1);
+		all[masks.length] = region;
+		return all;
+	}
+
+	/**
+	 * @param stats statistics of the background region before correction,
+	 * see getRegion
+	 * @param zframes z-slices per time point, 1 for 2D time series
+	 * @param timeframes number of time points
+	 * @return background intensity of each time point
+	 */
+	public double[] estimate(PlaneStatistics[] stats, int zframes, int timeframes) {
+		double[] baselines = new double[timeframes];
+		for (int t = 0; t < timeframes; t++) {
+			if (method == FIXED) {
+				baselines[t] = value;
+				continue;
+			}
+			for (int z = 0; z < zframes; z++) {
+				PlaneStatistics s = stats[t * zframes + z];
+				baselines[t] += (method == MODE) ? s.getMode() : s.getPercentile(percent, null);
+			}
+			baselines[t] /= zframes;
+		}
+		if (method != FIXED && !perFrame && timeframes > 0)
+			Arrays.fill(baselines, BleachReference.median(baselines));
+		return baselines;
+	}
+
+	@Override
+	public String toString() {
+		String s = (method == LOW_PERCENTILE) ? percent + "th percentile" : METHOD_NAMES[method];
+		if (method == FIXED)
+			return s + " " + value;
+		return s + (perFrame ? " per frame" : "");
+	}
+}
@@ -39,6 +39,17 @@ package emblcmci;
  *  	for segmentation but might not good for intensity quantification.
  *  	See documentation at http://cmci.embl.de
  *
+ *  Tiled Method:
+ *  	Simple ratio or exponential fit estimated per tile of a grid
+ *  	inside the ROI, applied as a smoothly interpolated gain field
+ *  	after subtracting the background. For spatially non-uniform
+ *  	bleaching.
+ *
+ *  Automatic:
+ *  	Chooses between simple ratio, exponential fit and histogram
+ *  	matching by scoring each on held-out rows of the ROI, see
+ *  	BleachCorrection_Auto.
+ *
  *
  * Copyright © 2010 Kota Miura
  * License: GPL 2
@@ -56,7 +67,12 @@ package emblcmci;
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 
+import histogram2.BufferPool;
+import histogram2.MaskedHistogram;
+import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Macro;
 import ij.gui.GenericDialog;
 import ij.gui.Roi;
 import ij.plugin.Duplicator;
@@ -64,20 +80,60 @@ import ij.plugin.filter.PlugInFilter;
 import ij.process.ImageProcessor;
 import org.scijava.util.VersionUtils;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
 public class BleachCorrection implements PlugInFilter {
 
-	public static final int SIMPLE_RATIO=0, EXPONENTIAL_FIT=1, HISTOGRAM_MATCHING=2;
+	public static final int SIMPLE_RATIO=0, EXPONENTIAL_FIT=1, HISTOGRAM_MATCHING=2, TILED=3, AUTO=4;
 	boolean doHeadLess = false;
 	double simpleratio_baseline =0.0; //default value
+	BackgroundEstimator background = null; //fixed simpleratio_baseline if null
+	int expofit_model = DecayModelFitter.EXPONENTIAL; //default value
+	int expofit_binning = 1; //default value, time points per bin of the fit
+	int tiled_tilesX = 4, tiled_tilesY = 4; //default value
+	int tiled_method = BleachCorrection_Tiled.TILE_RATIO; //default value
+
+	BleachReference reference = new BleachReference();
+	IntensityEstimator estimator = new IntensityEstimator();
+	int outputMode = OutputPrecision.ROUND;
+	boolean mh_perslice = false; // histogram matching reference per z-slice
+	boolean trackDrift = false; // move the ROI with the sample, simple ratio and exponential fit
+	BleachProgress progress = new BleachProgress();
+	File diagnosticsDir = null;
+	boolean useSidecar = false; // opt in, the sidecar is written next to the image file
+	StatisticsSidecar sidecar = null;
+	QualityReport report = null;
+	BufferPool.Usage bufferUsage = null; // of the last correction
+	boolean verbose = false; // log the ROI and the buffer usage of each correction
+	boolean methodDialogShown = false; // the parameters of the method were asked in setup()
+
+	/**
+	 * corrections started from the menu run one after the other on this
+	 * background thread, so that the GUI stays responsive.
+	 */
+	static final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "Bleach Correction");
+			t.setDaemon(true);
+			return t;
+		}
+	});
 
 	ImagePlus imp;
+	Roi curROI;
 	// ImagePlus duplicate of the original, which will be applied with the correction. 
 	ImagePlus impdup;
 
-	String[] CorrectionMethods = { "Simple Ratio", "Exponential Fit", "Histogram Matching" };
+	String[] CorrectionMethods = { "Simple Ratio", "Exponential Fit", "Histogram Matching", "Tiled (spatially varying)",
+			"Automatic (best of ratio, fit and matching)" };
 
 	/**
-	 * Correction Method 0: simple ratio 1: exponential fit 2: histogramMatch
+	 * Correction Method 0: simple ratio 1: exponential fit 2: histogramMatch 3: tiled 4: automatic
 	 */
 	private static int CorrectionMethod = SIMPLE_RATIO;
 
@@ -87,31 +143,120 @@ public class BleachCorrection implements PlugInFilter {
 		if (!showDialog()) {
 			return 0;
 		}
-		return DOES_8G + DOES_16 + STACK_REQUIRED;
+		if (imp != null && !showMethodDialog())
+			return 0;
+		return DOES_8G + DOES_16 + STACK_REQUIRED + NO_CHANGES;
 	}
 
+	/**
+	 * Asks the parameters of the selected method on the calling thread,
+	 * as ImageJ keeps the options of a running macro per thread; the
+	 * correction then only uses them.
+	 *
+	 * @return false if canceled
+	 */
+	boolean showMethodDialog() {
+		if (CorrectionMethod == SIMPLE_RATIO) {
+			BleachCorrection_SimpleRatio BCSR = new BleachCorrection_SimpleRatio(imp);
+			BCSR.setSimpleRatioBaseline(simpleratio_baseline);
+			BCSR.setBackgroundEstimator(background);
+			if (!BCSR.showDialogAskBaseline())
+				return false;
+			simpleratio_baseline = BCSR.baselineInt;
+			background = BCSR.background;
+		} else if (CorrectionMethod == EXPONENTIAL_FIT) {
+			BleachCorrection_ExpoFit BCEF = new BleachCorrection_ExpoFit(imp);
+			BCEF.setFitModel(expofit_model);
+			BCEF.setFitBinning(expofit_binning);
+			if (!BCEF.showDialogAskFitModel())
+				return false;
+			expofit_model = BCEF.fitModel;
+			expofit_binning = BCEF.binSize;
+		} else if (CorrectionMethod == TILED) {
+			BleachCorrection_Tiled BCT = new BleachCorrection_Tiled(imp, tiled_tilesX, tiled_tilesY);
+			BCT.setTileMethod(tiled_method);
+			BCT.setSimpleRatioBaseline(simpleratio_baseline);
+			BCT.setBackgroundEstimator(background);
+			if (!BCT.showDialogAskTiles())
+				return false;
+			tiled_tilesX = BCT.tilesX;
+			tiled_tilesY = BCT.tilesY;
+			tiled_method = BCT.tileMethod;
+			simpleratio_baseline = BCT.baselineInt;
+			background = BCT.background;
+		}
+		methodDialogShown = true;
+		return true;
+	}
+
+	/**
+	 * The image is duplicated here, the correction of the duplicate runs in
+	 * the background. Progress is shown in the ImageJ progress bar, ESC
+	 * cancels the correction between frames and discards the duplicate.
+	 * Errors of the background correction are shown by IJ.handleException.
+	 * Called from a macro, the correction runs in the calling thread, so
+	 * that the next macro command finds the corrected image.
+	 */
 	@Override
 	public void run(ImageProcessor ip) {
-		ImagePlus impdup = doCorrection(imp);
-		impdup.show();
+		duplicate(imp);
+		Runnable job = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					ImagePlus result = correct();
+					if (result != null)
+						result.show();
+					else if (progress.isCanceled())
+						IJ.showStatus("Bleach Correction canceled");
+				} catch (Throwable e) {
+					progress.finish();
+					IJ.handleException(e);
+				}
+			}
+		};
+		if (Macro.getOptions() != null || IJ.isMacro())
+			job.run();
+		else
+			executor.execute(job);
 	}
 
+	/**
+	 * Corrects a duplicate of imp in the current thread.
+	 *
+	 * @param imp original image, stays unchanged
+	 * @return corrected duplicate, null if the correction was canceled
+	 */
 	public ImagePlus doCorrection(ImagePlus imp){
+		duplicate(imp);
+		return correct();
+	}
+
+	void duplicate(ImagePlus imp){
 		this.imp = imp;
-		Roi curROI = imp.getRoi();
-		// System.out.println("in the method");
-		if (curROI != null) {
-			java.awt.Rectangle rect = curROI.getBounds();
-			System.out.println("(x,y)=(" + rect.x + "," + rect.y);
-			System.out.println("Width=" + rect.width);
-			System.out.println("Height=" + rect.height);
-		} else {
-			System.out.println("No ROI");
+		progress = new BleachProgress(!doHeadLess);
+		IJ.resetEscape();
+		curROI = imp.getRoi();
+		sidecar = useSidecar ? StatisticsSidecar.forImage(imp) : null;
+		if (verbose) {
+			if (curROI != null) {
+				java.awt.Rectangle rect = curROI.getBounds();
+				IJ.log("ROI (x,y)=(" + rect.x + "," + rect.y + ") width=" + rect.width + " height=" + rect.height);
+			} else {
+				IJ.log("No ROI");
+			}
 		}
 		imp.killRoi();
 		impdup = new Duplicator().run(imp);
-		if (curROI != null)
+		if (curROI != null) {
 			impdup.setRoi(curROI);
+			imp.setRoi(curROI);
+		}
+	}
+
+	ImagePlus correct(){
+		report = null;
+		BufferPool.Usage start = BufferPool.getShared().getUsage();
 		if (CorrectionMethod == SIMPLE_RATIO) { // Simple Ratio Method
 			BleachCorrection_SimpleRatio BCSR = null;
 			if (curROI == null) {
@@ -119,11 +264,20 @@ public class BleachCorrection implements PlugInFilter {
 			} else {
 				BCSR = new BleachCorrection_SimpleRatio(impdup, curROI);
 			}
-			if (!doHeadLess)
+			BCSR.setReference(reference);
+			BCSR.setIntensityEstimator(estimator);
+			BCSR.setProgress(progress);
+			BCSR.setSidecar(sidecar);
+			BCSR.setOutputMode(outputMode);
+			BCSR.setRoiTracker(tracker());
+			if (!doHeadLess && !methodDialogShown) {
 				BCSR.showDialogAskBaseline();
-			else
+			} else {
 				BCSR.setSimpleRatioBaseline(simpleratio_baseline);
+				BCSR.setBackgroundEstimator(background);
+			}
 			BCSR.correctBleach();
+			report = BCSR.getQualityReport();
 		} else if (CorrectionMethod == EXPONENTIAL_FIT) { // Exponential Fitting Method
 			BleachCorrection_ExpoFit BCEF;
 			if (curROI == null) {
@@ -132,19 +286,309 @@ public class BleachCorrection implements PlugInFilter {
 				BCEF = new BleachCorrection_ExpoFit(impdup, curROI);
 			}
 			BCEF.setHeadlessProcessing(doHeadLess);
+			BCEF.setReference(reference);
+			BCEF.setIntensityEstimator(estimator);
+			BCEF.setProgress(progress);
+			BCEF.setDiagnosticsDirectory(diagnosticsDir);
+			BCEF.setSidecar(sidecar);
+			BCEF.setOutputMode(outputMode);
+			BCEF.setRoiTracker(tracker());
+			if (!doHeadLess && !methodDialogShown)
+				BCEF.showDialogAskFitModel();
+			else {
+				BCEF.setFitModel(expofit_model);
+				BCEF.setFitBinning(expofit_binning);
+			}
 			BCEF.core();
+			report = BCEF.getQualityReport();
 		} else if (CorrectionMethod == HISTOGRAM_MATCHING) { // HIstogram Matching Method
 			BleachCorrection_MH BCMH = null;
-			// if (curROI == null) {
-			BCMH = new BleachCorrection_MH(impdup);
-			// } else {
-			// BCMH = new BleachCorrection_MH(impdup, curROI);
-			// }
+			if (curROI == null) {
+				BCMH = new BleachCorrection_MH(impdup);
+			} else {
+				BCMH = new BleachCorrection_MH(impdup, curROI);
+			}
+			BCMH.setReference(reference);
+			BCMH.setPerSliceReference(mh_perslice);
+			BCMH.setProgress(progress);
+			BCMH.setSidecar(sidecar);
 			BCMH.doCorrection();
+			report = BCMH.getQualityReport();
+		} else if (CorrectionMethod == TILED) { // Tiled Method
+			BleachCorrection_Tiled BCT = new BleachCorrection_Tiled(impdup, tiled_tilesX, tiled_tilesY);
+			BCT.setRoi(curROI);
+			BCT.setReference(reference);
+			BCT.setIntensityEstimator(estimator);
+			BCT.setProgress(progress);
+			if (!doHeadLess && !methodDialogShown) {
+				BCT.showDialogAskTiles();
+			} else {
+				BCT.setTileMethod(tiled_method);
+				BCT.setSimpleRatioBaseline(simpleratio_baseline);
+				BCT.setBackgroundEstimator(background);
+			}
+			BCT.correctBleach();
+		} else if (CorrectionMethod == AUTO) { // best of the first three methods
+			BleachCorrection_Auto BCA = auto(impdup);
+			BCA.correctBleach();
+			report = BCA.getQualityReport();
+		}
+		progress.finish();
+		bufferUsage = BufferPool.getShared().getUsage().since(start);
+		if (progress.isCanceled()) {
+			impdup = null;
+			return null;
 		}
+		if (verbose)
+			IJ.log(bufferUsage.toString());
+		writeQualityReport(imp.getShortTitle());
 		return impdup;
 	}
 
+	/**
+	 * Automatic selection with the settings of the three methods it
+	 * chooses from; their dialogs are not shown.
+	 */
+	BleachCorrection_Auto auto(ImagePlus imp) {
+		BleachCorrection_Auto BCA = (curROI == null) ? new BleachCorrection_Auto(imp)
+				: new BleachCorrection_Auto(imp, curROI);
+		BCA.setReference(reference);
+		BCA.setIntensityEstimator(estimator);
+		BCA.setSimpleRatioBaseline(simpleratio_baseline);
+		BCA.setBackgroundEstimator(background);
+		BCA.setExponentialFitModel(expofit_model);
+		BCA.setExponentialFitBinning(expofit_binning);
+		BCA.setHistogramMatchingPerSlice(mh_perslice);
+		BCA.setOutputMode(outputMode);
+		BCA.setProgress(progress);
+		return BCA;
+	}
+
+	/**
+	 * @return tracker of the ROI if drift tracking is on and a ROI is set, else null
+	 */
+	RoiTracker tracker() {
+		return (trackDrift && curROI != null) ? new RoiTracker() : null;
+	}
+
+	/**
+	 * Writes the quality report of the last correction as CSV into the
+	 * diagnostics folder, if one is set.
+	 */
+	void writeQualityReport(String title) {
+		if (report == null || diagnosticsDir == null)
+			return;
+		diagnosticsDir.mkdirs();
+		File f = new File(diagnosticsDir, title + "_quality.csv");
+		try {
+			report.writeCsv(f);
+		} catch (IOException e) {
+			IJ.log("could not write " + f + ": " + e);
+		}
+	}
+
+	/**
+	 * Corrects a file-backed stack, e.g. opened as virtual stack, without
+	 * loading it into memory: planes are streamed through BleachPipeline
+	 * and written as TIFF files into a folder. Simple ratio, exponential fit,
+	 * histogram matching and the automatic selection are supported.
+	 *
+	 * @param imp original image, stays unchanged
+	 * @param dir folder for the corrected planes
+	 * @return false if canceled or the method is not supported
+	 */
+	public boolean correctToFolder(ImagePlus imp, File dir) throws IOException {
+		return correctTo(imp, BleachPipeline.toFolder(dir, imp.getShortTitle() + "_corrected", imp.getWidth(),
+				imp.getHeight(), imp.getStackSize()));
+	}
+
+	/**
+	 * As correctToFolder, but writes the corrected planes as a chunked,
+	 * gzip compressed N5 dataset; blocks are compressed in parallel.
+	 *
+	 * @param container folder of the N5 container
+	 * @param dataset name of the dataset in the container
+	 * @return false if canceled or the method is not supported
+	 */
+	public boolean correctToN5(ImagePlus imp, File container, String dataset) throws IOException {
+		int[] impdimA = imp.getDimensions();
+		boolean is3DT = impdimA[3] > 1 && impdimA[4] > 1;
+		N5PlaneSink sink = new N5PlaneSink(container, dataset, imp.getWidth(), imp.getHeight(),
+				is3DT ? impdimA[3] : 1, is3DT ? impdimA[4] : imp.getStackSize(), imp.getBitDepth());
+		try {
+			return correctTo(imp, sink);
+		} finally {
+			sink.close();
+		}
+	}
+
+	/**
+	 * Streams the corrected planes of a file-backed stack into a sink.
+	 *
+	 * @param sink destination of the corrected planes
+	 * @return false if canceled or the method is not supported
+	 */
+	public boolean correctTo(ImagePlus imp, BleachPipeline.PlaneSink sink) throws IOException {
+		if (CorrectionMethod == TILED) {
+			IJ.error("Bleach Correction", "The tiled method cannot be streamed to files.");
+			return false;
+		}
+		this.imp = imp;
+		progress = new BleachProgress(!doHeadLess);
+		IJ.resetEscape();
+		curROI = imp.getRoi();
+		BufferPool.Usage start = BufferPool.getShared().getUsage();
+		int zframes = 1;
+		int timeframes = imp.getStackSize();
+		int[] impdimA = imp.getDimensions();
+		if (impdimA[3] > 1 && impdimA[4] > 1) { // if slices and frames are both more than 1
+			zframes = impdimA[3];
+			timeframes = impdimA[4];
+			if ((zframes * timeframes) != imp.getStackSize()) {
+				IJ.showMessage("slice and time frames do not match with the length of the stack. Please correct!");
+				return false;
+			}
+		}
+
+		ImageStack stack = imp.getStack();
+		BleachPipeline pipeline = new BleachPipeline(stack);
+		pipeline.setProgress(progress);
+		MaskedHistogram mask = new MaskedHistogram(imp.getWidth(), imp.getHeight(), curROI);
+		CorrectionPlan plan;
+		if (CorrectionMethod == AUTO) {
+			// both halves of the ROI and the background region in one pass, see BleachCorrection_Auto
+			MaskedHistogram[] halves = BleachCorrection_Auto.halves(mask);
+			PlaneStatistics[][] stats = pipeline.measure(StatisticsCache.getShared(),
+					BackgroundEstimator.append(halves, mask, background));
+			if (stats == null)
+				return false;
+			IJ.log("statistics: " + pipeline.getElapsedMillis() + " ms, " + IJ.d2s(pipeline.getThroughput(), 1) + " MB/s");
+			BleachCorrection_Auto BCA = auto(imp);
+			if (stats.length > halves.length)
+				BCA.setBackgroundStatistics(stats[halves.length]);
+			plan = BCA.plan(stats[0], stats[halves.length - 1], zframes, timeframes);
+		} else {
+			RoiTracker tracker = (CorrectionMethod != HISTOGRAM_MATCHING) ? tracker() : null;
+			// the sidecar holds statistics of the fixed ROI only
+			StatisticsSidecar sc = (useSidecar && tracker == null) ? StatisticsSidecar.forImage(imp) : null;
+			PlaneStatistics[] backgroundStats = null;
+			PlaneStatistics[] stats = (sc == null) ? null : sc.read(stack, mask,
+					CorrectionMethod != EXPONENTIAL_FIT || estimator.needsHistogram());
+			if (tracker != null) {
+				stats = tracker.measure(stack, zframes, curROI, StatisticsCache.getShared(), progress);
+				if (stats == null)
+					return false;
+			} else if (stats == null) {
+				// a background chosen in the dialog later is measured then
+				MaskedHistogram[] masks = new MaskedHistogram[] { mask };
+				if (CorrectionMethod == SIMPLE_RATIO && doHeadLess)
+					masks = BackgroundEstimator.append(masks, mask, background);
+				PlaneStatistics[][] all = pipeline.measure(StatisticsCache.getShared(), masks);
+				if (all == null)
+					return false;
+				stats = all[0];
+				if (all.length > 1)
+					backgroundStats = all[1];
+				if (sc != null)
+					sc.write(stack, mask, stats);
+				IJ.log("statistics: " + pipeline.getElapsedMillis() + " ms, " + IJ.d2s(pipeline.getThroughput(), 1) + " MB/s");
+			}
+			plan = plan(imp, stats, backgroundStats, zframes, timeframes);
+		}
+		if (plan == null)
+			return false;
+		boolean done = pipeline.apply(plan, sink);
+		progress.finish();
+		report = plan.getQualityReport();
+		bufferUsage = BufferPool.getShared().getUsage().since(start);
+		if (done) {
+			IJ.log("correction: " + pipeline.getElapsedMillis() + " ms, " + IJ.d2s(pipeline.getThroughput(), 1) + " MB/s");
+			if (report != null)
+				IJ.log(report.getSummary());
+			if (verbose)
+				IJ.log(bufferUsage.toString());
+			writeQualityReport(imp.getShortTitle());
+		}
+		return done;
+	}
+
+	/**
+	 * @return new instance with the parameters of this one, so that a
+	 * correction can change its own mode and ROI without changing these;
+	 * the progress is shared
+	 */
+	BleachCorrection copySettings() {
+		BleachCorrection copy = new BleachCorrection();
+		copy.doHeadLess = doHeadLess;
+		copy.simpleratio_baseline = simpleratio_baseline;
+		copy.background = background;
+		copy.expofit_model = expofit_model;
+		copy.expofit_binning = expofit_binning;
+		copy.tiled_tilesX = tiled_tilesX;
+		copy.tiled_tilesY = tiled_tilesY;
+		copy.tiled_method = tiled_method;
+		copy.reference = reference;
+		copy.estimator = estimator;
+		copy.outputMode = outputMode;
+		copy.mh_perslice = mh_perslice;
+		copy.trackDrift = trackDrift;
+		copy.progress = progress;
+		copy.diagnosticsDir = diagnosticsDir;
+		copy.useSidecar = useSidecar;
+		copy.verbose = verbose;
+		return copy;
+	}
+
+	/**
+	 * Correction of the selected method computed from the statistics,
+	 * with the same settings as correct().
+	 *
+	 * @param backgroundStats statistics of the background region of the
+	 * simple ratio method, see BackgroundEstimator.getRegion; null to
+	 * measure them from imp if needed
+	 */
+	CorrectionPlan plan(ImagePlus imp, PlaneStatistics[] stats, PlaneStatistics[] backgroundStats, int zframes,
+			int timeframes) {
+		if (CorrectionMethod == SIMPLE_RATIO) {
+			BleachCorrection_SimpleRatio BCSR = (curROI == null) ? new BleachCorrection_SimpleRatio(imp)
+					: new BleachCorrection_SimpleRatio(imp, curROI);
+			BCSR.setReference(reference);
+			BCSR.setIntensityEstimator(estimator);
+			if (!doHeadLess) {
+				BCSR.showDialogAskBaseline();
+			} else {
+				BCSR.setSimpleRatioBaseline(simpleratio_baseline);
+				BCSR.setBackgroundEstimator(background);
+			}
+			BCSR.setBackgroundStatistics(backgroundStats);
+			return BCSR.plan(stats, zframes, timeframes);
+		} else if (CorrectionMethod == EXPONENTIAL_FIT) {
+			BleachCorrection_ExpoFit BCEF = (curROI == null) ? new BleachCorrection_ExpoFit(imp)
+					: new BleachCorrection_ExpoFit(imp, curROI);
+			BCEF.setHeadlessProcessing(doHeadLess);
+			BCEF.setReference(reference);
+			BCEF.setIntensityEstimator(estimator);
+			BCEF.setProgress(progress);
+			BCEF.setDiagnosticsDirectory(diagnosticsDir);
+			if (!doHeadLess)
+				BCEF.showDialogAskFitModel();
+			else {
+				BCEF.setFitModel(expofit_model);
+				BCEF.setFitBinning(expofit_binning);
+			}
+			CorrectionPlan plan = BCEF.plan(stats, zframes, timeframes);
+			if (plan != null)
+				BCEF.showDiagnostics();
+			return plan;
+		} else {
+			BleachCorrection_MH BCMH = (curROI == null) ? new BleachCorrection_MH(imp)
+					: new BleachCorrection_MH(imp, curROI);
+			BCMH.setReference(reference);
+			BCMH.setPerSliceReference(mh_perslice);
+			return BCMH.plan(stats, zframes, timeframes);
+		}
+	}
+
 	/**
 	 * Dialog to ask which method to be used for Bleach Correction
 	 *
@@ -153,12 +597,31 @@ public class BleachCorrection implements PlugInFilter {
 	public boolean showDialog() {
 		GenericDialog gd = new GenericDialog("Bleach Correction");
 		gd.addChoice("Correction Method :", CorrectionMethods, CorrectionMethods[CorrectionMethod]);
+		gd.addChoice("Reference :", BleachReference.REFERENCE_NAMES,
+				BleachReference.REFERENCE_NAMES[reference.getStrategy()]);
+		gd.addNumericField("Reference window N", reference.getWindowSize(), 0);
+		gd.addNumericField("Reference frame", reference.getFrame() + 1, 0);
+		gd.addChoice("Intensity estimate :", IntensityEstimator.ESTIMATOR_NAMES,
+				IntensityEstimator.ESTIMATOR_NAMES[estimator.getEstimator()]);
+		gd.addNumericField("Trimmed / percentile (%)", estimator.getPercent(), 1);
+		gd.addChoice("Output :", OutputPrecision.MODE_NAMES, OutputPrecision.MODE_NAMES[outputMode]);
+		gd.addCheckbox("Track ROI drift (ratio and fit)", trackDrift);
+		gd.addCheckbox("Match histograms per z-slice (3D)", mh_perslice);
 		gd.addMessage("version " + VersionUtils.getVersion(getClass()));
 		gd.addMessage("Citation doi: 10.12688/f1000research.27171.1");
 		gd.showDialog();
 		if (gd.wasCanceled())
 			return false;
 		BleachCorrection.setCorrectionMethod(gd.getNextChoiceIndex());
+		int strategy = gd.getNextChoiceIndex();
+		int window = (int) gd.getNextNumber();
+		int frame = (int) gd.getNextNumber() - 1;
+		reference = new BleachReference(strategy, window, frame);
+		int est = gd.getNextChoiceIndex();
+		estimator = new IntensityEstimator(est, gd.getNextNumber());
+		outputMode = gd.getNextChoiceIndex();
+		trackDrift = gd.getNextBoolean();
+		mh_perslice = gd.getNextBoolean();
 		return true;
 
 	}
@@ -166,6 +629,40 @@ public class BleachCorrection implements PlugInFilter {
 	public ImagePlus getCorrectedImagePlus(){
 		return impdup;
 	}
+
+	/**
+	 * Stops a running correction after the current frame.
+	 */
+	public void cancel(){
+		progress.cancel();
+	}
+
+	public BleachProgress getProgress(){
+		return progress;
+	}
+
+	/**
+	 * @return quality of the last correction by simple ratio, exponential
+	 * fit, histogram matching or the automatically selected one of them,
+	 * null for the tiled method
+	 */
+	public QualityReport getQualityReport(){
+		return report;
+	}
+	/**
+	 * @return arrays borrowed from and allocated by BufferPool, and garbage
+	 * collections, during the last correction; null before
+	 */
+	public BufferPool.Usage getBufferUsage(){
+		return bufferUsage;
+	}
+
+	/**
+	 * @param verbose true to log the ROI and the buffer usage of each correction, see getBufferUsage
+	 */
+	public void setVerbose(boolean verbose){
+		this.verbose = verbose;
+	}
 	public static int getCorrectionMethod() {
 		return CorrectionMethod;
 	}
@@ -179,5 +676,76 @@ public class BleachCorrection implements PlugInFilter {
 	public void setSimpleRatioBaseline(double baseline){
 		simpleratio_baseline = baseline;
 	}
+	/**
+	 * @param background automatic background of the simple ratio method,
+	 * null to subtract the fixed baseline of setSimpleRatioBaseline
+	 */
+	public void setBackgroundEstimator(BackgroundEstimator background){
+		this.background = background;
+	}
+	/**
+	 * @param reference reference strategy used by simple ratio, exponential fit
+	 * and histogram matching methods
+	 */
+	public void setReference(BleachReference reference){
+		this.reference = reference;
+	}
+	/**
+	 * @param estimator intensity of a frame inside the ROI used by simple
+	 * ratio and exponential fit, the mean by default
+	 */
+	public void setIntensityEstimator(IntensityEstimator estimator){
+		this.estimator = estimator;
+	}
+	/**
+	 * @param mode rounding of the output of simple ratio and exponential
+	 * fit, see OutputPrecision; applies to doCorrection, not to streamed output
+	 */
+	public void setOutputMode(int mode){
+		outputMode = mode;
+	}
+	/**
+	 * @param track true to move the ROI with the drift of the sample, see
+	 * RoiTracker; simple ratio and exponential fit only, needs a ROI
+	 */
+	public void setTrackDrift(boolean track){
+		trackDrift = track;
+	}
+	/**
+	 * @param perSlice true to match each z-slice of a 3D time series to the
+	 * same z-slice of the reference with histogram matching
+	 */
+	public void setHistogramMatchingPerSlice(boolean perSlice){
+		mh_perslice = perSlice;
+	}
+	public void setExponentialFitModel(int model){
+		expofit_model = model;
+	}
+	/**
+	 * @param binSize time points averaged into one point of the exponential
+	 * fit, 1 for none, 0 for automatic; see BleachCorrection_ExpoFit.setFitBinning
+	 */
+	public void setExponentialFitBinning(int binSize){
+		expofit_binning = binSize;
+	}
+	/**
+	 * @param dir folder for the fit plot and CSV of the exponential fit method,
+	 * written in the background; null to show the plot instead
+	 */
+	public void setDiagnosticsDirectory(File dir){
+		diagnosticsDir = dir;
+	}
+	/**
+	 * @param use true to read and write the statistics sidecar file next
+	 * to the image file, see StatisticsSidecar; off by default
+	 */
+	public void setUseSidecar(boolean use){
+		useSidecar = use;
+	}
+	public void setTiles(int tilesX, int tilesY, int method){
+		tiled_tilesX = tilesX;
+		tiled_tilesY = tilesY;
+		tiled_method = method;
+	}
 
 }
@@ -0,0 +1,526 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package emblcmci;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Embeddable HTTP service running bleach corrections, with the HTTP server
+ * of the JDK and no other dependencies.
+ *
+ * <pre>
+ * POST /correct?width=W&amp;height=H&amp;bitDepth=8|16&amp;slices=Z&amp;frames=T
+ *     body: the raw planes, z-slices within time points, 16 bit big endian
+ * POST /correct?path=/local/file.tif
+ *     body: empty, the image is opened from the file
+ * GET  /health
+ * </pre>
+ *
+ * Further parameters of /correct: method=ratio|expofit|mh|auto (default ratio),
+ * baseline=B (simple ratio), model=N (decay model of DecayModelFitter),
+ * roi=x,y,width,height, output=round|dither|promote.
+ *
+ * The response is the corrected planes in the same raw layout (32 bit
+ * planes as big endian float), streamed plane by plane; its headers
+ * X-Width, X-Height, X-Slices, X-Frames and X-Bit-Depth describe it.
+ * Errors are answered with 400 (bad request, also planes larger than
+ * setMaxRequestBytes), 503 (queue full or service stopped) or 500 and a
+ * text message.
+ *
+ * Requests are parsed by the threads of the server and queued. Worker
+ * threads take the waiting requests in batches and correct them one
+ * after the other, each correction using all cores for its planes, so
+ * that concurrent requests do not oversubscribe the CPU. The statistics
+ * cache is shared by all requests, so repeated requests for the same
+ * data do not measure the planes again.
+ */
+public class BleachCorrectionService {
+
+	static final String[] METHODS = { "ratio", "expofit", "mh", "auto" };
+	static final String[] OUTPUTS = { "round", "dither", "promote" };
+
+	int port;
+	int workers = 1;
+	int batchSize = 8;
+	int queueSize = 64;
+	long maxRequestBytes = 1L << 30;
+	HttpServer server = null;
+	ExecutorService handlers;
+	List<Thread> workerThreads = new ArrayList<Thread>();
+	BlockingQueue<Job> queue;
+	volatile boolean running = false;
+	final AtomicLong requests = new AtomicLong();
+	final AtomicLong batches = new AtomicLong();
+
+	/**
+	 * @param port TCP port on the loopback interface, 0 for any free port
+	 */
+	public BleachCorrectionService(int port) {
+		super();
+		this.port = port;
+	}
+
+	/**
+	 * @param workers corrections running at the same time
+	 */
+	public void setWorkers(int workers) {
+		this.workers = Math.max(1, workers);
+	}
+
+	/**
+	 * @param batchSize maximum number of waiting requests a worker takes at once
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	/**
+	 * @param queueSize maximum number of waiting requests, further requests get 503
+	 */
+	public void setQueueSize(int queueSize) {
+		this.queueSize = Math.max(1, queueSize);
+	}
+
+	/**
+	 * @param maxBytes maximum size of the raw planes of a request, larger
+	 * requests get 400
+	 */
+	public void setMaxRequestBytes(long maxBytes) {
+		this.maxRequestBytes = maxBytes;
+	}
+
+	/**
+	 * Starts the server on the loopback interface.
+	 */
+	public synchronized void start() throws IOException {
+		if (running)
+			return;
+		queue = new ArrayBlockingQueue<Job>(queueSize);
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/correct", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				handleCorrect(exchange);
+			}
+		});
+		server.createContext("/health", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				sendText(exchange, 200, "ok " + requests.get() + " requests, " + batches.get() + " batches");
+			}
+		});
+		handlers = Executors.newCachedThreadPool(BleachPipeline.daemonThreads("Bleach Correction HTTP"));
+		server.setExecutor(handlers);
+		running = true;
+		for (int w = 0; w < workers; w++) {
+			Thread t = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					work();
+				}
+			}, "Bleach Correction service " + (w + 1));
+			t.setDaemon(true);
+			t.start();
+			workerThreads.add(t);
+		}
+		server.start();
+		IJ.log("Bleach correction service at http://localhost:" + getPort() + "/correct");
+	}
+
+	/**
+	 * Stops accepting requests. Waiting requests are answered with 503,
+	 * the batches being corrected are finished before the server stops.
+	 */
+	public synchronized void stop() {
+		if (!running)
+			return;
+		running = false;
+		failWaiting();
+		boolean interrupted = false;
+		for (Thread t : workerThreads) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		workerThreads.clear();
+		failWaiting(); // queued while the workers finished
+		server.stop(1);
+		handlers.shutdown();
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Removes the waiting requests from the queue, they are answered with 503.
+	 */
+	void failWaiting() {
+		List<Job> waiting = new ArrayList<Job>();
+		queue.drainTo(waiting);
+		for (Job job : waiting) {
+			job.stopped = true;
+			job.done.countDown();
+		}
+	}
+
+	/**
+	 * @return port the server listens on, also if started with port 0
+	 */
+	public int getPort() {
+		return (server == null) ? port : server.getAddress().getPort();
+	}
+
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	public long getBatchCount() {
+		return batches.get();
+	}
+
+	void work() {
+		List<Job> batch = new ArrayList<Job>();
+		while (running) {
+			try {
+				Job first = queue.poll(100, TimeUnit.MILLISECONDS); // to see when the service stops
+				if (first == null)
+					continue;
+				batch.add(first);
+			} catch (InterruptedException e) {
+				break;
+			}
+			queue.drainTo(batch, batchSize - 1);
+			batches.incrementAndGet();
+			for (Job job : batch) {
+				try {
+					job.result = correct(job);
+				} catch (Throwable t) {
+					job.failure = t;
+				} finally {
+					job.done.countDown();
+				}
+			}
+			batch.clear();
+		}
+	}
+
+	void handleCorrect(HttpExchange exchange) throws IOException {
+		try {
+			if (!"POST".equals(exchange.getRequestMethod())) {
+				sendText(exchange, 405, "POST required");
+				return;
+			}
+			requests.incrementAndGet();
+			Job job;
+			try {
+				job = parse(exchange);
+			} catch (IllegalArgumentException e) {
+				sendText(exchange, 400, e.getMessage());
+				return;
+			} catch (EOFException e) {
+				sendText(exchange, 400, "body shorter than the planes given by the parameters");
+				return;
+			}
+			if (!queue.offer(job)) {
+				sendText(exchange, 503, "too many requests waiting");
+				return;
+			}
+			if (!running && queue.remove(job)) {
+				sendText(exchange, 503, "service stopped");
+				return;
+			}
+			try {
+				job.done.await();
+			} catch (InterruptedException e) {
+				sendText(exchange, 503, "service stopped");
+				return;
+			}
+			if (job.stopped) {
+				sendText(exchange, 503, "service stopped");
+				return;
+			}
+			if (job.failure != null) {
+				sendText(exchange, 500, "correction failed: " + job.failure);
+				return;
+			}
+			if (job.result == null) {
+				sendText(exchange, 500, "correction failed, see the log");
+				return;
+			}
+			sendPlanes(exchange, job.result);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Reads the parameters and the planes of a request.
+	 */
+	Job parse(HttpExchange exchange) throws IOException {
+		Map<String, String> p = query(exchange.getRequestURI().getRawQuery());
+		Job job = new Job();
+		job.method = choice(p, "method", METHODS);
+		job.output = choice(p, "output", OUTPUTS);
+		job.baseline = number(p, "baseline", 0);
+		job.model = (int) number(p, "model", DecayModelFitter.EXPONENTIAL);
+		if (job.model < 0 || job.model >= DecayModelFitter.MODEL_NAMES.length)
+			throw new IllegalArgumentException("unknown model " + job.model);
+		if (p.containsKey("path")) {
+			ImagePlus imp = IJ.openImage(p.get("path"));
+			if (imp == null)
+				throw new IllegalArgumentException("could not open " + p.get("path"));
+			if (imp.getBitDepth() != 8 && imp.getBitDepth() != 16)
+				throw new IllegalArgumentException("8 bit or 16 bit image required");
+			job.imp = imp;
+		} else {
+			int width = (int) number(p, "width", -1);
+			int height = (int) number(p, "height", -1);
+			int bitDepth = (int) number(p, "bitDepth", 8);
+			int slices = (int) number(p, "slices", 1);
+			int frames = (int) number(p, "frames", -1);
+			if (width < 1 || height < 1 || frames < 1 || slices < 1)
+				throw new IllegalArgumentException("width, height and frames required");
+			if (bitDepth != 8 && bitDepth != 16)
+				throw new IllegalArgumentException("bitDepth must be 8 or 16");
+			checkSize(width, height, bitDepth, slices, frames, maxRequestBytes);
+			job.imp = readPlanes(new DataInputStream(exchange.getRequestBody()), width, height, bitDepth, slices,
+					frames);
+		}
+		if (p.containsKey("roi")) {
+			String[] r = p.get("roi").split(",");
+			if (r.length != 4)
+				throw new IllegalArgumentException("roi must be x,y,width,height");
+			job.roi = new Roi(Integer.parseInt(r[0].trim()), Integer.parseInt(r[1].trim()),
+					Integer.parseInt(r[2].trim()), Integer.parseInt(r[3].trim()));
+		}
+		return job;
+	}
+
+	/**
+	 * @throws IllegalArgumentException if a plane would not fit into an
+	 * array or the planes are larger than maxBytes
+	 */
+	static void checkSize(int width, int height, int bitDepth, int slices, int frames, long maxBytes) {
+		long plane = (long) width * height * (bitDepth / 8);
+		if (plane > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException("planes of " + width + "x" + height + " pixels are too large");
+		long bytes = plane * slices * frames;
+		if (bytes / frames / slices != plane || bytes > maxBytes)
+			throw new IllegalArgumentException("request of " + width + "x" + height + "x" + slices + "x" + frames
+					+ " pixels exceeds the maximum of " + maxBytes + " bytes");
+	}
+
+	/**
+	 * Reads slices * frames raw planes, see checkSize for the checks of the
+	 * dimensions.
+	 */
+	static ImagePlus readPlanes(DataInputStream in, int width, int height, int bitDepth, int slices, int frames)
+			throws IOException {
+		checkSize(width, height, bitDepth, slices, frames, Long.MAX_VALUE);
+		ImageStack stack = new ImageStack(width, height);
+		int npixels = width * height;
+		byte[] buffer = new byte[npixels * bitDepth / 8];
+		for (int n = 0; n < slices * frames; n++) {
+			in.readFully(buffer);
+			ImageProcessor ip;
+			if (bitDepth == 8) {
+				ip = new ByteProcessor(width, height, buffer.clone());
+			} else {
+				short[] pixels = new short[npixels];
+				for (int i = 0; i < npixels; i++)
+					pixels[i] = (short) ((buffer[2 * i] << 8) | (buffer[2 * i + 1] & 0xff));
+				ip = new ShortProcessor(width, height, pixels, null);
+			}
+			stack.addSlice(null, ip);
+		}
+		ImagePlus imp = new ImagePlus("request", stack);
+		imp.setDimensions(1, slices, frames);
+		return imp;
+	}
+
+	/**
+	 * Corrects the image of a job in place with its own method instance.
+	 *
+	 * @return corrected image, null if the correction failed
+	 */
+	ImagePlus correct(Job job) {
+		ImagePlus imp = job.imp;
+		if (job.method == 0) {
+			BleachCorrection_SimpleRatio sr = (job.roi == null) ? new BleachCorrection_SimpleRatio(imp)
+					: new BleachCorrection_SimpleRatio(imp, job.roi);
+			sr.setSimpleRatioBaseline(job.baseline);
+			sr.setOutputMode(job.output);
+			return sr.correctBleach();
+		} else if (job.method == 1) {
+			BleachCorrection_ExpoFit ef = (job.roi == null) ? new BleachCorrection_ExpoFit(imp)
+					: new BleachCorrection_ExpoFit(imp, job.roi);
+			ef.setHeadlessProcessing(true);
+			ef.setFitModel(job.model);
+			ef.setOutputMode(job.output);
+			ef.core();
+			return (ef.getFitResult() == null) ? null : imp;
+		} else if (job.method == 3) {
+			BleachCorrection_Auto auto = (job.roi == null) ? new BleachCorrection_Auto(imp)
+					: new BleachCorrection_Auto(imp, job.roi);
+			auto.setSimpleRatioBaseline(job.baseline);
+			auto.setExponentialFitModel(job.model);
+			auto.setOutputMode(job.output);
+			return auto.correctBleach();
+		} else {
+			BleachCorrection_MH mh = (job.roi == null) ? new BleachCorrection_MH(imp)
+					: new BleachCorrection_MH(imp, job.roi);
+			mh.doCorrection();
+			return imp;
+		}
+	}
+
+	/**
+	 * Streams the planes of imp as the response, one plane at a time.
+	 */
+	static void sendPlanes(HttpExchange exchange, ImagePlus imp) throws IOException {
+		ImageStack stack = imp.getStack();
+		exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+		exchange.getResponseHeaders().set("X-Width", Integer.toString(imp.getWidth()));
+		exchange.getResponseHeaders().set("X-Height", Integer.toString(imp.getHeight()));
+		exchange.getResponseHeaders().set("X-Slices", Integer.toString(imp.getNSlices()));
+		exchange.getResponseHeaders().set("X-Frames", Integer.toString(imp.getNFrames()));
+		exchange.getResponseHeaders().set("X-Bit-Depth", Integer.toString(imp.getBitDepth()));
+		exchange.sendResponseHeaders(200, 0); // chunked
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(exchange.getResponseBody(), 1 << 16));
+		for (int n = 1; n <= stack.getSize(); n++) {
+			Object pixels = stack.getPixels(n);
+			if (pixels instanceof byte[]) {
+				out.write((byte[]) pixels);
+			} else if (pixels instanceof short[]) {
+				for (short v : (short[]) pixels)
+					out.writeShort(v);
+			} else {
+				for (float v : (float[]) pixels)
+					out.writeFloat(v);
+			}
+		}
+		out.flush();
+		out.close();
+	}
+
+	static void sendText(HttpExchange exchange, int status, String text) throws IOException {
+		byte[] bytes = (text + "\n").getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+
+	static Map<String, String> query(String raw) throws IOException {
+		Map<String, String> map = new HashMap<String, String>();
+		if (raw == null)
+			return map;
+		for (String pair : raw.split("&")) {
+			int eq = pair.indexOf('=');
+			if (eq < 0)
+				map.put(URLDecoder.decode(pair, "UTF-8"), "");
+			else
+				map.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+						URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+		}
+		return map;
+	}
+
+	static double number(Map<String, String> p, String key, double defaultValue) {
+		String v = p.get(key);
+		if (v == null)
+			return defaultValue;
+		try {
+			return Double.parseDouble(v);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(key + " is not a number: " + v);
+		}
+	}
+
+	static int choice(Map<String, String> p, String key, String[] names) {
+		String v = p.get(key);
+		if (v == null)
+			return 0;
+		for (int i = 0; i < names.length; i++)
+			if (names[i].equalsIgnoreCase(v))
+				return i;
+		throw new IllegalArgumentException("unknown " + key + " " + v);
+	}
+
+	static class Job {
+		ImagePlus imp;
+		Roi roi = null;
+		int method = 0;
+		int output = OutputPrecision.ROUND;
+		double baseline = 0;
+		int model = DecayModelFitter.EXPONENTIAL;
+		final CountDownLatch done = new CountDownLatch(1);
+		volatile ImagePlus result = null;
+		volatile Throwable failure = null;
+		volatile boolean stopped = false; // removed from the queue by stop()
+	}
+
+	/**
+	 * Runs the service until the process is ended.
+	 *
+	 * @param args port, 8080 if not given
+	 */
+	public static void main(String[] args) throws Exception {
+		BleachCorrectionService service = new BleachCorrectionService(
+				(args.length > 0) ? Integer.parseInt(args[0]) : 8080);
+		service.start();
+		Thread.currentThread().join();
+	}
+}
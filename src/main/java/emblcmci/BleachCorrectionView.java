@@ -0,0 +1,306 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package emblcmci;
+
+import histogram2.MaskedHistogram;
+import histogram2.ParallelChunks;
+import ij.ImagePlus;
+import ij.Prefs;
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converter;
+import net.imglib2.converter.Converters;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * ImgLib2 backend: bleach correction of a RandomAccessibleInterval as a
+ * lazily evaluated view.
+ *
+ * The statistics of the planes are measured once and the correction is
+ * planned from them (see CorrectionPlan). The mapping of a time point is
+ * computed when the time point is first read, and only the last few are
+ * kept. The returned view converts pixels only when they are accessed, so
+ * that a cached cell image is corrected cell by cell and no corrected copy
+ * is held in memory. Pixel values are identical to those of the ImagePlus
+ * based correction.
+ *
+ * Images must be unsigned 8 or 16 bit with axes X, Y, T or X, Y, Z, T.
+ */
+public class BleachCorrectionView {
+
+	/** mappings kept by a view, 256 kB each for 16 bit */
+	static final int MAPPINGS_KEPT = 8;
+
+	BleachCorrection settings;
+	Roi roi = null;
+	StatisticsCache cache = StatisticsCache.getShared();
+
+	/**
+	 * @param settings method and parameters; the correction runs as in
+	 * headless mode, see BleachCorrection.setCorrectionMethod
+	 */
+	public BleachCorrectionView(BleachCorrection settings) {
+		super();
+		this.settings = settings;
+	}
+
+	/**
+	 * @param roi region of the statistics in X, Y, null for the whole plane
+	 */
+	public void setRoi(Roi roi) {
+		this.roi = roi;
+	}
+
+	public void setCache(StatisticsCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * @param source unsigned 8 or 16 bit image, axes X, Y, [Z,] T
+	 * @return lazily corrected view with the same interval, null if the
+	 * correction failed or the method is tiled correction
+	 */
+	public <T extends IntegerType<T>> RandomAccessibleInterval<T> correct(RandomAccessibleInterval<T> source) {
+		CorrectionPlan plan = plan(source);
+		return (plan == null) ? null : view(source, plan);
+	}
+
+	/**
+	 * Measures the planes and computes the correction.
+	 */
+	public <T extends IntegerType<T>> CorrectionPlan plan(RandomAccessibleInterval<T> source) {
+		if (BleachCorrection.getCorrectionMethod() == BleachCorrection.TILED)
+			return null;
+		int bitDepth = bitDepth(source);
+		int width = (int) source.dimension(0);
+		int height = (int) source.dimension(1);
+		int zframes = (source.numDimensions() == 4) ? (int) source.dimension(2) : 1;
+		int timeframes = (int) source.dimension(source.numDimensions() - 1);
+		MaskedHistogram mask = new MaskedHistogram(width, height, roi);
+		// the method classes only take bit depth and title from the image
+		ImagePlus imp = new ImagePlus("view", (bitDepth == 8) ? new ByteProcessor(1, 1) : new ShortProcessor(1, 1));
+		BleachCorrection headless = settings.copySettings(); // the settings of the caller stay as they are
+		headless.setHeadlessProcessing(true);
+		headless.curROI = roi;
+		// the background region, if any, is measured in the same pass
+		if (BleachCorrection.getCorrectionMethod() == BleachCorrection.AUTO) {
+			MaskedHistogram[] halves = BleachCorrection_Auto.halves(mask);
+			PlaneStatistics[][] stats = measure(source, BackgroundEstimator.append(halves, mask, settings.background));
+			BleachCorrection_Auto auto = headless.auto(imp);
+			if (stats.length > halves.length)
+				auto.setBackgroundStatistics(stats[halves.length]);
+			return auto.plan(stats[0], stats[halves.length - 1], zframes, timeframes);
+		}
+		MaskedHistogram[] masks = new MaskedHistogram[] { mask };
+		if (BleachCorrection.getCorrectionMethod() == BleachCorrection.SIMPLE_RATIO)
+			masks = BackgroundEstimator.append(masks, mask, settings.background);
+		PlaneStatistics[][] stats = measure(source, masks);
+		return headless.plan(imp, stats[0], (stats.length > 1) ? stats[1] : null, zframes, timeframes);
+	}
+
+	/**
+	 * @param source image the plan was computed for
+	 * @return view converting each time point with its mapping, or each
+	 * z-slice with its own for plans with a mapping per plane. The factor
+	 * and offset of a FactorPlan are applied directly; other mappings are
+	 * computed when a time point is first read, see MappingCache.
+	 */
+	public static <T extends IntegerType<T>> RandomAccessibleInterval<T> view(RandomAccessibleInterval<T> source,
+			CorrectionPlan plan) {
+		int tdim = source.numDimensions() - 1;
+		T type = Util.getTypeFromInterval(source);
+		List<RandomAccessibleInterval<T>> frames = new ArrayList<RandomAccessibleInterval<T>>();
+		int timeframes = (int) source.dimension(tdim);
+		int zframes = (source.numDimensions() == 4) ? (int) source.dimension(2) : 1;
+		boolean perPlane = zframes > 1 && plan.getSlices() == 1; // a mapping per z-slice
+		MappingCache mappings = new MappingCache(plan, MAPPINGS_KEPT);
+		for (int t = 0; t < timeframes; t++) {
+			RandomAccessibleInterval<T> frame = Views.hyperSlice(source, tdim, source.min(tdim) + t);
+			if (perPlane) {
+				List<RandomAccessibleInterval<T>> slices = new ArrayList<RandomAccessibleInterval<T>>();
+				for (int z = 0; z < zframes; z++)
+					slices.add(convert(Views.hyperSlice(frame, 2, frame.min(2) + z), mappings, t * zframes + z, type));
+				frames.add(Views.stack(slices));
+			} else if (plan instanceof CorrectionPlan.FactorPlan) {
+				CorrectionPlan.FactorPlan factors = (CorrectionPlan.FactorPlan) plan;
+				frames.add(convert(frame, (int) factors.getOffset(t), factors.getFactor(t), plan.getBitDepth(), type));
+			} else {
+				frames.add(convert(frame, mappings, t, type));
+			}
+		}
+		RandomAccessibleInterval<T> stacked = Views.stack(frames);
+		long[] min = new long[source.numDimensions()];
+		source.min(min);
+		return Views.translate(stacked, min);
+	}
+
+	/**
+	 * @param index time point of the mapping, or plane for plans with a
+	 * mapping per plane; each accessor takes the mapping from the cache
+	 * when it reads its first pixel and keeps the pixel value if it is null
+	 */
+	static <T extends IntegerType<T>> RandomAccessibleInterval<T> convert(RandomAccessibleInterval<T> frame,
+			final MappingCache mappings, final int index, T type) {
+		return Converters.convert(frame, new Supplier<Converter<? super T, ? super T>>() {
+			@Override
+			public Converter<? super T, ? super T> get() {
+				return new Converter<T, T>() {
+					boolean loaded = false;
+					int[] lut;
+
+					@Override
+					public void convert(T input, T output) {
+						if (!loaded) {
+							lut = mappings.get(index);
+							loaded = true;
+						}
+						if (lut == null)
+							output.set(input);
+						else
+							output.setInteger(lut[input.getInteger()]);
+					}
+				};
+			}
+		}, type.createVariable());
+	}
+
+	/**
+	 * Pixel values as in FactorPlan.getMapping: the offset is added, then
+	 * the sum is multiplied with ImageJ's rounding, both clipped.
+	 */
+	static <T extends IntegerType<T>> RandomAccessibleInterval<T> convert(RandomAccessibleInterval<T> frame,
+			final int offset, final double factor, int bitDepth, T type) {
+		if (offset == 0 && factor == 1.0)
+			return frame;
+		final int max = (bitDepth == 8) ? 255 : 65535;
+		return Converters.convert(frame, new Converter<T, T>() {
+			@Override
+			public void convert(T input, T output) {
+				int v = input.getInteger();
+				if (offset != 0)
+					v = PlaneStatistics.clip(v + offset, max);
+				if (factor != 1.0)
+					v = PlaneStatistics.clip((int) Math.round(v * factor), max);
+				output.setInteger(v);
+			}
+		}, type.createVariable());
+	}
+
+	/**
+	 * The mappings last read by the view, at most size of them; a mapping
+	 * that was dropped is computed again by the plan.
+	 */
+	static class MappingCache {
+		final CorrectionPlan plan;
+		final LinkedHashMap<Integer, int[]> entries;
+
+		MappingCache(CorrectionPlan plan, final int size) {
+			this.plan = plan;
+			entries = new LinkedHashMap<Integer, int[]>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Integer, int[]> eldest) {
+					return size() > size;
+				}
+			};
+		}
+
+		/**
+		 * @return mapping of time point or plane index, null to keep it
+		 */
+		int[] get(int index) {
+			synchronized (this) {
+				if (entries.containsKey(index))
+					return entries.get(index);
+			}
+			int[] lut = plan.getMapping(index);
+			synchronized (this) {
+				entries.put(index, lut);
+			}
+			return lut;
+		}
+	}
+
+	/**
+	 * Statistics of the planes, one chunk of planes per thread. Each plane
+	 * is copied into the pixel array of its thread once, so that the
+	 * statistics and the cache are the same as for an ImageStack.
+	 *
+	 * @return stats[region][plane], all regions from the same copy of a plane
+	 */
+	<T extends IntegerType<T>> PlaneStatistics[][] measure(final RandomAccessibleInterval<T> source,
+			final MaskedHistogram[] masks) {
+		final int tdim = source.numDimensions() - 1;
+		final int zframes = (source.numDimensions() == 4) ? (int) source.dimension(2) : 1;
+		final int timeframes = (int) source.dimension(tdim);
+		final boolean bytes = bitDepth(source) == 8;
+		final int npixels = (int) (source.dimension(0) * source.dimension(1));
+		final PlaneStatistics[][] stats = new PlaneStatistics[masks.length][zframes * timeframes];
+		new ParallelChunks() {
+			@Override
+			protected void process(int from, int end) {
+				Object pixels = bytes ? new byte[npixels] : new short[npixels];
+				for (int plane = from; plane < end; plane++) {
+					RandomAccessibleInterval<T> p = Views.hyperSlice(source, tdim, source.min(tdim) + plane / zframes);
+					if (zframes > 1)
+						p = Views.hyperSlice(p, 2, source.min(2) + plane % zframes);
+					Cursor<T> c = Views.flatIterable(p).cursor();
+					int i = 0;
+					if (bytes) {
+						byte[] b = (byte[]) pixels;
+						while (c.hasNext())
+							b[i++] = (byte) c.next().getInteger();
+					} else {
+						short[] s = (short[]) pixels;
+						while (c.hasNext())
+							s[i++] = (short) c.next().getInteger();
+					}
+					for (int m = 0; m < masks.length; m++)
+						stats[m][plane] = cache.get(pixels, masks[m]);
+				}
+			}
+		}.run(zframes * timeframes, Prefs.getThreads());
+		return stats;
+	}
+
+	static int bitDepth(RandomAccessibleInterval<?> source) {
+		Object type = Util.getTypeFromInterval(source);
+		if (type instanceof UnsignedByteType)
+			return 8;
+		if (type instanceof UnsignedShortType)
+			return 16;
+		throw new IllegalArgumentException("unsigned 8 bit or 16 bit image required");
+	}
+}
@@ -0,0 +1,425 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package emblcmci;
+
+import histogram2.MaskedHistogram;
+import histogram2.ParallelChunks;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.gui.Roi;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Automatic choice between simple ratio, exponential fit and histogram
+ * matching for the data at hand.
+ *
+ * The ROI is split into its even and its odd rows, and the statistics of
+ * both halves are measured in one pass over the planes. Each method plans
+ * its correction from the even rows only; the plans are then checked on
+ * the odd rows, which none of them has seen. Checking on the same pixels
+ * would always favour simple ratio, which makes the ROI mean flat by
+ * construction. A candidate is scored by the residual drift, the
+ * variation of the corrected means and the largest fraction of saturated
+ * pixels it leaves in the odd rows, all taken from the histograms as in
+ * QualityReport; the lowest score wins, ties go to the simpler method.
+ *
+ * Planning and scoring only work on statistics, the candidates in
+ * parallel, so no pixel is changed or read again for them. Only the
+ * winner is planned again from the statistics of the whole ROI and
+ * applied to the stack, once. The correction therefore costs about as
+ * much as one with the selected method.
+ */
+public class BleachCorrection_Auto {
+
+	public static final String[] CANDIDATE_NAMES = { "Simple Ratio", "Exponential Fit", "Histogram Matching" };
+
+	ImagePlus imp;
+	int bitDepth = 0; // used if imp is null
+	Roi curROI = null;
+	BleachReference reference = new BleachReference();
+	IntensityEstimator estimator = new IntensityEstimator();
+	double baselineInt = 0;
+	BackgroundEstimator background = null;
+	PlaneStatistics[] backgroundStats = null; // statistics of the background region, see BackgroundEstimator.getRegion
+	int fitModel = DecayModelFitter.EXPONENTIAL;
+	int fitBinning = 1;
+	double[] timestamps = null; // acquisition times, null to read them from imp
+	boolean perSlice = false;
+	int outputMode = OutputPrecision.ROUND;
+	BleachProgress progress = new BleachProgress(false);
+	ExecutorService executor = null; // of the parallel work, the ImageJ thread pool if null
+	boolean quiet = false; // no messages in the Log window, e.g. for BleachEngine
+	StatisticsCache cache = StatisticsCache.getShared();
+
+	int selected = -1; // index into CANDIDATE_NAMES of the last selection
+	double[] scores = null;
+	QualityReport report = null;
+	DecayFitResult fitResult = null;
+
+	/**
+	 * Without an image, for plan() on statistics measured by the caller,
+	 * see BleachEngine.
+	 *
+	 * @param bitDepth 8 or 16
+	 */
+	BleachCorrection_Auto(int bitDepth) {
+		super();
+		this.bitDepth = bitDepth;
+	}
+
+	public BleachCorrection_Auto(ImagePlus imp) {
+		super();
+		this.imp = imp;
+	}
+
+	public BleachCorrection_Auto(ImagePlus imp, Roi curROI) {
+		super();
+		this.imp = imp;
+		this.curROI = curROI;
+	}
+
+	/**
+	 * @return bit depth of imp, or the one given without an image
+	 */
+	int bitDepth() {
+		return (imp != null) ? imp.getBitDepth() : bitDepth;
+	}
+
+	public void setReference(BleachReference reference) {
+		this.reference = reference;
+	}
+
+	public void setIntensityEstimator(IntensityEstimator estimator) {
+		this.estimator = estimator;
+	}
+
+	/**
+	 * @param baseline background subtracted by the simple ratio candidate
+	 */
+	public void setSimpleRatioBaseline(double baseline) {
+		this.baselineInt = baseline;
+	}
+
+	/**
+	 * @param background automatic background of the simple ratio candidate,
+	 * null for the fixed baseline
+	 */
+	public void setBackgroundEstimator(BackgroundEstimator background) {
+		this.background = background;
+	}
+
+	/**
+	 * @param backgroundStats statistics of the background region, measured
+	 * by the caller with the ROI; if null, plan() measures them from imp
+	 */
+	void setBackgroundStatistics(PlaneStatistics[] backgroundStats) {
+		this.backgroundStats = backgroundStats;
+	}
+
+	/**
+	 * @param model decay model of the exponential fit candidate, see DecayModelFitter
+	 */
+	public void setExponentialFitModel(int model) {
+		this.fitModel = model;
+	}
+
+	/**
+	 * @param binSize time points per bin of the fit, 0 for automatic
+	 */
+	public void setExponentialFitBinning(int binSize) {
+		this.fitBinning = binSize;
+	}
+
+	/**
+	 * @param timestamps acquisition time of each time point for the fit,
+	 * null to read them from the image
+	 */
+	public void setTimestamps(double[] timestamps) {
+		this.timestamps = timestamps;
+	}
+
+	/**
+	 * @param perSlice true to match histograms of 3D time series per z-slice
+	 */
+	public void setHistogramMatchingPerSlice(boolean perSlice) {
+		this.perSlice = perSlice;
+	}
+
+	/**
+	 * @param outputMode rounding of the output if simple ratio or
+	 * exponential fit is selected, see OutputPrecision
+	 */
+	public void setOutputMode(int outputMode) {
+		this.outputMode = outputMode;
+	}
+
+	/**
+	 * @param progress progress counter, also checked for cancellation
+	 */
+	public void setProgress(BleachProgress progress) {
+		this.progress = progress;
+	}
+
+	/**
+	 * @param executor executor of the parallel work, null for the ImageJ
+	 * thread pool; see BleachEngine
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * @param cache cache of the per-plane statistics, StatisticsCache.getShared() by default
+	 */
+	public void setCache(StatisticsCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * @return BleachCorrection.SIMPLE_RATIO, EXPONENTIAL_FIT or
+	 * HISTOGRAM_MATCHING as selected by the last correction, -1 before
+	 */
+	public int getSelectedMethod() {
+		return selected;
+	}
+
+	/**
+	 * @return score of each candidate of the last selection, indexed as
+	 * CANDIDATE_NAMES; lower is better, infinite if the candidate failed
+	 */
+	public double[] getScores() {
+		return (scores == null) ? null : scores.clone();
+	}
+
+	/**
+	 * @return quality report of the selected method on the whole ROI
+	 */
+	public QualityReport getQualityReport() {
+		return report;
+	}
+
+	/**
+	 * @return result of the fit if exponential fit was selected, else null
+	 */
+	public DecayFitResult getFitResult() {
+		return fitResult;
+	}
+
+	public ImagePlus correctBleach() {
+		int zframes = 1;
+		int timeframes = imp.getStackSize();
+		int[] impdimA = imp.getDimensions();
+		if (impdimA[3] > 1 && impdimA[4] > 1) { // if slices and frames are both more than 1
+			zframes = impdimA[3];
+			timeframes = impdimA[4];
+			if ((zframes * timeframes) != imp.getStackSize()) {
+				IJ.showMessage("slice and time frames do not match with the length of the stack. Please correct!");
+				return null;
+			}
+		}
+		ImageStack stack = imp.getStack();
+		MaskedHistogram mask = new MaskedHistogram(imp.getWidth(), imp.getHeight(), curROI);
+		MaskedHistogram[] halves = halves(mask);
+		PlaneStatistics[][] stats = measure(stack, BackgroundEstimator.append(halves, mask, background));
+		if (stats == null)
+			return null;
+		if (stats.length > halves.length)
+			backgroundStats = stats[halves.length];
+		CorrectionPlan plan = plan(stats[0], stats[halves.length - 1], zframes, timeframes);
+		if (plan == null)
+			return null;
+		boolean done;
+		if (plan instanceof CorrectionPlan.FactorPlan) {
+			done = OutputPrecision.applyTo((CorrectionPlan.FactorPlan) plan, imp, outputMode, progress);
+		} else {
+			progress.addTotal(plan.getTimePoints());
+			done = plan.applyTo(stack, progress);
+		}
+		if (!done)
+			return null;
+		if (!quiet)
+			IJ.log(report.getSummary());
+		return imp;
+	}
+
+	/**
+	 * @param mask region of the statistics
+	 * @return the even and the odd rows of mask, or only mask if one of
+	 * them would be empty
+	 */
+	public static MaskedHistogram[] halves(MaskedHistogram mask) {
+		MaskedHistogram even = mask.getRows(0);
+		MaskedHistogram odd = mask.getRows(1);
+		if (even.getPixelCount() == 0 || odd.getPixelCount() == 0)
+			return new MaskedHistogram[] { mask };
+		return new MaskedHistogram[] { even, odd };
+	}
+
+	/**
+	 * Statistics of all regions of each plane, one chunk of planes per
+	 * thread and each plane read once.
+	 *
+	 * @return stats[region][plane], null if canceled
+	 */
+	PlaneStatistics[][] measure(final ImageStack stack, final MaskedHistogram[] masks) {
+		final PlaneStatistics[][] stats = new PlaneStatistics[masks.length][stack.getSize()];
+		progress.addTotal(stack.getSize());
+		new ParallelChunks() {
+			@Override
+			protected void process(int from, int end) {
+				for (int plane = from; plane < end; plane++) {
+					if (progress.isCanceled())
+						return;
+					Object pixels = stack.getPixels(plane + 1);
+					for (int m = 0; m < masks.length; m++)
+						stats[m][plane] = cache.get(pixels, masks[m]);
+					progress.step();
+				}
+			}
+		}.run(stack.getSize(), Prefs.getThreads(), executor);
+		return progress.isCanceled() ? null : stats;
+	}
+
+	/**
+	 * Plans all candidates from the even rows and scores them on the odd
+	 * rows, in parallel, then plans the winner from both. No pixel is
+	 * changed here.
+	 *
+	 * @param even statistics of the even rows of the ROI, see halves
+	 * @param odd statistics of the odd rows; the same array as even if the
+	 * ROI could not be split, then candidates are scored on the rows they
+	 * were planned from
+	 * @return plan of the selected method, null if canceled or it failed
+	 * @throws IllegalArgumentException if the timestamps do not match the
+	 * time points
+	 */
+	public CorrectionPlan plan(final PlaneStatistics[] even, final PlaneStatistics[] odd, final int zframes,
+			final int timeframes) {
+		if (timestamps != null)
+			FrameTimes.check(timestamps, timeframes); // here, as the candidates run in other threads
+		if (backgroundStats == null && background != null && imp != null) { // once for all candidates
+			MaskedHistogram region = background.getRegion(new MaskedHistogram(imp.getWidth(), imp.getHeight(), curROI));
+			if (region != null)
+				backgroundStats = cache.getAll(imp.getStack(), region);
+		}
+		final double[] s = new double[CANDIDATE_NAMES.length];
+		progress.addTotal(s.length);
+		new ParallelChunks() {
+			@Override
+			protected void process(int from, int end) {
+				for (int method = from; method < end; method++) {
+					if (progress.isCanceled())
+						return;
+					CorrectionPlan candidate = planWith(method, even, zframes, timeframes, true);
+					if (candidate == null) {
+						s[method] = Double.POSITIVE_INFINITY;
+					} else {
+						QualityReport check = new QualityReport(CANDIDATE_NAMES[method], odd, zframes, timeframes,
+								bitDepth());
+						s[method] = score(candidate.evaluate(check));
+					}
+					progress.step();
+				}
+			}
+		}.run(s.length, s.length, executor); // a candidate per thread
+		if (progress.isCanceled())
+			return null;
+		scores = s;
+		selected = 0;
+		for (int m = 1; m < s.length; m++)
+			if (s[m] < s[selected])
+				selected = m;
+		if (!quiet) {
+			StringBuilder sb = new StringBuilder("automatic method selection: " + CANDIDATE_NAMES[selected] + " (");
+			for (int m = 0; m < s.length; m++)
+				sb.append((m > 0) ? ", " : "").append(CANDIDATE_NAMES[m]).append(" ").append(IJ.d2s(s[m], 5));
+			IJ.log(sb.append(")").toString());
+		}
+
+		PlaneStatistics[] all = even;
+		if (odd != even) {
+			all = new PlaneStatistics[even.length];
+			for (int n = 0; n < all.length; n++)
+				all[n] = PlaneStatistics.combine(even[n], odd[n]);
+		}
+		fitResult = null;
+		CorrectionPlan plan = planWith(selected, all, zframes, timeframes, false);
+		report = (plan == null) ? null : plan.getQualityReport();
+		return plan;
+	}
+
+	/**
+	 * Score of a candidate: residual drift, variation of the corrected
+	 * means and the largest saturated fraction, all relative; lower is
+	 * better.
+	 */
+	static double score(QualityReport r) {
+		double s = Math.abs(r.getDrift()) + r.getCV() + r.getMaxSaturatedFraction();
+		return Double.isNaN(s) ? Double.POSITIVE_INFINITY : s;
+	}
+
+	/**
+	 * Plan of one method with the settings of this instance.
+	 *
+	 * @param method index into CANDIDATE_NAMES
+	 * @param candidate true while selecting: nothing is logged or kept
+	 * @return null if the fit failed or was canceled
+	 */
+	CorrectionPlan planWith(int method, PlaneStatistics[] stats, int zframes, int timeframes, boolean candidate) {
+		boolean silent = candidate || quiet;
+		if (method == BleachCorrection.SIMPLE_RATIO) {
+			BleachCorrection_SimpleRatio BCSR = (imp != null) ? new BleachCorrection_SimpleRatio(imp)
+					: new BleachCorrection_SimpleRatio(bitDepth);
+			BCSR.quiet = silent;
+			BCSR.setReference(reference);
+			BCSR.setIntensityEstimator(estimator);
+			BCSR.setSimpleRatioBaseline(baselineInt);
+			BCSR.setBackgroundEstimator(background);
+			BCSR.setBackgroundStatistics(backgroundStats);
+			return BCSR.plan(stats, zframes, timeframes);
+		} else if (method == BleachCorrection.EXPONENTIAL_FIT) {
+			BleachCorrection_ExpoFit BCEF = (imp != null) ? new BleachCorrection_ExpoFit(imp)
+					: new BleachCorrection_ExpoFit(bitDepth);
+			BCEF.quiet = silent;
+			BCEF.setReference(reference);
+			BCEF.setIntensityEstimator(estimator);
+			BCEF.setProgress(progress);
+			BCEF.setExecutor(executor);
+			BCEF.setFitModel(fitModel);
+			BCEF.setFitBinning(fitBinning);
+			BCEF.setTimestamps(timestamps);
+			CorrectionPlan plan = BCEF.plan(stats, zframes, timeframes);
+			if (!candidate)
+				fitResult = BCEF.getFitResult();
+			return plan;
+		} else {
+			BleachCorrection_MH BCMH = (imp != null) ? new BleachCorrection_MH(imp)
+					: new BleachCorrection_MH(bitDepth);
+			BCMH.setReference(reference);
+			BCMH.setPerSliceReference(perSlice);
+			return BCMH.plan(stats, zframes, timeframes);
+		}
+	}
+}
@@ -42,24 +42,58 @@ package emblcmci;
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 
+import histogram2.MaskedHistogram;
 import ij.IJ;
 import ij.ImagePlus;
+import ij.gui.GenericDialog;
 import ij.gui.NewImage;
 import ij.gui.Roi;
 import ij.measure.CurveFitter;
-import ij.plugin.frame.Fitter;
 import ij.process.ImageProcessor;
-import ij.process.ImageStatistics;
 
 import java.awt.GraphicsEnvironment;
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
 
 public class BleachCorrection_ExpoFit {
 	ImagePlus imp;
+	int bitDepth = 0; // used if imp is null
 	boolean is3DT = false;
 	Roi curROI = null;
 	boolean doHeadLess = false;
 	boolean verbose = false;
+	boolean quiet = false; // no messages in the Log window, e.g. for BleachEngine
+	int fitModel = DecayModelFitter.EXPONENTIAL;
+	BleachReference reference = new BleachReference();
+	IntensityEstimator estimator = new IntensityEstimator();
+	int outputMode = OutputPrecision.ROUND;
+	BleachProgress progress = new BleachProgress(false);
+	ExecutorService executor = null; // of the parallel fits, the ImageJ thread pool if null
+	DecayFitResult fitResult = null;
+	double[] timestamps = null; // acquisition times set by the caller, null to read them from imp
+	int binSize = 1; // time points per bin of the fit, 0 for automatic
+	double[] times = null; // time of each time point of the last fit
+	double[] fitted = null; // fitted intensity of each time point
+	double[] ratios = null; // correction factor of each time point
+	File diagnosticsDir = null;
+	StatisticsCache cache = StatisticsCache.getShared();
+	StatisticsSidecar sidecar = null;
+	RoiTracker tracker = null; // moves curROI with the drift, null for a fixed ROI
+	PlaneStatistics[] stats = null; // statistics of the last fit
+	QualityReport report = null;
+
+	/**
+	 * Without an image, for plan() on statistics measured by the caller,
+	 * see BleachEngine.
+	 *
+	 * @param bitDepth 8 or 16
+	 */
+	BleachCorrection_ExpoFit(int bitDepth) {
+		super();
+		this.bitDepth = bitDepth;
+	}
 
 	/**
 	 * @param imp
@@ -75,6 +109,13 @@ public class BleachCorrection_ExpoFit {
 		this.curROI = curROI;
 	}
 
+	/**
+	 * @return bit depth of imp, or the one given without an image
+	 */
+	int bitDepth() {
+		return (imp != null) ? imp.getBitDepth() : bitDepth;
+	}
+
 	public void setVerbose(boolean verbose) {
 		this.verbose = verbose;
 	}
@@ -83,53 +124,63 @@ public class BleachCorrection_ExpoFit {
 		this.doHeadLess = headless;
 	}
 
+	/**
+	 * @param fitModel one of the model constants of DecayModelFitter.
+	 */
+	public void setFitModel(int fitModel) {
+		this.fitModel = fitModel;
+	}
+
+	public int getFitModel() {
+		return fitModel;
+	}
+
+	public boolean showDialogAskFitModel() {
+		GenericDialog gd = new GenericDialog("Bleach Correction");
+		gd.addChoice("Decay Model :", DecayModelFitter.MODEL_NAMES, DecayModelFitter.MODEL_NAMES[fitModel]);
+		gd.addNumericField("Fit on bins of (0 = auto)", binSize, 0, 6, "time points");
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return false;
+		fitModel = gd.getNextChoiceIndex();
+		setFitBinning((int) gd.getNextNumber());
+		return true;
+	}
+
+	/**
+	 * @param timestamps acquisition time of each time point, null to take
+	 * them from the image, see FrameTimes; checked by plan()
+	 */
+	public void setTimestamps(double[] timestamps) {
+		this.timestamps = timestamps;
+	}
+
+	/**
+	 * @param binSize number of consecutive time points averaged into one
+	 * point of the fit, 1 to fit all time points, 0 for automatic binning of
+	 * long series; the correction still uses the time of each time point
+	 */
+	public void setFitBinning(int binSize) {
+		this.binSize = Math.max(0, binSize);
+	}
+
+	/**
+	 * @return time of each time point used by the last fit, relative to the first one
+	 */
+	public double[] getTimes() {
+		return (times == null) ? null : times.clone();
+	}
+
 	/**
 	 * Fit the mean intensity time series of given ImagePlus in this class.
-	 * fit equation is 11, parameter from
+	 * default fit equation is 11, parameter from
 	 * http://rsb.info.nih.gov/ij/developer/api/constant-values.html#ij.measure.CurveFitter.STRAIGHT_LINE
+	 * other decay models can be chosen with setFitModel.
 	 * 
 	 * @return an instance of CurveFitter
 	 */
 	public CurveFitter dcayFitting() {
-		ImageProcessor curip;
-		ImageStatistics imgstat;
-		double[] xA = new double[imp.getStackSize()];
-		double[] yA = new double[imp.getStackSize()];
-
-		if (curROI == null)
-			curROI = new Roi(0, 0, imp.getWidth(), imp.getHeight());
-
-		for (int i = 0; i < imp.getStackSize(); i++) {
-			curip = imp.getImageStack().getProcessor(i + 1);
-			curip.setRoi(curROI);
-			imgstat = curip.getStatistics();
-			xA[i] = i;
-			yA[i] = imgstat.mean;
-		}
-		CurveFitter cf = new CurveFitter(xA, yA);
-		double firstframeint = yA[0];
-		double lastframeint = yA[yA.length - 1];
-		double guess_a = firstframeint - lastframeint;
-		if (guess_a <= 0) {
-			IJ.error("This sequence seems to be not decaying");
-			return null;
-		}
-		double guess_c = lastframeint;
-		double maxiteration = 2000;
-		double NumRestarts = 2;
-		double errotTol = 10;
-		double[] fitparam = { -1 * guess_a, -0.0001, guess_c, maxiteration, NumRestarts, errotTol };
-
-		cf.setInitialParameters(fitparam);
-		cf.doFit(11); //
-
-		if (verbose) IJ.log("without GUI:" + GraphicsEnvironment.isHeadless());
-		if (verbose) IJ.log("headless settings:" +  doHeadLess);		
-		if ((!GraphicsEnvironment.isHeadless()) && (doHeadLess != true)){
-				Fitter.plot(cf);
-		}
-		IJ.log(cf.getResultString());
-		return cf;
+		return fitStatistics(measurePlanes(1), 1, imp.getStackSize());
 	}
 
 	/**
@@ -142,49 +193,231 @@ public class BleachCorrection_ExpoFit {
 	 * @return
 	 */
 	public CurveFitter decayFitting3D(int zframes, int tframes) {
-		ImageProcessor curip;
-		ImageStatistics imgstat;
-		double[] xA = new double[tframes];
+		return fitStatistics(measurePlanes(zframes), zframes, tframes);
+	}
+
+	/**
+	 * Fits the intensity of each time point, taken from the statistics of
+	 * its planes: the mean unless another estimator is set.
+	 *
+	 * @param stats ROI statistics of each plane before correction
+	 * @param zframes z-slices per time point, 1 for 2D time series
+	 * @param tframes number of time points
+	 * @return fitted CurveFitter, null if canceled or fitting failed.
+	 * @throws IllegalArgumentException if the timestamps given by
+	 * setTimestamps do not match the time points, see FrameTimes.check
+	 */
+	CurveFitter fitStatistics(PlaneStatistics[] stats, int zframes, int tframes) {
+		if (stats == null)
+			return null;
+		if (timestamps != null)
+			FrameTimes.check(timestamps, tframes);
+		this.stats = stats;
+		times = (timestamps != null) ? FrameTimes.relative(timestamps) : FrameTimes.of(imp, tframes);
 		double[] yA = new double[tframes];
 		double curStackMean = 0.0;
-		if (curROI == null)
-			curROI = new Roi(0, 0, imp.getWidth(), imp.getHeight());
+		progress.addTotal(tframes);
 		for (int i = 0; i < tframes; i++) {
+			if (progress.isCanceled())
+				return null;
+			progress.step();
 			curStackMean = 0.0;
-			for (int j = 0; j < zframes; j++) {
-				curip = imp.getImageStack().getProcessor(i * zframes + j + 1);
-				curip.setRoi(curROI);
-				imgstat = curip.getStatistics();
-				curStackMean += imgstat.mean;
-			}
+			for (int j = 0; j < zframes; j++)
+				curStackMean += estimator.estimate(stats[i * zframes + j]);
 			curStackMean /= zframes;
-			xA[i] = i;
 			yA[i] = curStackMean;
 		}
-		CurveFitter cf = new CurveFitter(xA, yA);
-		double firstframeint = yA[0];
-		double lastframeint = yA[yA.length - 1];
-		double guess_a = firstframeint - lastframeint;
-		if (guess_a <= 0) {
-			IJ.error("This sequence seems to be not decaying");
-			return null;
+		CurveFitter cf;
+		int bin = FrameTimes.binSize(binSize, tframes);
+		if (bin > 1) {
+			if (!quiet)
+				IJ.log("fitting " + ((tframes + bin - 1) / bin) + " bins of " + bin + " time points");
+			cf = fitDecayModel(FrameTimes.bin(times, bin), FrameTimes.bin(yA, bin));
+		} else {
+			cf = fitDecayModel(times.clone(), yA);
 		}
-		double guess_c = lastframeint;
-		double maxiteration = 2000;
-		double NumRestarts = 2;
-		double errotTol = 10;
-		double[] fitparam = { -1 * guess_a, -0.0001, guess_c, maxiteration, NumRestarts, errotTol };
+		if (cf == null)
+			return null;
+		if (!quiet)
+			IJ.log(fitResult.getResultString());
+		return cf;
+	}
 
-		cf.setInitialParameters(fitparam);
+	/**
+	 * ROI statistics of all planes, from the cache where possible.
+	 *
+	 * @return null if canceled
+	 */
+	PlaneStatistics[] measurePlanes(int zframes) {
+		if (curROI == null)
+			curROI = new Roi(0, 0, imp.getWidth(), imp.getHeight());
+		if (tracker != null)
+			return tracker.measure(imp.getStack(), zframes, curROI, cache, progress);
+		MaskedHistogram mask = new MaskedHistogram(imp.getWidth(), imp.getHeight(), curROI);
+		if (sidecar != null)
+			return sidecar.getAll(cache, imp.getStack(), mask, estimator.needsHistogram());
+		return cache.getAll(imp.getStack(), mask);
+	}
+
+	/**
+	 * @param cache cache of the per-plane statistics, StatisticsCache.getShared() by default
+	 */
+	public void setCache(StatisticsCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * @param sidecar sidecar file of the statistics of the image, null for none
+	 */
+	public void setSidecar(StatisticsSidecar sidecar) {
+		this.sidecar = sidecar;
+	}
 
-		cf.doFit(11); //
-		if ((!GraphicsEnvironment.isHeadless()) || (doHeadLess != true)) {
-			Fitter.plot(cf);
+	/**
+	 * @param tracker tracks the drift of the sample and moves the ROI with
+	 * it, null to fit the intensities of a fixed ROI
+	 */
+	public void setRoiTracker(RoiTracker tracker) {
+		this.tracker = tracker;
+	}
+
+	/**
+	 * Fits the decay model set by setFitModel to the intensity time series.
+	 * All models and starting points are fitted in parallel, see DecayModelFitter.
+	 *
+	 * @param xA time points
+	 * @param yA mean intensity at each time point
+	 * @return fitted CurveFitter, null if fitting failed.
+	 */
+	CurveFitter fitDecayModel(double[] xA, double[] yA) {
+		DecayModelFitter dmf = new DecayModelFitter(xA, yA);
+		dmf.setVerbose(verbose);
+		dmf.setExecutor(executor);
+		if (!dmf.isDecaying() && !quiet)
+			IJ.log("Warning: this sequence seems to be not decaying");
+		CurveFitter cf = dmf.fit(fitModel);
+		if (cf == null) {
+			if (!quiet)
+				IJ.error("Fitting of the decay model failed");
+			return null;
 		}
-		IJ.log(cf.getResultString());
+		if ((fitModel == DecayModelFitter.BEST_AIC || fitModel == DecayModelFitter.BEST_BIC) && !quiet)
+			IJ.log("Selected model: " + DecayModelFitter.MODEL_NAMES[dmf.getSelectedModel()]);
+		fitResult = new DecayFitResult(cf, DecayModelFitter.MODEL_NAMES[dmf.getSelectedModel()], !quiet);
 		return cf;
 	}
 
+	/**
+	 * @return result of the last fit, null before fitting
+	 */
+	public DecayFitResult getFitResult() {
+		return fitResult;
+	}
+
+	/**
+	 * @return correction factor of each time point of the last correction,
+	 * the reference intensity divided by the fitted intensity; null before
+	 */
+	public double[] getFactors() {
+		return (ratios == null) ? null : ratios.clone();
+	}
+
+	/**
+	 * @return fitted intensity of each time point of the last correction, null before
+	 */
+	public double[] getFittedIntensities() {
+		return (fitted == null) ? null : fitted.clone();
+	}
+
+	/**
+	 * Shows the plot of the last fit. Plots are only created on request, or
+	 * by core() after the correction when running with a display.
+	 */
+	public void showFitPlot() {
+		if (fitResult != null)
+			FitDiagnostics.show(fitResult);
+	}
+
+	/**
+	 * @param dir if not null, core() writes the fit as CSV and PNG into this
+	 * folder in the background instead of showing the plot
+	 */
+	public void setDiagnosticsDirectory(File dir) {
+		this.diagnosticsDir = dir;
+	}
+
+	/**
+	 * Reference intensity of each time point taken from the fitted curve:
+	 * its value at the reference time point(s), or for a moving reference
+	 * the mean over the preceding time points.
+	 *
+	 * @param fitted fitted intensity of each time point
+	 * @return intensity that each time point is corrected to
+	 */
+	double[] referenceIntensities(double[] fitted) {
+		int timepoints = fitted.length;
+		double[] refint = new double[timepoints];
+		if (reference.isMoving()) {
+			refint[0] = fitted[0];
+			for (int t = 1; t < timepoints; t++) {
+				int from = Math.max(0, t - reference.getWindowSize());
+				double sum = 0.0;
+				for (int i = from; i < t; i++)
+					sum += fitted[i];
+				refint[t] = sum / (t - from);
+			}
+			return refint;
+		}
+		int first = reference.getFirst(timepoints);
+		int end = reference.getEnd(timepoints);
+		Arrays.fill(refint, reference.combine(Arrays.copyOfRange(fitted, first, end)));
+		return refint;
+	}
+
+	/**
+	 * @param reference reference strategy, the first frame by default
+	 */
+	public void setReference(BleachReference reference) {
+		this.reference = reference;
+	}
+
+	/**
+	 * @param estimator intensity of a frame inside the ROI, the mean by default
+	 */
+	public void setIntensityEstimator(IntensityEstimator estimator) {
+		this.estimator = estimator;
+	}
+
+	/**
+	 * @return quality of the last correction, filled while it was applied; null before
+	 */
+	public QualityReport getQualityReport() {
+		return report;
+	}
+
+	/**
+	 * @param outputMode rounding of the corrected values, one of the modes of
+	 * OutputPrecision; OutputPrecision.ROUND by default
+	 */
+	public void setOutputMode(int outputMode) {
+		this.outputMode = outputMode;
+	}
+
+	/**
+	 * @param progress progress counter, also checked for cancellation between frames
+	 */
+	public void setProgress(BleachProgress progress) {
+		this.progress = progress;
+	}
+
+	/**
+	 * @param executor executor of the parallel work, null for the ImageJ
+	 * thread pool; see BleachEngine
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+
 	/**
 	 * calculate estimated value from fitted "Exponential with Offset" equation
 	 *
@@ -221,45 +454,78 @@ public class BleachCorrection_ExpoFit {
 			cf = decayFitting3D(zframes, tframes);
 		else
 			cf = dcayFitting();
-		double[] respara = cf.getParams();
-		double res_a = respara[0];
-		double res_b = respara[1];
-		double res_c = respara[2];
-		double ratio = 0.0;
-		ImageProcessor curip;
-		System.out.println(res_a + "," + res_b + "," + res_c);
-		if (is3DT) {
-			for (int i = 0; i < tframes; i++) {
-				for (int j = 0; j < zframes; j++) {
-					curip = imp.getImageStack().getProcessor(i * zframes + j + 1);
-					ratio = calcExponentialOffset(res_a, res_b, res_c, 0.0)
-							/ calcExponentialOffset(res_a, res_b, res_c, (double) ( i ));
-					curip.multiply(ratio);
-				}
-			}
-		} else {
-			if (verbose)
-				IJ.log("Original Int" + "\t" + "Corrected Int"+ "\t" + "Ratio");
-
-			for (int i = 0; i < imp.getStackSize(); i++) {
-				curip = imp.getImageStack().getProcessor(i + 1);
-
-				double orgint = curip.getStatistics().mean;
-				
-				ratio = calcExponentialOffset(res_a, res_b, res_c, 0.0)
-						/ calcExponentialOffset(res_a, res_b, res_c, (double) ( i ));
-				curip.multiply(ratio);
+		if (cf == null)
+			return;
+		if (verbose)
+			IJ.log("fit parameters " + Arrays.toString(cf.getParams()));
+		int timepoints = is3DT ? tframes : imp.getStackSize();
+		CorrectionPlan.FactorPlan plan = plan(cf, is3DT ? zframes : 1, timepoints);
+		if (!OutputPrecision.applyTo(plan, imp, outputMode, progress))
+			return;
+		if (report != null)
+			IJ.log(report.getSummary());
+		showDiagnostics();
+	}
 
-				double corint = curip.getStatistics().mean;
+	/**
+	 * Fits the decay to the statistics of the unchanged planes and computes
+	 * the correction from it. No pixel is changed here.
+	 *
+	 * @param stats ROI statistics of each plane before correction
+	 * @param zframes z-slices per time point, 1 for 2D time series
+	 * @param timeframes number of time points
+	 * @return plan, null if canceled or fitting failed
+	 * @throws IllegalArgumentException if the timestamps do not match the
+	 * time points
+	 */
+	public CorrectionPlan.FactorPlan plan(PlaneStatistics[] stats, int zframes, int timeframes) {
+		CurveFitter cf = fitStatistics(stats, zframes, timeframes);
+		if (cf == null)
+			return null;
+		return plan(cf, zframes, timeframes);
+	}
 
-				//for testing
-				if (verbose) {
-					String monitor = Double.toString(orgint) + "\t" + Double.toString(corint) + "\t" +
-							Double.toString(ratio);
-					IJ.log(monitor);
-				}
-			}
+	/**
+	 * @param cf fitted decay
+	 * @return plan multiplying each time point with the ratio of the
+	 * reference intensity to the fitted intensity
+	 */
+	CorrectionPlan.FactorPlan plan(CurveFitter cf, int zframes, int timepoints) {
+		// the model is evaluated once per time point, not per plane
+		double[] respara = cf.getParams();
+		fitted = new double[timepoints];
+		for (int i = 0; i < timepoints; i++)
+			fitted[i] = cf.f(respara, times[i]);
+		double[] refint = referenceIntensities(fitted);
+		ratios = new double[timepoints];
+		if (verbose)
+			IJ.log("Time point" + "\t" + "Fitted Int" + "\t" + "Ratio");
+		for (int i = 0; i < timepoints; i++) {
+			ratios[i] = refint[i] / fitted[i];
+			if (verbose)
+				IJ.log(Integer.toString(i) + "\t" + fitted[i] + "\t" + ratios[i]);
+		}
+		CorrectionPlan.FactorPlan plan = CorrectionPlan.ofFactors(bitDepth(), zframes, ratios.clone(), 0);
+		if (stats != null) {
+			report = new QualityReport("Exponential Fit", stats, zframes, timepoints, bitDepth());
+			if (fitResult != null)
+				report.setRSquared(fitResult.getRSquared());
+			plan.setQualityReport(report);
 		}
+		return plan;
+	}
+
+	/**
+	 * Shows the plot of the fit, or writes it to the diagnostics folder if
+	 * one is set. Called after the correction is done.
+	 */
+	void showDiagnostics() {
+		if (fitResult == null)
+			return;
+		if (diagnosticsDir != null)
+			FitDiagnostics.writeAsync(fitResult, diagnosticsDir, imp.getShortTitle() + "_fit");
+		else if (!GraphicsEnvironment.isHeadless() && !doHeadLess)
+			showFitPlot();
 	}
 
 	public static void main(String[] args) {
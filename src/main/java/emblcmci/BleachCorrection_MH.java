@@ -31,6 +31,8 @@ package emblcmci;
  * contact: Kota Miura (CMCI, EMBL Heidelberg, miura@embl.de)
  *
  * works with 8bit and 16 bit stacks.
+ * with a ROI, histograms are sampled only inside the ROI and the
+ * matching is applied to the whole frame.
  * this correction algorithm is not appropriate for intensity measurements.
  * use only for segmentation.
  *
@@ -50,16 +52,41 @@ package emblcmci;
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 
+import histogram2.BufferPool;
 import histogram2.HistogramMatcher;
+import histogram2.LutKernel;
+import histogram2.MaskedHistogram;
+import histogram2.ParallelChunks;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.Prefs;
 import ij.gui.Roi;
-import ij.process.ImageProcessor;
+
+import java.util.Arrays;
 
 public class BleachCorrection_MH {// implements PlugIn {
 	ImagePlus imp;
+	int bitDepth = 0; // used if imp is null
 	Roi curROI = null;
+	BleachReference reference = new BleachReference();
+	BleachProgress progress = new BleachProgress(false);
+	boolean verbose = false;
+	StatisticsCache cache = StatisticsCache.getShared();
+	StatisticsSidecar sidecar = null;
+	QualityReport report = null;
+	boolean perSlice = false; // reference per z-slice for 3D time series
+
+	/**
+	 * Without an image, for plan() on statistics measured by the caller,
+	 * see BleachEngine.
+	 *
+	 * @param bitDepth 8 or 16
+	 */
+	BleachCorrection_MH(int bitDepth) {
+		super();
+		this.bitDepth = bitDepth;
+	}
 
 	/**
 	 * @param imp
@@ -70,8 +97,9 @@ public class BleachCorrection_MH {// implements PlugIn {
 	}
 
 	/**
-	 * This constructor might not going to be used.
-	 * Does not mean much to select a spedific region for the reference histogram.
+	 * Histograms are built only from the pixels inside the ROI (e.g. a
+	 * foreground mask), so that background does not dominate the matching.
+	 * The resulting mapping is applied to the full frame.
 	 * 
 	 * @param imp
 	 * @param curROI
@@ -82,13 +110,14 @@ public class BleachCorrection_MH {// implements PlugIn {
 		this.curROI = curROI;
 	}
 
-	public void doCorrection() {
+	/**
+	 * @return bit depth of imp, or the one given without an image
+	 */
+	int bitDepth() {
+		return (imp != null) ? imp.getBitDepth() : bitDepth;
+	}
 
-		int histbinnum = 0;
-		if (imp.getBitDepth() == 8)
-			histbinnum = 256;
-		else if (imp.getBitDepth() == 16)
-			histbinnum = 65536;// 65535;
+	public void doCorrection() {
 
 		boolean is3DT = false;
 		int zframes = 1;
@@ -107,66 +136,387 @@ public class BleachCorrection_MH {// implements PlugIn {
 			}
 		}
 
+		if (!is3DT)
+			timeframes = imp.getStackSize();
+
 		ImageStack stack = imp.getStack();
-		ImageProcessor ipA = null;
-		ImageProcessor ipB = null;
-		HistogramMatcher m = new HistogramMatcher();
-		int[] hA = new int[histbinnum];
-		int[] hB = new int[histbinnum];
-		int[] F = new int[histbinnum];
-		int[] histB = null; // for each slice
-		int[] histA = null;
-		// IJ.log(Integer.toString(stack.getSize()));
-		int i = 0;
-		int j = 0;
-		int k = 0;
-		/*
-		 * in case of 3D, stack histogram of the first time point is measured, and then
-		 * this stack histogram is used as reference (hB) for the rest of time points.
-		 */
-		if (is3DT) {
-			// should implement here,
-			for (i = 0; i < timeframes; i++) {
-				if (i == 0) {
-					for (j = 0; j < zframes; j++) {
-						ipB = stack.getProcessor(i * zframes + j + 1);
-						histB = ipB.getHistogram();
-						for (k = 0; k < histbinnum; k++)
-							hB[k] += histB[k];
-					}
-				} else {
-					for (k = 0; k < histbinnum; k++)
-						hA[k] = 0;
-					for (j = 0; j < zframes; j++) {
-						ipA = stack.getProcessor(i * zframes + j + 1);
-						histA = ipA.getHistogram();
-						for (k = 0; k < histbinnum; k++)
-							hA[k] += histA[k];
-					}
-					F = m.matchHistograms(hA, hB);
-					for (j = 0; j < zframes; j++) {
-						ipA = stack.getProcessor(i * zframes + j + 1);
-						ipA.applyTable(F);
+		// histograms are restricted to curROI, full frame if null
+		MaskedHistogram mhist = new MaskedHistogram(imp.getWidth(), imp.getHeight(), curROI);
+		if (sidecar == null) {
+			if (correctStreaming(stack, mhist, zframes, timeframes))
+				IJ.log(report.getSummary());
+			return;
+		}
+		// histograms of all planes before correction, written to the sidecar
+		PlaneStatistics[] stats = sidecar.getAll(cache, stack, mhist, true);
+		CorrectionPlan plan = plan(stats, zframes, timeframes);
+		if (plan.getSlices() != zframes) { // a mapping per plane
+			if (applyPerPlane(plan, stack))
+				IJ.log(report.getSummary());
+			return;
+		}
+
+		Object table = null; // compact form of F, reused for all time points
+		progress.addTotal(timeframes);
+		for (int i = 0; i < timeframes; i++) {
+			if (progress.isCanceled())
+				return;
+			progress.step();
+			Object next = plan.getTable(i, table);
+			if (next == null)
+				continue;
+			table = next;
+			LutKernel.applyToSlices(stack, i * zframes + 1, zframes, table);
+			if (verbose && is3DT)
+				IJ.log("corrected time point: " + Integer.toString(i + 1));
+			else if (verbose)
+				IJ.log("corrected frame: " + Integer.toString(i + 1));
+		}
+		IJ.log(report.getSummary());
+		// imp.show();
+	}
+
+	/**
+	 * Matching while streaming through the series, with the same result as
+	 * applying plan() to the statistics of all planes. The statistics of a
+	 * few time points are measured, one plane per thread, just before they
+	 * are corrected, and dropped afterwards. Only the planes of the
+	 * reference window are measured ahead, and the moving reference keeps
+	 * the histograms of the last N time points in a HistogramWindow, so
+	 * memory does not grow with the length of the series.
+	 *
+	 * @return false if canceled
+	 */
+	boolean correctStreaming(ImageStack stack, MaskedHistogram mhist, int zframes, int timeframes) {
+		int histbinnum = (bitDepth() == 8) ? 256 : 65536;
+		int groups = (perSlice && zframes > 1) ? zframes : 1; // z-slices matched on their own
+		int nSlices = zframes / groups;
+		int[][] hB = new int[groups][];
+		BleachReference.HistogramWindow[] windows = new BleachReference.HistogramWindow[groups];
+		boolean moving = reference.isMoving();
+		if (moving) {
+			for (int g = 0; g < groups; g++)
+				windows[g] = new BleachReference.HistogramWindow(reference.getWindowSize(), histbinnum);
+		} else {
+			int first = reference.getFirst(timeframes);
+			PlaneStatistics[] window = cache.getRange(stack, mhist, first * zframes,
+					reference.getEnd(timeframes) * zframes);
+			for (int g = 0; g < groups; g++)
+				hB[g] = referenceHistogram(window, first * zframes, g * nSlices, nSlices, zframes, timeframes,
+						histbinnum);
+		}
+		report = new QualityReport((groups > 1) ? "Histogram Matching per slice" : "Histogram Matching", zframes,
+				timeframes, bitDepth());
+		int refframe = reference.getFirst(timeframes);
+		boolean singleref = reference.isFirstFrame() || reference.getStrategy() == BleachReference.USER_FRAME;
+		BufferPool pool = BufferPool.getShared();
+		int[] hA = pool.borrowInts(histbinnum);
+		int[] sum = moving ? pool.borrowInts(histbinnum) : null;
+		Object table = (histbinnum == 256) ? pool.borrowBytes(256) : pool.borrowChars(65536);
+		int batch = Math.max(1, Prefs.getThreads()); // time points measured together
+		progress.addTotal(timeframes);
+		try {
+			for (int t0 = 0; t0 < timeframes; t0 += batch) {
+				int t1 = Math.min(timeframes, t0 + batch);
+				PlaneStatistics[] stats = cache.getRange(stack, mhist, t0 * zframes, t1 * zframes);
+				for (int t = t0; t < t1; t++) {
+					if (progress.isCanceled())
+						return false;
+					progress.step();
+					for (int g = 0; g < groups; g++) {
+						int first = (t - t0) * zframes + g * nSlices; // in stats
+						Arrays.fill(hA, 0);
+						for (int j = first; j < first + nSlices; j++)
+							stats[j].accumulate(hA);
+						int[] F = null;
+						if (!(singleref && t == refframe) && !(moving && t == 0))
+							F = new HistogramMatcher().matchHistograms(hA, moving ? windows[g].sum(sum) : hB[g]);
+						if (moving)
+							windows[g].push(hA);
+						if (groups > 1)
+							report.addPlane(t * zframes + g, stats[first], F);
+						else
+							report.add(t, Arrays.copyOfRange(stats, first, first + zframes), F);
+						if (F == null)
+							continue;
+						table = LutKernel.toTable(F, table);
+						pool.release(F);
+						LutKernel.applyToSlices(stack, t * zframes + g * nSlices + 1, nSlices, table);
 					}
-					IJ.log("corrected time point: " + Integer.toString(i + 1));
+					if (verbose)
+						IJ.log("corrected " + ((zframes > 1) ? "time point: " : "frame: ") + Integer.toString(t + 1));
 				}
 			}
+		} finally {
+			pool.release(hA);
+			pool.release(sum);
+			pool.release(table);
+		}
+		return true;
+	}
+
+	/**
+	 * Matching of each time point to the reference, computed from the
+	 * histograms of the unchanged planes. The mapping of a time point is
+	 * computed when it is requested, so that at most a few 16 bit mappings
+	 * are held at a time.
+	 *
+	 * in case of 3D, stack histogram of the reference time point(s) is used
+	 * as reference for the rest of time points. A moving reference is the
+	 * summed histogram of the preceding time points, kept as a running
+	 * BleachReference.HistogramWindow, see MovingHistogram. With
+	 * setPerSliceReference, each z-slice is matched to the same z-slice of
+	 * the reference instead, see planPerSlice.
+	 *
+	 * @param stats ROI histograms of each plane before correction
+	 * @param zframes z-slices per time point, 1 for 2D time series
+	 * @param timeframes number of time points
+	 */
+	public CorrectionPlan plan(final PlaneStatistics[] stats, final int zframes, final int timeframes) {
+		if (perSlice && zframes > 1)
+			return planPerSlice(stats, zframes, timeframes);
+		final int histbinnum = (bitDepth() == 8) ? 256 : 65536;
+		final int[] hB = reference.isMoving() ? null
+				: referenceHistogram(stats, 0, 0, zframes, zframes, timeframes, histbinnum);
+		final MovingHistogram moving = reference.isMoving()
+				? new MovingHistogram(stats, 0, zframes, zframes, reference.getWindowSize(), histbinnum)
+				: null;
+		final int refframe = reference.getFirst(timeframes);
+		final boolean singleref = reference.isFirstFrame() || reference.getStrategy() == BleachReference.USER_FRAME;
+		CorrectionPlan plan = new CorrectionPlan(bitDepth(), zframes, timeframes) {
+			@Override
+			public int[] getMapping(int t) {
+				if (singleref && t == refframe)
+					return null; // the reference itself stays as it is
+				if (hB == null && t == 0)
+					return null; // no preceding time point for the moving reference
+				return match(stats, t, 0, zframes, zframes, hB, moving, histbinnum);
+			}
+
+			@Override
+			protected void recycle(int[] F) {
+				BufferPool.getShared().release(F); // borrowed by matchHistograms
+			}
+		};
+		report = new QualityReport("Histogram Matching", stats, zframes, timeframes, bitDepth());
+		plan.setQualityReport(report);
+		return plan;
+	}
 
-		} else { // 2D case.
-			for (i = 0; i < stack.getSize(); i++) {
-				if (i == 0) {
-					ipB = stack.getProcessor(i + 1);
-					hB = ipB.getHistogram();
-				} else {
-					ipA = stack.getProcessor(i + 1);
-					hA = ipA.getHistogram();
-					F = m.matchHistograms(hA, hB);
-					ipA.applyTable(F);
-					IJ.log("corrected frame: " + Integer.toString(i + 1));
+	/**
+	 * Matching of each z-slice of each time point to the same z-slice of
+	 * the reference, for 3D time series whose histograms change with depth,
+	 * e.g. by scattering. The plan has a mapping per plane: it has one
+	 * slice per "time point" and a time point per plane, so plane n is
+	 * mapped by getMapping(n).
+	 */
+	CorrectionPlan planPerSlice(final PlaneStatistics[] stats, final int zframes, final int timeframes) {
+		final int histbinnum = (bitDepth() == 8) ? 256 : 65536;
+		final int[][] hB = new int[zframes][];
+		final MovingHistogram[] moving = new MovingHistogram[zframes];
+		for (int z = 0; z < zframes; z++) {
+			if (reference.isMoving())
+				moving[z] = new MovingHistogram(stats, z, 1, zframes, reference.getWindowSize(), histbinnum);
+			else
+				hB[z] = referenceHistogram(stats, 0, z, 1, zframes, timeframes, histbinnum);
+		}
+		final int refframe = reference.getFirst(timeframes);
+		final boolean singleref = reference.isFirstFrame() || reference.getStrategy() == BleachReference.USER_FRAME;
+		CorrectionPlan plan = new CorrectionPlan(bitDepth(), 1, zframes * timeframes) {
+			@Override
+			public int[] getMapping(int plane) {
+				int t = plane / zframes;
+				int z = plane % zframes;
+				if (singleref && t == refframe)
+					return null;
+				if (reference.isMoving() && t == 0)
+					return null;
+				return match(stats, t, z, 1, zframes, hB[z], moving[z], histbinnum);
+			}
+
+			@Override
+			protected void recycle(int[] F) {
+				BufferPool.getShared().release(F);
+			}
+
+			@Override
+			protected void record(int plane, int[] F) {
+				if (report != null)
+					report.addPlane(plane, F);
+			}
+		};
+		report = new QualityReport("Histogram Matching per slice", stats, zframes, timeframes, bitDepth());
+		plan.setQualityReport(report);
+		return plan;
+	}
+
+	/**
+	 * Mapping of the slices firstSlice .. firstSlice + nSlices - 1 of time
+	 * point t to the reference histogram hB, or to the moving reference of
+	 * the same slices if hB is null. All work arrays are borrowed from
+	 * BufferPool, and so is the mapping.
+	 */
+	int[] match(PlaneStatistics[] stats, int t, int firstSlice, int nSlices, int zframes, int[] hB,
+			MovingHistogram moving, int histbinnum) {
+		BufferPool pool = BufferPool.getShared();
+		int[] hA = pool.borrowInts(histbinnum);
+		for (int j = firstSlice; j < firstSlice + nSlices; j++)
+			stats[t * zframes + j].accumulate(hA);
+		int[] ref = hB;
+		if (ref == null)
+			ref = moving.sum(t, pool.borrowInts(histbinnum));
+		int[] F = new HistogramMatcher().matchHistograms(hA, ref);
+		pool.release(hA);
+		if (ref != hB)
+			pool.release(ref);
+		return F;
+	}
+
+	/**
+	 * Moving reference of the slices firstSlice .. firstSlice + nSlices - 1:
+	 * the summed histogram of the N time points before t, as a running
+	 * HistogramWindow that is advanced to the requested time point.
+	 * Mappings are requested mostly in order, so each time point is added
+	 * once and the cost per time point does not grow with N. A request
+	 * behind the window, e.g. from a parallel job, starts it again.
+	 */
+	static class MovingHistogram {
+		final PlaneStatistics[] stats;
+		final int firstSlice, nSlices, zframes, size, histbinnum;
+		BleachReference.HistogramWindow window = null;
+		int next = 0; // time point pushed next into the window
+
+		MovingHistogram(PlaneStatistics[] stats, int firstSlice, int nSlices, int zframes, int size, int histbinnum) {
+			this.stats = stats;
+			this.firstSlice = firstSlice;
+			this.nSlices = nSlices;
+			this.zframes = zframes;
+			this.size = size;
+			this.histbinnum = histbinnum;
+		}
+
+		/**
+		 * @param t time point, at least 1
+		 * @param out histogram to be filled
+		 * @return out, the summed histogram of time points max(0, t - N) .. t - 1
+		 */
+		synchronized int[] sum(int t, int[] out) {
+			int first = Math.max(0, t - size);
+			if (window == null || t < next || first > next) {
+				window = new BleachReference.HistogramWindow(size, histbinnum);
+				next = first;
+			}
+			if (next < t) {
+				BufferPool pool = BufferPool.getShared();
+				int[] h = pool.borrowInts(histbinnum);
+				for (; next < t; next++) {
+					Arrays.fill(h, 0);
+					for (int j = firstSlice; j < firstSlice + nSlices; j++)
+						stats[next * zframes + j].accumulate(h);
+					window.push(h);
 				}
+				pool.release(h);
 			}
+			return window.sum(out);
 		}
-		// imp.show();
+	}
+
+	/**
+	 * Histogram of the reference: the time points of the reference window
+	 * are pooled, and so are the slices firstSlice .. firstSlice + nSlices - 1
+	 * of a time point.
+	 *
+	 * @param stats statistics of the planes from plane offset on, at least
+	 * those of the reference window
+	 */
+	int[] referenceHistogram(PlaneStatistics[] stats, int offset, int firstSlice, int nSlices, int zframes,
+			int timeframes, int histbinnum) {
+		int first = reference.getFirst(timeframes);
+		int end = reference.getEnd(timeframes);
+		int[][] hists = new int[end - first][histbinnum];
+		for (int i = first; i < end; i++)
+			for (int j = firstSlice; j < firstSlice + nSlices; j++)
+				stats[i * zframes + j - offset].accumulate(hists[i - first]);
+		if (hists.length == 1)
+			return hists[0];
+		return reference.combine(hists);
+	}
+
+	/**
+	 * Applies a plan with a mapping per plane, one chunk of planes per
+	 * thread. Each thread keeps one table for all planes of its chunk, and
+	 * the work arrays of a mapping go back to BufferPool before the next
+	 * plane, so the buffers in use grow with the threads, not the planes.
+	 *
+	 * @return false if canceled
+	 */
+	boolean applyPerPlane(final CorrectionPlan plan, final ImageStack stack) {
+		final int bitDepth = bitDepth();
+		progress.addTotal(stack.getSize());
+		new ParallelChunks() {
+			@Override
+			protected void process(int from, int end) {
+				BufferPool pool = BufferPool.getShared();
+				Object reuse = (bitDepth == 8) ? pool.borrowBytes(256) : pool.borrowChars(65536);
+				for (int plane = from; plane < end; plane++) {
+					if (progress.isCanceled())
+						break;
+					Object table = plan.getTable(plane, reuse);
+					if (table != null)
+						LutKernel.apply(stack.getPixels(plane + 1), table);
+					progress.step();
+				}
+				pool.release(reuse);
+			}
+		}.run(stack.getSize(), Prefs.getThreads());
+		return !progress.isCanceled();
+	}
+
+	/**
+	 * @return quality of the last correction, filled while it was applied; null before
+	 */
+	public QualityReport getQualityReport() {
+		return report;
+	}
+
+	/**
+	 * @param reference reference strategy, the first frame by default
+	 */
+	public void setReference(BleachReference reference) {
+		this.reference = reference;
+	}
+
+	/**
+	 * @param progress progress counter, also checked for cancellation between frames
+	 */
+	public void setProgress(BleachProgress progress) {
+		this.progress = progress;
+	}
+
+	/**
+	 * @param cache cache of the per-plane histograms, StatisticsCache.getShared() by default
+	 */
+	public void setCache(StatisticsCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * @param sidecar sidecar file of the statistics of the image, null for none
+	 */
+	public void setSidecar(StatisticsSidecar sidecar) {
+		this.sidecar = sidecar;
+	}
+
+	/**
+	 * @param perSlice true to match each z-slice of a 3D time series to the
+	 * same z-slice of the reference, false to match whole time points
+	 */
+	public void setPerSliceReference(boolean perSlice) {
+		this.perSlice = perSlice;
+	}
+
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
 	}
 
 }
@@ -29,6 +29,7 @@ package emblcmci;
  *
  *  This plugin works on 2D and 3D time series (for 3D time series, it should be a hyperstack).
  *  in case of 3D times series, mean intensity in the first time point stack becomes the reference.
+ *  Other references can be chosen with setReference, see BleachReference.
  *  @author Kota Miura (miura@embl.de)
  *
  * Copyright © 2004, 2005, 2010 Jens Rietdorf, Kota Miura
@@ -47,19 +48,50 @@ package emblcmci;
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 
+import histogram2.MaskedHistogram;
 import ij.IJ;
 import ij.ImagePlus;
 //import ij.gui.Roi;
 import ij.gui.GenericDialog;
 import ij.gui.Roi;
-import ij.process.ImageProcessor;
-import ij.process.ImageStatistics;
+
+import java.util.Arrays;
 
 public class BleachCorrection_SimpleRatio {
 	ImagePlus imp;
+	int bitDepth = 0; // used if imp is null
 	double referenceInt = 0;
 	double baselineInt = 0;
+	BackgroundEstimator background = null; // automatic background, null for the fixed baselineInt
 	Roi curROI = null;
+	BleachReference reference = new BleachReference();
+	IntensityEstimator estimator = new IntensityEstimator();
+	int outputMode = OutputPrecision.ROUND;
+	QualityReport report = null;
+	BleachProgress progress = new BleachProgress(false);
+	boolean verbose = false;
+	boolean quiet = false; // no messages in the Log window, e.g. for BleachEngine
+	StatisticsCache cache = StatisticsCache.getShared();
+	StatisticsSidecar sidecar = null;
+	RoiTracker tracker = null; // moves curROI with the drift, null for a fixed ROI
+	PlaneStatistics[] stats; // ROI statistics of the planes before correction
+	int zframes = 1;
+	double[] baselines; // background of each time point
+	double[] givenBaselines = null; // background of each time point estimated by the caller, e.g. BleachCorrection_Tiled
+	PlaneStatistics[] backgroundStats = null; // statistics of the background region, see BackgroundEstimator.getRegion
+	int[] baselineMap; // pixel values after subtracting baselineMapped
+	double baselineMapped = 0;
+
+	/**
+	 * Without an image, for plan() on statistics measured by the caller,
+	 * see BleachEngine.
+	 *
+	 * @param bitDepth 8 or 16
+	 */
+	BleachCorrection_SimpleRatio(int bitDepth) {
+		super();
+		this.bitDepth = bitDepth;
+	}
 
 	/**
 	 * @param imp ImagePlus instance
@@ -86,19 +118,62 @@ public class BleachCorrection_SimpleRatio {
 	}
 
 	public boolean showDialogAskBaseline() {
+		BackgroundEstimator b = (background == null) ? new BackgroundEstimator(baselineInt) : background;
 		GenericDialog gd = new GenericDialog("Bleach Correction");
+		gd.addChoice("Background :", BackgroundEstimator.METHOD_NAMES, BackgroundEstimator.METHOD_NAMES[b.getMethod()]);
 		gd.addNumericField("Background Intensity", baselineInt, 1);
+		gd.addNumericField("Background percentile (%)", b.getPercent(), 1);
+		gd.addCheckbox("Background per frame", b.isPerFrame());
 		gd.showDialog();
 		if (gd.wasCanceled())
 			return false;
+		int method = gd.getNextChoiceIndex();
 		baselineInt = gd.getNextNumber();
+		double percent = gd.getNextNumber();
+		boolean perFrame = gd.getNextBoolean();
+		background = (method == BackgroundEstimator.FIXED) ? null : new BackgroundEstimator(method, percent, perFrame);
 		return true;
 
 	}
+	/**
+	 * @return bit depth of imp, or the one given without an image
+	 */
+	int bitDepth() {
+		return (imp != null) ? imp.getBitDepth() : bitDepth;
+	}
+
 	public void setSimpleRatioBaseline(double baseline){
 		baselineInt = baseline;
 	}
 
+	/**
+	 * @param background automatic estimate of the background, estimated
+	 * from the pixels outside the ROI; null to subtract the fixed
+	 * baseline of setSimpleRatioBaseline
+	 */
+	public void setBackgroundEstimator(BackgroundEstimator background) {
+		this.background = (background == null || background.getMethod() == BackgroundEstimator.FIXED) ? null
+				: background;
+		if (background != null && background.getMethod() == BackgroundEstimator.FIXED)
+			baselineInt = background.getValue();
+	}
+
+	/**
+	 * @param backgroundStats statistics of the background region of the
+	 * automatic background, measured by the caller with the ROI; if null,
+	 * plan() measures them from imp
+	 */
+	void setBackgroundStatistics(PlaneStatistics[] backgroundStats) {
+		this.backgroundStats = backgroundStats;
+	}
+
+	/**
+	 * @return background subtracted from each time point by the last correction
+	 */
+	public double[] getBaselines() {
+		return baselines;
+	}
+
 	public ImagePlus correctBleach() {
 
 		boolean is3DT = false;
@@ -118,61 +193,218 @@ public class BleachCorrection_SimpleRatio {
 			}
 		}
 
-		ImageStatistics imgstat = new ImageStatistics();
-		ImageProcessor curip = null;
-		double currentInt = 0.0;
-		double ratio = 1.0;
+		if (!is3DT)
+			timeframes = imp.getStackSize();
+
 		if (curROI == null)
 			curROI = new Roi(0, 0, imp.getWidth(), imp.getHeight());
-		if (!is3DT) {
-			for (int i = 0; i < imp.getStackSize(); i++) {
-				curip = imp.getImageStack().getProcessor(i + 1);
-				curip.setRoi(0, 0, imp.getWidth(), imp.getHeight());
-				curip.add(-1 * baselineInt);
-
-				curip.setRoi(curROI);
-				imgstat = curip.getStatistics();
-
-				curip.setRoi(0, 0, imp.getWidth(), imp.getHeight());
-				if (i == 0) {
-					referenceInt = imgstat.mean;
-					IJ.log("ref intensity=" + imgstat.mean);
-				} else {
-					currentInt = imgstat.mean;
-					ratio = referenceInt / currentInt;
-					curip.multiply(ratio);
-					IJ.log("frame" + Integer.toString(i + 1) + "mean int=" + currentInt + " ratio=" + ratio);
-				}
+		// all ROI means are taken from the statistics of the unchanged planes
+		MaskedHistogram mask = new MaskedHistogram(imp.getWidth(), imp.getHeight(), curROI);
+		PlaneStatistics[] planestats;
+		if (tracker != null) {
+			planestats = tracker.measure(imp.getStack(), zframes, curROI, cache, progress);
+		} else if (sidecar != null) {
+			planestats = sidecar.getAll(cache, imp.getStack(), mask,
+					baselineInt != 0 || background != null || estimator.needsHistogram());
+		} else {
+			// the background region in the same pass as the ROI
+			MaskedHistogram[] masks = BackgroundEstimator.append(new MaskedHistogram[] { mask }, mask, background);
+			PlaneStatistics[][] all = cache.getAll(imp.getStack(), masks);
+			planestats = all[0];
+			if (all.length > 1)
+				backgroundStats = all[1];
+		}
+		if (planestats == null)
+			return null;
 
-			}
+		CorrectionPlan.FactorPlan plan = plan(planestats, zframes, timeframes);
+		if (!OutputPrecision.applyTo(plan, imp, outputMode, progress))
+			return null;
+		IJ.log(report.getSummary());
+		return imp;
+	}
+
+	/**
+	 * Computes the ratio of each time point from the statistics of the
+	 * unchanged planes. No pixel is changed here.
+	 *
+	 * @param stats ROI statistics of each plane before correction
+	 * @param zframes z-slices per time point, 1 for 2D time series
+	 * @param timeframes number of time points
+	 * @return plan subtracting the baseline and multiplying with the ratios
+	 */
+	public CorrectionPlan.FactorPlan plan(PlaneStatistics[] stats, int zframes, int timeframes) {
+		this.stats = stats;
+		this.zframes = zframes;
+		if (givenBaselines != null) {
+			baselines = givenBaselines.clone();
+		} else if (background != null) {
+			if (backgroundStats == null)
+				backgroundStats = measureBackground();
+			baselines = background.estimate(backgroundStats, zframes, timeframes);
+			if (!quiet)
+				IJ.log("background (" + background + ")=" + baselines[0]);
 		} else {
-			for (int i = 0; i < timeframes; i++) {
-				currentInt = 0.0;
-				for (int j = 0; j < zframes; j++) {
-					curip = imp.getImageStack().getProcessor(i * zframes + j + 1);
-					curip.setRoi(0, 0, imp.getWidth(), imp.getHeight());
-					curip.add(-1 * baselineInt);
-					curip.setRoi(curROI);
-					imgstat = curip.getStatistics();
-					currentInt += imgstat.mean;
-					curip.setRoi(0, 0, imp.getWidth(), imp.getHeight());
-				}
-				currentInt /= zframes;
-
-				if (i == 0) {
-					referenceInt = currentInt;
+			baselines = new double[timeframes];
+			Arrays.fill(baselines, baselineInt);
+		}
+		double currentInt = 0.0;
+		double ratio = 1.0;
+		double[] ratios = new double[timeframes];
+		Arrays.fill(ratios, 1.0);
+
+		BleachReference.ScalarWindow moving = null;
+		boolean streamref = reference.isFirstFrame(); // reference is measured on the way
+		if (reference.isMoving()) {
+			moving = new BleachReference.ScalarWindow(reference.getWindowSize());
+		} else if (!streamref) {
+			referenceInt = measureReference(zframes, timeframes);
+			if (!quiet)
+				IJ.log("ref intensity=" + referenceInt);
+		}
+		int refframe = reference.getFirst(timeframes);
+		boolean singleref = streamref || reference.getStrategy() == BleachReference.USER_FRAME;
+
+		for (int i = 0; i < timeframes; i++) {
+			currentInt = 0.0;
+			for (int j = 0; j < zframes; j++)
+				currentInt += measureMean(i * zframes + j);
+			currentInt /= zframes;
+
+			if (streamref && i == 0) {
+				referenceInt = currentInt;
+				if (!quiet)
 					IJ.log("ref intensity=" + referenceInt);
-				} else {
-					ratio = referenceInt / currentInt;
-					for (int j = 0; j < zframes; j++) {
-						curip = imp.getImageStack().getProcessor(i * zframes + j + 1);
-						curip.setRoi(0, 0, imp.getWidth(), imp.getHeight());
-						curip.multiply(ratio);
-					}
-					IJ.log("frame" + Integer.toString(i + 1) + "mean int=" + currentInt + " ratio=" + ratio);
-				}
+				continue;
 			}
+			if (singleref && i == refframe)
+				continue;
+			if (moving != null) {
+				boolean first = moving.isEmpty();
+				if (!first)
+					referenceInt = moving.mean();
+				moving.push(currentInt);
+				if (first)
+					continue;
+			}
+			ratio = referenceInt / currentInt;
+			ratios[i] = ratio;
+			if (verbose)
+				IJ.log("frame" + Integer.toString(i + 1) + "mean int=" + currentInt + " ratio=" + ratio);
 		}
-		return imp;
+		double[] offsets = new double[timeframes];
+		for (int i = 0; i < timeframes; i++)
+			offsets[i] = -1 * baselines[i];
+		CorrectionPlan.FactorPlan plan = CorrectionPlan.ofFactors(bitDepth(), zframes, ratios, offsets);
+		report = new QualityReport("Simple Ratio", stats, zframes, timeframes, bitDepth());
+		plan.setQualityReport(report);
+		return plan;
+	}
+
+	/**
+	 * Statistics of the background region of imp, for callers that have
+	 * not measured them with the ROI, e.g. as the background was chosen in
+	 * the dialog after the statistics pass.
+	 */
+	PlaneStatistics[] measureBackground() {
+		if (imp == null)
+			throw new IllegalStateException("statistics of the background region required");
+		MaskedHistogram mask = new MaskedHistogram(imp.getWidth(), imp.getHeight(), curROI);
+		return cache.getAll(imp.getStack(), background.getRegion(mask));
+	}
+
+	/**
+	 * intensity within curROI after subtracting the baseline, computed
+	 * from the statistics of the plane before correction; the mean unless
+	 * another estimator is set.
+	 *
+	 * @param plane plane index, 0-based
+	 */
+	double measureMean(int plane) {
+		double baseline = baselines[plane / zframes];
+		if (baseline == 0)
+			return estimator.estimate(stats[plane]);
+		if (baselineMap == null || baselineMapped != baseline) {
+			baselineMap = PlaneStatistics.addMapping(bitDepth(), -1 * baseline);
+			baselineMapped = baseline;
+		}
+		return estimator.estimate(stats[plane], baselineMap);
+	}
+
+	/**
+	 * Reference intensity from the time points of the reference window.
+	 */
+	double measureReference(int zframes, int timeframes) {
+		int first = reference.getFirst(timeframes);
+		int end = reference.getEnd(timeframes);
+		double[] values = new double[end - first];
+		for (int i = first; i < end; i++) {
+			for (int j = 0; j < zframes; j++)
+				values[i - first] += measureMean(i * zframes + j);
+			values[i - first] /= zframes;
+		}
+		return reference.combine(values);
+	}
+
+	/**
+	 * @param reference reference strategy, the first frame by default
+	 */
+	public void setReference(BleachReference reference) {
+		this.reference = reference;
+	}
+
+	/**
+	 * @param estimator intensity of a frame inside the ROI, the mean by default
+	 */
+	public void setIntensityEstimator(IntensityEstimator estimator) {
+		this.estimator = estimator;
+	}
+
+	/**
+	 * @return quality of the last correction, filled while it was applied; null before
+	 */
+	public QualityReport getQualityReport() {
+		return report;
+	}
+
+	/**
+	 * @param outputMode rounding of the corrected values, one of the modes of
+	 * OutputPrecision; OutputPrecision.ROUND by default
+	 */
+	public void setOutputMode(int outputMode) {
+		this.outputMode = outputMode;
+	}
+
+	/**
+	 * @param progress progress counter, also checked for cancellation between frames
+	 */
+	public void setProgress(BleachProgress progress) {
+		this.progress = progress;
+	}
+
+	/**
+	 * @param cache cache of the per-plane statistics, StatisticsCache.getShared() by default
+	 */
+	public void setCache(StatisticsCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * @param sidecar sidecar file of the statistics of the image, null for none
+	 */
+	public void setSidecar(StatisticsSidecar sidecar) {
+		this.sidecar = sidecar;
+	}
+
+	/**
+	 * @param tracker tracks the drift of the sample and moves the ROI with
+	 * it, null to measure every time point in the same ROI
+	 */
+	public void setRoiTracker(RoiTracker tracker) {
+		this.tracker = tracker;
+	}
+
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
 	}
 }
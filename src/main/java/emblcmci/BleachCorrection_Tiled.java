@@ -0,0 +1,426 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package emblcmci;
+
+/** Spatially varying Bleach Correction.
+ *
+ * The frame is divided into a grid of tiles. For each tile, the decay of the
+ * intensity inside the ROI is estimated independently, either by simple
+ * ratio to the reference or by fitting an exponential decay against the
+ * acquisition times of the frames (see FrameTimes). Per frame, the gains
+ * at the tile centers are bilinearly interpolated into a smooth gain field
+ * which is applied to all pixels in one pass, after subtracting the
+ * background.
+ *
+ * The reference, the intensity estimator and the background are those of
+ * simple ratio and exponential fit: the estimate of each tile is computed
+ * by BleachCorrection_SimpleRatio or BleachCorrection_ExpoFit from the
+ * statistics of the tile. The background is estimated once from the whole
+ * ROI and subtracted from all tiles; the exponential fit, as on its own,
+ * subtracts none. Tiles without pixels in the ROI, and tiles whose
+ * estimate fails, take the gains of the whole ROI. With a single tile the
+ * result is that of simple ratio.
+ *
+ * This is meant for illumination with non-uniform bleaching such as
+ * light-sheet or TIRF. Works with 8 bit and 16 bit, 2D and 3D time series.
+ */
+
+import histogram2.MaskedHistogram;
+import histogram2.ParallelChunks;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.gui.GenericDialog;
+import ij.gui.Roi;
+
+import java.util.Arrays;
+
+
+public class BleachCorrection_Tiled {
+
+	public static final int TILE_RATIO = 0, TILE_EXPONENTIAL_FIT = 1;
+	public static final String[] TILE_METHODS = { "Simple Ratio", "Exponential Fit" };
+
+	ImagePlus imp;
+	Roi curROI = null;
+	int tilesX = 4;
+	int tilesY = 4;
+	int tileMethod = TILE_RATIO;
+	BleachReference reference = new BleachReference();
+	IntensityEstimator estimator = new IntensityEstimator();
+	double baselineInt = 0;
+	BackgroundEstimator background = null; // automatic background, null for the fixed baselineInt
+	BleachProgress progress = new BleachProgress(false);
+
+	// gains[time point][tile index (ty * tilesX + tx)]
+	double[][] gains;
+	// value added to each time point before the gain, minus the background
+	double[] offsets;
+
+	/**
+	 * @param imp
+	 */
+	public BleachCorrection_Tiled(ImagePlus imp) {
+		super();
+		this.imp = imp;
+	}
+
+	public BleachCorrection_Tiled(ImagePlus imp, int tilesX, int tilesY) {
+		super();
+		this.imp = imp;
+		setTiles(tilesX, tilesY);
+	}
+
+	public boolean showDialogAskTiles() {
+		BackgroundEstimator b = (background == null) ? new BackgroundEstimator(baselineInt) : background;
+		GenericDialog gd = new GenericDialog("Bleach Correction");
+		gd.addNumericField("Tiles in x", tilesX, 0);
+		gd.addNumericField("Tiles in y", tilesY, 0);
+		gd.addChoice("Estimation per tile :", TILE_METHODS, TILE_METHODS[tileMethod]);
+		gd.addChoice("Background :", BackgroundEstimator.METHOD_NAMES, BackgroundEstimator.METHOD_NAMES[b.getMethod()]);
+		gd.addNumericField("Background Intensity", baselineInt, 1);
+		gd.addNumericField("Background percentile (%)", b.getPercent(), 1);
+		gd.addCheckbox("Background per frame", b.isPerFrame());
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return false;
+		setTiles((int) gd.getNextNumber(), (int) gd.getNextNumber());
+		tileMethod = gd.getNextChoiceIndex();
+		int method = gd.getNextChoiceIndex();
+		baselineInt = gd.getNextNumber();
+		double percent = gd.getNextNumber();
+		boolean perFrame = gd.getNextBoolean();
+		background = (method == BackgroundEstimator.FIXED) ? null : new BackgroundEstimator(method, percent, perFrame);
+		return true;
+	}
+
+	public void setTiles(int tilesX, int tilesY) {
+		this.tilesX = Math.max(1, Math.min(tilesX, imp.getWidth()));
+		this.tilesY = Math.max(1, Math.min(tilesY, imp.getHeight()));
+	}
+
+	/**
+	 * @param tileMethod TILE_RATIO or TILE_EXPONENTIAL_FIT
+	 */
+	public void setTileMethod(int tileMethod) {
+		this.tileMethod = tileMethod;
+	}
+
+	/**
+	 * @param roi region of the statistics of the tiles, null for the whole frame
+	 */
+	public void setRoi(Roi roi) {
+		this.curROI = roi;
+	}
+
+	/**
+	 * @param reference reference strategy of each tile, the first frame by default
+	 */
+	public void setReference(BleachReference reference) {
+		this.reference = reference;
+	}
+
+	/**
+	 * @param estimator intensity of a tile inside the ROI, the mean by default
+	 */
+	public void setIntensityEstimator(IntensityEstimator estimator) {
+		this.estimator = estimator;
+	}
+
+	/**
+	 * @param baseline background subtracted before the gain, see
+	 * BleachCorrection_SimpleRatio.setSimpleRatioBaseline
+	 */
+	public void setSimpleRatioBaseline(double baseline) {
+		baselineInt = baseline;
+	}
+
+	/**
+	 * @param background automatic estimate of the background from the
+	 * whole ROI, null to subtract the fixed baseline
+	 */
+	public void setBackgroundEstimator(BackgroundEstimator background) {
+		this.background = (background == null || background.getMethod() == BackgroundEstimator.FIXED) ? null
+				: background;
+		if (background != null && background.getMethod() == BackgroundEstimator.FIXED)
+			baselineInt = background.getValue();
+	}
+
+	/**
+	 * @param progress progress counter, also checked for cancellation between frames
+	 */
+	public void setProgress(BleachProgress progress) {
+		this.progress = progress;
+	}
+
+	/**
+	 * @return gains of the last correction, [time point][ty * tilesX + tx]
+	 */
+	public double[][] getTileGains() {
+		return gains;
+	}
+
+	public ImagePlus correctBleach() {
+		int zframes = 1;
+		int timeframes = imp.getStackSize();
+		int[] impdimA = imp.getDimensions();
+		IJ.log("slices" + Integer.toString(impdimA[3]) + "  -- frames" + Integer.toString(impdimA[4]));
+		if (impdimA[3] > 1 && impdimA[4] > 1) { // if slices and frames are both more than 1
+			zframes = impdimA[3];
+			timeframes = impdimA[4];
+			if ((zframes * timeframes) != imp.getStackSize()) {
+				IJ.showMessage("slice and time frames do not match with the length of the stack. Please correct!");
+				return null;
+			}
+		}
+		if (tileMethod == TILE_EXPONENTIAL_FIT && (baselineInt != 0 || background != null))
+			IJ.log("tiled correction: the exponential fit per tile subtracts no background, it is ignored");
+		ImageStack stack = imp.getStack();
+		int ntiles = tilesX * tilesY;
+
+		// statistics pass: the ROI part of each tile, the whole ROI and the background region, per plane
+		MaskedHistogram roi = new MaskedHistogram(imp.getWidth(), imp.getHeight(), curROI);
+		MaskedHistogram[] masks = tileMasks(roi);
+		if (tileMethod != TILE_EXPONENTIAL_FIT)
+			masks = BackgroundEstimator.append(masks, roi, background);
+		progress.addTotal(2 * stack.getSize());
+		PlaneStatistics[][] stats = measure(stack, masks);
+		if (stats == null)
+			return null;
+
+		// estimation: a gain series per tile, tiles in parallel
+		gains = new double[timeframes][ntiles];
+		offsets = new double[timeframes];
+		estimateGains(stats, zframes, timeframes);
+
+		// apply: one pass per plane with the interpolated gain field
+		applyGainField(stack, zframes);
+		if (progress.isCanceled())
+			return null;
+		IJ.log("tiled correction done: " + tilesX + "x" + tilesY + " tiles, "
+				+ TILE_METHODS[tileMethod]);
+		return imp;
+	}
+
+	/**
+	 * @param roi region of the statistics
+	 * @return the part of roi in each tile, index ty * tilesX + tx, and
+	 * roi itself as the last one
+	 */
+	MaskedHistogram[] tileMasks(MaskedHistogram roi) {
+		int width = imp.getWidth();
+		int height = imp.getHeight();
+		MaskedHistogram[] masks = new MaskedHistogram[tilesX * tilesY + 1];
+		for (int ty = 0; ty < tilesY; ty++)
+			for (int tx = 0; tx < tilesX; tx++)
+				masks[ty * tilesX + tx] = roi.getRectangle(tileStart(tx, tilesX, width), tileStart(ty, tilesY, height),
+						tileStart(tx + 1, tilesX, width), tileStart(ty + 1, tilesY, height));
+		masks[masks.length - 1] = roi;
+		return masks;
+	}
+
+	/**
+	 * @return first pixel position of tile i, pixel p being in tile p * tiles / size
+	 */
+	static int tileStart(int i, int tiles, int size) {
+		return (int) (((long) i * size + tiles - 1) / tiles);
+	}
+
+	/**
+	 * Statistics of each mask in each plane. Histograms are kept only if
+	 * the background or the intensity estimator need them, as there are
+	 * statistics of every tile.
+	 *
+	 * @return stats[mask][plane], null if canceled
+	 */
+	PlaneStatistics[][] measure(final ImageStack stack, final MaskedHistogram[] masks) {
+		final PlaneStatistics[][] stats = new PlaneStatistics[masks.length][stack.getSize()];
+		final boolean histograms = baselineInt != 0 || background != null || estimator.needsHistogram();
+		new ParallelChunks() {
+			@Override
+			protected void process(int from, int end) {
+				for (int plane = from; plane < end; plane++) {
+					if (progress.isCanceled())
+						return;
+					Object pixels = stack.getPixels(plane + 1);
+					for (int m = 0; m < masks.length; m++) {
+						PlaneStatistics ps = PlaneStatistics.measure(pixels, masks[m]);
+						if (!histograms)
+							ps = new PlaneStatistics(ps.pixelCount, ps.sum, ps.min, ps.max, null);
+						stats[m][plane] = ps;
+					}
+					progress.step();
+				}
+			}
+		}.run(stack.getSize(), Prefs.getThreads());
+		return progress.isCanceled() ? null : stats;
+	}
+
+	/**
+	 * Fills gains and offsets from the statistics of the tiles, see
+	 * tileFactors; tiles without ROI pixels or with a failed estimate
+	 * take the gains of the whole ROI.
+	 */
+	void estimateGains(final PlaneStatistics[][] stats, final int zframes, final int timeframes) {
+		final int ntiles = tilesX * tilesY;
+		PlaneStatistics[] roi = stats[ntiles];
+		final double[] baselines;
+		if (tileMethod == TILE_EXPONENTIAL_FIT) {
+			baselines = new double[timeframes];
+		} else if (background != null) {
+			baselines = background.estimate(stats[ntiles + 1], zframes, timeframes); // see BackgroundEstimator.getRegion
+			IJ.log("background (" + background + ")=" + baselines[0]);
+		} else {
+			baselines = new double[timeframes];
+			Arrays.fill(baselines, baselineInt);
+		}
+		for (int t = 0; t < timeframes; t++)
+			offsets[t] = -1 * baselines[t];
+		final double[] times = FrameTimes.of(imp, timeframes);
+		double[] f = tileFactors(roi, zframes, timeframes, baselines, times);
+		if (f == null) {
+			f = new double[timeframes];
+			Arrays.fill(f, 1.0);
+		}
+		final double[] global = f;
+		new ParallelChunks() {
+			@Override
+			protected void process(int from, int end) {
+				for (int tile = from; tile < end; tile++) {
+					double[] factors = tileFactors(stats[tile], zframes, timeframes, baselines, times);
+					for (int t = 0; t < timeframes; t++) {
+						double g = (factors == null) ? global[t] : factors[t];
+						gains[t][tile] = (Double.isNaN(g) || Double.isInfinite(g)) ? global[t] : g;
+					}
+				}
+			}
+		}.run(ntiles, Prefs.getThreads());
+	}
+
+	/**
+	 * Factors of one tile: by simple ratio with the given background, or
+	 * by an exponential fit against the acquisition times, falling back
+	 * to the ratio if the fit fails or there are too few time points.
+	 *
+	 * @return factor of each time point, null if the tile has no ROI pixels
+	 */
+	double[] tileFactors(PlaneStatistics[] stats, int zframes, int timeframes, double[] baselines, double[] times) {
+		for (PlaneStatistics ps : stats)
+			if (ps.getPixelCount() == 0)
+				return null;
+		int bitDepth = imp.getBitDepth();
+		if (tileMethod == TILE_EXPONENTIAL_FIT && timeframes > 3) {
+			BleachCorrection_ExpoFit BCEF = new BleachCorrection_ExpoFit(bitDepth);
+			BCEF.quiet = true;
+			BCEF.setReference(reference);
+			BCEF.setIntensityEstimator(estimator);
+			BCEF.setFitModel(DecayModelFitter.EXPONENTIAL);
+			BCEF.setTimestamps(times);
+			CorrectionPlan.FactorPlan plan = BCEF.plan(stats, zframes, timeframes);
+			if (plan != null)
+				return plan.getFactors();
+		}
+		BleachCorrection_SimpleRatio BCSR = new BleachCorrection_SimpleRatio(bitDepth);
+		BCSR.quiet = true;
+		BCSR.setReference(reference);
+		BCSR.setIntensityEstimator(estimator);
+		BCSR.givenBaselines = baselines;
+		return BCSR.plan(stats, zframes, timeframes).getFactors();
+	}
+
+	void applyGainField(final ImageStack stack, final int zframes) {
+		final int width = stack.getWidth();
+		final int height = stack.getHeight();
+		// interpolation positions of columns and rows between tile centers
+		final int[] x0 = new int[width];
+		final double[] fx = new double[width];
+		interpolationWeights(width, tilesX, x0, fx);
+		final int[] y0 = new int[height];
+		final double[] fy = new double[height];
+		interpolationWeights(height, tilesY, y0, fy);
+
+		new ParallelChunks() {
+			@Override
+			protected void process(int from, int end) {
+				double[] rowgain = new double[tilesX];
+				for (int plane = from; plane < end; plane++) {
+					if (progress.isCanceled())
+						return;
+					double[] g = gains[plane / zframes];
+					// as ImageProcessor.add with the truncated offset, then multiply
+					int offset = (int) offsets[plane / zframes];
+					Object pixels = stack.getPixels(plane + 1);
+					for (int y = 0; y < height; y++) {
+						int r0 = y0[y] * tilesX;
+						int r1 = Math.min(y0[y] + 1, tilesY - 1) * tilesX;
+						for (int tx = 0; tx < tilesX; tx++)
+							rowgain[tx] = g[r0 + tx] + fy[y] * (g[r1 + tx] - g[r0 + tx]);
+						int row = y * width;
+						if (pixels instanceof byte[]) {
+							byte[] p = (byte[]) pixels;
+							for (int x = 0; x < width; x++) {
+								int c0 = x0[x];
+								int c1 = Math.min(c0 + 1, tilesX - 1);
+								double gain = rowgain[c0] + fx[x] * (rowgain[c1] - rowgain[c0]);
+								int v = PlaneStatistics.clip((p[row + x] & 0xff) + offset, 255);
+								p[row + x] = (byte) PlaneStatistics.clip((int) Math.round(v * gain), 255);
+							}
+						} else {
+							short[] p = (short[]) pixels;
+							for (int x = 0; x < width; x++) {
+								int c0 = x0[x];
+								int c1 = Math.min(c0 + 1, tilesX - 1);
+								double gain = rowgain[c0] + fx[x] * (rowgain[c1] - rowgain[c0]);
+								int v = PlaneStatistics.clip((p[row + x] & 0xffff) + offset, 65535);
+								p[row + x] = (short) PlaneStatistics.clip((int) Math.round(v * gain), 65535);
+							}
+						}
+					}
+					progress.step();
+				}
+			}
+		}.run(stack.getSize(), Prefs.getThreads());
+	}
+
+	/**
+	 * For each pixel position, the index of the tile center at or before it
+	 * and the fractional distance towards the next tile center. Outside the
+	 * outermost centers the gain is held constant.
+	 */
+	static void interpolationWeights(int size, int tiles, int[] i0, double[] f) {
+		double tilesize = (double) size / tiles;
+		for (int p = 0; p < size; p++) {
+			double pos = (p + 0.5) / tilesize - 0.5;
+			if (pos <= 0) {
+				i0[p] = 0;
+				f[p] = 0;
+			} else if (pos >= tiles - 1) {
+				i0[p] = tiles - 1;
+				f[p] = 0;
+			} else {
+				i0[p] = (int) pos;
+				f[p] = pos - i0[p];
+			}
+		}
+	}
+}
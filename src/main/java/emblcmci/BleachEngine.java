@@ -0,0 +1,405 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package emblcmci;
+
+import histogram2.BufferPool;
+import histogram2.LutKernel;
+import histogram2.MaskedHistogram;
+import histogram2.ParallelChunks;
+import ij.ImageStack;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bleach correction of a stack in memory without the ImageJ GUI.
+ *
+ * BleachCorrection is a PlugInFilter with dialogs, and the image, ROI and
+ * log window it works with load ij.IJ, ImagePlus and with them most of
+ * AWT. This engine only needs an ImageStack of byte[] or short[] pixels
+ * and a region given as a mask. Statistics, the correction plan and the
+ * correction itself are computed as in BleachCorrection, but nothing is
+ * shown or logged; the results are available as data instead. A short
+ * batch job therefore loads few classes and starts quickly, also from a
+ * class data sharing archive or as a native image.
+ *
+ * Simple ratio, exponential fit, histogram matching and the automatic
+ * selection among them are supported, with output rounded to the pixel
+ * type.
+ *
+ * The parallel work runs on daemon threads of the engine, not on the
+ * ImageJ thread pool, whose threads would keep the JVM alive after the
+ * main method of a batch job returns.
+ */
+public class BleachEngine {
+
+	static final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+		final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "Bleach Engine " + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	int method = BleachCorrection.SIMPLE_RATIO;
+	BleachReference reference = new BleachReference();
+	IntensityEstimator estimator = new IntensityEstimator();
+	double baseline = 0.0;
+	BackgroundEstimator background = null; // fixed baseline if null
+	int fitModel = DecayModelFitter.EXPONENTIAL;
+	int fitBinning = 1;
+	double[] timestamps = null; // acquisition times, null for the frame index
+	boolean perSlice = false;
+	byte[] mask = null; // region of the statistics, null for the full frame
+	final BleachProgress progress = new BleachProgress(false) {
+		@Override
+		public boolean isCanceled() {
+			return canceled; // without checking ESC, which loads ij.IJ
+		}
+	};
+
+	QualityReport report = null;
+	double[] factors = null;
+	DecayFitResult fitResult = null;
+	int selected = -1; // method chosen by AUTO
+	double[] scores = null;
+
+	public BleachEngine() {
+		super();
+	}
+
+	/**
+	 * @param method BleachCorrection.SIMPLE_RATIO, EXPONENTIAL_FIT, HISTOGRAM_MATCHING or AUTO
+	 */
+	public BleachEngine(int method) {
+		super();
+		setCorrectionMethod(method);
+	}
+
+	/**
+	 * @param method BleachCorrection.SIMPLE_RATIO, EXPONENTIAL_FIT, HISTOGRAM_MATCHING or AUTO
+	 */
+	public void setCorrectionMethod(int method) {
+		if (method != BleachCorrection.SIMPLE_RATIO && method != BleachCorrection.EXPONENTIAL_FIT
+				&& method != BleachCorrection.HISTOGRAM_MATCHING && method != BleachCorrection.AUTO)
+			throw new IllegalArgumentException("method " + method + " is not supported by BleachEngine");
+		this.method = method;
+	}
+
+	public int getCorrectionMethod() {
+		return method;
+	}
+
+	public void setReference(BleachReference reference) {
+		this.reference = reference;
+	}
+
+	public void setIntensityEstimator(IntensityEstimator estimator) {
+		this.estimator = estimator;
+	}
+
+	/**
+	 * @param baseline background subtracted by simple ratio, 0 by default
+	 */
+	public void setSimpleRatioBaseline(double baseline) {
+		this.baseline = baseline;
+	}
+
+	/**
+	 * @param background automatic background of simple ratio, null for
+	 * the fixed baseline
+	 */
+	public void setBackgroundEstimator(BackgroundEstimator background) {
+		this.background = background;
+	}
+
+	/**
+	 * @param model one of the model constants of DecayModelFitter
+	 */
+	public void setExponentialFitModel(int model) {
+		this.fitModel = model;
+	}
+
+	/**
+	 * @param binSize time points per bin of the fit, 0 for automatic
+	 */
+	public void setExponentialFitBinning(int binSize) {
+		this.fitBinning = binSize;
+	}
+
+	/**
+	 * @param timestamps acquisition time of each time point for the fit,
+	 * null to fit against the frame index
+	 */
+	public void setTimestamps(double[] timestamps) {
+		this.timestamps = timestamps;
+	}
+
+	/**
+	 * @param perSlice true to match histograms of 3D time series per z-slice
+	 */
+	public void setHistogramMatchingPerSlice(boolean perSlice) {
+		this.perSlice = perSlice;
+	}
+
+	/**
+	 * @param mask width * height values, non-zero inside the region whose
+	 * statistics drive the correction; null for the full frame. The
+	 * correction is applied to the full frame.
+	 */
+	public void setMask(byte[] mask) {
+		this.mask = mask;
+	}
+
+	/**
+	 * Stops a running correction between time points.
+	 */
+	public void cancel() {
+		progress.cancel();
+	}
+
+	public BleachProgress getProgress() {
+		return progress;
+	}
+
+	/**
+	 * @return quality report of the last correction, null before
+	 */
+	public QualityReport getQualityReport() {
+		return report;
+	}
+
+	/**
+	 * @return factor of each time point of the last simple ratio or
+	 * exponential fit correction, null for histogram matching
+	 */
+	public double[] getFactors() {
+		return (factors == null) ? null : factors.clone();
+	}
+
+	/**
+	 * @return result of the last exponential fit, without result string; null before
+	 */
+	public DecayFitResult getFitResult() {
+		return fitResult;
+	}
+
+	/**
+	 * @return method of the last correction, the one chosen for AUTO; -1 before
+	 */
+	public int getSelectedMethod() {
+		return selected;
+	}
+
+	/**
+	 * @return scores of the candidates of the last AUTO correction, see
+	 * BleachCorrection_Auto.getScores; null for the other methods
+	 */
+	public double[] getScores() {
+		return (scores == null) ? null : scores.clone();
+	}
+
+	/**
+	 * Corrects a stack in place.
+	 *
+	 * @param stack 8 bit or 16 bit stack, ordered as z-slices within time points
+	 * @param zframes z-slices per time point, 1 for 2D time series
+	 * @return false if canceled or the fit failed
+	 */
+	public boolean correct(final ImageStack stack, int zframes) {
+		if (zframes < 1 || stack.getSize() % zframes != 0)
+			throw new IllegalArgumentException("slice and time frames do not match with the length of the stack");
+		Object first = stack.getPixels(1);
+		if (!(first instanceof byte[]) && !(first instanceof short[]))
+			throw new IllegalArgumentException("8 bit or 16 bit pixels required");
+		if (mask != null && mask.length != stack.getWidth() * stack.getHeight())
+			throw new IllegalArgumentException("mask does not match the frame size");
+		int bitDepth = (first instanceof byte[]) ? 8 : 16;
+		int timeframes = stack.getSize() / zframes;
+		report = null;
+		factors = null;
+		fitResult = null;
+		selected = -1;
+		scores = null;
+
+		MaskedHistogram mhist = new MaskedHistogram(stack.getWidth(), stack.getHeight(), mask);
+		CorrectionPlan plan;
+		// the background region, if any, is measured in the same pass
+		if (method == BleachCorrection.AUTO) {
+			MaskedHistogram[] halves = BleachCorrection_Auto.halves(mhist);
+			PlaneStatistics[][] stats = measure(stack, BackgroundEstimator.append(halves, mhist, background));
+			if (stats == null)
+				return false;
+			PlaneStatistics[] bg = (stats.length > halves.length) ? stats[halves.length] : null;
+			plan = planAuto(bitDepth, stats[0], stats[halves.length - 1], bg, zframes, timeframes);
+		} else {
+			MaskedHistogram[] masks = new MaskedHistogram[] { mhist };
+			if (method == BleachCorrection.SIMPLE_RATIO)
+				masks = BackgroundEstimator.append(masks, mhist, background);
+			PlaneStatistics[][] stats = measure(stack, masks);
+			if (stats == null)
+				return false;
+			plan = plan(bitDepth, stats[0], (stats.length > 1) ? stats[1] : null, zframes, timeframes);
+			selected = method;
+		}
+		if (plan == null)
+			return false;
+		if (plan instanceof CorrectionPlan.FactorPlan)
+			factors = ((CorrectionPlan.FactorPlan) plan).getFactors();
+		report = plan.getQualityReport();
+		boolean done = apply(plan, stack);
+		progress.finish();
+		return done;
+	}
+
+	/**
+	 * Statistics of all planes inside each region, one chunk of planes
+	 * per processor. The count of threads is not read from ij.Prefs, which
+	 * would load the GUI classes.
+	 *
+	 * @return stats[region][plane], null if canceled
+	 */
+	PlaneStatistics[][] measure(final ImageStack stack, final MaskedHistogram[] masks) {
+		final PlaneStatistics[][] stats = new PlaneStatistics[masks.length][stack.getSize()];
+		progress.addTotal(stack.getSize());
+		new ParallelChunks() {
+			@Override
+			protected void process(int from, int end) {
+				for (int plane = from; plane < end; plane++) {
+					if (progress.isCanceled())
+						return;
+					Object pixels = stack.getPixels(plane + 1);
+					for (int m = 0; m < masks.length; m++)
+						stats[m][plane] = PlaneStatistics.measure(pixels, masks[m]);
+					progress.step();
+				}
+			}
+		}.run(stack.getSize(), Runtime.getRuntime().availableProcessors(), executor);
+		return progress.isCanceled() ? null : stats;
+	}
+
+	/**
+	 * Plan of the selected method, computed by the method classes without
+	 * an image and without messages.
+	 */
+	CorrectionPlan plan(int bitDepth, PlaneStatistics[] stats, PlaneStatistics[] backgroundStats, int zframes,
+			int timeframes) {
+		if (method == BleachCorrection.SIMPLE_RATIO) {
+			BleachCorrection_SimpleRatio BCSR = new BleachCorrection_SimpleRatio(bitDepth);
+			BCSR.quiet = true;
+			BCSR.setReference(reference);
+			BCSR.setIntensityEstimator(estimator);
+			BCSR.setSimpleRatioBaseline(baseline);
+			BCSR.setBackgroundEstimator(background);
+			BCSR.setBackgroundStatistics(backgroundStats);
+			return BCSR.plan(stats, zframes, timeframes);
+		} else if (method == BleachCorrection.EXPONENTIAL_FIT) {
+			BleachCorrection_ExpoFit BCEF = new BleachCorrection_ExpoFit(bitDepth);
+			BCEF.quiet = true;
+			BCEF.setReference(reference);
+			BCEF.setIntensityEstimator(estimator);
+			BCEF.setProgress(progress);
+			BCEF.setExecutor(executor);
+			BCEF.setFitModel(fitModel);
+			BCEF.setFitBinning(fitBinning);
+			BCEF.setTimestamps((timestamps != null) ? timestamps : frameIndex(timeframes));
+			CorrectionPlan plan = BCEF.plan(stats, zframes, timeframes);
+			fitResult = BCEF.getFitResult();
+			return plan;
+		} else {
+			BleachCorrection_MH BCMH = new BleachCorrection_MH(bitDepth);
+			BCMH.setReference(reference);
+			BCMH.setPerSliceReference(perSlice);
+			return BCMH.plan(stats, zframes, timeframes);
+		}
+	}
+
+	/**
+	 * Plan of the method selected by BleachCorrection_Auto from the
+	 * statistics of the two halves of the region.
+	 */
+	CorrectionPlan planAuto(int bitDepth, PlaneStatistics[] even, PlaneStatistics[] odd,
+			PlaneStatistics[] backgroundStats, int zframes, int timeframes) {
+		BleachCorrection_Auto BCA = new BleachCorrection_Auto(bitDepth);
+		BCA.quiet = true;
+		BCA.setReference(reference);
+		BCA.setIntensityEstimator(estimator);
+		BCA.setSimpleRatioBaseline(baseline);
+		BCA.setBackgroundEstimator(background);
+		BCA.setBackgroundStatistics(backgroundStats);
+		BCA.setExponentialFitModel(fitModel);
+		BCA.setExponentialFitBinning(fitBinning);
+		BCA.setTimestamps((timestamps != null) ? timestamps : frameIndex(timeframes));
+		BCA.setHistogramMatchingPerSlice(perSlice);
+		BCA.setProgress(progress);
+		BCA.setExecutor(executor);
+		CorrectionPlan plan = BCA.plan(even, odd, zframes, timeframes);
+		selected = BCA.getSelectedMethod();
+		scores = BCA.getScores();
+		fitResult = BCA.getFitResult();
+		return plan;
+	}
+
+	static double[] frameIndex(int timeframes) {
+		double[] times = new double[timeframes];
+		for (int t = 0; t < timeframes; t++)
+			times[t] = t;
+		return times;
+	}
+
+	/**
+	 * Applies a plan to the stack, one chunk of time points per processor:
+	 * the table of a time point is computed into the buffer of its chunk
+	 * and applied to its planes. Plans with a mapping per z-slice have one
+	 * plane per time point.
+	 *
+	 * @return false if canceled
+	 */
+	boolean apply(final CorrectionPlan plan, final ImageStack stack) {
+		final int slices = plan.getSlices();
+		final int bitDepth = plan.getBitDepth();
+		progress.addTotal(plan.getTimePoints());
+		new ParallelChunks() {
+			@Override
+			protected void process(int from, int end) {
+				BufferPool pool = BufferPool.getShared();
+				Object reuse = (bitDepth == 8) ? pool.borrowBytes(256) : pool.borrowChars(65536);
+				for (int t = from; t < end; t++) {
+					if (progress.isCanceled())
+						break;
+					Object table = plan.getTable(t, reuse);
+					if (table != null)
+						for (int s = 0; s < slices; s++)
+							LutKernel.apply(stack.getPixels(t * slices + s + 1), table);
+					progress.step();
+				}
+				pool.release(reuse);
+			}
+		}.run(plan.getTimePoints(), Runtime.getRuntime().availableProcessors(), executor);
+		return !progress.isCanceled();
+	}
+}
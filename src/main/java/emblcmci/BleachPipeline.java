@@ -0,0 +1,402 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package emblcmci;
+
+import histogram2.MaskedHistogram;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.io.FileSaver;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Pipelined correction of file-backed stacks, e.g. a VirtualStack.
+ *
+ * Reading planes, computing and writing corrected planes run as stages
+ * connected by bounded queues, so that disk and CPU work overlap and at
+ * most a few planes are held in memory:
+ *
+ * <pre>
+ * read (I/O threads) -> statistics or apply (compute pool) -> write (I/O threads)
+ * </pre>
+ *
+ * The I/O stages use virtual threads when the Java runtime has them
+ * (Java 21 and later), otherwise a pool of platform threads. The compute
+ * stage is a fixed pool of Prefs.getThreads() threads.
+ *
+ * A correction passes over the data twice: measure() collects the
+ * statistics, from which a CorrectionPlan is computed, and apply() streams
+ * the planes through the plan into a PlaneSink. With a valid
+ * StatisticsSidecar the first pass is not needed.
+ *
+ * Planes of a VirtualStack are read into new arrays; planes of a stack in
+ * memory are copied before they are corrected, so that the source stays
+ * unchanged.
+ */
+public class BleachPipeline {
+
+	/**
+	 * Destination of corrected planes. write() may be called from several
+	 * threads and in any order of planes.
+	 */
+	public interface PlaneSink {
+		/**
+		 * @param plane plane index, 0-based
+		 * @param pixels byte[] or short[] corrected pixels
+		 */
+		void write(int plane, Object pixels) throws IOException;
+	}
+
+	/** work of the compute stage on one plane */
+	interface PlaneTask {
+		void process(int plane, Object pixels);
+	}
+
+	static final Plane END = new Plane(-1, null);
+	static final long POLL_INTERVAL = 100; // ms, for checking cancellation while waiting
+
+	ImageStack source;
+	int queueSize = 8;
+	int readers = 4;
+	int writers = 4;
+	int computeThreads = Prefs.getThreads();
+	BleachProgress progress = new BleachProgress(false);
+	long elapsed = 0; // ns, of the last pass
+	long bytes = 0; // bytes read in the last pass
+
+	/**
+	 * @param source 8 bit or 16 bit stack, typically a VirtualStack
+	 */
+	public BleachPipeline(ImageStack source) {
+		super();
+		this.source = source;
+	}
+
+	/**
+	 * @param queueSize number of planes waiting between two stages
+	 */
+	public void setQueueSize(int queueSize) {
+		this.queueSize = Math.max(1, queueSize);
+	}
+
+	/**
+	 * @param readers threads reading planes
+	 * @param writers threads writing planes
+	 */
+	public void setIOThreads(int readers, int writers) {
+		this.readers = Math.max(1, readers);
+		this.writers = Math.max(1, writers);
+	}
+
+	public void setComputeThreads(int computeThreads) {
+		this.computeThreads = Math.max(1, computeThreads);
+	}
+
+	/**
+	 * @param progress stepped once per plane and checked for cancellation
+	 */
+	public void setProgress(BleachProgress progress) {
+		this.progress = progress;
+	}
+
+	/**
+	 * @return duration of the last pass in ms
+	 */
+	public long getElapsedMillis() {
+		return elapsed / 1000000;
+	}
+
+	/**
+	 * @return throughput of the last pass in MB of pixels per second
+	 */
+	public double getThroughput() {
+		return (elapsed == 0) ? 0 : bytes / 1e6 / (elapsed / 1e9);
+	}
+
+	/**
+	 * First pass: statistics of all planes inside the mask.
+	 *
+	 * @param cache cache of the statistics, planes found there are not measured again
+	 * @return statistics of each plane, null if canceled
+	 */
+	public PlaneStatistics[] measure(final StatisticsCache cache, final MaskedHistogram mask) throws IOException {
+		PlaneStatistics[][] stats = measure(cache, new MaskedHistogram[] { mask });
+		return (stats == null) ? null : stats[0];
+	}
+
+	/**
+	 * As measure, but the statistics of several regions in the same pass.
+	 *
+	 * @return stats[region][plane], null if canceled
+	 */
+	public PlaneStatistics[][] measure(final StatisticsCache cache, final MaskedHistogram[] masks) throws IOException {
+		final PlaneStatistics[][] stats = new PlaneStatistics[masks.length][source.getSize()];
+		boolean done = run(new PlaneTask() {
+			@Override
+			public void process(int plane, Object pixels) {
+				for (int m = 0; m < masks.length; m++)
+					stats[m][plane] = cache.get(pixels, masks[m]);
+			}
+		}, null);
+		return done ? stats : null;
+	}
+
+	/**
+	 * Second pass: corrects each plane with the plan and passes it to the sink.
+	 *
+	 * @return false if canceled
+	 */
+	public boolean apply(final CorrectionPlan plan, PlaneSink sink) throws IOException {
+		return run(new PlaneTask() {
+			@Override
+			public void process(int plane, Object pixels) {
+				plan.apply(plane, pixels);
+			}
+		}, sink);
+	}
+
+	boolean run(final PlaneTask task, final PlaneSink sink) throws IOException {
+		final int nplanes = source.getSize();
+		final BlockingQueue<Plane> toCompute = new ArrayBlockingQueue<Plane>(queueSize);
+		final BlockingQueue<Plane> toWrite = new ArrayBlockingQueue<Plane>(queueSize);
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger readersLeft = new AtomicInteger(readers);
+		final AtomicInteger computersLeft = new AtomicInteger(computeThreads);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final int nwriters = (sink == null) ? 0 : writers;
+
+		ExecutorService io = newIOExecutor();
+		ExecutorService compute = Executors.newFixedThreadPool(computeThreads, daemonThreads("Bleach Correction compute"));
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		long start = System.nanoTime();
+		bytes = 0;
+		progress.addTotal(nplanes);
+		try {
+			for (int r = 0; r < readers; r++) {
+				futures.add(io.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						try {
+							for (int n = next.getAndIncrement(); n < nplanes; n = next.getAndIncrement()) {
+								if (aborted(failure))
+									break;
+								Object pixels = source.getPixels(n + 1);
+								if (pixels == null)
+									throw new IOException("could not read plane " + (n + 1));
+								if (sink != null && !source.isVirtual())
+									pixels = copy(pixels);
+								if (!put(toCompute, new Plane(n, pixels), failure))
+									break;
+							}
+						} finally {
+							if (readersLeft.decrementAndGet() == 0)
+								for (int c = 0; c < computeThreads; c++)
+									if (!put(toCompute, END, failure))
+										break;
+						}
+						return null;
+					}
+				}));
+			}
+			for (int c = 0; c < computeThreads; c++) {
+				futures.add(compute.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						try {
+							for (Plane p = take(toCompute, failure); p != null && p != END; p = take(toCompute, failure)) {
+								task.process(p.index, p.pixels);
+								if (sink == null)
+									progress.step();
+								else if (!put(toWrite, p, failure))
+									break;
+							}
+						} finally {
+							if (computersLeft.decrementAndGet() == 0)
+								for (int w = 0; w < nwriters; w++)
+									if (!put(toWrite, END, failure))
+										break;
+						}
+						return null;
+					}
+				}));
+			}
+			for (int w = 0; w < nwriters; w++) {
+				futures.add(io.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						for (Plane p = take(toWrite, failure); p != null && p != END; p = take(toWrite, failure)) {
+							sink.write(p.index, p.pixels);
+							progress.step();
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<?> f : futures) {
+				try {
+					f.get();
+				} catch (ExecutionException e) {
+					failure.compareAndSet(null, e.getCause());
+				}
+			}
+		} catch (InterruptedException e) {
+			failure.compareAndSet(null, e);
+		} finally {
+			io.shutdownNow();
+			compute.shutdownNow();
+		}
+		elapsed = System.nanoTime() - start;
+		Throwable t = failure.get();
+		if (t instanceof IOException)
+			throw (IOException) t;
+		if (t != null)
+			throw new IOException("pipeline failed: " + t, t);
+		if (progress.isCanceled())
+			return false;
+		Object pixels = source.getPixels(1);
+		bytes = (long) nplanes * source.getWidth() * source.getHeight() * ((pixels instanceof byte[]) ? 1 : 2);
+		return true;
+	}
+
+	static Object copy(Object pixels) {
+		if (pixels instanceof byte[])
+			return ((byte[]) pixels).clone();
+		return ((short[]) pixels).clone();
+	}
+
+	boolean aborted(AtomicReference<Throwable> failure) {
+		return failure.get() != null || progress.isCanceled();
+	}
+
+	/**
+	 * Waits for a free place in the queue, giving up when the pipeline is aborted.
+	 */
+	boolean put(BlockingQueue<Plane> queue, Plane p, AtomicReference<Throwable> failure)
+			throws InterruptedException {
+		while (!queue.offer(p, POLL_INTERVAL, TimeUnit.MILLISECONDS))
+			if (aborted(failure))
+				return false;
+		return true;
+	}
+
+	/**
+	 * @return next plane, END, or null when the pipeline is aborted
+	 */
+	Plane take(BlockingQueue<Plane> queue, AtomicReference<Throwable> failure) throws InterruptedException {
+		Plane p;
+		while ((p = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS)) == null)
+			if (aborted(failure))
+				return null;
+		return p;
+	}
+
+	/**
+	 * @return executor with a virtual thread per task if the runtime
+	 * supports it, otherwise a cached pool of daemon threads
+	 */
+	static ExecutorService newIOExecutor() {
+		try {
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) m.invoke(null);
+		} catch (Exception e) {
+			return Executors.newCachedThreadPool(daemonThreads("Bleach Correction I/O"));
+		}
+	}
+
+	static ThreadFactory daemonThreads(final String name) {
+		return new ThreadFactory() {
+			final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + " " + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	/**
+	 * Sink writing each plane as a TIFF file "prefix0001.tif" into a folder,
+	 * which can be opened again as an image sequence.
+	 */
+	public static PlaneSink toFolder(final File dir, final String prefix, final int width, final int height,
+			int nplanes) {
+		dir.mkdirs();
+		final int digits = Math.max(4, Integer.toString(nplanes).length());
+		return new PlaneSink() {
+			@Override
+			public void write(int plane, Object pixels) throws IOException {
+				ImageProcessor ip = (pixels instanceof byte[]) ? new ByteProcessor(width, height, (byte[]) pixels)
+						: new ShortProcessor(width, height, (short[]) pixels, null);
+				String name = prefix + IJ.pad(plane + 1, digits);
+				File f = new File(dir, name + ".tif");
+				if (!new FileSaver(new ImagePlus(name, ip)).saveAsTiff(f.getPath()))
+					throw new IOException("could not write " + f);
+			}
+		};
+	}
+
+	/**
+	 * Sink storing the planes in a stack in memory.
+	 *
+	 * @param out stack with the same size as the source, e.g. new ImageStack(width, height, n)
+	 */
+	public static PlaneSink toStack(final ImageStack out) {
+		return new PlaneSink() {
+			@Override
+			public void write(int plane, Object pixels) {
+				out.setPixels(pixels, plane + 1);
+			}
+		};
+	}
+
+	static class Plane {
+		final int index;
+		final Object pixels;
+
+		Plane(int index, Object pixels) {
+			this.index = index;
+			this.pixels = pixels;
+		}
+	}
+}
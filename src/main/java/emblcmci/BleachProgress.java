@@ -0,0 +1,105 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package emblcmci;
+
+import ij.IJ;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress and cooperative cancellation of a bleach correction.
+ *
+ * Workers call step() after each frame, also from several threads at once;
+ * the count is a lock-free counter and the ImageJ progress bar is updated
+ * at most every UPDATE_INTERVAL milliseconds. Correction loops call
+ * isCanceled() between frames and stop when it returns true, either after
+ * cancel() or when the user pressed ESC.
+ */
+public class BleachProgress {
+
+	static final long UPDATE_INTERVAL = 100; // ms
+
+	final AtomicInteger done = new AtomicInteger();
+	final AtomicLong lastUpdate = new AtomicLong();
+	volatile int total = 0;
+	volatile boolean canceled = false;
+	boolean showProgress = true;
+
+	public BleachProgress() {
+		super();
+	}
+
+	/**
+	 * @param showProgress false to count without updating the ImageJ progress bar
+	 */
+	public BleachProgress(boolean showProgress) {
+		super();
+		this.showProgress = showProgress;
+	}
+
+	/**
+	 * Adds steps to the expected total, e.g. the frames of a correction pass.
+	 */
+	public void addTotal(int steps) {
+		total += steps;
+	}
+
+	public void step() {
+		int d = done.incrementAndGet();
+		if (!showProgress)
+			return;
+		long now = System.currentTimeMillis();
+		long last = lastUpdate.get();
+		if ((now - last >= UPDATE_INTERVAL || d >= total) && lastUpdate.compareAndSet(last, now))
+			IJ.showProgress(d, Math.max(d, total));
+	}
+
+	public int getDone() {
+		return done.get();
+	}
+
+	public int getTotal() {
+		return total;
+	}
+
+	public void cancel() {
+		canceled = true;
+	}
+
+	/**
+	 * @return true if cancel() was called or ESC was pressed.
+	 */
+	public boolean isCanceled() {
+		if (!canceled && IJ.escapePressed())
+			canceled = true;
+		return canceled;
+	}
+
+	/**
+	 * Clears the ImageJ progress bar.
+	 */
+	public void finish() {
+		if (showProgress)
+			IJ.showProgress(1.0);
+	}
+}
@@ -0,0 +1,255 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package emblcmci;
+
+import java.util.Arrays;
+
+/**
+ * Choice of the reference that the time series is corrected to.
+ *
+ * <ul>
+ * <li>FIRST_FRAME: the first time point (the original behaviour).</li>
+ * <li>MEAN_OF_FIRST_N: the mean of the first N time points.</li>
+ * <li>MEDIAN_WINDOW: the median of the first N time points; for histograms,
+ * the median of each bin.</li>
+ * <li>MOVING: the mean of the N preceding time points, so that each time
+ * point is corrected towards its recent past. This removes fast changes
+ * such as illumination flicker while slow changes are kept.</li>
+ * <li>USER_FRAME: a time point chosen by the user.</li>
+ * </ul>
+ *
+ * Static references only need the time points of their window, which are
+ * read before the correction pass. The moving reference is updated while
+ * streaming through the series and keeps only the last N values or
+ * histograms, so memory does not grow with the length of the series.
+ */
+public class BleachReference {
+
+	public static final int FIRST_FRAME = 0, MEAN_OF_FIRST_N = 1, MEDIAN_WINDOW = 2, MOVING = 3,
+			USER_FRAME = 4;
+
+	public static final String[] REFERENCE_NAMES = { "First frame", "Mean of first N frames",
+			"Median of first N frames", "Moving (mean of previous N frames)", "Chosen frame" };
+
+	int strategy = FIRST_FRAME;
+	int windowSize = 5;
+	int frame = 0;
+
+	public BleachReference() {
+		super();
+	}
+
+	/**
+	 * @param strategy one of the strategy constants
+	 * @param windowSize N, number of time points of the window
+	 * @param frame time point used by USER_FRAME, 0-based
+	 */
+	public BleachReference(int strategy, int windowSize, int frame) {
+		super();
+		this.strategy = strategy;
+		this.windowSize = Math.max(1, windowSize);
+		this.frame = Math.max(0, frame);
+	}
+
+	public int getStrategy() {
+		return strategy;
+	}
+
+	public int getWindowSize() {
+		return windowSize;
+	}
+
+	public int getFrame() {
+		return frame;
+	}
+
+	public boolean isFirstFrame() {
+		return strategy == FIRST_FRAME || (strategy == USER_FRAME && frame == 0);
+	}
+
+	public boolean isMoving() {
+		return strategy == MOVING;
+	}
+
+	/**
+	 * @param timeframes number of time points of the series
+	 * @return first time point of the reference window, 0-based
+	 */
+	public int getFirst(int timeframes) {
+		if (strategy == USER_FRAME)
+			return Math.min(frame, timeframes - 1);
+		return 0;
+	}
+
+	/**
+	 * @param timeframes number of time points of the series
+	 * @return time point after the last one of the reference window
+	 */
+	public int getEnd(int timeframes) {
+		if (strategy == MEAN_OF_FIRST_N || strategy == MEDIAN_WINDOW)
+			return Math.min(windowSize, timeframes);
+		return getFirst(timeframes) + 1;
+	}
+
+	/**
+	 * @param values intensities of the time points of the window
+	 * @return reference intensity
+	 */
+	public double combine(double[] values) {
+		if (strategy == MEDIAN_WINDOW)
+			return median(values);
+		double sum = 0;
+		for (double v : values)
+			sum += v;
+		return sum / values.length;
+	}
+
+	/**
+	 * @param hists histograms of the time points of the window
+	 * @return reference histogram, sum or per-bin median of hists
+	 */
+	public int[] combine(int[][] hists) {
+		int K = hists[0].length;
+		int[] ref = new int[K];
+		if (strategy == MEDIAN_WINDOW) {
+			int[] bin = new int[hists.length];
+			for (int k = 0; k < K; k++) {
+				for (int i = 0; i < hists.length; i++)
+					bin[i] = hists[i][k];
+				Arrays.sort(bin);
+				int m = bin.length / 2;
+				ref[k] = (bin.length % 2 == 1) ? bin[m] : (int) Math.round((bin[m - 1] + (double) bin[m]) / 2);
+			}
+		} else {
+			long[] sum = new long[K];
+			for (int i = 0; i < hists.length; i++)
+				for (int k = 0; k < K; k++)
+					sum[k] += hists[i][k];
+			toIntHistogram(sum, ref);
+		}
+		return ref;
+	}
+
+	/**
+	 * Summed histogram as int[]. Only the shape of a histogram matters for
+	 * matching, so the sum is used instead of the mean to avoid rounding of
+	 * small counts. The sum is scaled down only if its total would not fit
+	 * into an int.
+	 */
+	static int[] toIntHistogram(long[] sum, int[] out) {
+		long total = 0;
+		for (long c : sum)
+			total += c;
+		long divisor = total / (Integer.MAX_VALUE / 2) + 1;
+		for (int k = 0; k < sum.length; k++)
+			out[k] = (int) ((sum[k] + divisor / 2) / divisor);
+		return out;
+	}
+
+	static double median(double[] values) {
+		double[] s = values.clone();
+		Arrays.sort(s);
+		int m = s.length / 2;
+		return (s.length % 2 == 1) ? s[m] : (s[m - 1] + s[m]) / 2;
+	}
+
+	/**
+	 * Running mean of the last N intensities, for the moving reference.
+	 */
+	public static class ScalarWindow {
+		double[] ring;
+		int count = 0;
+		int next = 0;
+		double sum = 0;
+
+		public ScalarWindow(int size) {
+			ring = new double[size];
+		}
+
+		public boolean isEmpty() {
+			return count == 0;
+		}
+
+		public void push(double v) {
+			if (count == ring.length)
+				sum -= ring[next];
+			else
+				count++;
+			ring[next] = v;
+			sum += v;
+			next = (next + 1) % ring.length;
+		}
+
+		public double mean() {
+			return sum / count;
+		}
+	}
+
+	/**
+	 * Running sum of the last N histograms, for the moving reference.
+	 * The summed histogram is updated by adding the new and
+	 * subtracting the oldest histogram.
+	 */
+	public static class HistogramWindow {
+		int[][] ring;
+		long[] sum;
+		int count = 0;
+		int next = 0;
+
+		public HistogramWindow(int size, int K) {
+			ring = new int[size][];
+			sum = new long[K];
+		}
+
+		public boolean isEmpty() {
+			return count == 0;
+		}
+
+		/**
+		 * @param h histogram, copied into the window
+		 */
+		public void push(int[] h) {
+			int[] slot = ring[next];
+			if (slot == null) {
+				slot = new int[h.length];
+				ring[next] = slot;
+				count++;
+			} else {
+				for (int k = 0; k < h.length; k++)
+					sum[k] -= slot[k];
+			}
+			for (int k = 0; k < h.length; k++) {
+				slot[k] = h[k];
+				sum[k] += h[k];
+			}
+			next = (next + 1) % ring.length;
+		}
+
+		/**
+		 * @param out histogram to be filled with the summed histogram of the window
+		 * @return out
+		 */
+		public int[] sum(int[] out) {
+			return toIntHistogram(sum, out);
+		}
+	}
+}
@@ -0,0 +1,293 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package emblcmci;
+
+import histogram2.BufferPool;
+import histogram2.LutKernel;
+import ij.ImageStack;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * The correction of a stack, computed from the per-plane statistics before
+ * any pixel is changed: a mapping of pixel values for each time point.
+ *
+ * All methods can be expressed this way. Simple ratio and exponential fit
+ * map with ImageJ's add and multiply, so the result is identical to
+ * calling them on the image; histogram matching maps with the matched
+ * cumulative histograms. A plan can therefore be applied to a stack in
+ * memory, plane by plane while streaming through files (see
+ * BleachPipeline), or lazily on access.
+ */
+public abstract class CorrectionPlan {
+	int bitDepth;
+	int slices;
+	int timepoints;
+
+	// tables of the time points being applied by apply(plane, pixels)
+	final ConcurrentHashMap<Integer, Object> tables = new ConcurrentHashMap<Integer, Object>();
+	// lock per time point while its table is computed
+	final ConcurrentHashMap<Integer, Object> locks = new ConcurrentHashMap<Integer, Object>();
+	AtomicIntegerArray applied;
+	QualityReport report = null;
+
+	/**
+	 * @param bitDepth 8 or 16
+	 * @param slices z-slices per time point, 1 for 2D time series
+	 * @param timepoints number of time points
+	 */
+	protected CorrectionPlan(int bitDepth, int slices, int timepoints) {
+		this.bitDepth = bitDepth;
+		this.slices = slices;
+		this.timepoints = timepoints;
+		applied = new AtomicIntegerArray(timepoints);
+	}
+
+	/**
+	 * @param t time point, 0-based
+	 * @return new value of each pixel value, null if time point t stays unchanged
+	 */
+	public abstract int[] getMapping(int t);
+
+	public int getBitDepth() {
+		return bitDepth;
+	}
+
+	public int getSlices() {
+		return slices;
+	}
+
+	public int getTimePoints() {
+		return timepoints;
+	}
+
+	/**
+	 * @param report report filled while the plan is applied, null for none
+	 */
+	public void setQualityReport(QualityReport report) {
+		this.report = report;
+	}
+
+	public QualityReport getQualityReport() {
+		return report;
+	}
+
+	/**
+	 * Table of time point t, which is also recorded in the quality report.
+	 *
+	 * @param reuse table of a previous call to be reused, may be null
+	 * @return compact table of time point t for LutKernel, null if unchanged
+	 */
+	public Object getTable(int t, Object reuse) {
+		int[] F = getMapping(t);
+		record(t, F);
+		if (F == null)
+			return null;
+		Object table = LutKernel.toTable(F, reuse);
+		recycle(F);
+		return table;
+	}
+
+	/**
+	 * Records the mapping of time point t in the quality report, if any.
+	 */
+	protected void record(int t, int[] F) {
+		if (report != null)
+			report.add(t, F);
+	}
+
+	/**
+	 * Called by getTable with a mapping of getMapping that is no longer
+	 * used. Plans that create a new mapping per call can give it back to
+	 * BufferPool here; by default nothing is done.
+	 */
+	protected void recycle(int[] F) {
+	}
+
+	/**
+	 * Records the mappings of all time points in a quality report without
+	 * changing any pixel, e.g. to compare plans before applying one. The
+	 * report may be built on other statistics than the plan.
+	 *
+	 * @return report
+	 */
+	public QualityReport evaluate(QualityReport report) {
+		QualityReport own = this.report;
+		this.report = report;
+		for (int t = 0; t < timepoints; t++) {
+			int[] F = getMapping(t);
+			record(t, F);
+			if (F != null)
+				recycle(F);
+		}
+		this.report = own;
+		return report;
+	}
+
+	/**
+	 * Corrects one plane in place; planes may be passed in any order and
+	 * from several threads. The table of a time point is computed once and
+	 * released after all its z-slices are done. Only planes of the same
+	 * time point wait for its table; tables of different time points are
+	 * computed at the same time.
+	 *
+	 * @param plane plane index, 0-based, z-slices within time points
+	 * @param pixels byte[] or short[] pixels of the plane
+	 */
+	public void apply(int plane, Object pixels) {
+		int t = plane / slices;
+		Object table = tables.get(t);
+		if (table == null) {
+			Object lock = new Object();
+			Object other = locks.putIfAbsent(t, lock);
+			if (other != null)
+				lock = other;
+			synchronized (lock) {
+				table = tables.get(t);
+				if (table == null) {
+					BufferPool pool = BufferPool.getShared();
+					Object reuse = (bitDepth == 8) ? pool.borrowBytes(256) : pool.borrowChars(65536);
+					table = getTable(t, reuse);
+					if (table == null) {
+						pool.release(reuse);
+						table = Boolean.FALSE; // time point stays unchanged
+					}
+					tables.put(t, table);
+				}
+			}
+		}
+		if (table != Boolean.FALSE)
+			LutKernel.apply(pixels, table);
+		if (applied.incrementAndGet(t) == slices) {
+			locks.remove(t);
+			BufferPool.getShared().release(tables.remove(t));
+		}
+	}
+
+	/**
+	 * Corrects a stack in memory, time point by time point, the z-slices of
+	 * a time point in parallel.
+	 *
+	 * @param stack stack to be corrected in place
+	 * @param progress stepped once per time point and checked for cancellation
+	 * @return false if canceled
+	 */
+	public boolean applyTo(ImageStack stack, BleachProgress progress) {
+		Object table = null;
+		for (int t = 0; t < timepoints; t++) {
+			if (progress.isCanceled())
+				return false;
+			progress.step();
+			Object next = getTable(t, table);
+			if (next == null)
+				continue;
+			table = next;
+			LutKernel.applyToSlices(stack, t * slices + 1, slices, table);
+		}
+		return true;
+	}
+
+	/**
+	 * Plan that adds offset to all planes and then multiplies each time point
+	 * with its factor, exactly as ImageProcessor.add and multiply would.
+	 *
+	 * @param factors factor of each time point, 1.0 to leave it unchanged
+	 * @param offset value added before multiplying, 0 for none
+	 */
+	public static FactorPlan ofFactors(int bitDepth, int slices, double[] factors, double offset) {
+		double[] offsets = new double[factors.length];
+		Arrays.fill(offsets, offset);
+		return ofFactors(bitDepth, slices, factors, offsets);
+	}
+
+	/**
+	 * As ofFactors with one offset, but with an offset per time point.
+	 *
+	 * @param offsets value added to each time point before multiplying
+	 */
+	public static FactorPlan ofFactors(int bitDepth, int slices, double[] factors, double[] offsets) {
+		return new FactorPlan(bitDepth, slices, factors, offsets);
+	}
+
+	/**
+	 * Plan of simple ratio and exponential fit: an offset and a factor per
+	 * time point. Besides the mapping, these can be applied with other
+	 * rounding, see OutputPrecision.
+	 */
+	public static class FactorPlan extends CorrectionPlan {
+		double[] factors;
+		double[] offsets;
+		int[] addMap = null;
+		double addOffset = 0;
+
+		FactorPlan(int bitDepth, int slices, double[] factors, double[] offsets) {
+			super(bitDepth, slices, factors.length);
+			this.factors = factors;
+			this.offsets = offsets;
+		}
+
+		public double getFactor(int t) {
+			return factors[t];
+		}
+
+		/**
+		 * @return copy of the factor of each time point
+		 */
+		public double[] getFactors() {
+			return factors.clone();
+		}
+
+		public double getOffset(int t) {
+			return offsets[t];
+		}
+
+		@Override
+		public int[] getMapping(int t) {
+			int[] add = addMapping(offsets[t]);
+			if (factors[t] == 1.0)
+				return add;
+			int[] map = PlaneStatistics.multiplyMapping(bitDepth, factors[t]);
+			if (add == null)
+				return map;
+			int[] composed = new int[map.length];
+			for (int v = 0; v < map.length; v++)
+				composed[v] = map[add[v]];
+			return composed;
+		}
+
+		/**
+		 * Mapping of ImageProcessor.add(offset), null for 0. The last one
+		 * is kept, as the offset is mostly the same for all time points.
+		 */
+		synchronized int[] addMapping(double offset) {
+			if (offset == 0)
+				return null;
+			if (addMap == null || addOffset != offset) {
+				addMap = PlaneStatistics.addMapping(bitDepth, offset);
+				addOffset = offset;
+			}
+			return addMap;
+		}
+	}
+}
@@ -0,0 +1,116 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package emblcmci;
+
+import ij.measure.CurveFitter;
+
+/**
+ * Result of a decay fit as plain data: the fitted model, its parameters and
+ * the measured and fitted intensity of each time point.
+ *
+ * It holds no reference to the CurveFitter or to any GUI class, so it can be
+ * kept, logged or handed to FitDiagnostics for plotting or export after the
+ * correction is done.
+ */
+public class DecayFitResult {
+	String modelName;
+	String formula;
+	double[] params;
+	double[] xA;
+	double[] yA;
+	double[] fitted;
+	double rSquared;
+	String resultString;
+
+	/**
+	 * @param cf a CurveFitter after fitting
+	 * @param modelName name of the fitted model, see DecayModelFitter.MODEL_NAMES
+	 */
+	public DecayFitResult(CurveFitter cf, String modelName) {
+		this(cf, modelName, true);
+	}
+
+	/**
+	 * @param text false to leave out the result string, whose formatting
+	 * loads ij.IJ, e.g. for BleachEngine
+	 */
+	DecayFitResult(CurveFitter cf, String modelName, boolean text) {
+		super();
+		this.modelName = modelName;
+		formula = cf.getFormula();
+		params = cf.getParams().clone();
+		xA = cf.getXPoints().clone();
+		yA = cf.getYPoints().clone();
+		fitted = new double[xA.length];
+		for (int i = 0; i < xA.length; i++)
+			fitted[i] = cf.f(params, xA[i]);
+		rSquared = cf.getRSquared();
+		resultString = text ? cf.getResultString() : null;
+	}
+
+	public String getModelName() {
+		return modelName;
+	}
+
+	public String getFormula() {
+		return formula;
+	}
+
+	/**
+	 * @return fitted parameters, as returned by CurveFitter.getParams()
+	 */
+	public double[] getParams() {
+		return params;
+	}
+
+	/**
+	 * @return time points
+	 */
+	public double[] getX() {
+		return xA;
+	}
+
+	/**
+	 * @return measured mean intensity at each time point
+	 */
+	public double[] getY() {
+		return yA;
+	}
+
+	/**
+	 * @return value of the fitted curve at each time point
+	 */
+	public double[] getFitted() {
+		return fitted;
+	}
+
+	public double getRSquared() {
+		return rSquared;
+	}
+
+	/**
+	 * @return the text of CurveFitter.getResultString(), null if left out
+	 */
+	public String getResultString() {
+		return resultString;
+	}
+}
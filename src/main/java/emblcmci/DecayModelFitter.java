@@ -0,0 +1,323 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package emblcmci;
+
+import histogram2.ParallelChunks;
+import ij.IJ;
+import ij.measure.CurveFitter;
+import ij.measure.UserFunction;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Fits photobleaching decay models to an intensity time series.
+ *
+ * Three models are available:
+ * <ul>
+ * <li>exponential with offset, y = a*exp(-bx) + c (CurveFitter formula 11)</li>
+ * <li>bi-exponential, y = a1*exp(-b1 x) + a2*exp(-b2 x) + c</li>
+ * <li>stretched exponential, y = a*exp(-(bx)^h) + c</li>
+ * </ul>
+ * Each model is fitted from several starting points. All (model, start)
+ * combinations run in parallel, the best start per model is kept and, when
+ * asked for, the model with the lowest AIC or BIC is selected.
+ *
+ * Initial guesses are taken from the median of the first and the last few
+ * points, so that a single noisy frame at either end does not spoil them.
+ */
+public class DecayModelFitter {
+
+	public static final int EXPONENTIAL = 0, BI_EXPONENTIAL = 1, STRETCHED_EXPONENTIAL = 2,
+			BEST_AIC = 3, BEST_BIC = 4;
+
+	public static final String[] MODEL_NAMES = { "Exponential with Offset", "Bi-exponential",
+			"Stretched Exponential", "Best model (AIC)", "Best model (BIC)" };
+
+	static final String BI_EXPONENTIAL_FORMULA = "y = a*exp(-bx) + c*exp(-dx) + e";
+	static final String STRETCHED_EXPONENTIAL_FORMULA = "y = a*exp(-(bx)^d) + c";
+
+	double[] xA;
+	double[] yA;
+	boolean verbose = false;
+	ExecutorService executor = null; // of the fits, the ImageJ thread pool if null
+
+	// robust guesses
+	double guess_a;
+	double guess_b;
+	double guess_c;
+
+	// results of the last call of fit(int)
+	CurveFitter[] modelFits = new CurveFitter[3];
+	int selectedModel = -1;
+
+	/**
+	 * @param xA time points (or frame numbers)
+	 * @param yA intensity at each time point
+	 */
+	public DecayModelFitter(double[] xA, double[] yA) {
+		super();
+		this.xA = xA;
+		this.yA = yA;
+		estimateInitialGuess();
+	}
+
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+
+	/**
+	 * @param executor executor of the parallel fits, null for the ImageJ thread pool
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * @return true if the robust estimate of the first points is brighter
+	 * than that of the last points.
+	 */
+	public boolean isDecaying() {
+		return guess_a > 0;
+	}
+
+	/**
+	 * Fits the given model, or all models when model is BEST_AIC or BEST_BIC.
+	 *
+	 * @param model one of EXPONENTIAL, BI_EXPONENTIAL, STRETCHED_EXPONENTIAL,
+	 * BEST_AIC, BEST_BIC
+	 * @return fitted CurveFitter of the selected model, null if no fit converged.
+	 */
+	public CurveFitter fit(int model) {
+		int[] models;
+		if (model == BEST_AIC || model == BEST_BIC)
+			models = new int[] { EXPONENTIAL, BI_EXPONENTIAL, STRETCHED_EXPONENTIAL };
+		else
+			models = new int[] { model };
+
+		List<Callable<CurveFitter>> jobs = new ArrayList<Callable<CurveFitter>>();
+		List<Integer> jobmodels = new ArrayList<Integer>();
+		for (final int m : models) {
+			for (final double[] start : startingPoints(m)) {
+				jobs.add(new Callable<CurveFitter>() {
+					@Override
+					public CurveFitter call() {
+						return fitOnce(m, start);
+					}
+				});
+				jobmodels.add(m);
+			}
+		}
+		Future[] futures = ParallelChunks.startAndJoin(jobs.toArray(new Callable[jobs.size()]), executor);
+
+		Arrays.fill(modelFits, null);
+		for (int i = 0; i < futures.length; i++) {
+			CurveFitter cf = getResult(futures[i]);
+			if (cf == null || Double.isNaN(cf.getSumResidualsSqr()))
+				continue;
+			int m = jobmodels.get(i);
+			if (modelFits[m] == null || cf.getSumResidualsSqr() < modelFits[m].getSumResidualsSqr())
+				modelFits[m] = cf;
+		}
+
+		selectedModel = -1;
+		double bestscore = Double.POSITIVE_INFINITY;
+		for (int m : models) {
+			if (modelFits[m] == null)
+				continue;
+			double score = (model == BEST_BIC) ? bic(modelFits[m]) : aic(modelFits[m]);
+			if (verbose)
+				IJ.log(MODEL_NAMES[m] + "\tSSE=" + modelFits[m].getSumResidualsSqr()
+						+ "\tAIC=" + aic(modelFits[m]) + "\tBIC=" + bic(modelFits[m]));
+			if (selectedModel < 0 || score < bestscore) {
+				bestscore = score;
+				selectedModel = m;
+			}
+		}
+		return (selectedModel < 0) ? null : modelFits[selectedModel];
+	}
+
+	/**
+	 * @return the model chosen by the last call of fit(int), -1 if none.
+	 */
+	public int getSelectedModel() {
+		return selectedModel;
+	}
+
+	/**
+	 * @param model EXPONENTIAL, BI_EXPONENTIAL or STRETCHED_EXPONENTIAL
+	 * @return best fit of the given model in the last call of fit(int), may be null.
+	 */
+	public CurveFitter getModelFit(int model) {
+		return modelFits[model];
+	}
+
+	/**
+	 * Akaike information criterion of a least-squares fit.
+	 */
+	public static double aic(CurveFitter cf) {
+		int n = cf.getXPoints().length;
+		return n * Math.log(residualVariance(cf)) + 2 * cf.getNumParams();
+	}
+
+	/**
+	 * Bayesian information criterion of a least-squares fit.
+	 */
+	public static double bic(CurveFitter cf) {
+		int n = cf.getXPoints().length;
+		return n * Math.log(residualVariance(cf)) + cf.getNumParams() * Math.log(n);
+	}
+
+	static double residualVariance(CurveFitter cf) {
+		int n = cf.getXPoints().length;
+		return Math.max(cf.getSumResidualsSqr() / n, Double.MIN_NORMAL);
+	}
+
+	/**
+	 * Starting points of a model. The first start of the exponential model is
+	 * the one that was used before multi-start fitting was introduced.
+	 */
+	List<double[]> startingPoints(int model) {
+		List<double[]> starts = new ArrayList<double[]>();
+		double a = guess_a;
+		double b = guess_b;
+		double c = guess_c;
+		switch (model) {
+		case EXPONENTIAL:
+			starts.add(new double[] { -1 * a, -0.0001, c });
+			starts.add(new double[] { a, b, c });
+			starts.add(new double[] { a, b * 4, c });
+			starts.add(new double[] { a, b / 4, c });
+			break;
+		case BI_EXPONENTIAL:
+			starts.add(new double[] { a / 2, b * 3, a / 2, b / 3, c });
+			starts.add(new double[] { a * 0.7, b * 10, a * 0.3, b, c });
+			starts.add(new double[] { a * 0.3, b, a * 0.7, b / 10, c });
+			break;
+		case STRETCHED_EXPONENTIAL:
+			starts.add(new double[] { a, b, c, 1.0 });
+			starts.add(new double[] { a, b, c, 0.7 });
+			starts.add(new double[] { a, b * 2, c, 0.4 });
+			break;
+		}
+		return starts;
+	}
+
+	CurveFitter fitOnce(int model, double[] start) {
+		CurveFitter cf = new CurveFitter(xA, yA);
+		cf.setStatusAndEsc(null, false);
+		cf.getMinimizer().setMaximumThreads(1);
+		cf.setMaxIterations(2000);
+		cf.setRestarts(2);
+		switch (model) {
+		case EXPONENTIAL:
+			cf.setInitialParameters(start);
+			cf.doFit(CurveFitter.EXP_WITH_OFFSET);
+			break;
+		case BI_EXPONENTIAL:
+			cf.doCustomFit(new BiExponential(), 5, BI_EXPONENTIAL_FORMULA, start, variations(start),
+					false);
+			break;
+		case STRETCHED_EXPONENTIAL:
+			cf.doCustomFit(new StretchedExponential(), 4, STRETCHED_EXPONENTIAL_FORMULA, start,
+					variations(start), false);
+			break;
+		}
+		return cf;
+	}
+
+	static double[] variations(double[] start) {
+		double[] v = new double[start.length];
+		for (int i = 0; i < start.length; i++)
+			v[i] = Math.max(Math.abs(start[i]) * 0.1, 1e-9);
+		return v;
+	}
+
+	/**
+	 * Initial guess from the medians of the first and the last few points.
+	 * The rate is guessed from the time the series needs to drop to half of
+	 * its amplitude.
+	 */
+	void estimateInitialGuess() {
+		int n = yA.length;
+		int w = Math.max(1, Math.min(5, n / 10));
+		double first = median(yA, 0, w);
+		double last = median(yA, n - w, n);
+		guess_a = first - last;
+		guess_c = last;
+		double range = xA[n - 1] - xA[0];
+		if (range <= 0)
+			range = 1;
+		double half = last + guess_a / 2;
+		double xhalf = range / 3;
+		if (guess_a > 0) {
+			for (int i = 0; i < n; i++) {
+				if (yA[i] <= half) {
+					xhalf = Math.max(xA[i] - xA[0], range / n);
+					break;
+				}
+			}
+		}
+		guess_b = Math.log(2) / xhalf;
+		if (guess_a == 0)
+			guess_a = 1e-6 * Math.max(1, Math.abs(last));
+	}
+
+	static double median(double[] a, int from, int to) {
+		double[] s = Arrays.copyOfRange(a, from, to);
+		Arrays.sort(s);
+		int m = s.length / 2;
+		return (s.length % 2 == 1) ? s[m] : (s[m - 1] + s[m]) / 2;
+	}
+
+	static CurveFitter getResult(Future f) {
+		try {
+			return (CurveFitter) f.get();
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * y = a*exp(-bx) + c*exp(-dx) + e, rates are taken as absolute values.
+	 */
+	static class BiExponential implements UserFunction {
+		@Override
+		public double userFunction(double[] p, double x) {
+			return p[0] * Math.exp(-Math.abs(p[1]) * x) + p[2] * Math.exp(-Math.abs(p[3]) * x) + p[4];
+		}
+	}
+
+	/**
+	 * y = a*exp(-(bx)^d) + c, rate and stretch exponent are taken as absolute values.
+	 */
+	static class StretchedExponential implements UserFunction {
+		@Override
+		public double userFunction(double[] p, double x) {
+			return p[0] * Math.exp(-Math.pow(Math.abs(p[1]) * x, Math.abs(p[3]))) + p[2];
+		}
+	}
+}
@@ -0,0 +1,133 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package emblcmci;
+
+import histogram2.HistogramPlot;
+import ij.IJ;
+import ij.gui.Plot;
+import ij.io.FileSaver;
+
+import java.awt.Color;
+import java.awt.GraphicsEnvironment;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Plots and exports of fit results and histograms, kept apart from the
+ * correction itself.
+ *
+ * Nothing is rendered while correcting: a plot is created only when it is
+ * shown or written. writeAsync() renders and writes on a background thread,
+ * so batch runs do not wait for it, and does not need a display.
+ */
+public class FitDiagnostics {
+
+	static final ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "Bleach Correction Diagnostics");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	/**
+	 * @return plot of the measured intensities and the fitted curve
+	 */
+	public static Plot createPlot(DecayFitResult result) {
+		Plot plot = new Plot(result.getModelName(), "Time", "Mean intensity");
+		plot.setColor(Color.blue);
+		plot.add("circle", result.getX(), result.getY());
+		plot.setColor(Color.red);
+		plot.add("line", result.getX(), result.getFitted());
+		plot.setColor(Color.black);
+		plot.addLabel(0.02, 0.1, result.getFormula() + "\nR^2 = " + IJ.d2s(result.getRSquared(), 5));
+		plot.setLimitsToFit(false);
+		return plot;
+	}
+
+	/**
+	 * Shows the plot of the fit, unless there is no display.
+	 */
+	public static void show(DecayFitResult result) {
+		if (GraphicsEnvironment.isHeadless())
+			return;
+		createPlot(result).show();
+	}
+
+	/**
+	 * Writes time point, measured and fitted intensity as comma separated values.
+	 */
+	public static void writeCsv(DecayFitResult result, File file) throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		try {
+			out.println("# " + result.getModelName() + ": " + result.getFormula());
+			out.println("time,mean,fit");
+			double[] x = result.getX();
+			double[] y = result.getY();
+			double[] f = result.getFitted();
+			for (int i = 0; i < x.length; i++)
+				out.println(x[i] + "," + y[i] + "," + f[i]);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes name.csv and name.png into dir on the diagnostics thread.
+	 *
+	 * @return Future to wait for the files, if needed
+	 */
+	public static Future<Void> writeAsync(final DecayFitResult result, final File dir, final String name) {
+		return writer.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws IOException {
+				writeCsv(result, new File(dir, name + ".csv"));
+				new FileSaver(createPlot(result).getImagePlus()).saveAsPng(new File(dir, name + ".png").getPath());
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Writes name.csv and name.png of a histogram plot into dir on the diagnostics thread.
+	 *
+	 * @return Future to wait for the files, if needed
+	 */
+	public static Future<Void> writeAsync(final HistogramPlot plot, final File dir, final String name) {
+		return writer.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws IOException {
+				plot.writeCsv(new File(dir, name + ".csv"));
+				new FileSaver(plot.getImagePlus()).saveAsPng(new File(dir, name + ".png").getPath());
+				return null;
+			}
+		});
+	}
+}
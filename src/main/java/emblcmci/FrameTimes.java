@@ -0,0 +1,158 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package emblcmci;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.measure.Calibration;
+
+/**
+ * Time axis of a series for fitting: the acquisition time of each time
+ * point, relative to the first one.
+ *
+ * The times are taken, in this order, from a per-frame timestamp array
+ * stored as the image property "Timestamps" (a double[] or a comma or
+ * whitespace separated string), from the frame interval of the
+ * calibration, or from the frame index if neither is known.
+ *
+ * For long series the fit can run on bins of consecutive time points: the
+ * mean intensity of a bin is placed at the mean time of its time points.
+ * The fitted curve is then still evaluated at the true time of every
+ * time point.
+ */
+public class FrameTimes {
+
+	public static final String PROPERTY = "Timestamps";
+
+	/** number of points that the automatic binning fits at most */
+	public static final int MAX_FIT_POINTS = 500;
+
+	/**
+	 * @param imp image with the time axis
+	 * @param timepoints number of time points
+	 * @return time of each time point, starting at 0
+	 */
+	public static double[] of(ImagePlus imp, int timepoints) {
+		double[] times = parse(imp.getProperty(PROPERTY), timepoints);
+		if (times != null)
+			return relative(times);
+		times = new double[timepoints];
+		Calibration cal = imp.getCalibration();
+		double interval = (cal != null && cal.frameInterval > 0) ? cal.frameInterval : 1.0;
+		for (int t = 0; t < timepoints; t++)
+			times[t] = t * interval;
+		return times;
+	}
+
+	/**
+	 * @param times time of each time point, e.g. from the acquisition software
+	 * @return times minus the first time
+	 */
+	public static double[] relative(double[] times) {
+		double[] r = new double[times.length];
+		for (int t = 0; t < times.length; t++)
+			r[t] = times[t] - times[0];
+		return r;
+	}
+
+	/**
+	 * Checks timestamps given by the caller as parse checks those of the
+	 * property, but fails instead of falling back to the frame interval.
+	 *
+	 * @param times time of each time point
+	 * @param timepoints number of time points
+	 * @throws IllegalArgumentException if there is not one increasing
+	 * number per time point
+	 */
+	public static void check(double[] times, int timepoints) {
+		if (times.length != timepoints)
+			throw new IllegalArgumentException(times.length + " timestamps for " + timepoints + " time points");
+		for (int t = 0; t < times.length; t++)
+			if (Double.isNaN(times[t]) || Double.isInfinite(times[t]) || (t > 0 && times[t] < times[t - 1]))
+				throw new IllegalArgumentException("timestamps are not increasing numbers, at time point " + (t + 1));
+	}
+
+	/**
+	 * @return the timestamps of the property, null if it is missing, cannot
+	 * be parsed or does not have one value per time point
+	 */
+	static double[] parse(Object property, int timepoints) {
+		if (property == null)
+			return null;
+		double[] times = null;
+		if (property instanceof double[]) {
+			times = (double[]) property;
+		} else {
+			String[] items = property.toString().trim().split("[,\\s]+");
+			times = new double[items.length];
+			for (int i = 0; i < items.length; i++) {
+				times[i] = Double.NaN;
+				try {
+					times[i] = Double.parseDouble(items[i]);
+				} catch (NumberFormatException e) {
+					// reported below
+				}
+			}
+		}
+		for (int t = 0; t < times.length; t++) {
+			if (Double.isNaN(times[t]) || (t > 0 && times[t] < times[t - 1])) {
+				IJ.log("Timestamps are not increasing numbers, the frame interval is used instead");
+				return null;
+			}
+		}
+		if (times.length != timepoints) {
+			IJ.log(times.length + " timestamps for " + timepoints + " time points, the frame interval is used instead");
+			return null;
+		}
+		return times;
+	}
+
+	/**
+	 * @param binSize time points per bin, 0 for automatic
+	 * @return bin size that gives at most MAX_FIT_POINTS bins if binSize is 0, else binSize
+	 */
+	public static int binSize(int binSize, int timepoints) {
+		if (binSize > 0)
+			return binSize;
+		return Math.max(1, (timepoints + MAX_FIT_POINTS - 1) / MAX_FIT_POINTS);
+	}
+
+	/**
+	 * Means of consecutive bins of binSize points, the last bin may be smaller.
+	 *
+	 * @param values e.g. times or intensities
+	 * @return mean of each bin
+	 */
+	public static double[] bin(double[] values, int binSize) {
+		int n = (values.length + binSize - 1) / binSize;
+		double[] binned = new double[n];
+		for (int b = 0; b < n; b++) {
+			int from = b * binSize;
+			int to = Math.min(from + binSize, values.length);
+			double sum = 0;
+			for (int i = from; i < to; i++)
+				sum += values[i];
+			binned[b] = sum / (to - from);
+		}
+		return binned;
+	}
+}
@@ -0,0 +1,328 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package emblcmci;
+
+import ij.Prefs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Sink writing corrected planes as a chunked N5 dataset on the local file
+ * system, for outputs too large for a single TIFF.
+ *
+ * Each plane is cut into blocks of blockWidth x blockHeight pixels and one
+ * plane deep. The blocks are compressed and written by a pool of
+ * Prefs.getThreads() threads as the planes arrive, so that compression
+ * scales with the cores instead of being limited by one writing thread.
+ * The dataset has the axes X, Y, T or X, Y, Z, T and can be read block by
+ * block with any N5 reader, e.g. N5 in Fiji, or with readBlock().
+ *
+ * Layout (N5 specification 2.5): attributes.json in the container and the
+ * dataset folder, one file "x/y/[z/]t" per block with a big endian header
+ * (mode, number of dimensions, size of the block) followed by the
+ * compressed big endian pixel values.
+ */
+public class N5PlaneSink implements BleachPipeline.PlaneSink, Closeable {
+
+	public static final int RAW = 0, GZIP = 1;
+	public static final String[] COMPRESSION_NAMES = { "raw", "gzip" };
+
+	File container;
+	File dataset;
+	int width;
+	int height;
+	int slices;
+	int frames;
+	int bitDepth;
+	int blockWidth = 256;
+	int blockHeight = 256;
+	int compression = GZIP;
+	int level = Deflater.BEST_SPEED;
+	int threads = Prefs.getThreads();
+	ExecutorService pool = null;
+	boolean created = false;
+
+	/**
+	 * @param container folder of the N5 container, created if needed
+	 * @param dataset path of the dataset inside the container, e.g. "corrected"
+	 * @param slices z-slices per time point, 1 for a 2D time series
+	 * @param frames time points
+	 * @param bitDepth 8 or 16
+	 */
+	public N5PlaneSink(File container, String dataset, int width, int height, int slices, int frames,
+			int bitDepth) {
+		super();
+		if (bitDepth != 8 && bitDepth != 16)
+			throw new IllegalArgumentException("8 bit or 16 bit required");
+		this.container = container;
+		this.dataset = new File(container, dataset);
+		this.width = width;
+		this.height = height;
+		this.slices = Math.max(1, slices);
+		this.frames = frames;
+		this.bitDepth = bitDepth;
+	}
+
+	/**
+	 * @param blockWidth width of the blocks in pixels
+	 * @param blockHeight height of the blocks in pixels
+	 */
+	public void setBlockSize(int blockWidth, int blockHeight) {
+		checkNotCreated();
+		this.blockWidth = Math.max(1, Math.min(blockWidth, width));
+		this.blockHeight = Math.max(1, Math.min(blockHeight, height));
+	}
+
+	/**
+	 * @param compression RAW or GZIP
+	 * @param level gzip level 1 (fast) .. 9 (small), -1 for the default
+	 */
+	public void setCompression(int compression, int level) {
+		checkNotCreated();
+		this.compression = compression;
+		this.level = level;
+	}
+
+	/**
+	 * @param threads threads compressing and writing blocks
+	 */
+	public void setThreads(int threads) {
+		checkNotCreated();
+		this.threads = Math.max(1, threads);
+	}
+
+	public File getDatasetDirectory() {
+		return dataset;
+	}
+
+	void checkNotCreated() {
+		if (created)
+			throw new IllegalStateException("dataset already written");
+	}
+
+	/**
+	 * Writes the attributes and starts the pool, on the first plane.
+	 */
+	synchronized void create() throws IOException {
+		if (created) {
+			if (pool == null)
+				throw new IOException("N5 sink is closed");
+			return;
+		}
+		dataset.mkdirs();
+		if (!dataset.isDirectory())
+			throw new IOException("could not create " + dataset);
+		File root = new File(container, "attributes.json");
+		if (!root.exists())
+			writeText(root, "{\"n5\":\"2.5.0\"}");
+		String dims = width + "," + height + "," + ((slices > 1) ? slices + "," : "") + frames;
+		String blocks = blockWidth + "," + blockHeight + "," + ((slices > 1) ? "1," : "") + "1";
+		String comp = (compression == GZIP) ? "{\"type\":\"gzip\",\"useZlib\":false,\"level\":" + level + "}"
+				: "{\"type\":\"raw\"}";
+		writeText(new File(dataset, "attributes.json"), "{\"dimensions\":[" + dims + "],\"blockSize\":[" + blocks
+				+ "],\"dataType\":\"" + ((bitDepth == 8) ? "uint8" : "uint16") + "\",\"compression\":" + comp + "}");
+		pool = Executors.newFixedThreadPool(threads, BleachPipeline.daemonThreads("Bleach Correction N5"));
+		created = true;
+	}
+
+	static void writeText(File f, String text) throws IOException {
+		Writer w = new OutputStreamWriter(new FileOutputStream(f), "UTF-8");
+		try {
+			w.write(text);
+		} finally {
+			w.close();
+		}
+	}
+
+	/**
+	 * Compresses and writes the blocks of a plane, blocks in parallel.
+	 * Returns when all blocks of the plane are written.
+	 */
+	@Override
+	public void write(final int plane, final Object pixels) throws IOException {
+		create();
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for (int y = 0; y < height; y += blockHeight) {
+			for (int x = 0; x < width; x += blockWidth) {
+				final int bx = x;
+				final int by = y;
+				futures.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						writeBlock(plane, pixels, bx, by);
+						return null;
+					}
+				}));
+			}
+		}
+		IOException failure = null;
+		for (Future<Void> f : futures) {
+			try {
+				f.get();
+			} catch (ExecutionException e) {
+				if (failure == null)
+					failure = (e.getCause() instanceof IOException) ? (IOException) e.getCause()
+							: new IOException("could not write plane " + (plane + 1), e.getCause());
+			} catch (InterruptedException e) {
+				throw new IOException("interrupted while writing plane " + (plane + 1), e);
+			}
+		}
+		if (failure != null)
+			throw failure;
+	}
+
+	/**
+	 * @param x0 left edge of the block in pixels
+	 * @param y0 top edge of the block in pixels
+	 */
+	void writeBlock(int plane, Object pixels, int x0, int y0) throws IOException {
+		int w = Math.min(blockWidth, width - x0);
+		int h = Math.min(blockHeight, height - y0);
+		int bytesPerPixel = bitDepth / 8;
+		byte[] data = new byte[w * h * bytesPerPixel];
+		int i = 0;
+		for (int y = y0; y < y0 + h; y++) {
+			int offset = y * width + x0;
+			if (pixels instanceof byte[]) {
+				System.arraycopy(pixels, offset, data, i, w);
+				i += w;
+			} else {
+				short[] p = (short[]) pixels;
+				for (int x = 0; x < w; x++) {
+					short v = p[offset + x];
+					data[i++] = (byte) (v >> 8);
+					data[i++] = (byte) v;
+				}
+			}
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 2 + 64);
+		DataOutputStream header = new DataOutputStream(bytes);
+		header.writeShort(0); // default mode
+		header.writeShort((slices > 1) ? 4 : 3);
+		header.writeInt(w);
+		header.writeInt(h);
+		if (slices > 1)
+			header.writeInt(1);
+		header.writeInt(1);
+		header.flush();
+		if (compression == GZIP) {
+			GZIPOutputStream gz = new GZIPOutputStream(bytes, 1 << 16) {
+				{
+					def.setLevel(level);
+				}
+			};
+			try {
+				gz.write(data);
+			} finally {
+				gz.close(); // also ends the Deflater, which holds native memory
+			}
+		} else {
+			bytes.write(data);
+		}
+
+		File f = blockFile(x0 / blockWidth, y0 / blockHeight, plane);
+		f.getParentFile().mkdirs();
+		OutputStream out = new FileOutputStream(f);
+		try {
+			bytes.writeTo(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @param gx block column
+	 * @param gy block row
+	 */
+	File blockFile(int gx, int gy, int plane) {
+		String path = gx + File.separator + gy + File.separator;
+		if (slices > 1)
+			path += (plane % slices) + File.separator;
+		return new File(dataset, path + (plane / slices));
+	}
+
+	/**
+	 * Reads one block of a dataset written by this sink.
+	 *
+	 * @param gx block column
+	 * @param gy block row
+	 * @param plane plane index, 0-based
+	 * @return byte[] or short[] pixels of the block, rows of the block width
+	 */
+	public Object readBlock(int gx, int gy, int plane) throws IOException {
+		InputStream in = new FileInputStream(blockFile(gx, gy, plane));
+		try {
+			DataInputStream header = new DataInputStream(in);
+			header.readShort();
+			int ndims = header.readShort();
+			int npixels = 1;
+			for (int d = 0; d < ndims; d++)
+				npixels *= header.readInt();
+			DataInputStream data = new DataInputStream((compression == GZIP) ? new GZIPInputStream(in, 1 << 16) : in);
+			if (bitDepth == 8) {
+				byte[] p = new byte[npixels];
+				data.readFully(p);
+				return p;
+			}
+			byte[] b = new byte[npixels * 2];
+			data.readFully(b);
+			short[] p = new short[npixels];
+			for (int i = 0; i < npixels; i++)
+				p[i] = (short) ((b[2 * i] << 8) | (b[2 * i + 1] & 0xff));
+			return p;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Stops the threads of the pool; the dataset is complete after the last write().
+	 */
+	@Override
+	public synchronized void close() {
+		if (pool != null)
+			pool.shutdown();
+		pool = null;
+	}
+}
@@ -0,0 +1,305 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package emblcmci;
+
+import histogram2.ParallelChunks;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Output modes of simple ratio and exponential fit.
+ *
+ * <ul>
+ * <li>ROUND: ImageJ's add and multiply, each corrected value is rounded
+ * and clipped (the original behaviour). Strongly amplified time points
+ * show banding, as neighbouring values are multiplied into values with
+ * gaps between them.</li>
+ * <li>DITHER: the corrected value x is rounded down after adding uniform
+ * noise in [0, 1), i.e. to floor(x) or floor(x) + 1 with probabilities
+ * such that the expected value is x (to 1/256). The gaps are filled and
+ * means are kept without bias. The noise is a fixed random sequence
+ * starting at a random position in each row, seeded per plane, so results
+ * are reproducible.</li>
+ * <li>PROMOTE: if the predicted maximum of the corrected stack exceeds the
+ * range of its type, 8 bit stacks are corrected into 16 bit (rounded),
+ * 16 bit stacks into 32 bit (not rounded); otherwise as ROUND.</li>
+ * </ul>
+ *
+ * The dither kernel looks up the clipped value * factor in a fixed point
+ * table per time point, adds the noise and shifts; it has no branches and
+ * no conversions, so it runs close to the lookup table of ROUND.
+ */
+public class OutputPrecision {
+
+	public static final int ROUND = 0, DITHER = 1, PROMOTE = 2;
+
+	public static final String[] MODE_NAMES = { "Round (ImageJ)", "Dither", "Promote bit depth if clipping" };
+
+	static final int FRACTION_BITS = 8;
+	static final int NOISE_SIZE = 4096; // power of 2
+
+	/** dither thresholds, each fraction 0 .. 255 equally often, in random order */
+	static final int[] NOISE = new int[NOISE_SIZE];
+
+	static {
+		for (int i = 0; i < NOISE_SIZE; i++)
+			NOISE[i] = i & ((1 << FRACTION_BITS) - 1);
+		int s = 0x2545f491;
+		for (int i = NOISE_SIZE - 1; i > 0; i--) {
+			s = xorshift(s);
+			int j = (s >>> 1) % (i + 1);
+			int v = NOISE[i];
+			NOISE[i] = NOISE[j];
+			NOISE[j] = v;
+		}
+	}
+
+	static int xorshift(int s) {
+		s ^= s << 13;
+		s ^= s >>> 17;
+		s ^= s << 5;
+		return s;
+	}
+
+	/**
+	 * Corrects the stack of imp with the plan. For PROMOTE, the stack of
+	 * imp may be replaced by a stack of higher bit depth.
+	 *
+	 * @param mode ROUND, DITHER or PROMOTE
+	 * @param progress stepped once per time point (ROUND) or per plane, checked for cancellation
+	 * @return false if canceled
+	 */
+	public static boolean applyTo(CorrectionPlan.FactorPlan plan, ImagePlus imp, int mode, BleachProgress progress) {
+		ImageStack stack = imp.getStack();
+		if (mode == PROMOTE) {
+			double max = predictMaximum(plan, stack);
+			int range = (plan.getBitDepth() == 8) ? 255 : 65535;
+			if (max > range) {
+				IJ.log("predicted maximum " + IJ.d2s(max, 1) + " exceeds " + range + ", output promoted to "
+						+ ((range == 255) ? "16" : "32") + " bit");
+				ImageStack out = promote(plan, stack, progress);
+				if (out == null)
+					return false;
+				imp.setStack(out, imp.getNChannels(), imp.getNSlices(), imp.getNFrames());
+				imp.resetDisplayRange();
+				return true;
+			}
+		}
+		if (mode == DITHER)
+			return dither(plan, stack, progress);
+		progress.addTotal(plan.getTimePoints());
+		return plan.applyTo(stack, progress);
+	}
+
+	/**
+	 * @return corrected value of each pixel value of time point t, without rounding
+	 */
+	static float[] scaledTable(CorrectionPlan.FactorPlan plan, int t) {
+		int K = (plan.getBitDepth() == 8) ? 256 : 65536;
+		int[] add = plan.addMapping(plan.getOffset(t));
+		float f = (float) plan.getFactor(t);
+		float[] scaled = new float[K];
+		for (int v = 0; v < K; v++)
+			scaled[v] = ((add == null) ? v : add[v]) * f;
+		return scaled;
+	}
+
+	/**
+	 * @return corrected value of each pixel value of time point t, clipped,
+	 * as fixed point number with FRACTION_BITS fraction bits
+	 */
+	static int[] fixedTable(CorrectionPlan.FactorPlan plan, int t) {
+		float[] scaled = scaledTable(plan, t);
+		int max = ((plan.getBitDepth() == 8) ? 255 : 65535) << FRACTION_BITS;
+		int[] fixed = new int[scaled.length];
+		for (int v = 0; v < scaled.length; v++)
+			fixed[v] = (int) Math.max(0, Math.min(max, Math.floor(scaled[v] * (double) (1 << FRACTION_BITS))));
+		return fixed;
+	}
+
+	static boolean dither(final CorrectionPlan.FactorPlan plan, final ImageStack stack, final BleachProgress progress) {
+		final int width = stack.getWidth();
+		return forAllPlanes(plan, stack, true, progress, new PlaneJob() {
+			@Override
+			public void run(int plane, Object table) {
+				int t = plane / plan.getSlices();
+				if (plan.getFactor(t) == 1.0 && plan.getOffset(t) == 0)
+					return;
+				Object pixels = stack.getPixels(plane + 1);
+				if (pixels instanceof byte[])
+					dither((byte[]) pixels, width, (int[]) table, plane);
+				else
+					dither((short[]) pixels, width, (int[]) table, plane);
+			}
+		});
+	}
+
+	static void dither(byte[] p, int width, int[] fixed, int seed) {
+		int s = 0x9e3779b9 * (seed + 1);
+		for (int row = 0; row < p.length; row += width) {
+			s = xorshift(s);
+			int offset = s - row;
+			for (int i = row; i < row + width; i++)
+				p[i] = (byte) ((fixed[p[i] & 0xff] + NOISE[(offset + i) & (NOISE_SIZE - 1)]) >> FRACTION_BITS);
+		}
+	}
+
+	static void dither(short[] p, int width, int[] fixed, int seed) {
+		int s = 0x9e3779b9 * (seed + 1);
+		for (int row = 0; row < p.length; row += width) {
+			s = xorshift(s);
+			int offset = s - row;
+			for (int i = row; i < row + width; i++)
+				p[i] = (short) ((fixed[p[i] & 0xffff] + NOISE[(offset + i) & (NOISE_SIZE - 1)]) >> FRACTION_BITS);
+		}
+	}
+
+	/**
+	 * @return maximum of the stack after correction, from the maximum of each plane
+	 */
+	static double predictMaximum(final CorrectionPlan.FactorPlan plan, final ImageStack stack) {
+		final double[] max = new double[stack.getSize()];
+		new ParallelChunks() {
+			@Override
+			protected void process(int from, int end) {
+				for (int plane = from; plane < end; plane++) {
+					int t = plane / plan.getSlices();
+					int m = 0;
+					Object pixels = stack.getPixels(plane + 1);
+					if (pixels instanceof byte[]) {
+						for (byte b : (byte[]) pixels)
+							m = Math.max(m, b & 0xff);
+					} else {
+						for (short v : (short[]) pixels)
+							m = Math.max(m, v & 0xffff);
+					}
+					int[] add = plan.addMapping(plan.getOffset(t));
+					max[plane] = ((add == null) ? m : add[m]) * plan.getFactor(t);
+				}
+			}
+		}.run(max.length, Prefs.getThreads());
+		double m = 0;
+		for (double v : max)
+			m = Math.max(m, v);
+		return m;
+	}
+
+	/**
+	 * @return new 16 bit stack for 8 bit, 32 bit stack for 16 bit stacks; null if canceled
+	 */
+	static ImageStack promote(final CorrectionPlan.FactorPlan plan, final ImageStack stack,
+			final BleachProgress progress) {
+		final int npixels = stack.getWidth() * stack.getHeight();
+		final boolean bytes = plan.getBitDepth() == 8;
+		final Object[] planes = new Object[stack.getSize()];
+		boolean done = forAllPlanes(plan, stack, false, progress, new PlaneJob() {
+			@Override
+			public void run(int plane, Object table) {
+				float[] scaled = (float[]) table;
+				Object pixels = stack.getPixels(plane + 1);
+				if (bytes) {
+					byte[] p = (byte[]) pixels;
+					short[] out = new short[npixels];
+					for (int i = 0; i < npixels; i++)
+						out[i] = (short) Math.min(Math.round(scaled[p[i] & 0xff]), 65535);
+					planes[plane] = out;
+				} else {
+					short[] p = (short[]) pixels;
+					float[] out = new float[npixels];
+					for (int i = 0; i < npixels; i++)
+						out[i] = scaled[p[i] & 0xffff];
+					planes[plane] = out;
+				}
+			}
+		});
+		if (!done)
+			return null;
+		ImageStack out = new ImageStack(stack.getWidth(), stack.getHeight());
+		for (int n = 0; n < planes.length; n++)
+			out.addSlice(stack.getSliceLabel(n + 1), planes[n]);
+		return out;
+	}
+
+	/**
+	 * Adds time point t to the quality report of the plan, with the
+	 * expected value of dithering or the unrounded value of promotion.
+	 */
+	static void record(CorrectionPlan.FactorPlan plan, int t, boolean dithered) {
+		QualityReport report = plan.getQualityReport();
+		if (report == null)
+			return;
+		double max = (plan.getBitDepth() == 8) ? 255 : 65535;
+		if (!dithered)
+			max = (plan.getBitDepth() == 8) ? 65535 : Double.POSITIVE_INFINITY;
+		report.add(t, scaledTable(plan, t), max);
+	}
+
+	interface PlaneJob {
+		/**
+		 * @param table table of the time point of the plane, see fixedTable and scaledTable
+		 */
+		void run(int plane, Object table);
+	}
+
+	/**
+	 * Runs a job for every plane, one chunk of planes per thread; the table of a time
+	 * point is shared by its z-slices and released after them.
+	 *
+	 * @return false if canceled
+	 */
+	static boolean forAllPlanes(final CorrectionPlan.FactorPlan plan, ImageStack stack, final boolean fixed,
+			final BleachProgress progress, final PlaneJob job) {
+		final int slices = plan.getSlices();
+		final Object[] tables = new Object[plan.getTimePoints()];
+		final AtomicIntegerArray done = new AtomicIntegerArray(plan.getTimePoints());
+		progress.addTotal(stack.getSize());
+		new ParallelChunks() {
+			@Override
+			protected void process(int from, int end) {
+				for (int plane = from; plane < end; plane++) {
+					if (progress.isCanceled())
+						return;
+					int t = plane / slices;
+					Object table;
+					synchronized (tables) {
+						if (tables[t] == null) {
+							tables[t] = fixed ? fixedTable(plan, t) : scaledTable(plan, t);
+							record(plan, t, fixed);
+						}
+						table = tables[t];
+					}
+					job.run(plane, table);
+					if (done.incrementAndGet(t) == slices)
+						synchronized (tables) {
+							tables[t] = null;
+						}
+					progress.step();
+				}
+			}
+		}.run(stack.getSize(), Prefs.getThreads());
+		return !progress.isCanceled();
+	}
+}
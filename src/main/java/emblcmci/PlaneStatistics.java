@@ -0,0 +1,257 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package emblcmci;
+
+import histogram2.BufferPool;
+import histogram2.MaskedHistogram;
+
+/**
+ * Statistics of the pixels of one plane inside a ROI: pixel count, sum,
+ * minimum, maximum and the histogram. The histogram is kept only for the
+ * range min..max, which is much smaller than 65536 bins for most 16 bit
+ * images.
+ *
+ * Means are computed from the histogram in the same way as ImageJ does,
+ * so they are identical to ImageStatistics.mean of the same ROI.
+ */
+public class PlaneStatistics {
+	int pixelCount;
+	long sum;
+	int min;
+	int max;
+	int[] counts; // counts[v - min] for min <= v <= max, null if not kept
+
+	PlaneStatistics(int pixelCount, long sum, int min, int max, int[] counts) {
+		this.pixelCount = pixelCount;
+		this.sum = sum;
+		this.min = min;
+		this.max = max;
+		this.counts = counts;
+	}
+
+	/**
+	 * Measures a plane.
+	 *
+	 * @param pixels byte[] or short[] pixels of the plane
+	 * @param mask region to be measured
+	 */
+	public static PlaneStatistics measure(Object pixels, MaskedHistogram mask) {
+		BufferPool pool = BufferPool.getShared();
+		int[] h = mask.accumulate(pixels, pool.borrowInts((pixels instanceof byte[]) ? 256 : 65536));
+		int min = 0;
+		while (min < h.length && h[min] == 0)
+			min++;
+		int max = h.length - 1;
+		while (max >= min && h[max] == 0)
+			max--;
+		long sum = 0;
+		int[] counts = new int[Math.max(0, max - min + 1)];
+		for (int v = min; v <= max; v++) {
+			counts[v - min] = h[v];
+			sum += (long) v * h[v];
+		}
+		pool.release(h);
+		return new PlaneStatistics(mask.getPixelCount(), sum, min, max, counts);
+	}
+
+	public int getPixelCount() {
+		return pixelCount;
+	}
+
+	public long getSum() {
+		return sum;
+	}
+
+	/**
+	 * @return minimum, or 0 if the ROI is empty
+	 */
+	public int getMin() {
+		return (pixelCount == 0) ? 0 : min;
+	}
+
+	/**
+	 * @return maximum, or 0 if the ROI is empty
+	 */
+	public int getMax() {
+		return (pixelCount == 0) ? 0 : max;
+	}
+
+	public double getMean() {
+		return sum / (double) pixelCount;
+	}
+
+	/**
+	 * @return false if only count, sum, min and max are known, e.g. when
+	 * read from a sidecar file written without histograms
+	 */
+	public boolean hasHistogram() {
+		return counts != null;
+	}
+
+	/**
+	 * Mean after mapping each pixel value v to map[v], e.g. after
+	 * subtracting a background with ImageProcessor.add.
+	 *
+	 * @param map new value of each pixel value
+	 */
+	public double getMean(int[] map) {
+		long s = 0;
+		for (int i = 0; i < counts.length; i++)
+			s += (long) map[min + i] * counts[i];
+		return s / (double) pixelCount;
+	}
+
+	/**
+	 * @return most frequent pixel value, the lowest one of equally frequent
+	 * values as ImageStatistics.dmode
+	 */
+	public int getMode() {
+		int mode = 0;
+		for (int i = 1; i < counts.length; i++)
+			if (counts[i] > counts[mode])
+				mode = i;
+		return min + mode;
+	}
+
+	/**
+	 * Percentile from the histogram: the smallest pixel value v such that
+	 * more than p percent of the pixels are at most v. For p = 50 this is
+	 * the median as computed by ImageJ.
+	 *
+	 * @param p percentile, 0 .. 100
+	 * @param map non-decreasing new value of each pixel value, or null
+	 */
+	public double getPercentile(double p, int[] map) {
+		if (pixelCount == 0)
+			return Double.NaN;
+		double rank = p / 100 * pixelCount;
+		long cumulative = 0;
+		int i = 0;
+		for (; i < counts.length - 1; i++) {
+			cumulative += counts[i];
+			if (cumulative > rank)
+				break;
+		}
+		return (map == null) ? min + i : map[min + i];
+	}
+
+	/**
+	 * Mean without the darkest and the brightest fraction of the pixels,
+	 * from the histogram. Bins at the cut are counted in part.
+	 *
+	 * @param fraction fraction removed at each end, 0 .. 0.5
+	 * @param map new value of each pixel value, or null
+	 */
+	public double getTrimmedMean(double fraction, int[] map) {
+		if (fraction >= 0.5)
+			return getPercentile(50, map);
+		double lo = fraction * pixelCount;
+		double hi = pixelCount - lo;
+		double s = 0;
+		long cumulative = 0;
+		for (int i = 0; i < counts.length && cumulative < hi; i++) {
+			long next = cumulative + counts[i];
+			double inside = Math.min(next, hi) - Math.max(cumulative, lo);
+			if (inside > 0)
+				s += inside * ((map == null) ? min + i : map[min + i]);
+			cumulative = next;
+		}
+		return s / (hi - lo);
+	}
+
+	/**
+	 * Mapping of pixel values by ImageProcessor.add(value), including
+	 * ImageJ's rounding and clipping, for use with getMean(int[]). As in
+	 * ImageJ, the value is truncated to an integer before it is added.
+	 *
+	 * @param bitDepth 8 or 16
+	 * @param value value added to each pixel
+	 */
+	public static int[] addMapping(int bitDepth, double value) {
+		int max = (bitDepth == 8) ? 255 : 65535;
+		int add = (int) value;
+		int[] map = new int[max + 1];
+		for (int v = 0; v <= max; v++)
+			map[v] = clip(v + add, max);
+		return map;
+	}
+
+	/**
+	 * Mapping of pixel values by ImageProcessor.multiply(value), including
+	 * ImageJ's rounding and clipping.
+	 *
+	 * @param bitDepth 8 or 16
+	 * @param value factor
+	 */
+	public static int[] multiplyMapping(int bitDepth, double value) {
+		int max = (bitDepth == 8) ? 255 : 65535;
+		int[] map = new int[max + 1];
+		for (int v = 0; v <= max; v++)
+			map[v] = clip((int) Math.round(v * value), max);
+		return map;
+	}
+
+	static int clip(int v, int max) {
+		return (v < 0) ? 0 : (v > max) ? max : v;
+	}
+
+	/**
+	 * Statistics of the union of two disjoint regions of the same plane,
+	 * e.g. of the two halves of MaskedHistogram.getRows.
+	 */
+	public static PlaneStatistics combine(PlaneStatistics a, PlaneStatistics b) {
+		if (b.pixelCount == 0)
+			return a;
+		if (a.pixelCount == 0)
+			return b;
+		int min = Math.min(a.min, b.min);
+		int max = Math.max(a.max, b.max);
+		int[] counts = null;
+		if (a.hasHistogram() && b.hasHistogram()) {
+			counts = new int[max - min + 1];
+			for (int i = 0; i < a.counts.length; i++)
+				counts[a.min - min + i] += a.counts[i];
+			for (int i = 0; i < b.counts.length; i++)
+				counts[b.min - min + i] += b.counts[i];
+		}
+		return new PlaneStatistics(a.pixelCount + b.pixelCount, a.sum + b.sum, min, max, counts);
+	}
+
+	/**
+	 * Adds the histogram to h.
+	 *
+	 * @param h histogram with 256 or 65536 bins
+	 * @return h
+	 */
+	public int[] accumulate(int[] h) {
+		for (int i = 0; i < counts.length; i++)
+			h[min + i] += counts[i];
+		return h;
+	}
+
+	/**
+	 * @return approximate memory used by this object in bytes
+	 */
+	long getSizeInBytes() {
+		return 48 + ((counts == null) ? 0 : 4L * counts.length);
+	}
+}
@@ -0,0 +1,384 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package emblcmci;
+
+import ij.IJ;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * How flat a corrected series is: the ROI mean of each time point before
+ * and after correction, its residual from the mean over all time points,
+ * the residual drift (linear trend) left after correction, the fraction
+ * of saturated ROI pixels and, for the exponential fit, R^2 of the fit.
+ *
+ * The report is filled while a CorrectionPlan is applied: when the
+ * mapping of a time point is computed, the corrected means and the
+ * saturated pixels are taken from the histograms of the plane statistics
+ * through that mapping. No pixel is read for it. Time points whose
+ * statistics have no histogram are reported as NaN.
+ *
+ * A correction that streams through the series passes the statistics of
+ * each time point along with its mapping instead, so that the report does
+ * not hold the statistics of all planes.
+ */
+public class QualityReport {
+
+	String method;
+	PlaneStatistics[] stats;
+	int slices;
+	int timepoints;
+	int range; // largest pixel value of the output
+	double[] originalMeans;
+	double[] correctedMeans;
+	double[] saturated;
+	double rSquared = Double.NaN;
+	// sums of the planes recorded so far by addPlane, per time point
+	double[] planeMeans;
+	double[] planeOriginals;
+	long[] planeSaturated;
+	long[] planePixels;
+	int[] planesDone;
+
+	/**
+	 * @param method name of the correction method
+	 * @param stats statistics of the planes before correction
+	 * @param slices z-slices per time point
+	 * @param bitDepth 8 or 16
+	 */
+	public QualityReport(String method, PlaneStatistics[] stats, int slices, int timepoints, int bitDepth) {
+		this(method, slices, timepoints, bitDepth);
+		this.stats = stats;
+		for (int t = 0; t < timepoints; t++) {
+			originalMeans[t] = 0;
+			for (int z = 0; z < slices; z++)
+				originalMeans[t] += stats[t * slices + z].getMean();
+			originalMeans[t] /= slices;
+		}
+	}
+
+	/**
+	 * Report without statistics, filled by add(t, planes, F) or
+	 * addPlane(plane, s, F) while streaming through the series.
+	 *
+	 * @param method name of the correction method
+	 * @param slices z-slices per time point
+	 * @param bitDepth 8 or 16
+	 */
+	QualityReport(String method, int slices, int timepoints, int bitDepth) {
+		this.method = method;
+		this.slices = slices;
+		this.timepoints = timepoints;
+		this.range = (bitDepth == 8) ? 255 : 65535;
+		originalMeans = new double[timepoints];
+		correctedMeans = new double[timepoints];
+		saturated = new double[timepoints];
+		Arrays.fill(originalMeans, Double.NaN);
+		Arrays.fill(correctedMeans, Double.NaN);
+		Arrays.fill(saturated, Double.NaN);
+	}
+
+	/**
+	 * Records time point t corrected with a mapping.
+	 *
+	 * @param F new value of each pixel value, null if unchanged
+	 */
+	void add(int t, int[] F) {
+		add(t, Arrays.copyOfRange(stats, t * slices, (t + 1) * slices), F);
+	}
+
+	/**
+	 * Records time point t corrected with a mapping, with the statistics of
+	 * its z-slices before correction.
+	 *
+	 * @param planes statistics of the z-slices of time point t
+	 * @param F new value of each pixel value, null if unchanged
+	 */
+	void add(int t, PlaneStatistics[] planes, int[] F) {
+		double original = 0;
+		for (PlaneStatistics s : planes)
+			original += s.getMean();
+		originalMeans[t] = original / slices;
+		double mean = 0;
+		long sat = 0;
+		long n = 0;
+		for (PlaneStatistics s : planes) {
+			if (!s.hasHistogram()) {
+				correctedMeans[t] = saturated[t] = Double.NaN;
+				return;
+			}
+			mean += (F == null) ? s.getMean() : s.getMean(F);
+			for (int i = 0; i < s.counts.length; i++)
+				if (((F == null) ? s.min + i : F[s.min + i]) >= range)
+					sat += s.counts[i];
+			n += s.pixelCount;
+		}
+		correctedMeans[t] = mean / slices;
+		saturated[t] = (n == 0) ? 0 : sat / (double) n;
+	}
+
+	/**
+	 * Records one plane corrected with a mapping of its own, for plans
+	 * with a mapping per z-slice. Time point t is complete when all its
+	 * z-slices are recorded; planes may come in any order and from several
+	 * threads.
+	 *
+	 * @param plane plane index, 0-based, z-slices within time points
+	 * @param F new value of each pixel value, null if unchanged
+	 */
+	void addPlane(int plane, int[] F) {
+		addPlane(plane, stats[plane], F);
+	}
+
+	/**
+	 * As addPlane(plane, F), with the statistics of the plane before correction.
+	 */
+	synchronized void addPlane(int plane, PlaneStatistics s, int[] F) {
+		if (planesDone == null) {
+			planeMeans = new double[timepoints];
+			planeOriginals = new double[timepoints];
+			planeSaturated = new long[timepoints];
+			planePixels = new long[timepoints];
+			planesDone = new int[timepoints];
+		}
+		int t = plane / slices;
+		planeOriginals[t] += s.getMean();
+		if (!s.hasHistogram()) {
+			planeMeans[t] = Double.NaN;
+		} else {
+			planeMeans[t] += (F == null) ? s.getMean() : s.getMean(F);
+			for (int i = 0; i < s.counts.length; i++)
+				if (((F == null) ? s.min + i : F[s.min + i]) >= range)
+					planeSaturated[t] += s.counts[i];
+			planePixels[t] += s.pixelCount;
+		}
+		if (++planesDone[t] < slices)
+			return;
+		originalMeans[t] = planeOriginals[t] / slices;
+		correctedMeans[t] = planeMeans[t] / slices;
+		if (Double.isNaN(correctedMeans[t]))
+			saturated[t] = Double.NaN;
+		else
+			saturated[t] = (planePixels[t] == 0) ? 0 : planeSaturated[t] / (double) planePixels[t];
+	}
+
+	/**
+	 * Records time point t corrected without rounding, see OutputPrecision.
+	 *
+	 * @param scaled corrected value of each pixel value
+	 * @param max largest value of the output, values above are clipped
+	 */
+	void add(int t, float[] scaled, double max) {
+		double mean = 0;
+		long sat = 0;
+		long n = 0;
+		for (int z = 0; z < slices; z++) {
+			PlaneStatistics s = stats[t * slices + z];
+			if (!s.hasHistogram()) {
+				correctedMeans[t] = saturated[t] = Double.NaN;
+				return;
+			}
+			double sum = 0;
+			for (int i = 0; i < s.counts.length; i++) {
+				double v = scaled[s.min + i];
+				if (v >= max) {
+					v = max;
+					sat += s.counts[i];
+				}
+				sum += v * s.counts[i];
+			}
+			mean += sum / s.pixelCount;
+			n += s.pixelCount;
+		}
+		correctedMeans[t] = mean / slices;
+		saturated[t] = (n == 0) ? 0 : sat / (double) n;
+	}
+
+	void setRSquared(double rSquared) {
+		this.rSquared = rSquared;
+	}
+
+	public String getMethod() {
+		return method;
+	}
+
+	public int getTimePoints() {
+		return timepoints;
+	}
+
+	public double[] getOriginalMeans() {
+		return originalMeans;
+	}
+
+	/**
+	 * @return ROI mean of each time point after correction
+	 */
+	public double[] getCorrectedMeans() {
+		return correctedMeans;
+	}
+
+	/**
+	 * @return fraction of the ROI pixels of each time point at the largest value after correction
+	 */
+	public double[] getSaturatedFractions() {
+		return saturated;
+	}
+
+	/**
+	 * @return R^2 of the fit, NaN for methods without fit
+	 */
+	public double getRSquared() {
+		return rSquared;
+	}
+
+	/**
+	 * @return relative deviation of each corrected mean from the mean over all time points
+	 */
+	public double[] getResiduals() {
+		double m = meanOf(correctedMeans);
+		double[] r = new double[timepoints];
+		for (int t = 0; t < timepoints; t++)
+			r[t] = correctedMeans[t] / m - 1;
+		return r;
+	}
+
+	/**
+	 * @return change of the corrected mean over the series along its linear
+	 * trend, relative to the mean; 0 for a perfectly flat series
+	 */
+	public double getDrift() {
+		double st = 0, sy = 0, stt = 0, sty = 0;
+		int n = 0;
+		for (int t = 0; t < timepoints; t++) {
+			double y = correctedMeans[t];
+			if (Double.isNaN(y))
+				continue;
+			st += t;
+			sy += y;
+			stt += (double) t * t;
+			sty += t * y;
+			n++;
+		}
+		if (n < 2)
+			return Double.NaN;
+		double slope = (n * sty - st * sy) / (n * stt - st * st);
+		return slope * (timepoints - 1) / (sy / n);
+	}
+
+	/**
+	 * @return coefficient of variation of the corrected means
+	 */
+	public double getCV() {
+		double m = meanOf(correctedMeans);
+		double ss = 0;
+		int n = 0;
+		for (double y : correctedMeans) {
+			if (Double.isNaN(y))
+				continue;
+			ss += (y - m) * (y - m);
+			n++;
+		}
+		return (n < 2) ? Double.NaN : Math.sqrt(ss / (n - 1)) / m;
+	}
+
+	public double getMaxSaturatedFraction() {
+		double max = 0;
+		for (double s : saturated)
+			if (s > max)
+				max = s;
+		return max;
+	}
+
+	static double meanOf(double[] values) {
+		double sum = 0;
+		int n = 0;
+		for (double v : values) {
+			if (Double.isNaN(v))
+				continue;
+			sum += v;
+			n++;
+		}
+		return (n == 0) ? Double.NaN : sum / n;
+	}
+
+	/**
+	 * @return one line summary for the log
+	 */
+	public String getSummary() {
+		String s = "quality (" + method + "): drift " + IJ.d2s(100 * getDrift(), 2) + "%, cv "
+				+ IJ.d2s(100 * getCV(), 2) + "%, saturated max " + IJ.d2s(100 * getMaxSaturatedFraction(), 3) + "%";
+		if (!Double.isNaN(rSquared))
+			s += ", R^2 " + IJ.d2s(rSquared, 5);
+		return s;
+	}
+
+	/**
+	 * @return the report as JSON, NaN written as null
+	 */
+	public String toJson() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"method\":\"").append(method).append("\",\"timepoints\":").append(timepoints);
+		sb.append(",\"rSquared\":").append(json(rSquared));
+		sb.append(",\"drift\":").append(json(getDrift()));
+		sb.append(",\"cv\":").append(json(getCV()));
+		sb.append(",\"maxSaturatedFraction\":").append(json(getMaxSaturatedFraction()));
+		sb.append(",\"frames\":[");
+		double[] residuals = getResiduals();
+		for (int t = 0; t < timepoints; t++) {
+			if (t > 0)
+				sb.append(',');
+			sb.append("{\"t\":").append(t + 1);
+			sb.append(",\"originalMean\":").append(json(originalMeans[t]));
+			sb.append(",\"correctedMean\":").append(json(correctedMeans[t]));
+			sb.append(",\"residual\":").append(json(residuals[t]));
+			sb.append(",\"saturatedFraction\":").append(json(saturated[t])).append('}');
+		}
+		return sb.append("]}").toString();
+	}
+
+	static String json(double v) {
+		return (Double.isNaN(v) || Double.isInfinite(v)) ? "null" : Double.toString(v);
+	}
+
+	/**
+	 * Writes one line per time point, with the summary values in the header comment.
+	 */
+	public void writeCsv(File f) throws IOException {
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(f), "UTF-8"));
+		try {
+			out.println("# " + getSummary());
+			out.println("t,original_mean,corrected_mean,residual,saturated_fraction");
+			double[] residuals = getResiduals();
+			for (int t = 0; t < timepoints; t++)
+				out.println(String.format(Locale.US, "%d,%.6f,%.6f,%.6f,%.6f", t + 1, originalMeans[t],
+						correctedMeans[t], residuals[t], saturated[t]));
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,337 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package emblcmci;
+
+import histogram2.MaskedHistogram;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.util.ThreadUtil;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+
+/**
+ * Moves the ROI with the drift of the sample.
+ *
+ * Each time point is downsampled to a small square (size x size) image,
+ * which is compared with the first time point by phase correlation: the
+ * normalized cross power spectrum of the two images has its inverse peak
+ * at their shift. Phase correlation does not depend on the brightness, so
+ * bleaching does not disturb it. The shift is scaled back to the full
+ * resolution and the ROI statistics of the time point are measured with
+ * the moved ROI, in the same job, so the series is read only once.
+ *
+ * Time points are processed in blocks of consecutive frames, one job per
+ * block, which reuses the FFT buffers of the job. For 3D time series the
+ * middle z-slice is used for tracking.
+ */
+public class RoiTracker {
+
+	public static final int DEFAULT_SIZE = 64;
+
+	int size = DEFAULT_SIZE;
+	int blockSize = 8;
+	int[] shiftX;
+	int[] shiftY;
+
+	public RoiTracker() {
+		super();
+	}
+
+	/**
+	 * @param size width and height of the downsampled frames, rounded up to a power of 2
+	 */
+	public RoiTracker(int size) {
+		super();
+		setSize(size);
+	}
+
+	public void setSize(int size) {
+		int s = 8;
+		while (s < size)
+			s *= 2;
+		this.size = s;
+	}
+
+	/**
+	 * @param blockSize number of consecutive time points of one job
+	 */
+	public void setBlockSize(int blockSize) {
+		this.blockSize = Math.max(1, blockSize);
+	}
+
+	/**
+	 * @return shift in x of the ROI at each time point, in pixels
+	 */
+	public int[] getShiftX() {
+		return shiftX;
+	}
+
+	/**
+	 * @return shift in y of the ROI at each time point, in pixels
+	 */
+	public int[] getShiftY() {
+		return shiftY;
+	}
+
+	/**
+	 * @return copy of roi moved by the shift of time point t
+	 */
+	public Roi getRoi(Roi roi, int t) {
+		Roi moved = (Roi) roi.clone();
+		Rectangle r = roi.getBounds();
+		moved.setLocation(r.x + shiftX[t], r.y + shiftY[t]);
+		return moved;
+	}
+
+	/**
+	 * Tracks the drift and measures the ROI statistics of all planes with
+	 * the ROI moved to each time point.
+	 *
+	 * @param stack 8 bit or 16 bit stack, ordered as z-slices within time points
+	 * @param zframes z-slices per time point, 1 for 2D time series
+	 * @param roi ROI at the first time point
+	 * @param cache cache of the per-plane statistics
+	 * @param progress counts one step per time point
+	 * @return statistics of each plane, index 0 for slice 1; null if canceled
+	 */
+	public PlaneStatistics[] measure(final ImageStack stack, final int zframes, final Roi roi,
+			final StatisticsCache cache, final BleachProgress progress) {
+		final int timeframes = stack.getSize() / zframes;
+		final int width = stack.getWidth();
+		final int height = stack.getHeight();
+		final int factor = Math.max(1, (Math.max(width, height) + size - 1) / size);
+		final int middle = zframes / 2;
+		final PlaneStatistics[] stats = new PlaneStatistics[stack.getSize()];
+		shiftX = new int[timeframes];
+		shiftY = new int[timeframes];
+		progress.addTotal(timeframes);
+
+		final float[] refRe = new float[size * size];
+		final float[] refIm = new float[size * size];
+		downsample(stack.getPixels(middle + 1), width, height, factor, refRe);
+		fft2(refRe, refIm, size, false);
+
+		int blocks = (timeframes + blockSize - 1) / blockSize;
+		Callable[] jobs = new Callable[blocks];
+		for (int b = 0; b < blocks; b++) {
+			final int first = b * blockSize;
+			final int end = Math.min(first + blockSize, timeframes);
+			jobs[b] = new Callable<Void>() {
+				@Override
+				public Void call() {
+					float[] re = new float[size * size];
+					float[] im = new float[size * size];
+					double[] shift = new double[2];
+					for (int t = first; t < end; t++) {
+						if (progress.isCanceled())
+							return null;
+						if (t > 0) {
+							downsample(stack.getPixels(t * zframes + middle + 1), width, height, factor, re);
+							Arrays.fill(im, 0);
+							correlate(re, im, refRe, refIm, shift);
+							shiftX[t] = (int) Math.round(shift[0] * factor);
+							shiftY[t] = (int) Math.round(shift[1] * factor);
+						}
+						MaskedHistogram mask = new MaskedHistogram(width, height, getRoi(roi, t));
+						for (int z = 0; z < zframes; z++) {
+							int plane = t * zframes + z;
+							stats[plane] = cache.get(stack.getPixels(plane + 1), mask);
+						}
+						progress.step();
+					}
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(jobs);
+		return progress.isCanceled() ? null : stats;
+	}
+
+	/**
+	 * Mean of factor x factor blocks into the top left of out, minus its
+	 * mean and weighted with a window; the rest of out is 0.
+	 */
+	void downsample(Object pixels, int width, int height, int factor, float[] out) {
+		Arrays.fill(out, 0);
+		int w = Math.min(size, width / factor);
+		int h = Math.min(size, height / factor);
+		for (int y = 0; y < h * factor; y++) {
+			int row = (y / factor) * size;
+			int offset = y * width;
+			if (pixels instanceof byte[]) {
+				byte[] p = (byte[]) pixels;
+				for (int x = 0; x < w * factor; x++)
+					out[row + x / factor] += p[offset + x] & 0xff;
+			} else {
+				short[] p = (short[]) pixels;
+				for (int x = 0; x < w * factor; x++)
+					out[row + x / factor] += p[offset + x] & 0xffff;
+			}
+		}
+		// level of the tapered border, so that the window leaves no edge of its own
+		double sum = 0;
+		double weight = 0;
+		for (int y = 0; y < h; y++) {
+			double wy = taper(y, h);
+			for (int x = 0; x < w; x++) {
+				double b = 1 - taper(x, w) * wy;
+				sum += b * out[y * size + x];
+				weight += b;
+			}
+		}
+		float mean = (float) (sum / weight);
+		for (int y = 0; y < h; y++) {
+			double wy = taper(y, h);
+			for (int x = 0; x < w; x++)
+				out[y * size + x] = (float) ((out[y * size + x] - mean) * taper(x, w) * wy);
+		}
+	}
+
+	/**
+	 * Tukey window: 1 in the center, cosine tapered over the outer eighth
+	 * on each side, so that content close to the border is not suppressed
+	 * as by a full Hann window.
+	 */
+	static double taper(int i, int n) {
+		double edge = Math.max(1, n / 8.0);
+		double d = Math.min(i + 0.5, n - i - 0.5);
+		return (d >= edge) ? 1 : 0.5 - 0.5 * Math.cos(Math.PI * d / edge);
+	}
+
+	/**
+	 * Phase correlation of a downsampled frame with the reference spectrum.
+	 *
+	 * @param re frame, overwritten
+	 * @param im zeros, overwritten
+	 * @param shift receives the subpixel shift of the frame relative to the
+	 * reference, in downsampled pixels
+	 */
+	void correlate(float[] re, float[] im, float[] refRe, float[] refIm, double[] shift) {
+		fft2(re, im, size, false);
+		for (int i = 0; i < re.length; i++) {
+			// frame * conj(reference), normalized to unit magnitude
+			double r = re[i] * refRe[i] + im[i] * refIm[i];
+			double c = im[i] * refRe[i] - re[i] * refIm[i];
+			double m = Math.sqrt(r * r + c * c);
+			re[i] = (m > 1e-12) ? (float) (r / m) : 0;
+			im[i] = (m > 1e-12) ? (float) (c / m) : 0;
+		}
+		fft2(re, im, size, true);
+		int peak = 0;
+		for (int i = 1; i < re.length; i++)
+			if (re[i] > re[peak])
+				peak = i;
+		int px = peak % size;
+		int py = peak / size;
+		int mask = size - 1;
+		double sx = px + subpixel(re[py * size + ((px - 1) & mask)], re[peak], re[py * size + ((px + 1) & mask)]);
+		double sy = py + subpixel(re[((py - 1) & mask) * size + px], re[peak], re[((py + 1) & mask) * size + px]);
+		shift[0] = (sx >= size / 2) ? sx - size : sx;
+		shift[1] = (sy >= size / 2) ? sy - size : sy;
+	}
+
+	/**
+	 * @return offset of the vertex of the parabola through three values
+	 */
+	static double subpixel(double left, double center, double right) {
+		double d = left - 2 * center + right;
+		if (d >= 0)
+			return 0;
+		return Math.max(-0.5, Math.min(0.5, 0.5 * (left - right) / d));
+	}
+
+	/**
+	 * In-place 2D FFT of a size x size complex image, rows then columns.
+	 *
+	 * @param inverse true for the inverse transform, scaled by 1/(size*size)
+	 */
+	static void fft2(float[] re, float[] im, int size, boolean inverse) {
+		float[] cr = new float[size];
+		float[] ci = new float[size];
+		for (int y = 0; y < size; y++)
+			fft(re, im, y * size, size, inverse);
+		for (int x = 0; x < size; x++) {
+			for (int y = 0; y < size; y++) {
+				cr[y] = re[y * size + x];
+				ci[y] = im[y * size + x];
+			}
+			fft(cr, ci, 0, size, inverse);
+			for (int y = 0; y < size; y++) {
+				re[y * size + x] = cr[y];
+				im[y * size + x] = ci[y];
+			}
+		}
+		if (inverse) {
+			float scale = 1f / (size * size);
+			for (int i = 0; i < re.length; i++) {
+				re[i] *= scale;
+				im[i] *= scale;
+			}
+		}
+	}
+
+	/**
+	 * In-place radix-2 FFT of n values starting at offset.
+	 */
+	static void fft(float[] re, float[] im, int offset, int n, boolean inverse) {
+		for (int i = 1, j = 0; i < n; i++) {
+			int bit = n >> 1;
+			for (; (j & bit) != 0; bit >>= 1)
+				j ^= bit;
+			j ^= bit;
+			if (i < j) {
+				int a = offset + i;
+				int b = offset + j;
+				float t = re[a];
+				re[a] = re[b];
+				re[b] = t;
+				t = im[a];
+				im[a] = im[b];
+				im[b] = t;
+			}
+		}
+		for (int len = 2; len <= n; len <<= 1) {
+			double angle = 2 * Math.PI / len * (inverse ? 1 : -1);
+			double wr = Math.cos(angle);
+			double wi = Math.sin(angle);
+			for (int i = offset; i < offset + n; i += len) {
+				double cr = 1;
+				double ci = 0;
+				for (int k = 0; k < len / 2; k++) {
+					int a = i + k;
+					int b = a + len / 2;
+					float xr = (float) (re[b] * cr - im[b] * ci);
+					float xi = (float) (re[b] * ci + im[b] * cr);
+					re[b] = re[a] - xr;
+					im[b] = im[a] - xi;
+					re[a] += xr;
+					im[a] += xi;
+					double nr = cr * wr - ci * wi;
+					ci = cr * wi + ci * wr;
+					cr = nr;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,366 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package emblcmci;
+
+import histogram2.MaskedHistogram;
+import histogram2.ParallelChunks;
+import ij.IJ;
+import ij.ImageStack;
+import ij.Prefs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Cache of per-plane statistics (ROI mean and histogram), so that repeated
+ * corrections of the same stack, e.g. with another method or background,
+ * do not measure every plane again.
+ *
+ * Entries are keyed by a 64 bit hash of the pixel content of the plane and
+ * a hash of the ROI, so the cache stays valid when planes are reordered or
+ * copied (duplicates have the same content) and needs no invalidation when
+ * pixels change. The memory tier is a LRU bounded by maxBytes; an optional
+ * disk tier keeps one small file per entry in a folder and survives
+ * restarts.
+ *
+ * All methods are thread safe.
+ */
+public class StatisticsCache {
+
+	static final int FILE_MAGIC = 0x42435053; // "BCPS"
+	static final long DEFAULT_MAX_BYTES = 64L << 20;
+
+	static final StatisticsCache shared = new StatisticsCache(DEFAULT_MAX_BYTES);
+
+	final LinkedHashMap<Key, PlaneStatistics> entries = new LinkedHashMap<Key, PlaneStatistics>(16, 0.75f, true);
+	long maxBytes;
+	long bytes = 0;
+	File diskDir = null;
+	long hits = 0;
+	long misses = 0;
+
+	/**
+	 * @param maxBytes memory budget of the LRU tier, 0 to disable it
+	 */
+	public StatisticsCache(long maxBytes) {
+		super();
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @return the cache used by the correction methods by default
+	 */
+	public static StatisticsCache getShared() {
+		return shared;
+	}
+
+	public synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		trim();
+	}
+
+	/**
+	 * @param dir folder of the disk tier, null to disable it
+	 */
+	public synchronized void setDiskDirectory(File dir) {
+		if (dir != null)
+			dir.mkdirs();
+		this.diskDir = dir;
+	}
+
+	/**
+	 * Removes all entries of the memory tier, the disk tier is kept.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Statistics of one plane, from the cache if present.
+	 *
+	 * @param pixels byte[] or short[] pixels of the plane
+	 * @param mask region of the statistics
+	 */
+	public PlaneStatistics get(Object pixels, MaskedHistogram mask) {
+		synchronized (this) {
+			if (maxBytes == 0 && diskDir == null) { // nothing would be kept, no need to hash
+				misses++;
+				return PlaneStatistics.measure(pixels, mask);
+			}
+		}
+		Key key = new Key(hash(pixels), mask.getHash(), (pixels instanceof byte[]) ? 8 : 16);
+		File dir;
+		synchronized (this) {
+			PlaneStatistics ps = entries.get(key);
+			if (ps != null) {
+				hits++;
+				return ps;
+			}
+			dir = diskDir;
+		}
+		PlaneStatistics ps = (dir == null) ? null : read(new File(dir, key.fileName()), key);
+		boolean measured = ps == null;
+		if (measured)
+			ps = PlaneStatistics.measure(pixels, mask);
+		synchronized (this) {
+			if (measured)
+				misses++;
+			else
+				hits++;
+			put(key, ps);
+		}
+		if (measured && dir != null)
+			write(new File(dir, key.fileName()), key, ps);
+		return ps;
+	}
+
+	/**
+	 * Statistics of all planes of a stack, one chunk of planes per thread.
+	 *
+	 * @param stack 8 bit or 16 bit stack
+	 * @param mask region of the statistics
+	 * @return statistics of each plane, index 0 for slice 1
+	 */
+	public PlaneStatistics[] getAll(ImageStack stack, MaskedHistogram mask) {
+		return getAll(stack, new MaskedHistogram[] { mask })[0];
+	}
+
+	/**
+	 * As getAll, but only the planes from .. end - 1, e.g. the time points
+	 * a streamed correction is about to change.
+	 *
+	 * @param from first plane, 0-based
+	 * @param end plane after the last one
+	 * @return statistics of each plane, index 0 for plane from
+	 */
+	public PlaneStatistics[] getRange(final ImageStack stack, final MaskedHistogram mask, final int from, int end) {
+		final PlaneStatistics[] stats = new PlaneStatistics[end - from];
+		new ParallelChunks() {
+			@Override
+			protected void process(int first, int last) {
+				for (int i = first; i < last; i++)
+					stats[i] = get(stack.getPixels(from + i + 1), mask);
+			}
+		}.run(stats.length, Prefs.getThreads());
+		return stats;
+	}
+
+	/**
+	 * As getAll, but the statistics of several regions in the same pass,
+	 * each plane read once.
+	 *
+	 * @return stats[region][plane]
+	 */
+	public PlaneStatistics[][] getAll(final ImageStack stack, final MaskedHistogram[] masks) {
+		final PlaneStatistics[][] stats = new PlaneStatistics[masks.length][stack.getSize()];
+		new ParallelChunks() {
+			@Override
+			protected void process(int from, int end) {
+				for (int plane = from; plane < end; plane++) {
+					Object pixels = stack.getPixels(plane + 1);
+					for (int m = 0; m < masks.length; m++)
+						stats[m][plane] = get(pixels, masks[m]);
+				}
+			}
+		}.run(stack.getSize(), Prefs.getThreads());
+		return stats;
+	}
+
+	void put(Key key, PlaneStatistics ps) {
+		if (ps.getSizeInBytes() > maxBytes)
+			return;
+		PlaneStatistics old = entries.put(key, ps);
+		if (old != null)
+			bytes -= old.getSizeInBytes();
+		bytes += ps.getSizeInBytes();
+		trim();
+	}
+
+	void trim() {
+		Iterator<PlaneStatistics> it = entries.values().iterator();
+		while (bytes > maxBytes && it.hasNext()) {
+			bytes -= it.next().getSizeInBytes();
+			it.remove(); // least recently used first
+		}
+	}
+
+	static PlaneStatistics read(File f, Key key) {
+		if (!f.isFile())
+			return null;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+			if (in.readInt() != FILE_MAGIC || in.readLong() != key.pixelHash || in.readLong() != key.maskHash
+					|| in.readInt() != key.bitDepth)
+				return null;
+			int pixelCount = in.readInt();
+			long sum = in.readLong();
+			int min = in.readInt();
+			int max = in.readInt();
+			int[] counts = new int[in.readInt()];
+			for (int i = 0; i < counts.length; i++)
+				counts[i] = in.readInt();
+			return new PlaneStatistics(pixelCount, sum, min, max, counts);
+		} catch (IOException e) {
+			return null;
+		} finally {
+			close(in);
+		}
+	}
+
+	static void write(File f, Key key, PlaneStatistics ps) {
+		File tmp = new File(f.getPath() + ".tmp" + Thread.currentThread().getId());
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			out.writeInt(FILE_MAGIC);
+			out.writeLong(key.pixelHash);
+			out.writeLong(key.maskHash);
+			out.writeInt(key.bitDepth);
+			out.writeInt(ps.pixelCount);
+			out.writeLong(ps.sum);
+			out.writeInt(ps.min);
+			out.writeInt(ps.max);
+			out.writeInt(ps.counts.length);
+			for (int c : ps.counts)
+				out.writeInt(c);
+			out.close();
+			out = null;
+			if (!tmp.renameTo(f))
+				tmp.delete();
+		} catch (IOException e) {
+			IJ.log("Statistics cache: could not write " + f + ": " + e.getMessage());
+			tmp.delete();
+		} finally {
+			close(out);
+		}
+	}
+
+	static void close(Closeable c) {
+		if (c == null)
+			return;
+		try {
+			c.close();
+		} catch (IOException e) {
+			// nothing to do
+		}
+	}
+
+	/**
+	 * 64 bit content hash of a byte[] or short[] pixel array. Four
+	 * independent FNV-1a lanes are combined with a final mix, which is fast
+	 * enough to be negligible compared to measuring the plane.
+	 */
+	public static long hash(Object pixels) {
+		final long P = 0x100000001b3L;
+		long h0 = 0xcbf29ce484222325L, h1 = h0 ^ 1, h2 = h0 ^ 2, h3 = h0 ^ 3;
+		int n;
+		if (pixels instanceof byte[]) {
+			byte[] p = (byte[]) pixels;
+			n = p.length;
+			int i = 0;
+			for (; i + 3 < n; i += 4) {
+				h0 = (h0 ^ p[i]) * P;
+				h1 = (h1 ^ p[i + 1]) * P;
+				h2 = (h2 ^ p[i + 2]) * P;
+				h3 = (h3 ^ p[i + 3]) * P;
+			}
+			for (; i < n; i++)
+				h0 = (h0 ^ p[i]) * P;
+		} else if (pixels instanceof short[]) {
+			short[] p = (short[]) pixels;
+			n = p.length;
+			int i = 0;
+			for (; i + 3 < n; i += 4) {
+				h0 = (h0 ^ p[i]) * P;
+				h1 = (h1 ^ p[i + 1]) * P;
+				h2 = (h2 ^ p[i + 2]) * P;
+				h3 = (h3 ^ p[i + 3]) * P;
+			}
+			for (; i < n; i++)
+				h0 = (h0 ^ p[i]) * P;
+		} else {
+			throw new IllegalArgumentException("8 bit or 16 bit pixels required");
+		}
+		long h = mix(h0);
+		h = mix(h ^ h1);
+		h = mix(h ^ h2);
+		h = mix(h ^ h3);
+		return mix(h ^ n);
+	}
+
+	static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	static class Key {
+		final long pixelHash;
+		final long maskHash;
+		final int bitDepth;
+
+		Key(long pixelHash, long maskHash, int bitDepth) {
+			this.pixelHash = pixelHash;
+			this.maskHash = maskHash;
+			this.bitDepth = bitDepth;
+		}
+
+		String fileName() {
+			return Long.toHexString(pixelHash) + "-" + Long.toHexString(maskHash) + "-" + bitDepth + ".stats";
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key k = (Key) o;
+			return pixelHash == k.pixelHash && maskHash == k.maskHash && bitDepth == k.bitDepth;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (pixelHash ^ (pixelHash >>> 32)) * 31 + (int) maskHash;
+		}
+	}
+}
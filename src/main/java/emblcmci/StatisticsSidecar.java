@@ -0,0 +1,263 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package emblcmci;
+
+import histogram2.MaskedHistogram;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileInfo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Binary sidecar file with the per-plane statistics of an image file,
+ * stored next to it as "name.tif.bcstats".
+ *
+ * It holds count, sum, min and max of the ROI pixels of each plane and,
+ * optionally, the deflate-compressed histograms. The file is valid as long
+ * as the image file has the same length and modification time, the stack
+ * and the ROI are the same, and the first and the last plane have the
+ * same content hash, which also catches a file rewritten within the
+ * resolution of the modification time. A later correction of the same file then
+ * skips measuring the planes and only passes over the pixels once to apply
+ * the correction.
+ *
+ * For an image opened from a sequence of files, the first file is used.
+ */
+public class StatisticsSidecar {
+
+	static final int MAGIC = 0x42435343; // "BCSC"
+	static final int VERSION = 2;
+	public static final String EXTENSION = ".bcstats";
+
+	File file;
+	File source;
+	boolean histograms = true;
+
+	/**
+	 * @param file the sidecar file
+	 * @param source the image file it belongs to
+	 */
+	public StatisticsSidecar(File file, File source) {
+		super();
+		this.file = file;
+		this.source = source;
+	}
+
+	/**
+	 * @return sidecar of the file imp was opened from, or null if imp was
+	 * not read from a file or has been changed since
+	 */
+	public static StatisticsSidecar forImage(ImagePlus imp) {
+		FileInfo fi = imp.getOriginalFileInfo();
+		if (fi == null || fi.directory == null || fi.fileName == null || imp.changes)
+			return null;
+		File source = new File(fi.directory, fi.fileName);
+		if (!source.isFile())
+			return null;
+		return new StatisticsSidecar(new File(source.getPath() + EXTENSION), source);
+	}
+
+	/**
+	 * @param histograms false to write only count, sum, min and max, which
+	 * is enough for the simple ratio without background and the exponential fit
+	 */
+	public void setHistograms(boolean histograms) {
+		this.histograms = histograms;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Statistics of all planes: read from the sidecar if it is valid,
+	 * otherwise measured (or taken from the cache) and written to the sidecar.
+	 *
+	 * @param needHistograms true if the caller uses the histograms
+	 */
+	public PlaneStatistics[] getAll(StatisticsCache cache, ImageStack stack, MaskedHistogram mask,
+			boolean needHistograms) {
+		PlaneStatistics[] stats = read(stack, mask, needHistograms);
+		if (stats != null) {
+			IJ.log("statistics read from " + file.getName());
+			return stats;
+		}
+		stats = cache.getAll(stack, mask);
+		write(stack, mask, stats);
+		return stats;
+	}
+
+	/**
+	 * @return statistics of the planes, null if the sidecar is missing, not
+	 * valid for this stack and ROI, or has no histograms when they are needed
+	 */
+	public PlaneStatistics[] read(ImageStack stack, MaskedHistogram mask, boolean needHistograms) {
+		if (!file.isFile())
+			return null;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				return null;
+			if (in.readLong() != source.length() || in.readLong() != source.lastModified())
+				return null;
+			if (in.readInt() != stack.getWidth() || in.readInt() != stack.getHeight()
+					|| in.readInt() != stack.getSize() || in.readInt() != bitDepth(stack)
+					|| in.readLong() != mask.getHash())
+				return null;
+			if (in.readLong() != planeHash(stack, 1) || in.readLong() != planeHash(stack, stack.getSize()))
+				return null;
+			boolean hasHistograms = in.readBoolean();
+			if (needHistograms && !hasHistograms)
+				return null;
+			PlaneStatistics[] stats = new PlaneStatistics[stack.getSize()];
+			Inflater inflater = new Inflater();
+			for (int n = 0; n < stats.length; n++) {
+				int pixelCount = in.readInt();
+				long sum = in.readLong();
+				int min = in.readInt();
+				int max = in.readInt();
+				int[] counts = null;
+				if (hasHistograms) {
+					byte[] packed = new byte[in.readInt()];
+					in.readFully(packed);
+					counts = inflate(inflater, packed, Math.max(0, max - min + 1));
+				}
+				stats[n] = new PlaneStatistics(pixelCount, sum, min, max, counts);
+			}
+			inflater.end();
+			return stats;
+		} catch (IOException e) {
+			return null;
+		} catch (DataFormatException e) {
+			return null;
+		} finally {
+			StatisticsCache.close(in);
+		}
+	}
+
+	/**
+	 * Writes the sidecar, replacing an existing one. Failures, e.g. a
+	 * read-only folder, are logged and otherwise ignored.
+	 */
+	public void write(ImageStack stack, MaskedHistogram mask, PlaneStatistics[] stats) {
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(source.length());
+			out.writeLong(source.lastModified());
+			out.writeInt(stack.getWidth());
+			out.writeInt(stack.getHeight());
+			out.writeInt(stack.getSize());
+			out.writeInt(bitDepth(stack));
+			out.writeLong(mask.getHash());
+			out.writeLong(planeHash(stack, 1));
+			out.writeLong(planeHash(stack, stack.getSize()));
+			out.writeBoolean(histograms);
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			for (PlaneStatistics ps : stats) {
+				out.writeInt(ps.pixelCount);
+				out.writeLong(ps.sum);
+				out.writeInt(ps.min);
+				out.writeInt(ps.max);
+				if (histograms) {
+					byte[] packed = deflate(deflater, ps.counts);
+					out.writeInt(packed.length);
+					out.write(packed);
+				}
+			}
+			deflater.end();
+			out.close();
+			out = null;
+			file.delete();
+			if (!tmp.renameTo(file))
+				tmp.delete();
+		} catch (IOException e) {
+			IJ.log("could not write " + file + ": " + e.getMessage());
+			tmp.delete();
+		} finally {
+			StatisticsCache.close(out);
+		}
+	}
+
+	/**
+	 * @param n plane, 1-based
+	 */
+	static long planeHash(ImageStack stack, int n) {
+		return StatisticsCache.hash(stack.getPixels(n));
+	}
+
+	static int bitDepth(ImageStack stack) {
+		return (stack.getPixels(1) instanceof byte[]) ? 8 : 16;
+	}
+
+	static byte[] deflate(Deflater deflater, int[] counts) {
+		ByteBuffer bb = ByteBuffer.allocate(4 * counts.length);
+		bb.asIntBuffer().put(counts);
+		deflater.reset();
+		deflater.setInput(bb.array());
+		deflater.finish();
+		byte[] buf = new byte[64 + bb.capacity() + bb.capacity() / 100];
+		int n = 0;
+		while (!deflater.finished()) {
+			if (n == buf.length)
+				buf = Arrays.copyOf(buf, buf.length * 2);
+			n += deflater.deflate(buf, n, buf.length - n);
+		}
+		return Arrays.copyOf(buf, n);
+	}
+
+	static int[] inflate(Inflater inflater, byte[] packed, int length) throws DataFormatException {
+		byte[] raw = new byte[4 * length];
+		inflater.reset();
+		inflater.setInput(packed);
+		int n = 0;
+		while (n < raw.length && !inflater.finished()) {
+			int k = inflater.inflate(raw, n, raw.length - n);
+			if (k == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+				throw new DataFormatException("truncated histogram");
+			n += k;
+		}
+		if (n != raw.length)
+			throw new DataFormatException("truncated histogram");
+		int[] counts = new int[length];
+		ByteBuffer.wrap(raw).asIntBuffer().get(counts);
+		return counts;
+	}
+}
@@ -0,0 +1,270 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package histogram2;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Array;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Pool of recycled primitive arrays for the per-frame work buffers:
+ * histograms, CDFs, mapping functions and lookup tables. On long 16 bit
+ * series these are 256 KB to 512 KB per frame, which would otherwise all
+ * become garbage.
+ *
+ * Arrays are borrowed by type and length and given back with release().
+ * At most maxPerSize arrays of each type and length are kept. Borrowed
+ * int[] and long[] are cleared; the contents of the other types are
+ * undefined, as they are always overwritten completely.
+ *
+ * Counters of borrowed, newly allocated and reused arrays, and the
+ * collections of the garbage collectors, are available as a Usage
+ * snapshot, so that the effect can be checked.
+ *
+ * All methods are thread safe.
+ */
+public class BufferPool {
+
+	public static final int DEFAULT_MAX_PER_SIZE = 16;
+
+	static final BufferPool shared = new BufferPool(DEFAULT_MAX_PER_SIZE);
+
+	static final int INT = 0, LONG = 1, DOUBLE = 2, CHAR = 3, BYTE = 4;
+	static final int[] ELEMENT_BYTES = { 4, 8, 8, 2, 1 };
+
+	final HashMap<Long, ArrayDeque<Object>> free = new HashMap<Long, ArrayDeque<Object>>();
+	int maxPerSize;
+	long borrowed = 0;
+	long allocated = 0;
+	long allocatedBytes = 0;
+	long released = 0;
+
+	/**
+	 * @param maxPerSize arrays kept per type and length, 0 to disable pooling
+	 */
+	public BufferPool(int maxPerSize) {
+		super();
+		this.maxPerSize = maxPerSize;
+	}
+
+	/**
+	 * @return the pool used by the correction methods
+	 */
+	public static BufferPool getShared() {
+		return shared;
+	}
+
+	public synchronized void setMaxPerSize(int maxPerSize) {
+		this.maxPerSize = maxPerSize;
+		if (maxPerSize == 0)
+			free.clear();
+	}
+
+	/**
+	 * Drops all kept arrays, the counters are kept.
+	 */
+	public synchronized void clear() {
+		free.clear();
+	}
+
+	/**
+	 * @return cleared int[] of the given length
+	 */
+	public int[] borrowInts(int length) {
+		return (int[]) borrow(INT, length);
+	}
+
+	/**
+	 * @return cleared long[] of the given length
+	 */
+	public long[] borrowLongs(int length) {
+		return (long[]) borrow(LONG, length);
+	}
+
+	/**
+	 * @return double[] of the given length, with undefined contents
+	 */
+	public double[] borrowDoubles(int length) {
+		return (double[]) borrow(DOUBLE, length);
+	}
+
+	/**
+	 * @return char[] of the given length, with undefined contents
+	 */
+	public char[] borrowChars(int length) {
+		return (char[]) borrow(CHAR, length);
+	}
+
+	/**
+	 * @return byte[] of the given length, with undefined contents
+	 */
+	public byte[] borrowBytes(int length) {
+		return (byte[]) borrow(BYTE, length);
+	}
+
+	/**
+	 * Gives an array back to the pool. It must not be used afterwards.
+	 *
+	 * @param array int[], long[], double[], char[] or byte[]; null is ignored
+	 * @throws IllegalArgumentException if the array is already in the pool,
+	 * i.e. it was released twice and would be borrowed twice
+	 */
+	public void release(Object array) {
+		if (array == null)
+			return;
+		int type = typeOf(array);
+		if (type < 0)
+			return;
+		Long key = key(type, Array.getLength(array));
+		synchronized (this) {
+			ArrayDeque<Object> queue = free.get(key);
+			if (queue != null)
+				for (Object kept : queue)
+					if (kept == array)
+						throw new IllegalArgumentException("array released twice");
+			released++;
+			if (queue == null) {
+				if (maxPerSize == 0)
+					return;
+				queue = new ArrayDeque<Object>();
+				free.put(key, queue);
+			}
+			if (queue.size() < maxPerSize)
+				queue.push(array);
+		}
+	}
+
+	Object borrow(int type, int length) {
+		Object array = null;
+		synchronized (this) {
+			borrowed++;
+			ArrayDeque<Object> queue = free.get(key(type, length));
+			if (queue != null)
+				array = queue.poll();
+			if (array == null) {
+				allocated++;
+				allocatedBytes += (long) ELEMENT_BYTES[type] * length;
+			}
+		}
+		if (array == null)
+			return allocate(type, length);
+		if (type == INT)
+			Arrays.fill((int[]) array, 0);
+		else if (type == LONG)
+			Arrays.fill((long[]) array, 0);
+		return array;
+	}
+
+	static Object allocate(int type, int length) {
+		switch (type) {
+		case INT:
+			return new int[length];
+		case LONG:
+			return new long[length];
+		case DOUBLE:
+			return new double[length];
+		case CHAR:
+			return new char[length];
+		default:
+			return new byte[length];
+		}
+	}
+
+	static int typeOf(Object array) {
+		if (array instanceof int[])
+			return INT;
+		if (array instanceof long[])
+			return LONG;
+		if (array instanceof double[])
+			return DOUBLE;
+		if (array instanceof char[])
+			return CHAR;
+		if (array instanceof byte[])
+			return BYTE;
+		return -1;
+	}
+
+	static Long key(int type, int length) {
+		return ((long) length << 3) | type;
+	}
+
+	/**
+	 * @return counters of this pool and of the garbage collectors, now
+	 */
+	public synchronized Usage getUsage() {
+		long count = 0;
+		long millis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, gc.getCollectionCount());
+			millis += Math.max(0, gc.getCollectionTime());
+		}
+		return new Usage(borrowed, allocated, allocatedBytes, released, count, millis);
+	}
+
+	/**
+	 * Snapshot of the counters. since() gives the usage of a piece of work,
+	 * e.g. one correction.
+	 */
+	public static class Usage {
+		public final long borrowed;
+		public final long allocated;
+		public final long allocatedBytes;
+		public final long released;
+		public final long gcCount;
+		public final long gcMillis;
+
+		Usage(long borrowed, long allocated, long allocatedBytes, long released, long gcCount, long gcMillis) {
+			this.borrowed = borrowed;
+			this.allocated = allocated;
+			this.allocatedBytes = allocatedBytes;
+			this.released = released;
+			this.gcCount = gcCount;
+			this.gcMillis = gcMillis;
+		}
+
+		/**
+		 * @param start snapshot taken before
+		 * @return counts between start and this snapshot
+		 */
+		public Usage since(Usage start) {
+			return new Usage(borrowed - start.borrowed, allocated - start.allocated,
+					allocatedBytes - start.allocatedBytes, released - start.released, gcCount - start.gcCount,
+					gcMillis - start.gcMillis);
+		}
+
+		/**
+		 * @return borrowed arrays that were taken from the pool instead of allocated
+		 */
+		public long getReused() {
+			return borrowed - allocated;
+		}
+
+		@Override
+		public String toString() {
+			return "buffers: " + borrowed + " borrowed, " + getReused() + " reused, " + allocated + " allocated ("
+					+ (allocatedBytes >> 10) + " KB); gc: " + gcCount + " collections, " + gcMillis + " ms";
+		}
+	}
+}
@@ -40,34 +40,43 @@ public class HistogramMatcher {
 	// hA ... histogram of target image I_A
 	// hR ... reference histogram
 	// returns the mapping function F() to be applied to image I_A
+	// the CDFs are borrowed from BufferPool, and so is F(): the caller may
+	// release it to the shared pool when it is no longer used
 
 	public int[] matchHistograms(int[] hA, int[] hR) {
+		BufferPool pool = BufferPool.getShared();
 		int K = hA.length;
-		double[] PA = Util.Cdf(hA); // get CDF of histogram hA
-		double[] PR = Util.Cdf(hR); // get CDF of histogram hR
-		int[] F = new int[K]; // pixel mapping function f()
+		double[] PA = Util.Cdf(hA, pool.borrowDoubles(K)); // get CDF of histogram hA
+		double[] PR = Util.Cdf(hR, pool.borrowDoubles(K)); // get CDF of histogram hR
+		int[] F = pool.borrowInts(K); // pixel mapping function f()
 
 		// compute pixel mapping function f():
+		// F[a] is the lowest j with PA[a] <= PR[j .. K-2], as found by
+		// scanning down from K-1. Both CDFs are non-decreasing, so j only
+		// moves up with a and one pass over both is enough.
+		int j = 0;
 		for (int a = 0; a < K; a++) {
-			int j = K - 1;
-			do {
-				F[a] = j;
-				j--;
-			} while (j >= 0 && PA[a] <= PR[j]);
+			while (j < K - 1 && !(PA[a] <= PR[j]))
+				j++;
+			F[a] = j;
 		}
+		pool.release(PA);
+		pool.release(PR);
 		return F;
 	}
 
 	public int[] matchHistograms(int[] hA, PiecewiseLinearCdf PR) {
+		BufferPool pool = BufferPool.getShared();
 		int K = hA.length;
-		double[] PA = Util.Cdf(hA); // get p.d.f. of histogram Ha
-		int[] F = new int[K]; // pixel mapping function f()
+		double[] PA = Util.Cdf(hA, pool.borrowDoubles(K)); // get p.d.f. of histogram Ha
+		int[] F = pool.borrowInts(K); // pixel mapping function f()
 
 		// compute pixel mapping function f():
 		for (int a = 0; a < K; a++) {
 			double b = PA[a];
 			F[a] = PR.getInverseCdf(b);
 		}
+		pool.release(PA);
 		return F;
 	}
 }
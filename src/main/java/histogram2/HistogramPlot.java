@@ -36,6 +36,15 @@ import ij.ImagePlus;
 import ij.gui.NewImage;
 import ij.process.ImageProcessor;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Bar plot of a normalized histogram or cdf. The image is rendered only
+ * when it is first requested by getImagePlus() or show().
+ */
 public class HistogramPlot {
 	static final int BACKGROUND = 255;
 	// String title = "Histogram";
@@ -43,28 +52,53 @@ public class HistogramPlot {
 	int height = 128;
 	int base = height - 1;
 	int paintValue = 0;
+	String title;
 	ImagePlus hist_img;
 	ImageProcessor ip;
 	int[] H = new int[256];
+	double[] values = new double[256];
 
 	public HistogramPlot(double[] nH, String title) {
-		createHistogramImage(title);
+		this.title = title;
 		// nH mus be a normalized histogram of length 256
 		for (int i = 0; i < nH.length; i++) {
+			values[i] = nH[i];
 			H[i] = (int) Math.round(height * nH[i]);
 		}
-		draw();
-		// show();
 	}
 
 	public HistogramPlot(PiecewiseLinearCdf cdf, String title) {
-		createHistogramImage(title);
+		this.title = title;
 		// nH mus be a normalized histogram of length 256
 		for (int i = 0; i < 256; i++) {
-			H[i] = (int) Math.round(height * cdf.getCdf(i));
+			values[i] = cdf.getCdf(i);
+			H[i] = (int) Math.round(height * values[i]);
+		}
+	}
+
+	/**
+	 * @return the plot image, rendered on the first call
+	 */
+	public ImagePlus getImagePlus() {
+		if (hist_img == null) {
+			createHistogramImage(title);
+			draw();
+		}
+		return hist_img;
+	}
+
+	/**
+	 * Writes bin and normalized value as comma separated values.
+	 */
+	public void writeCsv(File file) throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		try {
+			out.println("bin,value");
+			for (int i = 0; i < values.length; i++)
+				out.println(i + "," + values[i]);
+		} finally {
+			out.close();
 		}
-		draw();
-		// show();
 	}
 
 	void createHistogramImage(String title) {
@@ -96,7 +130,7 @@ public class HistogramPlot {
 	}
 
 	public void show() {
-		hist_img.show();
+		getImagePlus().show();
 		update();
 	}
 
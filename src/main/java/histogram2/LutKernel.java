@@ -0,0 +1,151 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package histogram2;
+
+import ij.ImageStack;
+import ij.Prefs;
+
+/**
+ * Applies a pixel mapping function, e.g. the result of
+ * HistogramMatcher.matchHistograms, to 8 bit and 16 bit pixel arrays.
+ *
+ * The int[] mapping is first converted into a compact byte[] (8 bit) or
+ * char[] (16 bit) table, which is a quarter or half of the size and stays
+ * in cache better. Pixels are processed in blocks, which are distributed
+ * over threads together with the z-slices of a time point, one job per
+ * thread. Nothing is allocated per pixel, block or slice.
+ */
+public class LutKernel {
+
+	/** number of pixels processed by one job */
+	static final int BLOCK = 1 << 16;
+
+	/**
+	 * @param F mapping function with 65536 entries
+	 * @param table compact table to fill, a new one is created if null
+	 * @return table
+	 */
+	public static char[] toCharTable(int[] F, char[] table) {
+		if (table == null || table.length != F.length)
+			table = new char[F.length];
+		for (int i = 0; i < F.length; i++)
+			table[i] = (char) F[i];
+		return table;
+	}
+
+	/**
+	 * @param F mapping function with 256 entries
+	 * @param table compact table to fill, a new one is created if null
+	 * @return table
+	 */
+	public static byte[] toByteTable(int[] F, byte[] table) {
+		if (table == null || table.length != F.length)
+			table = new byte[F.length];
+		for (int i = 0; i < F.length; i++)
+			table[i] = (byte) F[i];
+		return table;
+	}
+
+	public static void apply(short[] pixels, char[] table, int from, int to) {
+		for (int i = from; i < to; i++)
+			pixels[i] = (short) table[pixels[i] & 0xffff];
+	}
+
+	public static void apply(byte[] pixels, byte[] table, int from, int to) {
+		for (int i = from; i < to; i++)
+			pixels[i] = table[pixels[i] & 0xff];
+	}
+
+	/**
+	 * Maps all pixels of a byte[] or short[] array in the current thread.
+	 *
+	 * @param pixels pixel array
+	 * @param table byte[] for 8 bit or char[] for 16 bit pixels
+	 */
+	public static void apply(Object pixels, Object table) {
+		if (pixels instanceof byte[])
+			apply((byte[]) pixels, (byte[]) table, 0, ((byte[]) pixels).length);
+		else
+			apply((short[]) pixels, (char[]) table, 0, ((short[]) pixels).length);
+	}
+
+	/**
+	 * @param F mapping function with 256 or 65536 entries
+	 * @param table table of a previous call to be reused, may be null
+	 * @return byte[] or char[] table matching the pixel type of the mapping
+	 */
+	public static Object toTable(int[] F, Object table) {
+		if (F.length == 256)
+			return toByteTable(F, (table instanceof byte[]) ? (byte[]) table : null);
+		return toCharTable(F, (table instanceof char[]) ? (char[]) table : null);
+	}
+
+	/**
+	 * Maps the slices firstSlice .. firstSlice + nSlices - 1 (1-based) of a
+	 * stack with the same table, slices and blocks of pixels in parallel,
+	 * one job per thread, see ParallelChunks.
+	 *
+	 * @param stack 8 bit or 16 bit stack
+	 * @param firstSlice first slice, 1-based
+	 * @param nSlices number of slices, e.g. the z-slices of a time point
+	 * @param table byte[] for 8 bit or char[] for 16 bit stacks
+	 */
+	public static void applyToSlices(final ImageStack stack, final int firstSlice, int nSlices, final Object table) {
+		final int npixels = stack.getWidth() * stack.getHeight();
+		int threads = Prefs.getThreads();
+		// blocks per slice: enough for all threads, but not smaller than BLOCK
+		final int blocks = Math.max(1, Math.min((threads + nSlices - 1) / nSlices, npixels / BLOCK));
+		final int blocksize = (npixels + blocks - 1) / blocks;
+		new ParallelChunks() {
+			@Override
+			protected void process(int from, int end) {
+				for (int job = from; job < end; job++) {
+					Object pixels = stack.getPixels(firstSlice + job / blocks);
+					int start = (job % blocks) * blocksize;
+					int stop = Math.min(start + blocksize, npixels);
+					if (pixels instanceof byte[])
+						apply((byte[]) pixels, (byte[]) table, start, stop);
+					else
+						apply((short[]) pixels, (char[]) table, start, stop);
+				}
+			}
+		}.run(nSlices * blocks, threads);
+	}
+
+	/**
+	 * Applies precomputed mapping functions, one per time point, to all
+	 * z-slices of the corresponding time point.
+	 *
+	 * @param stack 8 bit or 16 bit stack, ordered as z-slices within time points
+	 * @param zframes number of z-slices per time point, 1 for 2D time series
+	 * @param F mapping function of each time point, null entries are skipped
+	 */
+	public static void applyLuts(ImageStack stack, int zframes, int[][] F) {
+		Object table = null;
+		for (int t = 0; t < F.length; t++) {
+			if (F[t] == null)
+				continue;
+			table = toTable(F[t], table);
+			applyToSlices(stack, t * zframes + 1, zframes, table);
+		}
+	}
+}
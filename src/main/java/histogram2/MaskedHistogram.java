@@ -0,0 +1,268 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package histogram2;
+
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/**
+ * Histogram of the pixels inside a ROI.
+ *
+ * The ROI mask is converted once into run-length encoded rows, i.e. the
+ * start index and the length of each horizontal run of masked pixels.
+ * Histograms of all frames are then computed by walking only these runs,
+ * so that the cost is proportional to the number of masked pixels and not
+ * to the frame size.
+ *
+ * Works with byte[] (8 bit) and short[] (16 bit) pixel arrays.
+ */
+public class MaskedHistogram {
+	int width;
+	int height;
+	int[] runStart; // index of the first pixel of each run
+	int[] runLength;
+	int numRuns = 0;
+	int pixelCount = 0;
+
+	/**
+	 * @param width width of the frames
+	 * @param height height of the frames
+	 * @param roi region of the histogram, the full frame if null
+	 */
+	public MaskedHistogram(int width, int height, Roi roi) {
+		this.width = width;
+		this.height = height;
+		runStart = new int[Math.max(height, 1)];
+		runLength = new int[Math.max(height, 1)];
+		if (roi == null) {
+			addRun(0, width * height);
+			return;
+		}
+		Rectangle r = roi.getBounds().intersection(new Rectangle(0, 0, width, height));
+		Rectangle bounds = roi.getBounds();
+		ImageProcessor mask = roi.getMask();
+		for (int y = r.y; y < r.y + r.height; y++) {
+			if (mask == null) {
+				addRun(y * width + r.x, r.width);
+				continue;
+			}
+			int my = y - bounds.y;
+			int start = -1;
+			for (int x = r.x; x < r.x + r.width; x++) {
+				boolean inside = mask.get(x - bounds.x, my) != 0;
+				if (inside && start < 0) {
+					start = x;
+				} else if (!inside && start >= 0) {
+					addRun(y * width + start, x - start);
+					start = -1;
+				}
+			}
+			if (start >= 0)
+				addRun(y * width + start, r.x + r.width - start);
+		}
+	}
+
+	/**
+	 * Region given as a mask instead of a ROI, e.g. for use without the
+	 * ImageJ GUI classes.
+	 *
+	 * @param width width of the frames
+	 * @param height height of the frames
+	 * @param mask width * height values, non-zero inside the region; the
+	 * full frame if null
+	 */
+	public MaskedHistogram(int width, int height, byte[] mask) {
+		this.width = width;
+		this.height = height;
+		runStart = new int[Math.max(height, 1)];
+		runLength = new int[Math.max(height, 1)];
+		if (mask == null) {
+			addRun(0, width * height);
+			return;
+		}
+		for (int y = 0; y < height; y++) {
+			int start = -1;
+			for (int x = 0; x < width; x++) {
+				boolean inside = mask[y * width + x] != 0;
+				if (inside && start < 0) {
+					start = x;
+				} else if (!inside && start >= 0) {
+					addRun(y * width + start, x - start);
+					start = -1;
+				}
+			}
+			if (start >= 0)
+				addRun(y * width + start, width - start);
+		}
+	}
+
+	MaskedHistogram(int width, int height) {
+		this.width = width;
+		this.height = height;
+		runStart = new int[Math.max(height, 1)];
+		runLength = new int[Math.max(height, 1)];
+	}
+
+	/**
+	 * Splits the region into interleaved halves, e.g. to estimate a
+	 * correction from one half and check it on the other.
+	 *
+	 * @param parity 0 for the even, 1 for the odd rows
+	 * @return region of the pixels of this region in the even or odd rows
+	 */
+	public MaskedHistogram getRows(int parity) {
+		MaskedHistogram rows = new MaskedHistogram(width, height);
+		for (int r = 0; r < numRuns; r++) {
+			int start = runStart[r];
+			int end = start + runLength[r];
+			while (start < end) {
+				int y = start / width;
+				int rowEnd = Math.min(end, (y + 1) * width);
+				if (y % 2 == parity)
+					rows.addRun(start, rowEnd - start);
+				start = rowEnd;
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * @return region of the pixels of this region inside the rectangle
+	 * x0 .. x1 - 1, y0 .. y1 - 1, e.g. a tile of a grid
+	 */
+	public MaskedHistogram getRectangle(int x0, int y0, int x1, int y1) {
+		MaskedHistogram rect = new MaskedHistogram(width, height);
+		for (int r = 0; r < numRuns; r++) {
+			int start = runStart[r];
+			int end = start + runLength[r];
+			while (start < end) {
+				int y = start / width;
+				int rowEnd = Math.min(end, (y + 1) * width);
+				if (y >= y0 && y < y1) {
+					int from = Math.max(start, y * width + x0);
+					int to = Math.min(rowEnd, y * width + x1);
+					rect.addRun(from, to - from);
+				}
+				start = rowEnd;
+			}
+		}
+		return rect;
+	}
+
+	/**
+	 * @return region of the pixels of the frame outside this region, e.g.
+	 * the background around a ROI
+	 */
+	public MaskedHistogram getComplement() {
+		MaskedHistogram rest = new MaskedHistogram(width, height);
+		int start = 0;
+		for (int r = 0; r < numRuns; r++) {
+			rest.addRun(start, runStart[r] - start);
+			start = runStart[r] + runLength[r];
+		}
+		rest.addRun(start, width * height - start);
+		return rest;
+	}
+
+	void addRun(int start, int length) {
+		if (length <= 0)
+			return;
+		pixelCount += length;
+		if (numRuns > 0 && runStart[numRuns - 1] + runLength[numRuns - 1] == start) {
+			runLength[numRuns - 1] += length; // contiguous with the previous run
+			return;
+		}
+		if (numRuns == runStart.length) {
+			runStart = Arrays.copyOf(runStart, numRuns * 2);
+			runLength = Arrays.copyOf(runLength, numRuns * 2);
+		}
+		runStart[numRuns] = start;
+		runLength[numRuns] = length;
+		numRuns++;
+	}
+
+	/**
+	 * @return number of pixels inside the ROI.
+	 */
+	public int getPixelCount() {
+		return pixelCount;
+	}
+
+	public int getNumRuns() {
+		return numRuns;
+	}
+
+	/**
+	 * @return hash of the frame size and the runs, identical for ROIs
+	 * covering the same pixels
+	 */
+	public long getHash() {
+		long h = 0xcbf29ce484222325L;
+		h = (h ^ width) * 0x100000001b3L;
+		h = (h ^ height) * 0x100000001b3L;
+		for (int r = 0; r < numRuns; r++) {
+			h = (h ^ runStart[r]) * 0x100000001b3L;
+			h = (h ^ runLength[r]) * 0x100000001b3L;
+		}
+		return h;
+	}
+
+	/**
+	 * @param pixels byte[] or short[] pixel array of a frame
+	 * @return new histogram with 256 or 65536 bins.
+	 */
+	public int[] getHistogram(Object pixels) {
+		int[] h = new int[(pixels instanceof byte[]) ? 256 : 65536];
+		return accumulate(pixels, h);
+	}
+
+	/**
+	 * Adds the counts of the masked pixels to an existing histogram.
+	 *
+	 * @param pixels byte[] or short[] pixel array of a frame
+	 * @param h histogram with 256 or 65536 bins
+	 * @return h
+	 */
+	public int[] accumulate(Object pixels, int[] h) {
+		if (pixels instanceof byte[]) {
+			byte[] p = (byte[]) pixels;
+			for (int r = 0; r < numRuns; r++) {
+				int end = runStart[r] + runLength[r];
+				for (int i = runStart[r]; i < end; i++)
+					h[p[i] & 0xff]++;
+			}
+		} else if (pixels instanceof short[]) {
+			short[] p = (short[]) pixels;
+			for (int r = 0; r < numRuns; r++) {
+				int end = runStart[r] + runLength[r];
+				for (int i = runStart[r]; i < end; i++)
+					h[p[i] & 0xffff]++;
+			}
+		} else {
+			throw new IllegalArgumentException("8 bit or 16 bit pixels required");
+		}
+		return h;
+	}
+}
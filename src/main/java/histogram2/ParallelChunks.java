@@ -0,0 +1,125 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package histogram2;
+
+import ij.util.ThreadUtil;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Runs a loop over n items as one job per thread, each job processing a
+ * contiguous chunk of the items. The ImageJ thread pool starts a thread
+ * per submitted job, so submitting one job per item would start as many
+ * threads as there are planes. Callers that must not use the ImageJ pool,
+ * e.g. a batch job that ends when main returns, pass their own executor.
+ */
+public abstract class ParallelChunks {
+
+	/**
+	 * Processes the items from (inclusive) to end (exclusive) in the
+	 * calling thread.
+	 */
+	protected abstract void process(int from, int end);
+
+	/**
+	 * Splits the items 0 to n - 1 into at most threads contiguous chunks
+	 * and processes them in parallel on the ImageJ thread pool. Returns
+	 * when all chunks are done.
+	 */
+	public void run(int n, int threads) {
+		run(n, threads, null);
+	}
+
+	/**
+	 * As run(n, threads), on the given executor.
+	 *
+	 * @param executor executor of the chunks, the ImageJ thread pool if null
+	 */
+	public void run(final int n, int threads, ExecutorService executor) {
+		final int chunks = Math.max(1, Math.min(n, threads));
+		if (chunks == 1) {
+			if (n > 0)
+				process(0, n);
+			return;
+		}
+		Callable[] jobs = new Callable[chunks];
+		for (int c = 0; c < chunks; c++) {
+			final int from = (int) ((long) n * c / chunks);
+			final int end = (int) ((long) n * (c + 1) / chunks);
+			jobs[c] = new Callable<Void>() {
+				@Override
+				public Void call() {
+					process(from, end);
+					return null;
+				}
+			};
+		}
+		for (Future f : startAndJoin(jobs, executor)) {
+			try {
+				if (f.isDone() && !f.isCancelled())
+					f.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof RuntimeException)
+					throw (RuntimeException) cause;
+				if (cause instanceof Error)
+					throw (Error) cause;
+				throw new RuntimeException(cause);
+			}
+		}
+	}
+
+	/**
+	 * Runs the jobs in parallel and waits for all of them, as
+	 * ThreadUtil.startAndJoin does on the ImageJ thread pool.
+	 *
+	 * @param executor executor of the jobs, the ImageJ thread pool if null
+	 * @return futures of the jobs, all done unless the calling thread was
+	 * interrupted; failures are left to the caller
+	 */
+	public static Future[] startAndJoin(Callable[] jobs, ExecutorService executor) {
+		if (executor == null)
+			return ThreadUtil.startAndJoin(jobs);
+		Future[] futures = new Future[jobs.length];
+		for (int i = 0; i < jobs.length; i++)
+			futures[i] = executor.submit(jobs[i]);
+		try {
+			for (Future f : futures) {
+				try {
+					f.get();
+				} catch (ExecutionException e) {
+					// see the future
+				}
+			}
+		} catch (InterruptedException e) {
+			for (Future f : futures)
+				f.cancel(true);
+			Thread.currentThread().interrupt();
+		}
+		return futures;
+	}
+}
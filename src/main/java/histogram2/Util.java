@@ -90,12 +90,16 @@ public class Util {
 
 	public static double[] Cdf (int[] h) {
 		// returns the cumul. probability distribution function (cdf) for histogram h
+		return Cdf(h, new double[h.length]);
+	}
+
+	public static double[] Cdf (int[] h, double[] P) {
+		// as Cdf(h), but fills P, e.g. an array of BufferPool
 		int K = h.length;
 		int n = 0;		// sum all histogram values
 		for (int i=0; i<K; i++)	{
 			n += h[i];
 		}
-		double[] P = new double[K];
 		int c = h[0];
 		P[0] = (double) c / n;
 	    for (int i=1; i<K; i++) {
@@ -0,0 +1,129 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package emblcmci;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import histogram2.MaskedHistogram;
+import ij.ImagePlus;
+import ij.gui.OvalRoi;
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+import ij.process.ImageStatistics;
+
+import org.junit.Test;
+
+public class BackgroundEstimatorTest {
+
+	@Test
+	public void testModeAsImageJ() {
+		ImagePlus imp = SyntheticStacks.create(48, 40, 8, 1, 2, 21);
+		for (int n = 1; n <= 2; n++) {
+			ImageProcessor ip = imp.getStack().getProcessor(n);
+			ImageStatistics is = ImageStatistics.getStatistics(ip, ImageStatistics.MODE, null);
+			PlaneStatistics ps = PlaneStatistics.measure(ip.getPixels(), new MaskedHistogram(48, 40, (Roi) null));
+			assertEquals(is.dmode, ps.getMode(), 0);
+		}
+	}
+
+	/**
+	 * A global automatic background must correct exactly as the same value
+	 * given as fixed baseline.
+	 */
+	@Test
+	public void testGlobalEqualsFixed() {
+		ImagePlus imp = SyntheticStacks.create(48, 40, 16, 1, 12, 22);
+		ImagePlus fixed = imp.duplicate();
+		BleachCorrection_SimpleRatio sr = new BleachCorrection_SimpleRatio(imp);
+		sr.setCache(new StatisticsCache(0));
+		sr.setBackgroundEstimator(new BackgroundEstimator(BackgroundEstimator.LOW_PERCENTILE, 5, false));
+		sr.correctBleach();
+		double[] baselines = sr.getBaselines();
+		for (double b : baselines)
+			assertEquals(baselines[0], b, 0);
+		assertTrue(baselines[0] > 0);
+
+		BleachCorrection_SimpleRatio srFixed = new BleachCorrection_SimpleRatio(fixed);
+		srFixed.setCache(new StatisticsCache(0));
+		srFixed.setSimpleRatioBaseline(baselines[0]);
+		srFixed.correctBleach();
+		assertEquals(SyntheticStacks.checksum(fixed), SyntheticStacks.checksum(imp));
+	}
+
+	/**
+	 * The background of the synthetic stack decays, so per frame baselines follow it.
+	 */
+	@Test
+	public void testPerFrame() {
+		ImagePlus imp = SyntheticStacks.create(48, 40, 16, 3, 10, 23);
+		PlaneStatistics[] stats = new StatisticsCache(0).getAll(imp.getStack(), new MaskedHistogram(48, 40, (Roi) null));
+		double[] baselines = new BackgroundEstimator(BackgroundEstimator.LOW_PERCENTILE, 5, true).estimate(stats, 3,
+				10);
+		assertEquals(10, baselines.length);
+		assertTrue(baselines[0] > baselines[9]);
+	}
+
+	@Test
+	public void testComplement() {
+		MaskedHistogram roi = new MaskedHistogram(48, 40, new OvalRoi(10, 8, 20, 16));
+		MaskedHistogram rest = roi.getComplement();
+		assertEquals(48 * 40, roi.getPixelCount() + rest.getPixelCount());
+		byte[] pixels = new byte[48 * 40];
+		int[] h = rest.accumulate(pixels, roi.getHistogram(pixels));
+		assertEquals(48 * 40, h[0]);
+		assertEquals(0, new MaskedHistogram(48, 40, (Roi) null).getComplement().getPixelCount());
+	}
+
+	/**
+	 * The background comes from the pixels outside the ROI, measured in
+	 * the same pass, not from the bright spot inside it.
+	 */
+	@Test
+	public void testOutsideRoi() {
+		ImagePlus imp = SyntheticStacks.create(48, 40, 16, 1, 12, 24);
+		Roi roi = new OvalRoi(9, 6, 10, 10); // the spot at 0.3, 0.3
+		MaskedHistogram mask = new MaskedHistogram(48, 40, roi);
+		BackgroundEstimator background = new BackgroundEstimator(BackgroundEstimator.LOW_PERCENTILE, 5, true);
+		PlaneStatistics[] outside = new StatisticsCache(0).getAll(imp.getStack(), mask.getComplement());
+		PlaneStatistics[] inside = new StatisticsCache(0).getAll(imp.getStack(), mask);
+		double[] expected = background.estimate(outside, 1, 12);
+		assertTrue(expected[0] < background.estimate(inside, 1, 12)[0]);
+
+		BleachCorrection_SimpleRatio sr = new BleachCorrection_SimpleRatio(imp.duplicate(), roi);
+		StatisticsCache cache = new StatisticsCache(0);
+		sr.setCache(cache);
+		sr.setBackgroundEstimator(background);
+		sr.correctBleach();
+		for (int t = 0; t < 12; t++)
+			assertEquals(expected[t], sr.getBaselines()[t], 0);
+		assertEquals(2 * 12, cache.getMisses()); // the ROI and the background region, each plane once
+
+		// measured by plan() if the caller did not
+		BleachCorrection_SimpleRatio late = new BleachCorrection_SimpleRatio(imp, roi);
+		late.setCache(new StatisticsCache(0));
+		late.setBackgroundEstimator(background);
+		late.plan(inside, 1, 12);
+		for (int t = 0; t < 12; t++)
+			assertEquals(expected[t], late.getBaselines()[t], 0);
+	}
+}
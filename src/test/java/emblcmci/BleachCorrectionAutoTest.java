@@ -0,0 +1,206 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package emblcmci;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import histogram2.MaskedHistogram;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Automatic selection between simple ratio, exponential fit and histogram
+ * matching, scored on the held-out rows of the ROI.
+ */
+public class BleachCorrectionAutoTest {
+
+	/**
+	 * Left half bright, right half dark, decaying with the given rate and
+	 * a random factor per frame; noise that does not decay.
+	 *
+	 * @param flicker largest relative change of a frame by the random factor
+	 */
+	static ImagePlus create(int bitDepth, double bright, double rate, double flicker, long seed) {
+		int width = 48, height = 40, frames = 20;
+		int max = (bitDepth == 8) ? 255 : 65535;
+		Random random = new Random(seed);
+		ImageStack stack = new ImageStack(width, height);
+		for (int t = 0; t < frames; t++) {
+			double f = Math.exp(-rate * t) * (1 + flicker * (2 * random.nextDouble() - 1));
+			ImageProcessor ip = (bitDepth == 8) ? new ByteProcessor(width, height) : new ShortProcessor(width, height);
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					double v = ((x < width / 2) ? bright : 10) * f + 3 * random.nextGaussian();
+					ip.set(x, y, (int) Math.max(0, Math.min(max, Math.round(v))));
+				}
+			}
+			stack.addSlice("t" + t, ip);
+		}
+		return new ImagePlus("auto", stack);
+	}
+
+	static BleachCorrection_Auto auto(ImagePlus imp) {
+		BleachCorrection_Auto auto = new BleachCorrection_Auto(imp);
+		auto.setCache(new StatisticsCache(0));
+		auto.quiet = true;
+		return auto;
+	}
+
+	@Test
+	public void testFlickerSelectsRatio() {
+		BleachCorrection_Auto auto = auto(create(16, 2000, 0.02, 0.1, 3));
+		auto.correctBleach();
+		assertEquals(BleachCorrection.SIMPLE_RATIO, auto.getSelectedMethod());
+		// the fit cannot follow the random factors
+		assertTrue(auto.getScores()[1] > 5 * auto.getScores()[0]);
+	}
+
+	@Test
+	public void testSmoothDecaySelectsFit() {
+		BleachCorrection_Auto auto = auto(create(16, 3000, 0.04, 0, 3));
+		auto.correctBleach();
+		assertEquals(BleachCorrection.EXPONENTIAL_FIT, auto.getSelectedMethod());
+		assertTrue(auto.getFitResult() != null);
+	}
+
+	/**
+	 * Ratio and fit amplify the noise of the dim late frames beyond 255.
+	 */
+	@Test
+	public void testSaturationSelectsMatching() {
+		BleachCorrection_Auto auto = auto(create(8, 235, 0.12, 0, 3));
+		auto.correctBleach();
+		assertEquals(BleachCorrection.HISTOGRAM_MATCHING, auto.getSelectedMethod());
+		assertTrue(auto.getScores()[0] > 0.1 && auto.getScores()[1] > 0.1);
+		assertTrue(auto.getQualityReport().getMaxSaturatedFraction() < 0.01);
+	}
+
+	/**
+	 * The selected method is planned again from the statistics of the
+	 * whole ROI, so the result is that of the method alone.
+	 */
+	@Test
+	public void testSameAsSelectedMethod() {
+		ImagePlus[] images = { create(16, 2000, 0.02, 0.1, 3), create(16, 3000, 0.04, 0, 3),
+				create(8, 235, 0.12, 0, 3) };
+		for (ImagePlus imp : images) {
+			imp.setRoi(new Roi(4, 3, 40, 33));
+			BleachCorrection_Auto auto = new BleachCorrection_Auto(imp.duplicate(), imp.getRoi());
+			auto.quiet = true;
+			auto.correctBleach();
+			ImageStack expected = BleachEngineTest.plugin(imp, auto.getSelectedMethod());
+			BleachEngineTest.assertSameStack(expected, BleachEngineTest.plugin(imp, BleachCorrection.AUTO));
+		}
+	}
+
+	@Test
+	public void testStreamed() throws IOException {
+		ImagePlus imp = create(8, 235, 0.12, 0, 5);
+		ImageStack out = new ImageStack(48, 40, imp.getStackSize());
+		int method = BleachCorrection.getCorrectionMethod();
+		try {
+			BleachCorrection.setCorrectionMethod(BleachCorrection.AUTO);
+			BleachCorrection bc = new BleachCorrection();
+			bc.setHeadlessProcessing(true);
+			bc.setUseSidecar(false);
+			ImagePlus corrected = bc.doCorrection(imp);
+			assertTrue(bc.correctTo(imp, BleachPipeline.toStack(out)));
+			assertEquals(SyntheticStacks.checksum(corrected), SyntheticStacks.checksum(new ImagePlus("out", out)));
+		} finally {
+			BleachCorrection.setCorrectionMethod(method);
+		}
+	}
+
+	@Test
+	public void testEngine() {
+		ImagePlus imp = create(16, 2000, 0.02, 0.1, 7);
+		ImageStack expected = BleachEngineTest.plugin(imp, BleachCorrection.AUTO);
+		ImageStack stack = imp.duplicate().getStack();
+		BleachEngine engine = new BleachEngine(BleachCorrection.AUTO);
+		assertTrue(engine.correct(stack, 1));
+		BleachEngineTest.assertSameStack(expected, stack);
+		assertEquals(BleachCorrection.SIMPLE_RATIO, engine.getSelectedMethod());
+		assertEquals(3, engine.getScores().length);
+	}
+
+	/**
+	 * The halves of a region cover it exactly, and their statistics
+	 * combine into those of the region.
+	 */
+	@Test
+	public void testHalves() {
+		ImagePlus imp = create(8, 200, 0.05, 0, 1);
+		imp.setRoi(new Roi(5, 2, 30, 25));
+		MaskedHistogram mask = new MaskedHistogram(48, 40, imp.getRoi());
+		MaskedHistogram[] halves = BleachCorrection_Auto.halves(mask);
+		assertEquals(2, halves.length);
+		assertEquals(30 * 13, halves[0].getPixelCount());
+		assertEquals(30 * 12, halves[1].getPixelCount());
+		Object pixels = imp.getStack().getPixels(4);
+		PlaneStatistics all = PlaneStatistics.measure(pixels, mask);
+		PlaneStatistics combined = PlaneStatistics.combine(PlaneStatistics.measure(pixels, halves[0]),
+				PlaneStatistics.measure(pixels, halves[1]));
+		assertEquals(all.getSum(), combined.getSum());
+		assertEquals(all.getMin(), combined.getMin());
+		assertEquals(all.getMax(), combined.getMax());
+		assertArrayEquals(all.accumulate(new int[256]), combined.accumulate(new int[256]));
+		// a single row cannot be split
+		assertEquals(1, BleachCorrection_Auto.halves(new MaskedHistogram(48, 40, new Roi(0, 7, 48, 1))).length);
+	}
+
+	/**
+	 * The statistics pass and the candidates step the progress, and ESC
+	 * stops the selection before any pixel is changed.
+	 */
+	@Test
+	public void testProgressAndCancel() {
+		ImagePlus imp = create(16, 3000, 0.04, 0, 4);
+		BleachCorrection_Auto auto = auto(imp);
+		BleachProgress progress = new BleachProgress(false);
+		auto.setProgress(progress);
+		auto.correctBleach();
+		assertTrue(progress.getDone() >= 20 + 3 + 20); // planes, candidates, applied time points
+		assertEquals(progress.getTotal(), progress.getDone());
+
+		imp = create(16, 3000, 0.04, 0, 4);
+		String before = SyntheticStacks.checksum(imp);
+		auto = auto(imp);
+		progress = new BleachProgress(false);
+		progress.cancel();
+		auto.setProgress(progress);
+		assertNull(auto.correctBleach());
+		assertEquals(0, progress.getDone());
+		assertEquals(before, SyntheticStacks.checksum(imp));
+	}
+}
@@ -0,0 +1,173 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package emblcmci;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Properties;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+/**
+ * Pins the exact output of simple ratio, exponential fit and histogram
+ * matching on synthetic 8 and 16 bit, 2D+t and 3D+t stacks, with and
+ * without ROI.
+ *
+ * The expected checksums are in golden-outputs.properties. After an
+ * intended change of the output, run with -Dbleach.golden.record=true and
+ * copy target/golden-outputs.properties over it.
+ */
+@RunWith(Parameterized.class)
+public class BleachCorrectionGoldenTest {
+
+	static final String[] METHODS = { "ratio", "expofit", "mh" };
+	static final boolean RECORD = Boolean.getBoolean("bleach.golden.record");
+
+	static Properties golden = new Properties();
+	static Properties recorded = new Properties();
+
+	@Parameters(name = "{0}")
+	public static Collection<Object[]> cases() {
+		Collection<Object[]> cases = new ArrayList<Object[]>();
+		for (int method = 0; method < METHODS.length; method++)
+			for (int bitDepth : new int[] { 8, 16 })
+				for (int slices : new int[] { 1, 3 })
+					for (boolean roi : new boolean[] { false, true }) {
+						String key = METHODS[method] + "." + bitDepth + "bit." + (slices == 1 ? "2d" : "3d")
+								+ (roi ? ".roi" : "");
+						cases.add(new Object[] { key, method, bitDepth, slices, roi });
+					}
+		return cases;
+	}
+
+	String key;
+	int method;
+	int bitDepth;
+	int slices;
+	boolean roi;
+
+	public BleachCorrectionGoldenTest(String key, int method, int bitDepth, int slices, boolean roi) {
+		this.key = key;
+		this.method = method;
+		this.bitDepth = bitDepth;
+		this.slices = slices;
+		this.roi = roi;
+	}
+
+	@BeforeClass
+	public static void loadGolden() throws IOException {
+		InputStream in = BleachCorrectionGoldenTest.class.getResourceAsStream("golden-outputs.properties");
+		assertNotNull("golden-outputs.properties not found", in);
+		try {
+			golden.load(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	@AfterClass
+	public static void writeRecorded() throws IOException {
+		if (!RECORD)
+			return;
+		File f = new File("target/golden-outputs.properties");
+		f.getParentFile().mkdirs();
+		OutputStream out = new FileOutputStream(f);
+		try {
+			recorded.store(out, "checksums of BleachCorrectionGoldenTest");
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @param method index into METHODS
+	 * @param cache statistics cache of the correction
+	 * @return imp, corrected in place
+	 */
+	static ImagePlus correct(ImagePlus imp, int method, Roi roi, StatisticsCache cache) {
+		if (method == 0) {
+			BleachCorrection_SimpleRatio sr = (roi == null) ? new BleachCorrection_SimpleRatio(imp)
+					: new BleachCorrection_SimpleRatio(imp, roi);
+			sr.setSimpleRatioBaseline(imp.getBitDepth() == 8 ? 5.5 : 90.0);
+			sr.setCache(cache);
+			sr.correctBleach();
+		} else if (method == 1) {
+			BleachCorrection_ExpoFit ef = (roi == null) ? new BleachCorrection_ExpoFit(imp)
+					: new BleachCorrection_ExpoFit(imp, roi);
+			ef.setHeadlessProcessing(true);
+			ef.setCache(cache);
+			ef.core();
+		} else {
+			BleachCorrection_MH mh = (roi == null) ? new BleachCorrection_MH(imp) : new BleachCorrection_MH(imp, roi);
+			mh.setCache(cache);
+			mh.doCorrection();
+		}
+		return imp;
+	}
+
+	ImagePlus createStack() {
+		// histogram matching of 16 bit is slow, so that stack has only a few time points
+		int frames = (method == 2 && bitDepth == 16) ? 3 : (slices == 1 ? 24 : 10);
+		return SyntheticStacks.create(48, 40, bitDepth, slices, frames, 42);
+	}
+
+	@Test
+	public void testOutput() {
+		ImagePlus imp = createStack();
+		correct(imp, method, roi ? SyntheticStacks.roi(imp) : null, new StatisticsCache(0));
+		String checksum = SyntheticStacks.checksum(imp);
+		if (RECORD) {
+			recorded.setProperty(key, checksum);
+			return;
+		}
+		assertEquals(key, golden.getProperty(key), checksum);
+	}
+
+	/**
+	 * Statistics taken from the cache must give the same output as measured ones.
+	 */
+	@Test
+	public void testCachedOutput() {
+		StatisticsCache cache = new StatisticsCache(1 << 24);
+		ImagePlus imp = createStack();
+		Roi r = roi ? SyntheticStacks.roi(imp) : null;
+		String first = SyntheticStacks.checksum(correct(imp.duplicate(), method, r, cache));
+		String second = SyntheticStacks.checksum(correct(imp.duplicate(), method, r, cache));
+		assertEquals(key, first, second);
+	}
+}
@@ -0,0 +1,259 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package emblcmci;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileSaver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Requests to the service on localhost must give the same output as the
+ * correction in the same process.
+ */
+public class BleachCorrectionServiceTest {
+
+	static BleachCorrectionService service;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@BeforeClass
+	public static void startService() throws IOException {
+		service = new BleachCorrectionService(0);
+		service.start();
+	}
+
+	@AfterClass
+	public static void stopService() {
+		service.stop();
+	}
+
+	@Test
+	public void testRawPlanes() throws IOException {
+		ImagePlus imp = SyntheticStacks.create(48, 40, 16, 3, 6, 41);
+		ImagePlus expected = BleachCorrectionGoldenTest.correct(imp.duplicate(), 0, null, new StatisticsCache(0));
+		ImagePlus result = post("width=48&height=40&bitDepth=16&slices=3&frames=6&method=ratio&baseline=90", imp);
+		assertEquals(3, result.getNSlices());
+		assertEquals(SyntheticStacks.checksum(expected), SyntheticStacks.checksum(result));
+	}
+
+	@Test
+	public void testPath() throws IOException {
+		ImagePlus imp = SyntheticStacks.create(48, 40, 8, 1, 12, 42);
+		File f = new File(folder.getRoot(), "stack.tif");
+		new FileSaver(imp).saveAsTiffStack(f.getPath());
+		ImagePlus expected = BleachCorrectionGoldenTest.correct(imp.duplicate(), 1, null, new StatisticsCache(0));
+		ImagePlus result = post("method=expofit&path=" + URLEncoder.encode(f.getPath(), "UTF-8"), null);
+		assertEquals(SyntheticStacks.checksum(expected), SyntheticStacks.checksum(result));
+	}
+
+	@Test
+	public void testConcurrentRequests() throws Exception {
+		final ImagePlus imp = SyntheticStacks.create(48, 40, 8, 1, 12, 43);
+		ImagePlus expected = BleachCorrectionGoldenTest.correct(imp.duplicate(), 2, null, new StatisticsCache(0));
+		ExecutorService clients = Executors.newFixedThreadPool(6);
+		List<Future<ImagePlus>> results = new ArrayList<Future<ImagePlus>>();
+		long batches = service.getBatchCount();
+		for (int i = 0; i < 6; i++) {
+			results.add(clients.submit(new Callable<ImagePlus>() {
+				@Override
+				public ImagePlus call() throws IOException {
+					return post("width=48&height=40&frames=12&method=mh", imp);
+				}
+			}));
+		}
+		for (Future<ImagePlus> f : results)
+			assertEquals(SyntheticStacks.checksum(expected), SyntheticStacks.checksum(f.get()));
+		clients.shutdown();
+		assertTrue(service.getBatchCount() - batches <= 6);
+	}
+
+	@Test
+	public void testBadRequest() throws IOException {
+		HttpURLConnection c = open("width=48&frames=2&bitDepth=12");
+		c.getOutputStream().close();
+		assertEquals(400, c.getResponseCode());
+		c.disconnect();
+	}
+
+	@Test
+	public void testTooLarge() throws IOException {
+		HttpURLConnection c = open("width=100000&height=100000&bitDepth=16&slices=1000&frames=100000");
+		c.getOutputStream().close();
+		assertEquals(400, c.getResponseCode());
+		c.disconnect();
+
+		BleachCorrectionService small = new BleachCorrectionService(0);
+		small.setMaxRequestBytes(48 * 40 * 2);
+		small.start();
+		try {
+			c = open(small, "width=48&height=40&frames=3");
+			c.getOutputStream().close();
+			assertEquals(400, c.getResponseCode());
+			c.disconnect();
+		} finally {
+			small.stop();
+		}
+	}
+
+	@Test
+	public void testStop() throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final BleachCorrectionService blocking = new BleachCorrectionService(0) {
+			@Override
+			ImagePlus correct(Job job) {
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					return null;
+				}
+				return super.correct(job);
+			}
+		};
+		blocking.setBatchSize(1);
+		blocking.start();
+		final ImagePlus imp = SyntheticStacks.create(48, 40, 8, 1, 12, 44);
+		ImagePlus expected = BleachCorrectionGoldenTest.correct(imp.duplicate(), 2, null, new StatisticsCache(0));
+		ExecutorService clients = Executors.newFixedThreadPool(3);
+		Future<ImagePlus> running = clients.submit(new Callable<ImagePlus>() {
+			@Override
+			public ImagePlus call() throws IOException {
+				return post(blocking, "width=48&height=40&frames=12&method=mh", imp, 200);
+			}
+		});
+		started.await();
+		Future<ImagePlus> waiting = clients.submit(new Callable<ImagePlus>() {
+			@Override
+			public ImagePlus call() throws IOException {
+				return post(blocking, "width=48&height=40&frames=12&method=mh", imp, 503);
+			}
+		});
+		while (blocking.queue.isEmpty())
+			Thread.sleep(10);
+		Future<?> stopped = clients.submit(new Runnable() {
+			@Override
+			public void run() {
+				blocking.stop();
+			}
+		});
+		assertNull(waiting.get()); // failed while the first one is still running
+		assertFalse(stopped.isDone());
+		release.countDown();
+		assertEquals(SyntheticStacks.checksum(expected), SyntheticStacks.checksum(running.get()));
+		stopped.get();
+		clients.shutdown();
+	}
+
+	static HttpURLConnection open(String query) throws IOException {
+		return open(service, query);
+	}
+
+	static HttpURLConnection open(BleachCorrectionService service, String query) throws IOException {
+		URL url = new URL("http://localhost:" + service.getPort() + "/correct?" + query);
+		HttpURLConnection c = (HttpURLConnection) url.openConnection();
+		c.setRequestMethod("POST");
+		c.setDoOutput(true);
+		return c;
+	}
+
+	/**
+	 * @param imp planes to send, null for none
+	 * @return image of the response
+	 */
+	static ImagePlus post(String query, ImagePlus imp) throws IOException {
+		return post(service, query, imp, 200);
+	}
+
+	/**
+	 * @return image of the response, null if status is not 200 as expected
+	 */
+	static ImagePlus post(BleachCorrectionService service, String query, ImagePlus imp, int status)
+			throws IOException {
+		HttpURLConnection c = open(service, query);
+		OutputStream out = c.getOutputStream();
+		if (imp != null)
+			out.write(raw(imp));
+		out.close();
+		assertEquals(status, c.getResponseCode());
+		if (status != 200) {
+			c.disconnect();
+			return null;
+		}
+		int width = c.getHeaderFieldInt("X-Width", 0);
+		int height = c.getHeaderFieldInt("X-Height", 0);
+		int bitDepth = c.getHeaderFieldInt("X-Bit-Depth", 0);
+		int slices = c.getHeaderFieldInt("X-Slices", 0);
+		int frames = c.getHeaderFieldInt("X-Frames", 0);
+		InputStream in = c.getInputStream();
+		ImagePlus result = BleachCorrectionService.readPlanes(new DataInputStream(in), width, height, bitDepth,
+				slices, frames);
+		assertEquals(-1, in.read());
+		in.close();
+		return result;
+	}
+
+	static byte[] raw(ImagePlus imp) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		ImageStack stack = imp.getStack();
+		for (int n = 1; n <= stack.getSize(); n++) {
+			Object pixels = stack.getPixels(n);
+			if (pixels instanceof byte[])
+				out.write((byte[]) pixels);
+			else
+				for (short v : (short[]) pixels)
+					out.writeShort(v);
+		}
+		return bytes.toByteArray();
+	}
+}
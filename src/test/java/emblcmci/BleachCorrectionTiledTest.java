@@ -0,0 +1,152 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package emblcmci;
+
+import static org.junit.Assert.assertEquals;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.process.ShortProcessor;
+
+import org.junit.Test;
+
+/**
+ * The gain field must follow a bleaching that varies in space, and one
+ * tile must give the simple ratio correction.
+ */
+public class BleachCorrectionTiledTest {
+
+	static final int LEVEL = 20000;
+
+	@Test
+	public void testKnownPattern() {
+		final int tilesX = 4, tilesY = 2, frames = 10;
+		ImagePlus imp = pattern(64, 32, tilesX, tilesY, frames, null);
+		BleachCorrection_Tiled BCT = new BleachCorrection_Tiled(imp, tilesX, tilesY);
+		BCT.correctBleach();
+		double[][] gains = BCT.getTileGains();
+		for (int t = 0; t < frames; t++)
+			for (int k = 0; k < tilesX * tilesY; k++)
+				assertEquals(1 / decay(k, t), gains[t][k], 1e-3 * gains[t][k]);
+		// the corners are outside the tile centers, their gain is that of the corner tile
+		ImageStack stack = imp.getStack();
+		for (int n = 1; n <= frames; n++) {
+			ShortProcessor ip = (ShortProcessor) stack.getProcessor(n);
+			assertEquals(LEVEL, ip.get(0, 0), 2);
+			assertEquals(LEVEL, ip.get(63, 0), 2);
+			assertEquals(LEVEL, ip.get(0, 31), 2);
+			assertEquals(LEVEL, ip.get(63, 31), 2);
+		}
+	}
+
+	/**
+	 * Acquisition times instead of frame numbers, the exponential fit
+	 * must recover the decay at each time.
+	 */
+	@Test
+	public void testTimestamps() {
+		double[] times = { 0, 1, 2, 5, 9, 14, 20, 27 };
+		ImagePlus imp = pattern(32, 32, 1, 1, times.length, times);
+		imp.setProperty(FrameTimes.PROPERTY, times);
+		BleachCorrection_Tiled BCT = new BleachCorrection_Tiled(imp, 1, 1);
+		BCT.setTileMethod(BleachCorrection_Tiled.TILE_EXPONENTIAL_FIT);
+		BCT.correctBleach();
+		for (int t = 0; t < times.length; t++)
+			assertEquals(Math.exp(0.02 * times[t]), BCT.getTileGains()[t][0], 1e-3 * Math.exp(0.02 * times[t]));
+	}
+
+	/**
+	 * Tiles without ROI pixels take the gains of the whole ROI.
+	 */
+	@Test
+	public void testOutsideRoi() {
+		ImagePlus imp = pattern(64, 32, 2, 1, 6, null);
+		BleachCorrection_Tiled BCT = new BleachCorrection_Tiled(imp, 2, 1);
+		BCT.setRoi(new Roi(4, 4, 20, 20));
+		BCT.correctBleach();
+		for (int t = 0; t < 6; t++) {
+			assertEquals(1 / decay(0, t), BCT.getTileGains()[t][0], 1e-3 * BCT.getTileGains()[t][0]);
+			assertEquals(BCT.getTileGains()[t][0], BCT.getTileGains()[t][1], 0);
+		}
+	}
+
+	@Test
+	public void testSingleTileIsSimpleRatio() {
+		compareSimpleRatio(8, null, null, new IntensityEstimator());
+		compareSimpleRatio(16, new BackgroundEstimator(BackgroundEstimator.LOW_PERCENTILE, 5, true),
+				new BleachReference(BleachReference.MEAN_OF_FIRST_N, 3, 0),
+				new IntensityEstimator(IntensityEstimator.MEDIAN, 0));
+	}
+
+	void compareSimpleRatio(int bitDepth, BackgroundEstimator background, BleachReference reference,
+			IntensityEstimator estimator) {
+		ImagePlus imp = SyntheticStacks.create(48, 40, bitDepth, 2, 8, 51);
+		Roi roi = SyntheticStacks.roi(imp);
+		ImagePlus expected = imp.duplicate();
+		BleachCorrection_SimpleRatio BCSR = new BleachCorrection_SimpleRatio(expected, roi);
+		BCSR.setCache(new StatisticsCache(0));
+		BCSR.setSimpleRatioBaseline(bitDepth == 8 ? 5.5 : 90.0);
+		BCSR.setBackgroundEstimator(background);
+		BCSR.setIntensityEstimator(estimator);
+		if (reference != null)
+			BCSR.setReference(reference);
+		BCSR.correctBleach();
+
+		BleachCorrection_Tiled BCT = new BleachCorrection_Tiled(imp, 1, 1);
+		BCT.setRoi(roi);
+		BCT.setSimpleRatioBaseline(bitDepth == 8 ? 5.5 : 90.0);
+		BCT.setBackgroundEstimator(background);
+		BCT.setIntensityEstimator(estimator);
+		if (reference != null)
+			BCT.setReference(reference);
+		BCT.correctBleach();
+		assertEquals(SyntheticStacks.checksum(expected), SyntheticStacks.checksum(imp));
+	}
+
+	/**
+	 * @return decay of tile k at time t of the pattern
+	 */
+	static double decay(int k, double t) {
+		return Math.exp(-(0.02 + 0.02 * k) * t);
+	}
+
+	/**
+	 * Uniform 16 bit stack whose tiles, of the same grid as the tiled
+	 * correction, decay with their own rate.
+	 *
+	 * @param times time of each frame, null for the frame numbers
+	 */
+	static ImagePlus pattern(int width, int height, int tilesX, int tilesY, int frames, double[] times) {
+		ImageStack stack = new ImageStack(width, height);
+		for (int t = 0; t < frames; t++) {
+			ShortProcessor ip = new ShortProcessor(width, height);
+			for (int y = 0; y < height; y++)
+				for (int x = 0; x < width; x++) {
+					int k = (y * tilesY / height) * tilesX + x * tilesX / width;
+					ip.set(x, y, (int) Math.round(LEVEL * decay(k, (times == null) ? t : times[t])));
+				}
+			stack.addSlice(ip);
+		}
+		return new ImagePlus("pattern", stack);
+	}
+}
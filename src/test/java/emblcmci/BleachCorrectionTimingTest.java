@@ -0,0 +1,132 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package emblcmci;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import ij.ImagePlus;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Timing budgets: each method must not get slower than its baseline in
+ * timing-baselines.properties by more than the margin (1.5 by default, set
+ * with -Dbleach.timing.margin=2.0). The time is the best of a few runs
+ * after a warm-up run.
+ *
+ * Baselines depend on the machine, so these tests are skipped unless run
+ * with -Dbleach.timing=true. Record new baselines with
+ * -Dbleach.timing.record=true and copy target/timing-baselines.properties.
+ */
+public class BleachCorrectionTimingTest {
+
+	static final int RUNS = 3;
+	static final long SLACK_MS = 20; // absorbs timer and scheduling noise of short runs
+	static final boolean RECORD = Boolean.getBoolean("bleach.timing.record");
+
+	static Properties baselines = new Properties();
+	static Properties recorded = new Properties();
+	static double margin;
+
+	@BeforeClass
+	public static void loadBaselines() throws IOException {
+		assumeTrue(Boolean.getBoolean("bleach.timing") || RECORD);
+		margin = Double.parseDouble(System.getProperty("bleach.timing.margin", "1.5"));
+		InputStream in = BleachCorrectionTimingTest.class.getResourceAsStream("timing-baselines.properties");
+		assertNotNull("timing-baselines.properties not found", in);
+		try {
+			baselines.load(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	@AfterClass
+	public static void writeRecorded() throws IOException {
+		if (!RECORD)
+			return;
+		File f = new File("target/timing-baselines.properties");
+		f.getParentFile().mkdirs();
+		OutputStream out = new FileOutputStream(f);
+		try {
+			recorded.store(out, "best time in ms of BleachCorrectionTimingTest");
+		} finally {
+			out.close();
+		}
+	}
+
+	void checkTiming(String key, int method, int bitDepth, int slices, int frames) {
+		ImagePlus imp = SyntheticStacks.create(256, 256, bitDepth, slices, frames, 7);
+		BleachCorrectionGoldenTest.correct(imp.duplicate(), method, null, new StatisticsCache(0));
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < RUNS; i++) {
+			ImagePlus dup = imp.duplicate();
+			long start = System.nanoTime();
+			BleachCorrectionGoldenTest.correct(dup, method, null, new StatisticsCache(0));
+			best = Math.min(best, (System.nanoTime() - start) / 1000000);
+		}
+		if (RECORD) {
+			recorded.setProperty(key, Long.toString(best));
+			return;
+		}
+		String baseline = baselines.getProperty(key);
+		assertNotNull("no baseline for " + key, baseline);
+		long budget = (long) (Long.parseLong(baseline) * margin) + SLACK_MS;
+		assertTrue(key + " took " + best + " ms, budget " + budget + " ms", best <= budget);
+	}
+
+	@Test
+	public void testSimpleRatio8bit() {
+		checkTiming("ratio.8bit.2d", 0, 8, 1, 60);
+	}
+
+	@Test
+	public void testSimpleRatio16bit3D() {
+		checkTiming("ratio.16bit.3d", 0, 16, 4, 15);
+	}
+
+	@Test
+	public void testExpoFit8bit() {
+		checkTiming("expofit.8bit.2d", 1, 8, 1, 60);
+	}
+
+	@Test
+	public void testExpoFit16bit3D() {
+		checkTiming("expofit.16bit.3d", 1, 16, 4, 15);
+	}
+
+	@Test
+	public void testHistogramMatching8bit() {
+		checkTiming("mh.8bit.2d", 2, 8, 1, 60);
+	}
+}
@@ -0,0 +1,229 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package emblcmci;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.view.Views;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * The lazily corrected view must give the same pixels as the correction
+ * of an ImagePlus.
+ */
+public class BleachCorrectionViewTest {
+
+	@After
+	public void resetMethod() {
+		BleachCorrection.setCorrectionMethod(BleachCorrection.SIMPLE_RATIO);
+	}
+
+	@Test
+	public void testSimpleRatio() {
+		compare(BleachCorrection.SIMPLE_RATIO, 0, 8, 1, true);
+		compare(BleachCorrection.SIMPLE_RATIO, 0, 16, 3, false);
+	}
+
+	@Test
+	public void testExponentialFit() {
+		compare(BleachCorrection.EXPONENTIAL_FIT, 1, 8, 3, false);
+		compare(BleachCorrection.EXPONENTIAL_FIT, 1, 16, 1, true);
+	}
+
+	@Test
+	public void testHistogramMatching() {
+		compare(BleachCorrection.HISTOGRAM_MATCHING, 2, 8, 1, true);
+	}
+
+	@Test
+	public void testHistogramMatchingPerSlice() {
+		ImagePlus imp = SyntheticStacks.create(48, 40, 8, 3, 6, 8);
+		BleachCorrection.setCorrectionMethod(BleachCorrection.HISTOGRAM_MATCHING);
+		BleachCorrection settings = new BleachCorrection();
+		settings.setHistogramMatchingPerSlice(true);
+		BleachCorrectionView bcv = new BleachCorrectionView(settings);
+		bcv.setCache(new StatisticsCache(0));
+		RandomAccessibleInterval corrected = bcv.correct(wrap(imp.duplicate()));
+
+		BleachCorrection_MH mh = new BleachCorrection_MH(imp);
+		mh.setCache(new StatisticsCache(0));
+		mh.setPerSliceReference(true);
+		mh.doCorrection();
+		assertEquals(SyntheticStacks.checksum(imp), checksum(corrected, imp));
+	}
+
+	@Test
+	public void testAuto() {
+		ImagePlus imp = SyntheticStacks.create(48, 40, 16, 3, 10, 7);
+		BleachCorrection.setCorrectionMethod(BleachCorrection.AUTO);
+		BleachCorrection settings = new BleachCorrection();
+		BleachCorrectionView bcv = new BleachCorrectionView(settings);
+		bcv.setCache(new StatisticsCache(0));
+		RandomAccessibleInterval corrected = bcv.correct(wrap(imp.duplicate()));
+
+		BleachCorrection_Auto auto = new BleachCorrection_Auto(imp);
+		auto.setCache(new StatisticsCache(0));
+		auto.quiet = true;
+		auto.correctBleach();
+		assertEquals(SyntheticStacks.checksum(imp), checksum(corrected, imp));
+	}
+
+	@Test
+	public void testTiledNotSupported() {
+		BleachCorrection.setCorrectionMethod(BleachCorrection.TILED);
+		ImagePlus imp = SyntheticStacks.create(16, 16, 8, 1, 4, 1);
+		assertNull(new BleachCorrectionView(new BleachCorrection()).correct(wrap(imp)));
+	}
+
+	@Test
+	public void testSettingsUnchanged() {
+		BleachCorrection.setCorrectionMethod(BleachCorrection.HISTOGRAM_MATCHING);
+		ImagePlus imp = SyntheticStacks.create(48, 40, 8, 1, 6, 3);
+		BleachCorrection settings = new BleachCorrection();
+		BleachCorrectionView bcv = new BleachCorrectionView(settings);
+		bcv.setRoi(SyntheticStacks.roi(imp));
+		bcv.setCache(new StatisticsCache(0));
+		bcv.correct(wrap(imp));
+		assertFalse(settings.doHeadLess);
+		assertNull(settings.curROI);
+	}
+
+	@Test
+	public void testMappingsOnAccess() {
+		ImagePlus imp = SyntheticStacks.create(16, 12, 8, 1, 20, 5);
+		final AtomicInteger computed = new AtomicInteger();
+		CorrectionPlan plan = new CorrectionPlan(8, 1, 20) {
+			@Override
+			public int[] getMapping(int t) {
+				computed.incrementAndGet();
+				int[] map = new int[256];
+				for (int v = 0; v < 256; v++)
+					map[v] = (v + t) & 0xff;
+				return map;
+			}
+		};
+		RandomAccessibleInterval<UnsignedByteType> view = BleachCorrectionView.view(wrap(imp), plan);
+		assertEquals(0, computed.get());
+		RandomAccess<UnsignedByteType> ra = view.randomAccess();
+		ra.setPosition(new long[] { 3, 4, 7 });
+		int source = ((byte[]) imp.getStack().getPixels(8))[4 * 16 + 3] & 0xff;
+		assertEquals((source + 7) & 0xff, ra.get().getInteger());
+		assertEquals(1, computed.get());
+
+		// all frames once, then again: only the last ones are kept
+		checksum(view, imp);
+		checksum(view, imp);
+		assertTrue(computed.get() <= 1 + 2 * 20);
+	}
+
+	@Test
+	public void testFactorPlan() {
+		ImagePlus imp = SyntheticStacks.create(24, 20, 16, 2, 5, 9);
+		double[] factors = { 1.0, 1.3, 2.7, 0.5, 40.0 };
+		double[] offsets = { 0, -12, 7, 0, 3 };
+		CorrectionPlan.FactorPlan plan = CorrectionPlan.ofFactors(16, 2, factors, offsets);
+		RandomAccessibleInterval corrected = BleachCorrectionView.view(wrap(imp), plan);
+		ImagePlus expected = imp.duplicate();
+		plan.applyTo(expected.getStack(), new BleachProgress(false));
+		assertEquals(SyntheticStacks.checksum(expected), checksum(corrected, imp));
+	}
+
+	/**
+	 * @param method correction method of BleachCorrection
+	 * @param goldenMethod the same method as index of BleachCorrectionGoldenTest.METHODS
+	 */
+	void compare(int method, int goldenMethod, int bitDepth, int slices, boolean withRoi) {
+		ImagePlus imp = SyntheticStacks.create(48, 40, bitDepth, slices, slices == 1 ? 24 : 10, 7);
+		Roi roi = withRoi ? SyntheticStacks.roi(imp) : null;
+		RandomAccessibleInterval source = wrap(imp.duplicate());
+
+		BleachCorrection.setCorrectionMethod(method);
+		BleachCorrection settings = new BleachCorrection();
+		settings.setSimpleRatioBaseline(bitDepth == 8 ? 5.5 : 90.0);
+		BleachCorrectionView bcv = new BleachCorrectionView(settings);
+		bcv.setRoi(roi);
+		bcv.setCache(new StatisticsCache(0));
+		RandomAccessibleInterval corrected = bcv.correct(source);
+
+		BleachCorrectionGoldenTest.correct(imp, goldenMethod, roi, new StatisticsCache(0));
+		assertEquals(SyntheticStacks.checksum(imp), checksum(corrected, imp));
+	}
+
+	/**
+	 * @return the stack as X, Y, [Z,] T image sharing no pixels with imp
+	 */
+	static RandomAccessibleInterval wrap(ImagePlus imp) {
+		ImageStack stack = imp.getStack();
+		int plane = stack.getWidth() * stack.getHeight();
+		long[] dims = (imp.getNSlices() > 1)
+				? new long[] { stack.getWidth(), stack.getHeight(), imp.getNSlices(), imp.getNFrames() }
+				: new long[] { stack.getWidth(), stack.getHeight(), stack.getSize() };
+		if (imp.getBitDepth() == 8) {
+			byte[] pixels = new byte[plane * stack.getSize()];
+			for (int n = 0; n < stack.getSize(); n++)
+				System.arraycopy(stack.getPixels(n + 1), 0, pixels, n * plane, plane);
+			return ArrayImgs.unsignedBytes(pixels, dims);
+		}
+		short[] pixels = new short[plane * stack.getSize()];
+		for (int n = 0; n < stack.getSize(); n++)
+			System.arraycopy(stack.getPixels(n + 1), 0, pixels, n * plane, plane);
+		return ArrayImgs.unsignedShorts(pixels, dims);
+	}
+
+	/**
+	 * @return checksum of the view copied into a stack like imp
+	 */
+	static <T extends IntegerType<T>> String checksum(RandomAccessibleInterval<T> view, ImagePlus like) {
+		ImagePlus copy = like.duplicate();
+		ImageStack stack = copy.getStack();
+		Cursor<T> c = Views.flatIterable(view).cursor();
+		for (int n = 1; n <= stack.getSize(); n++) {
+			Object pixels = stack.getPixels(n);
+			int npixels = stack.getWidth() * stack.getHeight();
+			for (int i = 0; i < npixels; i++) {
+				int v = c.next().getInteger();
+				if (pixels instanceof byte[])
+					((byte[]) pixels)[i] = (byte) v;
+				else
+					((short[]) pixels)[i] = (short) v;
+			}
+		}
+		return SyntheticStacks.checksum(copy);
+	}
+}
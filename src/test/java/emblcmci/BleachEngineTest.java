@@ -0,0 +1,212 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package emblcmci;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * The headless engine corrects exactly as the plugin, without loading
+ * ImageJ's GUI classes.
+ */
+public class BleachEngineTest {
+
+	/**
+	 * @return stack corrected by the plugin in headless mode
+	 */
+	static ImageStack plugin(ImagePlus imp, int method) {
+		int saved = BleachCorrection.getCorrectionMethod();
+		try {
+			BleachCorrection.setCorrectionMethod(method);
+			BleachCorrection bc = new BleachCorrection();
+			bc.setHeadlessProcessing(true);
+			bc.setUseSidecar(false);
+			return bc.doCorrection(imp).getStack();
+		} finally {
+			BleachCorrection.setCorrectionMethod(saved);
+		}
+	}
+
+	static void assertSameStack(ImageStack expected, ImageStack actual) {
+		assertEquals(expected.getSize(), actual.getSize());
+		for (int n = 1; n <= expected.getSize(); n++) {
+			if (expected.getPixels(n) instanceof byte[])
+				assertArrayEquals("plane " + n, (byte[]) expected.getPixels(n), (byte[]) actual.getPixels(n));
+			else
+				assertArrayEquals("plane " + n, (short[]) expected.getPixels(n), (short[]) actual.getPixels(n));
+		}
+	}
+
+	@Test
+	public void testSameAsPlugin() {
+		int[] methods = { BleachCorrection.SIMPLE_RATIO, BleachCorrection.EXPONENTIAL_FIT,
+				BleachCorrection.HISTOGRAM_MATCHING };
+		for (int bitDepth : new int[] { 8, 16 }) {
+			for (int method : methods) {
+				ImagePlus imp = SyntheticStacks.create(40, 32, bitDepth, 3, 12, 17);
+				ImageStack expected = plugin(imp, method);
+				ImageStack stack = imp.duplicate().getStack();
+				BleachEngine engine = new BleachEngine(method);
+				assertTrue(engine.correct(stack, 3));
+				assertSameStack(expected, stack);
+				assertEquals(12, engine.getQualityReport().getTimePoints());
+				if (method == BleachCorrection.HISTOGRAM_MATCHING)
+					assertNull(engine.getFactors());
+				else
+					assertEquals(12, engine.getFactors().length);
+			}
+		}
+	}
+
+	@Test
+	public void testMask() {
+		ImagePlus imp = SyntheticStacks.create(40, 32, 16, 1, 10, 5);
+		Roi roi = new Roi(6, 4, 20, 18);
+		imp.setRoi(roi);
+		ImageStack expected = plugin(imp, BleachCorrection.EXPONENTIAL_FIT);
+		byte[] mask = new byte[40 * 32];
+		for (int y = 4; y < 4 + 18; y++)
+			for (int x = 6; x < 6 + 20; x++)
+				mask[y * 40 + x] = 1;
+		imp.killRoi();
+		ImageStack stack = imp.duplicate().getStack();
+		BleachEngine engine = new BleachEngine(BleachCorrection.EXPONENTIAL_FIT);
+		engine.setMask(mask);
+		assertTrue(engine.correct(stack, 1));
+		assertSameStack(expected, stack);
+		assertNull(engine.getFitResult().getResultString());
+	}
+
+	@Test
+	public void testCancel() {
+		ImagePlus imp = SyntheticStacks.create(40, 32, 8, 1, 10, 5);
+		BleachEngine engine = new BleachEngine();
+		engine.cancel();
+		assertFalse(engine.correct(imp.getStack(), 1));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testTiledNotSupported() {
+		new BleachEngine(BleachCorrection.TILED);
+	}
+
+	/**
+	 * The mappings computed without ImageProcessor are those of add and multiply.
+	 */
+	@Test
+	public void testMappingsAsImageProcessor() {
+		double[] values = { -300.7, -12.5, -0.4, 0, 0.5, 0.93, 1.0, 1.37, 7.9, 40000.2 };
+		for (int bitDepth : new int[] { 8, 16 }) {
+			for (double value : values) {
+				ImageProcessor add = ramp(bitDepth);
+				add.add(value);
+				ImageProcessor mul = ramp(bitDepth);
+				mul.multiply(value);
+				int[] addMap = PlaneStatistics.addMapping(bitDepth, value);
+				int[] mulMap = PlaneStatistics.multiplyMapping(bitDepth, value);
+				for (int v = 0; v < addMap.length; v++) {
+					assertEquals("add " + value, add.get(v), addMap[v]);
+					assertEquals("multiply " + value, mul.get(v), mulMap[v]);
+				}
+			}
+		}
+	}
+
+	static ImageProcessor ramp(int bitDepth) {
+		ImageProcessor ip = (bitDepth == 8) ? new ByteProcessor(256, 1) : new ShortProcessor(256, 256);
+		for (int v = 0; v < ip.getPixelCount(); v++)
+			ip.set(v, v);
+		return ip;
+	}
+
+	/**
+	 * Runs Job in a new JVM and checks the classes it loaded, and that the
+	 * JVM exits when main returns.
+	 */
+	@Test(timeout = 120000)
+	public void testNoGuiClassesLoaded() throws IOException, InterruptedException {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		List<String> cmd = new ArrayList<String>();
+		cmd.add(java);
+		cmd.add("-verbose:class");
+		cmd.add("-cp");
+		cmd.add(System.getProperty("java.class.path"));
+		cmd.add(Job.class.getName());
+		Process p = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+		BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()));
+		boolean engine = false;
+		boolean done = false;
+		List<String> gui = new ArrayList<String>();
+		for (String line = in.readLine(); line != null; line = in.readLine()) {
+			if (line.contains(" emblcmci.BleachEngine "))
+				engine = true;
+			if (line.equals("done"))
+				done = true;
+			if (line.contains(" java.awt.") || line.contains(" javax.swing.") || line.contains(" ij.IJ ")
+					|| line.contains(" ij.ImagePlus ") || line.contains(" ij.gui."))
+				gui.add(line);
+		}
+		assertEquals(0, p.waitFor());
+		assertTrue(engine && done);
+		assertTrue(gui.toString(), gui.isEmpty());
+	}
+
+	/**
+	 * A batch job correcting a stack built from pixel arrays.
+	 */
+	public static class Job {
+		public static void main(String[] args) {
+			ImageStack stack = new ImageStack(64, 48);
+			for (int t = 0; t < 16; t++) {
+				short[] pixels = new short[64 * 48];
+				for (int i = 0; i < pixels.length; i++)
+					pixels[i] = (short) (200 + (i % 64) * 20 * Math.exp(-0.05 * t));
+				stack.addSlice("t" + t, pixels);
+			}
+			int[] methods = { BleachCorrection.SIMPLE_RATIO, BleachCorrection.EXPONENTIAL_FIT,
+					BleachCorrection.HISTOGRAM_MATCHING, BleachCorrection.AUTO };
+			for (int method : methods)
+				if (!new BleachEngine(method).correct(stack, 1))
+					System.exit(1);
+			System.out.println("done"); // the JVM exits as main returns
+		}
+	}
+}
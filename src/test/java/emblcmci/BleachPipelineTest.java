@@ -0,0 +1,96 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package emblcmci;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Streamed correction gives the pixels of the correction in memory and
+ * leaves the source unchanged.
+ */
+public class BleachPipelineTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	static BleachCorrection settings() {
+		BleachCorrection bc = new BleachCorrection();
+		bc.setHeadlessProcessing(true);
+		bc.setUseSidecar(false);
+		return bc;
+	}
+
+	@Test
+	public void testSourceUnchanged() throws IOException {
+		int saved = BleachCorrection.getCorrectionMethod();
+		try {
+			int[] methods = { BleachCorrection.SIMPLE_RATIO, BleachCorrection.EXPONENTIAL_FIT,
+					BleachCorrection.HISTOGRAM_MATCHING, BleachCorrection.AUTO };
+			for (int method : methods) {
+				BleachCorrection.setCorrectionMethod(method);
+				ImagePlus imp = SyntheticStacks.create(48, 40, 16, 1, 10, 13);
+				String original = SyntheticStacks.checksum(imp);
+				ImagePlus corrected = settings().doCorrection(imp);
+				ImageStack out = new ImageStack(48, 40, imp.getStackSize());
+				assertTrue(settings().correctTo(imp, BleachPipeline.toStack(out)));
+				assertEquals("method " + method, original, SyntheticStacks.checksum(imp));
+				assertEquals("method " + method, SyntheticStacks.checksum(corrected),
+						SyntheticStacks.checksum(new ImagePlus("out", out)));
+			}
+		} finally {
+			BleachCorrection.setCorrectionMethod(saved);
+		}
+	}
+
+	@Test
+	public void testFolder() throws IOException {
+		int saved = BleachCorrection.getCorrectionMethod();
+		try {
+			BleachCorrection.setCorrectionMethod(BleachCorrection.SIMPLE_RATIO);
+			ImagePlus imp = SyntheticStacks.create(48, 40, 8, 1, 6, 2);
+			String original = SyntheticStacks.checksum(imp);
+			ImagePlus corrected = settings().doCorrection(imp);
+			File dir = folder.newFolder();
+			assertTrue(settings().correctToFolder(imp, dir));
+			assertEquals(original, SyntheticStacks.checksum(imp));
+			ImageStack read = new ImageStack(48, 40);
+			for (int n = 1; n <= 6; n++)
+				read.addSlice(IJ.openImage(new File(dir, "synthetic_corrected000" + n + ".tif").getPath())
+						.getProcessor());
+			assertEquals(SyntheticStacks.checksum(corrected), SyntheticStacks.checksum(new ImagePlus("read", read)));
+		} finally {
+			BleachCorrection.setCorrectionMethod(saved);
+		}
+	}
+}
@@ -0,0 +1,146 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package emblcmci;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+import histogram2.HistogramMatcher;
+import histogram2.MaskedHistogram;
+import ij.ImagePlus;
+
+import org.junit.Test;
+
+/**
+ * The moving reference of histogram matching, kept as a running window,
+ * is the sum of the histograms of the N preceding time points.
+ */
+public class BleachReferenceTest {
+
+	static final int WINDOW = 3;
+
+	/**
+	 * @return mapping of time point t to the summed histograms of the
+	 * preceding time points, computed directly
+	 */
+	static int[] expected(PlaneStatistics[] stats, int t, int firstSlice, int nSlices, int zframes, int K) {
+		long[] sum = new long[K];
+		for (int i = Math.max(0, t - WINDOW); i < t; i++) {
+			int[] h = new int[K];
+			for (int j = firstSlice; j < firstSlice + nSlices; j++)
+				stats[i * zframes + j].accumulate(h);
+			for (int k = 0; k < K; k++)
+				sum[k] += h[k];
+		}
+		int[] hA = new int[K];
+		for (int j = firstSlice; j < firstSlice + nSlices; j++)
+			stats[t * zframes + j].accumulate(hA);
+		return new HistogramMatcher().matchHistograms(hA, BleachReference.toIntHistogram(sum, new int[K]));
+	}
+
+	static PlaneStatistics[] measure(ImagePlus imp) {
+		MaskedHistogram mask = new MaskedHistogram(imp.getWidth(), imp.getHeight(), (ij.gui.Roi) null);
+		return new StatisticsCache(0).getAll(imp.getStack(), mask);
+	}
+
+	static BleachCorrection_MH moving(ImagePlus imp, boolean perSlice) {
+		BleachCorrection_MH mh = new BleachCorrection_MH(imp);
+		mh.setReference(new BleachReference(BleachReference.MOVING, WINDOW, 0));
+		mh.setPerSliceReference(perSlice);
+		return mh;
+	}
+
+	@Test
+	public void testMovingHistogramMatching() {
+		for (int bitDepth : new int[] { 8, 16 }) {
+			ImagePlus imp = SyntheticStacks.create(32, 24, bitDepth, 1, 12, 4);
+			PlaneStatistics[] stats = measure(imp);
+			int K = (bitDepth == 8) ? 256 : 65536;
+			// in order, and in reverse order as parallel jobs may request them
+			CorrectionPlan plan = moving(imp, false).plan(stats, 1, 12);
+			assertNull(plan.getMapping(0));
+			for (int t = 1; t < 12; t++)
+				assertArrayEquals("t " + t, expected(stats, t, 0, 1, 1, K), plan.getMapping(t));
+			plan = moving(imp, false).plan(stats, 1, 12);
+			for (int t = 11; t > 0; t--)
+				assertArrayEquals("t " + t, expected(stats, t, 0, 1, 1, K), plan.getMapping(t));
+		}
+	}
+
+	/**
+	 * The streamed correction of doCorrection gives the same pixels and
+	 * report as the plan on the statistics of all planes, for each
+	 * reference and with and without a reference per z-slice.
+	 */
+	@Test
+	public void testStreamingSameAsPlan() {
+		for (int bitDepth : new int[] { 8, 16 }) {
+			for (int strategy = 0; strategy < BleachReference.REFERENCE_NAMES.length; strategy++) {
+				for (boolean perSlice : new boolean[] { false, true }) {
+					String name = bitDepth + " bit, " + BleachReference.REFERENCE_NAMES[strategy] + ", per slice "
+							+ perSlice;
+					ImagePlus streamed = SyntheticStacks.create(32, 24, bitDepth, 2, 9, 7);
+					ImagePlus planned = streamed.duplicate();
+					BleachReference reference = new BleachReference(strategy, WINDOW, 4);
+					BleachCorrection_MH mh = new BleachCorrection_MH(streamed);
+					mh.setCache(new StatisticsCache(0));
+					mh.setReference(reference);
+					mh.setPerSliceReference(perSlice);
+					mh.doCorrection();
+					BleachCorrection_MH other = new BleachCorrection_MH(planned);
+					other.setReference(reference);
+					other.setPerSliceReference(perSlice);
+					CorrectionPlan plan = other.plan(measure(planned), 2, 9);
+					if (perSlice)
+						other.applyPerPlane(plan, planned.getStack());
+					else
+						plan.applyTo(planned.getStack(), new BleachProgress(false));
+					for (int n = 1; n <= 18; n++) {
+						Object expected = planned.getStack().getPixels(n);
+						Object pixels = streamed.getStack().getPixels(n);
+						if (bitDepth == 8)
+							assertArrayEquals(name + ", plane " + n, (byte[]) expected, (byte[]) pixels);
+						else
+							assertArrayEquals(name + ", plane " + n, (short[]) expected, (short[]) pixels);
+					}
+					QualityReport expected = other.getQualityReport();
+					QualityReport report = mh.getQualityReport();
+					assertArrayEquals(name, expected.getOriginalMeans(), report.getOriginalMeans(), 1e-9);
+					assertArrayEquals(name, expected.getCorrectedMeans(), report.getCorrectedMeans(), 1e-9);
+					assertArrayEquals(name, expected.getSaturatedFractions(), report.getSaturatedFractions(), 1e-12);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testMovingPerSlice() {
+		ImagePlus imp = SyntheticStacks.create(32, 24, 8, 3, 8, 6);
+		PlaneStatistics[] stats = measure(imp);
+		CorrectionPlan plan = moving(imp, true).plan(stats, 3, 8);
+		for (int n = 3; n < 24; n++)
+			assertArrayEquals("plane " + n, expected(stats, n / 3, n % 3, 1, 3, 256), plan.getMapping(n));
+		plan = moving(imp, false).plan(stats, 3, 8);
+		for (int t = 1; t < 8; t++)
+			assertArrayEquals("t " + t, expected(stats, t, 0, 3, 3, 256), plan.getMapping(t));
+	}
+}
@@ -0,0 +1,90 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package emblcmci;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import histogram2.BufferPool;
+import ij.ImagePlus;
+
+import org.junit.Test;
+
+/**
+ * Recycling of the per-frame buffers.
+ */
+public class BufferPoolTest {
+
+	@Test
+	public void testReuse() {
+		BufferPool pool = new BufferPool(2);
+		int[] a = pool.borrowInts(100);
+		a[5] = 7;
+		pool.release(a);
+		int[] b = pool.borrowInts(100);
+		assertSame(a, b);
+		assertEquals(0, b[5]);
+		assertTrue(pool.borrowInts(100) != b);
+		pool.release(pool.borrowDoubles(100));
+		BufferPool.Usage usage = pool.getUsage();
+		assertEquals(4, usage.borrowed);
+		assertEquals(3, usage.allocated);
+		assertEquals(1, usage.getReused());
+		assertEquals(400 + 400 + 800, usage.allocatedBytes);
+	}
+
+	@Test
+	public void testDoubleRelease() {
+		BufferPool pool = new BufferPool(2);
+		int[] a = pool.borrowInts(100);
+		pool.release(a);
+		try {
+			pool.release(a);
+			fail("released twice");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		assertSame(a, pool.borrowInts(100));
+		assertTrue(pool.borrowInts(100) != a);
+	}
+
+	@Test
+	public void testCorrectionReusesBuffers() {
+		ImagePlus imp = SyntheticStacks.create(48, 40, 16, 1, 12, 82);
+		int method = BleachCorrection.getCorrectionMethod();
+		BleachCorrection bc = new BleachCorrection();
+		bc.setHeadlessProcessing(true);
+		bc.setUseSidecar(false);
+		StatisticsCache.getShared().clear();
+		try {
+			BleachCorrection.setCorrectionMethod(BleachCorrection.HISTOGRAM_MATCHING);
+			bc.doCorrection(imp);
+		} finally {
+			BleachCorrection.setCorrectionMethod(method);
+		}
+		BufferPool.Usage usage = bc.getBufferUsage();
+		assertTrue(usage.borrowed > 12 * 3);
+		assertTrue(usage.getReused() > usage.borrowed / 2);
+	}
+}
@@ -0,0 +1,129 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package emblcmci;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import ij.measure.CurveFitter;
+import ij.measure.UserFunction;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Each model must recover the parameters of a synthetic decay curve, and
+ * the information criteria must choose the model the curve was made with.
+ */
+public class DecayModelFitterTest {
+
+	@Test
+	public void testExponential() {
+		double[] x = times(100);
+		double[] y = curve(x, new DecayModelFitter.BiExponential(), new double[] { 100, 0.05, 0, 0, 20 }, 0.2, 1);
+		CurveFitter cf = new DecayModelFitter(x, y).fit(DecayModelFitter.EXPONENTIAL);
+		double[] p = cf.getParams();
+		assertEquals(100, p[0], 1);
+		assertEquals(0.05, p[1], 0.001);
+		assertEquals(20, p[2], 0.5);
+	}
+
+	@Test
+	public void testBiExponential() {
+		double[] x = times(200);
+		double[] y = curve(x, new DecayModelFitter.BiExponential(), new double[] { 80, 0.2, 60, 0.01, 10 }, 0.1, 2);
+		CurveFitter cf = new DecayModelFitter(x, y).fit(DecayModelFitter.BI_EXPONENTIAL);
+		double[] p = cf.getParams();
+		// the components may come in either order
+		int fast = (Math.abs(p[1]) > Math.abs(p[3])) ? 0 : 2;
+		int slow = 2 - fast;
+		assertEquals(80, p[fast], 2);
+		assertEquals(0.2, Math.abs(p[fast + 1]), 0.01);
+		assertEquals(60, p[slow], 2);
+		assertEquals(0.01, Math.abs(p[slow + 1]), 0.001);
+		assertEquals(10, p[4], 2);
+	}
+
+	@Test
+	public void testStretchedExponential() {
+		double[] x = times(150);
+		double[] y = curve(x, new DecayModelFitter.StretchedExponential(), new double[] { 100, 0.03, 15, 0.6 }, 0.1,
+				3);
+		CurveFitter cf = new DecayModelFitter(x, y).fit(DecayModelFitter.STRETCHED_EXPONENTIAL);
+		double[] p = cf.getParams();
+		assertEquals(100, p[0], 2);
+		assertEquals(0.03, Math.abs(p[1]), 0.002);
+		assertEquals(15, p[2], 1);
+		assertEquals(0.6, Math.abs(p[3]), 0.03);
+	}
+
+	/**
+	 * The fit kept for a model must be at least as good as the fit from
+	 * each of its starting points on its own.
+	 */
+	@Test
+	public void testMultiStart() {
+		double[] x = times(200);
+		double[] y = curve(x, new DecayModelFitter.BiExponential(), new double[] { 80, 0.2, 60, 0.01, 10 }, 0.5, 4);
+		DecayModelFitter dmf = new DecayModelFitter(x, y);
+		for (int m = DecayModelFitter.EXPONENTIAL; m <= DecayModelFitter.STRETCHED_EXPONENTIAL; m++) {
+			double best = dmf.fit(m).getSumResidualsSqr();
+			for (double[] start : dmf.startingPoints(m)) {
+				CurveFitter single = dmf.fitOnce(m, start);
+				assertTrue(DecayModelFitter.MODEL_NAMES[m], best <= single.getSumResidualsSqr() * 1.001);
+			}
+		}
+	}
+
+	@Test
+	public void testAicSelection() {
+		double[] x = times(200);
+		double[] y = curve(x, new DecayModelFitter.BiExponential(), new double[] { 80, 0.2, 60, 0.01, 10 }, 0.5, 5);
+		DecayModelFitter dmf = new DecayModelFitter(x, y);
+		dmf.fit(DecayModelFitter.BEST_AIC);
+		assertEquals(DecayModelFitter.BI_EXPONENTIAL, dmf.getSelectedModel());
+
+		y = curve(x, new DecayModelFitter.BiExponential(), new double[] { 100, 0.03, 0, 0, 20 }, 0.5, 6);
+		dmf = new DecayModelFitter(x, y);
+		dmf.fit(DecayModelFitter.BEST_AIC);
+		assertEquals(DecayModelFitter.EXPONENTIAL, dmf.getSelectedModel());
+	}
+
+	static double[] times(int n) {
+		double[] x = new double[n];
+		for (int i = 0; i < n; i++)
+			x[i] = i;
+		return x;
+	}
+
+	/**
+	 * @param sd standard deviation of the seeded Gaussian noise
+	 */
+	static double[] curve(double[] x, UserFunction f, double[] params, double sd, long seed) {
+		Random random = new Random(seed);
+		double[] y = new double[x.length];
+		for (int i = 0; i < x.length; i++)
+			y[i] = f.userFunction(params, x[i]) + sd * random.nextGaussian();
+		return y;
+	}
+}
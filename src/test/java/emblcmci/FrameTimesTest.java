@@ -0,0 +1,156 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package emblcmci;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import histogram2.MaskedHistogram;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.process.ShortProcessor;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Fitting against acquisition times instead of frame indices.
+ */
+public class FrameTimesTest {
+
+	static final double RATE = 0.02; // per second
+
+	/**
+	 * Bursts of frames 1 s apart with pauses of 30 s in between: the fit
+	 * against the frame index would see a decay with steps.
+	 */
+	static double[] burstTimes(int frames) {
+		double[] times = new double[frames];
+		for (int t = 1; t < frames; t++)
+			times[t] = times[t - 1] + ((t % 10 == 0) ? 30 : 1);
+		return times;
+	}
+
+	static ImagePlus decaying(double[] times, long seed) {
+		Random random = new Random(seed);
+		ImageStack stack = new ImageStack(32, 32);
+		for (double time : times) {
+			ShortProcessor ip = new ShortProcessor(32, 32);
+			double v = 200 + 3000 * Math.exp(-RATE * time);
+			for (int i = 0; i < 32 * 32; i++)
+				ip.set(i, (int) Math.round(v + 10 * random.nextGaussian()));
+			stack.addSlice(ip);
+		}
+		return new ImagePlus("bursts", stack);
+	}
+
+	@Test
+	public void testTimestamps() {
+		double[] times = burstTimes(60);
+		ImagePlus imp = decaying(times, 71);
+		imp.setProperty(FrameTimes.PROPERTY, times);
+		BleachCorrection_ExpoFit ef = new BleachCorrection_ExpoFit(imp);
+		ef.setHeadlessProcessing(true);
+		ef.setCache(new StatisticsCache(0));
+		ef.setFitModel(DecayModelFitter.EXPONENTIAL);
+		ef.core();
+		assertArrayEquals(times, ef.getTimes(), 0);
+		double[] fitted = ef.getFittedIntensities();
+		for (int t = 0; t < times.length; t++)
+			assertEquals("t " + t, 200 + 3000 * Math.exp(-RATE * times[t]), fitted[t], 5);
+	}
+
+	@Test
+	public void testBinnedFit() {
+		double[] times = burstTimes(600);
+		ImagePlus imp = decaying(times, 72);
+		BleachCorrection_ExpoFit full = new BleachCorrection_ExpoFit(imp.duplicate());
+		full.setHeadlessProcessing(true);
+		full.setCache(new StatisticsCache(0));
+		full.setFitModel(DecayModelFitter.EXPONENTIAL);
+		full.setTimestamps(times);
+		full.core();
+		BleachCorrection_ExpoFit binned = new BleachCorrection_ExpoFit(imp.duplicate());
+		binned.setHeadlessProcessing(true);
+		binned.setCache(new StatisticsCache(0));
+		binned.setFitModel(DecayModelFitter.EXPONENTIAL);
+		binned.setTimestamps(times);
+		binned.setFitBinning(5);
+		binned.core();
+		assertEquals(120, binned.getFitResult().getX().length);
+		double[] a = full.getFactors();
+		double[] b = binned.getFactors();
+		for (int t = 0; t < a.length; t++)
+			assertEquals("t " + t, a[t], b[t], 0.01 * a[t]);
+	}
+
+	@Test
+	public void testTimeAxis() {
+		ImagePlus imp = decaying(new double[4], 73);
+		assertArrayEquals(new double[] { 0, 1, 2, 3 }, FrameTimes.of(imp, 4), 0);
+		imp.getCalibration().frameInterval = 2.5;
+		assertArrayEquals(new double[] { 0, 2.5, 5, 7.5 }, FrameTimes.of(imp, 4), 0);
+		imp.setProperty(FrameTimes.PROPERTY, "10.0, 10.5 12,20");
+		assertArrayEquals(new double[] { 0, 0.5, 2, 10 }, FrameTimes.of(imp, 4), 0);
+		imp.setProperty(FrameTimes.PROPERTY, "10.0, 10.5");
+		assertArrayEquals(new double[] { 0, 2.5, 5, 7.5 }, FrameTimes.of(imp, 4), 0);
+		assertEquals(1, FrameTimes.binSize(0, 500));
+		assertEquals(20, FrameTimes.binSize(0, 10000));
+		assertEquals(21, FrameTimes.binSize(0, 10001));
+		assertArrayEquals(new double[] { 1.5, 3 }, FrameTimes.bin(new double[] { 1, 2, 3 }, 2), 0);
+	}
+
+	@Test
+	public void testTimestampsChecked() {
+		ImagePlus imp = decaying(burstTimes(20), 74);
+		PlaneStatistics[] stats = new StatisticsCache(0).getAll(imp.getStack(), new MaskedHistogram(32, 32, (Roi) null));
+		double[][] wrong = { burstTimes(19), burstTimes(21), { 0, 1, 2, 1, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15,
+				16, 17, 18, 19 } };
+		for (double[] times : wrong) {
+			BleachCorrection_ExpoFit ef = new BleachCorrection_ExpoFit(16);
+			ef.quiet = true;
+			ef.setTimestamps(times);
+			try {
+				ef.plan(stats, 1, 20);
+				fail(times.length + " timestamps accepted");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+			BleachCorrection_Auto auto = new BleachCorrection_Auto(16);
+			auto.quiet = true;
+			auto.setTimestamps(times);
+			try {
+				auto.plan(stats, stats, 1, 20);
+				fail(times.length + " timestamps accepted");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+		BleachCorrection_ExpoFit ef = new BleachCorrection_ExpoFit(16);
+		ef.quiet = true;
+		ef.setTimestamps(burstTimes(20));
+		ef.plan(stats, 1, 20);
+	}
+}
@@ -0,0 +1,105 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package emblcmci;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import histogram2.HistogramMatcher;
+import histogram2.Util;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Mapping functions of histogram matching.
+ */
+public class HistogramMatcherTest {
+
+	/**
+	 * The single pass matching must give the same mapping as the scan down
+	 * from K-1 for each value of the original code.
+	 */
+	@Test
+	public void testSameAsScanDown() {
+		Random random = new Random(81);
+		for (int K : new int[] { 256, 4096 }) {
+			for (int n = 0; n < 20; n++) {
+				int[] hA = randomHistogram(random, K, n % 5 == 4);
+				int[] hR = randomHistogram(random, K, n % 7 == 6);
+				int[] F = new HistogramMatcher().matchHistograms(hA, hR);
+				assertArrayEquals(scanDown(hA, hR), F);
+			}
+		}
+	}
+
+	/**
+	 * Empty histograms, single values and identical histograms.
+	 */
+	@Test
+	public void testEdgeCases() {
+		int K = 256;
+		int[] empty = new int[K];
+		int[] single = new int[K];
+		single[100] = 10;
+		int[] flat = new int[K];
+		for (int v = 0; v < K; v++)
+			flat[v] = 3;
+		int[][] cases = { empty, single, flat };
+		for (int[] hA : cases)
+			for (int[] hR : cases)
+				assertArrayEquals(scanDown(hA, hR), new HistogramMatcher().matchHistograms(hA, hR));
+		int[] F = new HistogramMatcher().matchHistograms(flat, flat);
+		for (int v = 0; v < K; v++)
+			assertEquals(v, F[v]);
+	}
+
+	static int[] randomHistogram(Random random, int K, boolean sparse) {
+		int[] h = new int[K];
+		int from = random.nextInt(K / 2);
+		int to = from + random.nextInt(K - from);
+		for (int v = from; v <= to; v++)
+			if (!sparse || random.nextInt(10) == 0)
+				h[v] = random.nextInt(50);
+		return h;
+	}
+
+	/**
+	 * Mapping as computed by the original code, scanning down from K-1
+	 * for each value.
+	 */
+	static int[] scanDown(int[] hA, int[] hR) {
+		int K = hA.length;
+		double[] PA = Util.Cdf(hA);
+		double[] PR = Util.Cdf(hR);
+		int[] F = new int[K];
+		for (int a = 0; a < K; a++) {
+			int j = K - 1;
+			do {
+				F[a] = j;
+				j--;
+			} while (j >= 0 && PA[a] <= PR[j]);
+		}
+		return F;
+	}
+}
@@ -0,0 +1,126 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package emblcmci;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import histogram2.HistogramMatcher;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * Histogram matching of 3D time series with a reference per z-slice.
+ */
+public class HistogramMatchingPerSliceTest {
+
+	/**
+	 * 3D time series whose deeper slices are much darker.
+	 */
+	static ImagePlus create(int bitDepth) {
+		ImagePlus imp = SyntheticStacks.create(48, 40, bitDepth, 4, 8, 91);
+		for (int n = 0; n < imp.getStackSize(); n++)
+			imp.getStack().getProcessor(n + 1).multiply(1.0 - 0.2 * (n % 4));
+		return imp;
+	}
+
+	static BleachCorrection_MH matcher(ImagePlus imp, boolean perSlice) {
+		BleachCorrection_MH mh = new BleachCorrection_MH(imp);
+		mh.setCache(new StatisticsCache(0));
+		mh.setPerSliceReference(perSlice);
+		return mh;
+	}
+
+	@Test
+	public void testMappingPerSlice() {
+		ImagePlus imp = create(8);
+		ImagePlus original = imp.duplicate();
+		matcher(imp, true).doCorrection();
+		ImageStack in = original.getStack();
+		for (int t = 1; t < 8; t++) {
+			for (int z = 0; z < 4; z++) {
+				int[] F = new HistogramMatcher().matchHistograms(in.getProcessor(t * 4 + z + 1).getHistogram(),
+						in.getProcessor(z + 1).getHistogram());
+				ImageStack expected = new ImageStack(48, 40);
+				expected.addSlice(in.getProcessor(t * 4 + z + 1).duplicate());
+				expected.getProcessor(1).applyTable(F);
+				assertArrayEquals("t " + t + " z " + z, (byte[]) expected.getPixels(1),
+						(byte[]) imp.getStack().getPixels(t * 4 + z + 1));
+			}
+		}
+	}
+
+	/**
+	 * Each corrected slice keeps the intensity of its own depth, which the
+	 * pooled reference does not.
+	 */
+	@Test
+	public void testDepthIsKept() {
+		ImagePlus perSlice = create(16);
+		ImagePlus pooled = perSlice.duplicate();
+		ImagePlus original = perSlice.duplicate();
+		BleachCorrection_MH mh = matcher(perSlice, true);
+		mh.doCorrection();
+		matcher(pooled, false).doCorrection();
+		double errorPerSlice = 0;
+		double errorPooled = 0;
+		for (int t = 1; t < 8; t++) {
+			for (int z = 0; z < 4; z++) {
+				double ref = original.getStack().getProcessor(z + 1).getStatistics().mean;
+				errorPerSlice += Math.abs(perSlice.getStack().getProcessor(t * 4 + z + 1).getStatistics().mean - ref);
+				errorPooled += Math.abs(pooled.getStack().getProcessor(t * 4 + z + 1).getStatistics().mean - ref);
+			}
+		}
+		assertTrue(errorPerSlice + " < " + errorPooled, errorPerSlice < errorPooled / 4);
+		QualityReport report = mh.getQualityReport();
+		for (int t = 0; t < 8; t++) {
+			double mean = 0;
+			for (int z = 0; z < 4; z++)
+				mean += perSlice.getStack().getProcessor(t * 4 + z + 1).getStatistics().mean;
+			assertEquals("t " + t, mean / 4, report.getCorrectedMeans()[t], 1e-9);
+		}
+	}
+
+	@Test
+	public void testStreamed() throws IOException {
+		ImagePlus imp = create(16);
+		ImageStack out = new ImageStack(48, 40, imp.getStackSize());
+		int method = BleachCorrection.getCorrectionMethod();
+		try {
+			BleachCorrection.setCorrectionMethod(BleachCorrection.HISTOGRAM_MATCHING);
+			BleachCorrection bc = new BleachCorrection();
+			bc.setHeadlessProcessing(true);
+			bc.setUseSidecar(false);
+			bc.setHistogramMatchingPerSlice(true);
+			ImagePlus corrected = bc.doCorrection(imp);
+			assertTrue(bc.correctTo(imp, BleachPipeline.toStack(out)));
+			assertEquals(SyntheticStacks.checksum(corrected), SyntheticStacks.checksum(new ImagePlus("out", out)));
+		} finally {
+			BleachCorrection.setCorrectionMethod(method);
+		}
+	}
+}
@@ -0,0 +1,96 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package emblcmci;
+
+import static org.junit.Assert.assertEquals;
+
+import histogram2.MaskedHistogram;
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+import ij.process.ImageStatistics;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * The histogram based estimators must agree with sorting the pixels.
+ */
+public class IntensityEstimatorTest {
+
+	@Test
+	public void testMedianAsImageJ() {
+		for (int bitDepth : new int[] { 8, 16 }) {
+			ImagePlus imp = SyntheticStacks.create(48, 40, bitDepth, 1, 3, 11);
+			Roi roi = SyntheticStacks.roi(imp);
+			MaskedHistogram mask = new MaskedHistogram(48, 40, roi);
+			for (int n = 1; n <= 3; n++) {
+				ImageProcessor ip = imp.getStack().getProcessor(n);
+				ip.setRoi(roi);
+				ImageStatistics is = ImageStatistics.getStatistics(ip, ImageStatistics.MEDIAN, null);
+				PlaneStatistics ps = PlaneStatistics.measure(ip.getPixels(), mask);
+				assertEquals(is.median, new IntensityEstimator(IntensityEstimator.MEDIAN, 0).estimate(ps), 0);
+			}
+		}
+	}
+
+	@Test
+	public void testPercentileAndTrimmedMean() {
+		ImagePlus imp = SyntheticStacks.create(50, 40, 16, 1, 1, 12);
+		short[] pixels = (short[]) imp.getStack().getPixels(1);
+		PlaneStatistics ps = PlaneStatistics.measure(pixels, new MaskedHistogram(50, 40, (Roi) null));
+		int[] sorted = new int[pixels.length];
+		for (int i = 0; i < pixels.length; i++)
+			sorted[i] = pixels[i] & 0xffff;
+		Arrays.sort(sorted);
+
+		for (double p : new double[] { 0, 5, 25, 90, 99.9, 100 }) {
+			int expected = sorted[Math.min(sorted.length - 1, (int) Math.floor(p / 100 * sorted.length))];
+			assertEquals("percentile " + p, expected,
+					new IntensityEstimator(IntensityEstimator.PERCENTILE, p).estimate(ps), 0);
+		}
+		// 2000 pixels: 10% trims 200 pixels at each end
+		double sum = 0;
+		for (int i = 200; i < sorted.length - 200; i++)
+			sum += sorted[i];
+		assertEquals(sum / (sorted.length - 400),
+				new IntensityEstimator(IntensityEstimator.TRIMMED_MEAN, 10).estimate(ps), 1e-9);
+		assertEquals(ps.getMean(), new IntensityEstimator(IntensityEstimator.TRIMMED_MEAN, 0).estimate(ps), 1e-9);
+	}
+
+	/**
+	 * Hot pixels change the mean but not the median.
+	 */
+	@Test
+	public void testHotPixels() {
+		ImagePlus imp = SyntheticStacks.create(48, 40, 8, 1, 1, 13);
+		byte[] pixels = (byte[]) imp.getStack().getPixels(1);
+		MaskedHistogram mask = new MaskedHistogram(48, 40, (Roi) null);
+		IntensityEstimator median = new IntensityEstimator(IntensityEstimator.MEDIAN, 0);
+		PlaneStatistics before = PlaneStatistics.measure(pixels, mask);
+		for (int i = 0; i < pixels.length; i += 37)
+			pixels[i] = (byte) 255;
+		PlaneStatistics after = PlaneStatistics.measure(pixels, mask);
+		assertEquals(median.estimate(before), median.estimate(after), 1);
+	}
+}
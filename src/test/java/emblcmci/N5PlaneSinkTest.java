@@ -0,0 +1,117 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package emblcmci;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Blocks written by N5PlaneSink must read back as the original pixels.
+ */
+public class N5PlaneSinkTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testGzip8Bit2D() throws IOException {
+		roundTrip(8, 1, N5PlaneSink.GZIP);
+	}
+
+	@Test
+	public void testGzip16Bit3D() throws IOException {
+		roundTrip(16, 3, N5PlaneSink.GZIP);
+	}
+
+	@Test
+	public void testRaw16Bit2D() throws IOException {
+		roundTrip(16, 1, N5PlaneSink.RAW);
+	}
+
+	@Test
+	public void testAttributes() throws IOException {
+		File root = folder.newFolder("out.n5");
+		ImagePlus imp = SyntheticStacks.create(48, 40, 16, 3, 2, 3);
+		N5PlaneSink sink = write(imp, root, 3, N5PlaneSink.GZIP);
+		String attributes = new String(Files.readAllBytes(new File(sink.getDatasetDirectory(), "attributes.json")
+				.toPath()), "UTF-8");
+		assertEquals("{\"dimensions\":[48,40,3,2],\"blockSize\":[32,16,1,1],\"dataType\":\"uint16\","
+				+ "\"compression\":{\"type\":\"gzip\",\"useZlib\":false,\"level\":-1}}", attributes);
+		assertTrue(new File(root, "attributes.json").exists());
+		assertTrue(new File(sink.getDatasetDirectory(), "1/2/2/1").exists());
+	}
+
+	void roundTrip(int bitDepth, int slices, int compression) throws IOException {
+		ImagePlus imp = SyntheticStacks.create(48, 40, bitDepth, slices, 4, 5);
+		N5PlaneSink sink = write(imp, folder.newFolder(), slices, compression);
+		ImageStack stack = imp.getStack();
+		for (int n = 0; n < stack.getSize(); n++) {
+			for (int gy = 0; gy * 16 < 40; gy++) {
+				for (int gx = 0; gx * 32 < 48; gx++) {
+					Object block = sink.readBlock(gx, gy, n);
+					int w = Math.min(32, 48 - gx * 32);
+					int h = Math.min(16, 40 - gy * 16);
+					Object expected = crop(stack.getPixels(n + 1), 48, gx * 32, gy * 16, w, h);
+					if (bitDepth == 8)
+						assertArrayEquals((byte[]) expected, (byte[]) block);
+					else
+						assertArrayEquals((short[]) expected, (short[]) block);
+				}
+			}
+		}
+	}
+
+	N5PlaneSink write(ImagePlus imp, File root, int slices, int compression) throws IOException {
+		ImageStack stack = imp.getStack();
+		N5PlaneSink sink = new N5PlaneSink(root, "corrected", imp.getWidth(), imp.getHeight(), slices,
+				stack.getSize() / slices, imp.getBitDepth());
+		sink.setBlockSize(32, 16);
+		sink.setCompression(compression, -1);
+		try {
+			// planes in reverse order, as they may arrive from the pipeline in any order
+			for (int n = stack.getSize() - 1; n >= 0; n--)
+				sink.write(n, stack.getPixels(n + 1));
+		} finally {
+			sink.close();
+		}
+		return sink;
+	}
+
+	static Object crop(Object pixels, int width, int x0, int y0, int w, int h) {
+		Object out = (pixels instanceof byte[]) ? new byte[w * h] : new short[w * h];
+		for (int y = 0; y < h; y++)
+			System.arraycopy(pixels, (y0 + y) * width + x0, out, y * w, w);
+		return out;
+	}
+}
@@ -0,0 +1,139 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package emblcmci;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import histogram2.MaskedHistogram;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class OutputPrecisionTest {
+
+	static final int W = 64, H = 48, FRAMES = 40;
+
+	/**
+	 * Dithered frames keep the mean of the exact corrected values and have
+	 * no empty bins between their values.
+	 */
+	@Test
+	public void testDither() {
+		ImagePlus imp = SyntheticStacks.create(W, H, 8, 1, FRAMES, 31);
+		CorrectionPlan.FactorPlan plan = ratioPlan(imp);
+		ImagePlus rounded = imp.duplicate();
+		assertTrue(OutputPrecision.applyTo(plan, rounded, OutputPrecision.ROUND, new BleachProgress(false)));
+		ImagePlus dithered = imp.duplicate();
+		assertTrue(OutputPrecision.applyTo(plan, dithered, OutputPrecision.DITHER, new BleachProgress(false)));
+
+		int t = FRAMES - 1;
+		float[] scaled = OutputPrecision.scaledTable(plan, t);
+		byte[] original = (byte[]) imp.getStack().getPixels(t + 1);
+		double exact = 0;
+		for (byte b : original)
+			exact += Math.min(255, scaled[b & 0xff]);
+		exact /= original.length;
+		assertEquals(exact, mean((byte[]) dithered.getStack().getPixels(t + 1)), 0.05);
+		assertTrue(emptyBins((byte[]) dithered.getStack().getPixels(t + 1)) < emptyBins(
+				(byte[]) rounded.getStack().getPixels(t + 1)));
+
+		// reproducible
+		ImagePlus again = imp.duplicate();
+		OutputPrecision.applyTo(plan, again, OutputPrecision.DITHER, new BleachProgress(false));
+		assertEquals(SyntheticStacks.checksum(dithered), SyntheticStacks.checksum(again));
+	}
+
+	/**
+	 * 8 bit frames amplified beyond 255 are corrected into 16 bit without clipping.
+	 */
+	@Test
+	public void testPromote() {
+		ImagePlus imp = SyntheticStacks.create(W, H, 8, 1, FRAMES, 32);
+		double[] factors = new double[FRAMES];
+		Arrays.fill(factors, 3.0);
+		CorrectionPlan.FactorPlan plan = CorrectionPlan.ofFactors(8, 1, factors, 0);
+		ImagePlus promoted = imp.duplicate();
+		assertTrue(OutputPrecision.applyTo(plan, promoted, OutputPrecision.PROMOTE, new BleachProgress(false)));
+		assertEquals(16, promoted.getBitDepth());
+		assertEquals(FRAMES, promoted.getNFrames());
+		ImageStack in = imp.getStack();
+		ImageStack out = promoted.getStack();
+		for (int n = 1; n <= FRAMES; n++) {
+			byte[] p = (byte[]) in.getPixels(n);
+			short[] q = (short[]) out.getPixels(n);
+			for (int i = 0; i < p.length; i++)
+				assertEquals(3 * (p[i] & 0xff), q[i] & 0xffff);
+		}
+	}
+
+	/**
+	 * Without clipping, PROMOTE gives the same output as ROUND.
+	 */
+	@Test
+	public void testPromoteNotNeeded() {
+		ImagePlus imp = SyntheticStacks.create(W, H, 16, 1, FRAMES, 33);
+		CorrectionPlan.FactorPlan plan = ratioPlan(imp);
+		ImagePlus rounded = imp.duplicate();
+		OutputPrecision.applyTo(plan, rounded, OutputPrecision.ROUND, new BleachProgress(false));
+		OutputPrecision.applyTo(plan, imp, OutputPrecision.PROMOTE, new BleachProgress(false));
+		assertEquals(16, imp.getBitDepth());
+		assertEquals(SyntheticStacks.checksum(rounded), SyntheticStacks.checksum(imp));
+	}
+
+	static CorrectionPlan.FactorPlan ratioPlan(ImagePlus imp) {
+		BleachCorrection_SimpleRatio sr = new BleachCorrection_SimpleRatio(imp);
+		PlaneStatistics[] stats = new StatisticsCache(0).getAll(imp.getStack(),
+				new MaskedHistogram(imp.getWidth(), imp.getHeight(), (Roi) null));
+		return sr.plan(stats, 1, imp.getStackSize());
+	}
+
+	static double mean(byte[] p) {
+		double s = 0;
+		for (byte b : p)
+			s += b & 0xff;
+		return s / p.length;
+	}
+
+	/**
+	 * @return number of values between minimum and maximum that no pixel has
+	 */
+	static int emptyBins(byte[] p) {
+		int[] h = new int[256];
+		for (byte b : p)
+			h[b & 0xff]++;
+		int min = 0, max = 255;
+		while (h[min] == 0)
+			min++;
+		while (h[max] == 0)
+			max--;
+		int empty = 0;
+		for (int v = min; v <= max; v++)
+			if (h[v] == 0)
+				empty++;
+		return empty;
+	}
+}
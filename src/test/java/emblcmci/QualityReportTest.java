@@ -0,0 +1,140 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package emblcmci;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * The report computed from the histograms must agree with measuring the
+ * corrected stack.
+ */
+public class QualityReportTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testSimpleRatio() {
+		ImagePlus imp = SyntheticStacks.create(48, 40, 8, 1, 30, 51);
+		Roi roi = SyntheticStacks.roi(imp);
+		BleachCorrection_SimpleRatio sr = new BleachCorrection_SimpleRatio(imp, roi);
+		sr.setCache(new StatisticsCache(0));
+		sr.setSimpleRatioBaseline(5.5);
+		sr.correctBleach();
+		QualityReport report = sr.getQualityReport();
+		assertMeasured(imp, roi, report, 1e-9);
+		assertTrue(report.getOriginalMeans()[29] < 0.8 * report.getOriginalMeans()[0]);
+		assertTrue(Math.abs(report.getDrift()) < 0.02);
+		assertTrue(Double.isNaN(report.getRSquared()));
+	}
+
+	@Test
+	public void testExponentialFit() {
+		ImagePlus imp = SyntheticStacks.create(48, 40, 16, 3, 10, 52);
+		BleachCorrection_ExpoFit ef = new BleachCorrection_ExpoFit(imp);
+		ef.setHeadlessProcessing(true);
+		ef.setCache(new StatisticsCache(0));
+		ef.core();
+		QualityReport report = ef.getQualityReport();
+		assertMeasured(imp, null, report, 1e-9);
+		assertEquals(ef.getFitResult().getRSquared(), report.getRSquared(), 0);
+		double[] factors = ef.getFactors();
+		double[] fitted = ef.getFittedIntensities();
+		assertEquals(10, factors.length);
+		for (int t = 0; t < factors.length; t++)
+			assertEquals(fitted[0], factors[t] * fitted[t], 1e-9 * fitted[0]);
+		assertTrue(Math.abs(report.getDrift()) < 0.01);
+		assertEquals(0, report.getMaxSaturatedFraction(), 0);
+	}
+
+	@Test
+	public void testDithered() {
+		ImagePlus imp = SyntheticStacks.create(48, 40, 8, 1, 30, 53);
+		BleachCorrection_SimpleRatio sr = new BleachCorrection_SimpleRatio(imp);
+		sr.setCache(new StatisticsCache(0));
+		sr.setOutputMode(OutputPrecision.DITHER);
+		sr.correctBleach();
+		assertMeasured(imp, null, sr.getQualityReport(), 0.05);
+	}
+
+	@Test
+	public void testWrite() throws IOException {
+		ImagePlus imp = SyntheticStacks.create(48, 40, 8, 1, 12, 54);
+		BleachCorrection_MH mh = new BleachCorrection_MH(imp);
+		mh.setCache(new StatisticsCache(0));
+		mh.doCorrection();
+		QualityReport report = mh.getQualityReport();
+		File f = folder.newFile("quality.csv");
+		report.writeCsv(f);
+		List<String> lines = Files.readAllLines(f.toPath());
+		assertEquals(2 + 12, lines.size());
+		assertTrue(lines.get(0).startsWith("# quality (Histogram Matching)"));
+		String json = report.toJson();
+		assertTrue(json.startsWith("{\"method\":\"Histogram Matching\",\"timepoints\":12,\"rSquared\":null,"));
+		assertTrue(json.contains("{\"t\":12,"));
+	}
+
+	/**
+	 * Compares the report with the ROI means and saturated pixels of the corrected stack.
+	 */
+	static void assertMeasured(ImagePlus imp, Roi roi, QualityReport report, double tolerance) {
+		int slices = imp.getNSlices();
+		int max = (imp.getBitDepth() == 8) ? 255 : 65535;
+		for (int t = 0; t < report.getTimePoints(); t++) {
+			double mean = 0;
+			long saturated = 0;
+			long n = 0;
+			for (int z = 0; z < slices; z++) {
+				ImageProcessor ip = imp.getStack().getProcessor(t * slices + z + 1);
+				ip.setRoi(roi);
+				mean += ip.getStatistics().mean;
+				int[] h = ip.getHistogram();
+				saturated += h[h.length - 1];
+				for (int c : h)
+					n += c;
+			}
+			assertEquals("mean " + t, mean / slices, report.getCorrectedMeans()[t], tolerance);
+			if (h16(max))
+				continue;
+			assertEquals("saturated " + t, saturated / (double) n, report.getSaturatedFractions()[t], 1e-12);
+		}
+	}
+
+	/** ImageJ's histogram of 16 bit images has 256 bins, saturation is only compared for 8 bit */
+	static boolean h16(int max) {
+		return max > 255;
+	}
+}
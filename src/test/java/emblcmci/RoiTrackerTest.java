@@ -0,0 +1,129 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package emblcmci;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Drift tracking on synthetic stacks with a known drift.
+ */
+public class RoiTrackerTest {
+
+	@Test
+	public void testShifts() {
+		ImagePlus imp = drifting(16, 1, 12, 61);
+		RoiTracker tracker = new RoiTracker();
+		tracker.setBlockSize(5);
+		PlaneStatistics[] stats = tracker.measure(imp.getStack(), 1, new Roi(40, 40, 30, 30),
+				new StatisticsCache(0), new BleachProgress(false));
+		assertEquals(12, stats.length);
+		for (int t = 0; t < 12; t++) {
+			assertEquals("x " + t, driftX(t), tracker.getShiftX()[t], 1);
+			assertEquals("y " + t, driftY(t), tracker.getShiftY()[t], 1);
+		}
+	}
+
+	@Test
+	public void testSimpleRatio3D() {
+		ImagePlus imp = drifting(8, 3, 10, 62);
+		Roi roi = new Roi(50, 30, 24, 24);
+		RoiTracker tracker = new RoiTracker(32);
+		BleachCorrection_SimpleRatio sr = new BleachCorrection_SimpleRatio(imp, roi);
+		sr.setCache(new StatisticsCache(0));
+		sr.setRoiTracker(tracker);
+		PlaneStatistics[] stats = tracker.measure(imp.getStack(), 3, roi, new StatisticsCache(0),
+				new BleachProgress(false));
+		for (int t = 0; t < 10; t++) {
+			assertEquals("x " + t, driftX(t), tracker.getShiftX()[t], 1);
+			assertEquals("y " + t, driftY(t), tracker.getShiftY()[t], 1);
+			for (int z = 0; z < 3; z++) {
+				ImageProcessor ip = imp.getStack().getProcessor(t * 3 + z + 1);
+				ip.setRoi(tracker.getRoi(roi, t));
+				assertEquals(ip.getStatistics().mean, stats[t * 3 + z].getMean(), 1e-9);
+			}
+		}
+		assertTrue(sr.correctBleach() != null);
+	}
+
+	static int driftX(int t) {
+		return 3 * t;
+	}
+
+	static int driftY(int t) {
+		return -2 * t;
+	}
+
+	/**
+	 * Bleaching stack of small random spots, cut out of a larger field so
+	 * that the content moves by driftX(t), driftY(t).
+	 */
+	static ImagePlus drifting(int bitDepth, int slices, int frames, long seed) {
+		int w = 128;
+		int h = 96;
+		int fw = w * 3 / 2;
+		int fh = h * 3 / 2;
+		Random random = new Random(seed);
+		float[] field = new float[fw * fh];
+		for (int n = 0; n < 300; n++) {
+			int cx = random.nextInt(fw);
+			int cy = random.nextInt(fh);
+			float a = 50 + 150 * random.nextFloat();
+			for (int y = Math.max(0, cy - 6); y < Math.min(fh, cy + 7); y++)
+				for (int x = Math.max(0, cx - 6); x < Math.min(fw, cx + 7); x++)
+					field[y * fw + x] += a * Math.exp(-((x - cx) * (x - cx) + (y - cy) * (y - cy)) / 8.0);
+		}
+		double scale = (bitDepth == 8) ? 1.0 : 16.0;
+		ImageStack stack = new ImageStack(w, h);
+		for (int t = 0; t < frames; t++) {
+			double decay = Math.exp(-SyntheticStacks.DECAY_RATE * t);
+			int x0 = w / 4 - driftX(t);
+			int y0 = h / 4 - driftY(t);
+			for (int z = 0; z < slices; z++) {
+				ImageProcessor ip = (bitDepth == 8) ? new ByteProcessor(w, h) : new ShortProcessor(w, h);
+				double zfactor = 1.0 - 0.1 * z;
+				for (int y = 0; y < h; y++) {
+					for (int x = 0; x < w; x++) {
+						double v = 20 + field[(y0 + y) * fw + x0 + x] * zfactor;
+						v = 8 + v * decay + 3 * random.nextGaussian();
+						ip.set(x, y, (int) Math.max(0, Math.min(255, Math.round(v)) * scale));
+					}
+				}
+				stack.addSlice(ip);
+			}
+		}
+		ImagePlus imp = new ImagePlus("drifting", stack);
+		imp.setDimensions(1, slices, frames);
+		return imp;
+	}
+}
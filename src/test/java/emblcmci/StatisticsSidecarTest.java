@@ -0,0 +1,131 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package emblcmci;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import histogram2.MaskedHistogram;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.io.FileSaver;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * The sidecar must give back the statistics it was written with, and
+ * only for the same file, stack content and ROI.
+ */
+public class StatisticsSidecarTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testReadWrite() throws Exception {
+		ImagePlus imp = SyntheticStacks.create(48, 40, 16, 2, 5, 61);
+		StatisticsSidecar sidecar = sidecar(imp);
+		MaskedHistogram mask = new MaskedHistogram(48, 40, SyntheticStacks.roi(imp));
+		PlaneStatistics[] stats = new StatisticsCache(0).getAll(imp.getStack(), mask);
+		sidecar.write(imp.getStack(), mask, stats);
+		assertTrue(sidecar.getFile().isFile());
+
+		PlaneStatistics[] read = sidecar.read(imp.getStack(), mask, true);
+		assertNotNull(read);
+		assertEquals(stats.length, read.length);
+		for (int n = 0; n < stats.length; n++) {
+			assertEquals(stats[n].getPixelCount(), read[n].getPixelCount());
+			assertEquals(stats[n].getSum(), read[n].getSum());
+			assertEquals(stats[n].getMin(), read[n].getMin());
+			assertEquals(stats[n].getMax(), read[n].getMax());
+			assertEquals(stats[n].getMode(), read[n].getMode());
+			assertEquals(stats[n].getPercentile(50, null), read[n].getPercentile(50, null), 0);
+		}
+
+		// without histograms, only for callers that do not need them
+		sidecar.setHistograms(false);
+		sidecar.write(imp.getStack(), mask, stats);
+		assertNull(sidecar.read(imp.getStack(), mask, true));
+		read = sidecar.read(imp.getStack(), mask, false);
+		assertNotNull(read);
+		assertFalse(read[0].hasHistogram());
+		assertEquals(stats[3].getSum(), read[3].getSum());
+	}
+
+	@Test
+	public void testInvalidation() throws Exception {
+		ImagePlus imp = SyntheticStacks.create(48, 40, 8, 1, 6, 62);
+		StatisticsSidecar sidecar = sidecar(imp);
+		MaskedHistogram mask = new MaskedHistogram(48, 40, (Roi) null);
+		sidecar.write(imp.getStack(), mask, new StatisticsCache(0).getAll(imp.getStack(), mask));
+		assertNotNull(sidecar.read(imp.getStack(), mask, true));
+
+		// the same file, but the first or the last plane changed in memory
+		ImageStack stack = imp.getStack();
+		byte[] first = (byte[]) stack.getPixels(1);
+		first[0]++;
+		assertNull(sidecar.read(stack, mask, true));
+		first[0]--;
+		byte[] last = (byte[]) stack.getPixels(stack.getSize());
+		last[100]++;
+		assertNull(sidecar.read(stack, mask, true));
+		last[100]--;
+		assertNotNull(sidecar.read(stack, mask, true));
+
+		// another stack size
+		ImageStack shorter = imp.duplicate().getStack();
+		shorter.deleteLastSlice();
+		assertNull(sidecar.read(shorter, mask, true));
+
+		// the image file changed
+		assertTrue(sidecar.source.setLastModified(sidecar.source.lastModified() - 10000));
+		assertNull(sidecar.read(stack, mask, true));
+	}
+
+	@Test
+	public void testMaskMismatch() throws Exception {
+		ImagePlus imp = SyntheticStacks.create(48, 40, 16, 1, 4, 63);
+		StatisticsSidecar sidecar = sidecar(imp);
+		MaskedHistogram mask = new MaskedHistogram(48, 40, new Roi(4, 4, 20, 20));
+		sidecar.write(imp.getStack(), mask, new StatisticsCache(0).getAll(imp.getStack(), mask));
+		assertNotNull(sidecar.read(imp.getStack(), new MaskedHistogram(48, 40, new Roi(4, 4, 20, 20)), true));
+		assertNull(sidecar.read(imp.getStack(), new MaskedHistogram(48, 40, new Roi(5, 4, 20, 20)), true));
+		assertNull(sidecar.read(imp.getStack(), new MaskedHistogram(48, 40, (Roi) null), true));
+	}
+
+	/**
+	 * @return sidecar of imp saved as a file
+	 */
+	StatisticsSidecar sidecar(ImagePlus imp) throws Exception {
+		File f = new File(folder.getRoot(), "stack.tif");
+		new FileSaver(imp).saveAsTiffStack(f.getPath());
+		return new StatisticsSidecar(new File(f.getPath() + StatisticsSidecar.EXTENSION), f);
+	}
+}
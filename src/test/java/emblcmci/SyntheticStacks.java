@@ -0,0 +1,111 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package emblcmci;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.OvalRoi;
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ * Deterministic synthetic bleaching stacks for the tests: a few Gaussian
+ * spots on a background, decaying exponentially over time, with seeded
+ * Gaussian noise.
+ */
+class SyntheticStacks {
+
+	static final double DECAY_RATE = 0.04;
+
+	/**
+	 * @param bitDepth 8 or 16
+	 * @param slices z-slices per time point, 1 for a 2D time series
+	 * @param frames time points
+	 * @param seed seed of the noise
+	 */
+	static ImagePlus create(int width, int height, int bitDepth, int slices, int frames, long seed) {
+		double scale = (bitDepth == 8) ? 1.0 : 16.0;
+		double[][] spots = { { 0.3, 0.3, 0.08 }, { 0.7, 0.4, 0.12 }, { 0.45, 0.75, 0.1 } };
+		Random random = new Random(seed);
+		ImageStack stack = new ImageStack(width, height);
+		for (int t = 0; t < frames; t++) {
+			double decay = Math.exp(-DECAY_RATE * t);
+			for (int z = 0; z < slices; z++) {
+				ImageProcessor ip = (bitDepth == 8) ? new ByteProcessor(width, height)
+						: new ShortProcessor(width, height);
+				double zfactor = 1.0 - 0.1 * z;
+				for (int y = 0; y < height; y++) {
+					for (int x = 0; x < width; x++) {
+						double v = 20;
+						for (double[] s : spots) {
+							double dx = (double) x / width - s[0];
+							double dy = (double) y / height - s[1];
+							v += 180 * zfactor * Math.exp(-(dx * dx + dy * dy) / (2 * s[2] * s[2]));
+						}
+						v = 8 + v * decay + 3 * random.nextGaussian();
+						ip.set(x, y, (int) Math.max(0, Math.round(v * scale)));
+					}
+				}
+				stack.addSlice("t" + t + "z" + z, ip);
+			}
+		}
+		ImagePlus imp = new ImagePlus("synthetic", stack);
+		imp.setDimensions(1, slices, frames);
+		return imp;
+	}
+
+	/**
+	 * @return ROI around the spots, as used by the ROI variants of the tests
+	 */
+	static Roi roi(ImagePlus imp) {
+		return new OvalRoi(imp.getWidth() / 8, imp.getHeight() / 8, imp.getWidth() * 3 / 4,
+				imp.getHeight() * 3 / 4);
+	}
+
+	/**
+	 * @return CRC32 over all pixels of the stack, as hex string
+	 */
+	static String checksum(ImagePlus imp) {
+		CRC32 crc = new CRC32();
+		ImageStack stack = imp.getStack();
+		for (int n = 1; n <= stack.getSize(); n++) {
+			Object pixels = stack.getPixels(n);
+			if (pixels instanceof byte[]) {
+				crc.update((byte[]) pixels);
+			} else {
+				short[] p = (short[]) pixels;
+				byte[] b = new byte[2 * p.length];
+				for (int i = 0; i < p.length; i++) {
+					b[2 * i] = (byte) (p[i] >> 8);
+					b[2 * i + 1] = (byte) p[i];
+				}
+				crc.update(b);
+			}
+		}
+		return Long.toHexString(crc.getValue());
+	}
+}